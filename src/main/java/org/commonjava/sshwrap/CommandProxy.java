@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.SocketFactory;
+
+/**
+ * JSch {@link Proxy} that uses the stdin/stdout of a local command as the transport, mirroring OpenSSH's ProxyCommand
+ * option. The tokens %h, %p, %r and %% are expanded before the command is run via /bin/sh.
+ */
+final class CommandProxy
+    implements Proxy
+{
+
+    private static final Logger LOGGER = Logger.getLogger( CommandProxy.class );
+
+    private final String command;
+
+    private final String user;
+
+    private Process process;
+
+    CommandProxy( final String command, final String user )
+    {
+        this.command = command;
+        this.user = user;
+    }
+
+    @Override
+    public void connect( final SocketFactory socketFactory, final String host, final int port, final int timeout )
+        throws Exception
+    {
+        final String cmd = expand( command, host, port, user );
+        if ( LOGGER.isDebugEnabled() )
+        {
+            LOGGER.debug( "Starting proxy command: " + cmd );
+        }
+
+        process = new ProcessBuilder( "/bin/sh", "-c", cmd ).start();
+
+        final InputStream err = process.getErrorStream();
+        final Thread drain = Workers.newThread( "ProxyCommand stderr: " + host, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    LOGGER.debug( IOUtils.toString( err ) );
+                }
+                catch ( final IOException e )
+                {
+                    // process went away; nothing left to log.
+                }
+            }
+        } );
+
+        drain.start();
+    }
+
+    static String expand( final String command, final String host, final int port, final String user )
+    {
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < command.length(); i++ )
+        {
+            final char c = command.charAt( i );
+            if ( c == '%' && i + 1 < command.length() )
+            {
+                final char token = command.charAt( ++i );
+                switch ( token )
+                {
+                    case 'h':
+                        sb.append( host );
+                        break;
+                    case 'p':
+                        sb.append( port );
+                        break;
+                    case 'r':
+                        sb.append( user );
+                        break;
+                    case '%':
+                        sb.append( '%' );
+                        break;
+                    default:
+                        sb.append( c )
+                          .append( token );
+                }
+            }
+            else
+            {
+                sb.append( c );
+            }
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return process.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return process.getOutputStream();
+    }
+
+    @Override
+    public Socket getSocket()
+    {
+        return null;
+    }
+
+    @Override
+    public void close()
+    {
+        if ( process != null )
+        {
+            process.destroy();
+            process = null;
+        }
+    }
+
+}
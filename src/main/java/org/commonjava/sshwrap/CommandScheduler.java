@@ -0,0 +1,586 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.Channel;
+
+/**
+ * Hands out the channels of one {@link SSHConnection} in priority order, so bulk background work can't starve
+ * latency-sensitive commands.
+ * <p>
+ * At most a fixed number of channels are open at once, matching the server's MaxSessions (10 by default in OpenSSH);
+ * if the server refuses a channel as administratively prohibited below that limit, the limit is lowered to what the
+ * server actually allowed, then raised back one channel at a time, each probe interval without a refusal. When all
+ * channels are busy, requests wait: higher priority classes always go first, and within a class, tenants share
+ * channels in proportion to their weights (weighted fair queuing, each request costing one unit).
+ * </p>
+ */
+public final class CommandScheduler
+{
+
+    private static final Logger LOGGER = Logger.getLogger( CommandScheduler.class );
+
+    /** OpenSSH's default MaxSessions. */
+    public static final int DEFAULT_MAX_CHANNELS = 10;
+
+    /** Milliseconds. */
+    public static final long DEFAULT_PROBE_INTERVAL = 30000;
+
+    public enum Priority
+    {
+        INTERACTIVE, NORMAL, BULK;
+    }
+
+    private final SSHConnection connection;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final List<Request> waiting = new ArrayList<Request>();
+
+    private final Map<String, Double> weights = new HashMap<String, Double>();
+
+    private final Map<String, Double> lastFinish = new HashMap<String, Double>();
+
+    private final Map<Channel, Boolean> channels = new IdentityHashMap<Channel, Boolean>();
+
+    private final Stats[] stats = new Stats[Priority.values().length];
+
+    private final int configuredMaxChannels;
+
+    private int maxChannels;
+
+    private int inUse;
+
+    private long probeNanos = TimeUnit.MILLISECONDS.toNanos( DEFAULT_PROBE_INTERVAL );
+
+    private long lastRefusal;
+
+    private double virtualTime;
+
+    public CommandScheduler( final SSHConnection connection )
+    {
+        this( connection, DEFAULT_MAX_CHANNELS );
+    }
+
+    public CommandScheduler( final SSHConnection connection, final int maxChannels )
+    {
+        this.connection = connection;
+        this.configuredMaxChannels = Math.max( 1, maxChannels );
+        this.maxChannels = configuredMaxChannels;
+        for ( int i = 0; i < stats.length; i++ )
+        {
+            stats[i] = new Stats();
+        }
+    }
+
+    /**
+     * Give a tenant a larger (or smaller) share of the channels than the default weight of 1.
+     */
+    public void setTenantWeight( final String tenant, final double weight )
+    {
+        lock.lock();
+        try
+        {
+            weights.put( tenant, weight );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * After the server has refused a channel and the limit was lowered, try one more channel each time this long
+     * passes without another refusal, until the configured limit is back.
+     */
+    public void setProbeInterval( final long interval, final TimeUnit unit )
+    {
+        lock.lock();
+        try
+        {
+            probeNanos = unit.toNanos( interval );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Run a command once a channel is available to it.
+     */
+    public int execute( final Priority priority, final String tenant, final String command,
+                        final OutputStream cmdOutput )
+        throws IOException, SSHWrapException, InterruptedException
+    {
+        acquire( priority, tenant );
+        try
+        {
+            return connection.execute( command, cmdOutput );
+        }
+        catch ( final SSHWrapException e )
+        {
+            refused( e );
+            throw e;
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    /**
+     * Open a channel once one is available. It counts against the limit until passed to
+     * {@link #closeChannel(Channel)}. Set it up, then connect it with
+     * {@link #connectChannel(Channel, long, TimeUnit)}: that is when the server accepts or refuses it.
+     */
+    public Channel openChannel( final Priority priority, final String tenant, final ChannelType type )
+        throws SSHWrapException, InterruptedException
+    {
+        acquire( priority, tenant );
+        try
+        {
+            final Channel channel = connection.openChannel( type );
+            lock.lock();
+            try
+            {
+                channels.put( channel, Boolean.TRUE );
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            return channel;
+        }
+        catch ( final SSHWrapException e )
+        {
+            release();
+            throw e;
+        }
+        catch ( final RuntimeException e )
+        {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Connect a channel from {@link #openChannel(Priority, String, ChannelType)}. A refusal lowers the limit, as for
+     * {@link #execute(Priority, String, String, OutputStream)}; on any failure, the channel is closed and its slot
+     * passed on.
+     *
+     * @param timeout Time allowed for the server to answer; 0 to use the host's ConnectTimeout.
+     */
+    public void connectChannel( final Channel channel, final long timeout, final TimeUnit unit )
+        throws SSHWrapException
+    {
+        try
+        {
+            connection.connectChannel( channel, timeout, unit );
+        }
+        catch ( final SSHWrapException e )
+        {
+            refused( e );
+            closeChannel( channel );
+            throw e;
+        }
+        catch ( final RuntimeException e )
+        {
+            closeChannel( channel );
+            throw e;
+        }
+    }
+
+    /**
+     * Disconnect a channel from {@link #openChannel(Priority, String, ChannelType)} and pass its slot on.
+     */
+    public void closeChannel( final Channel channel )
+    {
+        channel.disconnect();
+
+        final boolean owned;
+        lock.lock();
+        try
+        {
+            owned = channels.remove( channel ) != null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if ( owned )
+        {
+            release();
+        }
+    }
+
+    /**
+     * Wait for a channel slot. Every successful call must be matched by a {@link #release()}.
+     */
+    public void acquire( final Priority priority, final String tenant )
+        throws InterruptedException
+    {
+        final long start = System.nanoTime();
+        lock.lock();
+        try
+        {
+            final Stats s = stats[priority.ordinal()];
+            probe();
+            if ( inUse < maxChannels && waiting.isEmpty() )
+            {
+                inUse++;
+                s.record( 0 );
+                return;
+            }
+
+            final Request request = new Request( priority, tag( tenant ), lock.newCondition() );
+            waiting.add( request );
+            s.depth++;
+            s.maxDepth = Math.max( s.maxDepth, s.depth );
+            try
+            {
+                while ( !request.granted )
+                {
+                    request.ready.await();
+                }
+            }
+            catch ( final InterruptedException e )
+            {
+                if ( request.granted )
+                {
+                    // the slot was already ours; pass it on.
+                    inUse--;
+                    dispatch();
+                }
+                else
+                {
+                    waiting.remove( request );
+                }
+
+                throw e;
+            }
+            finally
+            {
+                s.depth--;
+            }
+
+            s.record( System.nanoTime() - start );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void release()
+    {
+        lock.lock();
+        try
+        {
+            inUse--;
+            dispatch();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxChannels()
+    {
+        lock.lock();
+        try
+        {
+            return maxChannels;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public int getChannelsInUse()
+    {
+        lock.lock();
+        try
+        {
+            return inUse;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests of the given class waiting for a channel right now.
+     */
+    public int getQueueDepth( final Priority priority )
+    {
+        lock.lock();
+        try
+        {
+            return stats[priority.ordinal()].depth;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the most requests of the given class that have ever waited at once.
+     */
+    public int getMaxQueueDepth( final Priority priority )
+    {
+        lock.lock();
+        try
+        {
+            return stats[priority.ordinal()].maxDepth;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the average time requests of the given class waited for a channel.
+     */
+    public long getAverageWait( final Priority priority, final TimeUnit unit )
+    {
+        lock.lock();
+        try
+        {
+            final Stats s = stats[priority.ordinal()];
+            return s.count == 0 ? 0 : unit.convert( s.totalWait / s.count, TimeUnit.NANOSECONDS );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the longest time a request of the given class waited for a channel.
+     */
+    public long getMaxWait( final Priority priority, final TimeUnit unit )
+    {
+        lock.lock();
+        try
+        {
+            return unit.convert( stats[priority.ordinal()].maxWait, TimeUnit.NANOSECONDS );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder( "CommandScheduler [channels: " );
+        sb.append( getChannelsInUse() )
+          .append( '/' )
+          .append( getMaxChannels() );
+        for ( final Priority p : Priority.values() )
+        {
+            sb.append( ", " )
+              .append( p )
+              .append( ": waiting " )
+              .append( getQueueDepth( p ) )
+              .append( " (max " )
+              .append( getMaxQueueDepth( p ) )
+              .append( "), avg wait " )
+              .append( getAverageWait( p, TimeUnit.MILLISECONDS ) )
+              .append( "ms" );
+        }
+
+        return sb.append( ']' )
+                 .toString();
+    }
+
+    /**
+     * When the server refuses a channel as administratively prohibited while others are open, its MaxSessions is lower
+     * than we assumed; shrink the limit to the channels it did allow. Any other failure (a timeout, a failed exec, a
+     * dropped session) says nothing about the limit.
+     */
+    private void refused( final SSHWrapException e )
+    {
+        if ( !isProhibited( e ) )
+        {
+            return;
+        }
+
+        lock.lock();
+        try
+        {
+            lastRefusal = System.nanoTime();
+
+            // this request's slot is still counted in inUse.
+            if ( inUse < 2 )
+            {
+                return;
+            }
+
+            final int allowed = inUse - 1;
+            if ( allowed < maxChannels )
+            {
+                LOGGER.info( "Server refused a channel with " + allowed + " open; limiting to " + allowed );
+                maxChannels = allowed;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isProhibited( final Throwable e )
+    {
+        for ( Throwable t = e; t != null; t = t.getCause() )
+        {
+            if ( t instanceof SSHConnection.ChannelRefusedException )
+            {
+                return ( (SSHConnection.ChannelRefusedException) t ).isAdministrativelyProhibited();
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Raise a lowered limit by one channel if there has been no refusal for a probe interval; if the server still
+     * can't take it, the next refusal lowers the limit again.
+     */
+    private void probe()
+    {
+        if ( maxChannels < configuredMaxChannels && System.nanoTime() - lastRefusal >= probeNanos )
+        {
+            maxChannels++;
+            lastRefusal = System.nanoTime();
+            LOGGER.debug( "Probing for a higher channel limit: " + maxChannels );
+        }
+    }
+
+    /**
+     * Assign the request its virtual finish time: it starts when the tenant's previous request finished, or now,
+     * whichever is later, and takes 1 / weight.
+     */
+    private double tag( final String tenant )
+    {
+        final Double weight = weights.get( tenant );
+        final Double previous = lastFinish.get( tenant );
+
+        final double start = previous == null ? virtualTime : Math.max( virtualTime, previous );
+        final double finish = start + 1 / ( weight == null || weight <= 0 ? 1 : weight );
+        lastFinish.put( tenant, finish );
+
+        return finish;
+    }
+
+    /**
+     * Grant free slots to the waiting requests of the highest priority with the earliest finish times.
+     */
+    private void dispatch()
+    {
+        probe();
+        while ( inUse < maxChannels && !waiting.isEmpty() )
+        {
+            Request next = null;
+            for ( final Request r : waiting )
+            {
+                if ( next == null || r.priority.ordinal() < next.priority.ordinal()
+                    || ( r.priority == next.priority && r.tag < next.tag ) )
+                {
+                    next = r;
+                }
+            }
+
+            waiting.remove( next );
+            virtualTime = Math.max( virtualTime, next.tag );
+            inUse++;
+            next.granted = true;
+            next.ready.signal();
+        }
+
+        if ( waiting.isEmpty() && inUse == 0 )
+        {
+            // idle; forget tenant history so it doesn't count against anyone later.
+            lastFinish.clear();
+            virtualTime = 0;
+        }
+    }
+
+    private static final class Request
+    {
+        final Priority priority;
+
+        final double tag;
+
+        final Condition ready;
+
+        boolean granted;
+
+        Request( final Priority priority, final double tag, final Condition ready )
+        {
+            this.priority = priority;
+            this.tag = tag;
+            this.ready = ready;
+        }
+    }
+
+    private static final class Stats
+    {
+        int depth;
+
+        int maxDepth;
+
+        long count;
+
+        long totalWait;
+
+        long maxWait;
+
+        void record( final long wait )
+        {
+            count++;
+            totalWait += wait;
+            maxWait = Math.max( maxWait, wait );
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap;
+
+import java.io.EOFException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+/**
+ * Broad classes of failure, telling callers (and {@link RetryPolicy}) whether trying again might help.
+ */
+public enum ErrorCategory
+{
+
+    /** The server couldn't be reached, or the connection was refused, reset or closed. */
+    CONNECTION( true ),
+
+    /** Connecting, opening a channel, or waiting for a reply took too long. */
+    TIMEOUT( true ),
+
+    /** The server refused to open a channel (for instance, because of its MaxSessions limit). */
+    CHANNEL( true ),
+
+    /** The session dropped before (or while) an operation ran over it. */
+    SESSION_LOST( true ),
+
+    /** The server rejected every credential offered. */
+    AUTHENTICATION( false ),
+
+    /** The server's host key is unknown, changed, or was rejected. */
+    HOST_KEY( false ),
+
+    /** The local configuration is unusable: bad key files, no common algorithms, misuse of the API... */
+    CONFIGURATION( false ),
+
+    /** Anything else. Not retried, since there's no telling whether it is safe. */
+    UNKNOWN( false );
+
+    private final boolean transientFailure;
+
+    private ErrorCategory( final boolean transientFailure )
+    {
+        this.transientFailure = transientFailure;
+    }
+
+    /**
+     * @return true if the same operation may well succeed when tried again.
+     */
+    public boolean isTransient()
+    {
+        return transientFailure;
+    }
+
+    /**
+     * Work out the category of a failure from the exceptions (and JSch's messages) along its cause chain.
+     */
+    public static ErrorCategory classify( final Throwable error )
+    {
+        for ( Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause() )
+        {
+            if ( t instanceof SSHWrapException && ( (SSHWrapException) t ).getAssignedCategory() != null )
+            {
+                return ( (SSHWrapException) t ).getAssignedCategory();
+            }
+
+            if ( t instanceof InterruptedIOException )
+            {
+                return TIMEOUT;
+            }
+
+            if ( t instanceof SocketException || t instanceof UnknownHostException || t instanceof EOFException )
+            {
+                return CONNECTION;
+            }
+
+            final ErrorCategory byMessage = classify( t.getMessage() );
+            if ( byMessage != null )
+            {
+                return byMessage;
+            }
+        }
+
+        return UNKNOWN;
+    }
+
+    private static ErrorCategory classify( final String message )
+    {
+        if ( message == null )
+        {
+            return null;
+        }
+
+        final String m = message.toLowerCase();
+        if ( m.contains( "auth fail" ) || m.contains( "auth cancel" ) || m.contains( "userauth fail" ) )
+        {
+            return AUTHENTICATION;
+        }
+
+        if ( m.contains( "hostkey" ) )
+        {
+            return HOST_KEY;
+        }
+
+        if ( m.contains( "timeout" ) || m.contains( "timed out" ) )
+        {
+            return TIMEOUT;
+        }
+
+        if ( m.contains( "connection refused" ) || m.contains( "connection reset" ) || m.contains( "end of io stream" )
+            || m.contains( "no route to host" ) || m.contains( "unknownhostexception" )
+            || m.contains( "broken pipe" ) || m.contains( "packet corrupt" ) )
+        {
+            return CONNECTION;
+        }
+
+        if ( m.contains( "session is down" ) || m.contains( "session is not connected" ) )
+        {
+            return SESSION_LOST;
+        }
+
+        if ( m.contains( "channel is not opened" ) || m.contains( "channel request" ) )
+        {
+            return CHANNEL;
+        }
+
+        if ( m.contains( "algorithm negotiation fail" ) || m.contains( "invalid privatekey" ) )
+        {
+            return CONFIGURATION;
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@link HostSelector} knows about one host: how quickly it connects and runs commands, how many requests it is
+ * currently serving, and whether its circuit breaker is letting requests through.
+ * <p>
+ * The breaker trips (opens) when the failure rate over the most recent outcomes reaches a threshold. While open, the
+ * host is skipped entirely; once the open period has elapsed it becomes half-open and lets a single probe request
+ * through, which closes the breaker on success or re-opens it on failure.
+ * </p>
+ * <p>
+ * Each request is tagged with the breaker generation it was let through in, which changes whenever the breaker
+ * changes state. A request that outlives its generation (one still running when the breaker tripped, say) only counts
+ * as no longer in flight: it can neither trip, re-open, nor close the breaker it didn't go through.
+ * </p>
+ */
+public final class HostHealth
+{
+
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN;
+    }
+
+    private static final double WEIGHT = 0.3;
+
+    private final String name;
+
+    private final boolean[] outcomes;
+
+    private final int minSamples;
+
+    private final double failureThreshold;
+
+    private final long openNanos;
+
+    private int next;
+
+    private int samples;
+
+    private int failures;
+
+    private State state = State.CLOSED;
+
+    private long openedAt;
+
+    private boolean probing;
+
+    private long generation;
+
+    private double connectLatency = -1;
+
+    private double execLatency = -1;
+
+    private int inFlight;
+
+    HostHealth( final String name, final int window, final int minSamples, final double failureThreshold,
+                final long openPeriod, final TimeUnit unit )
+    {
+        this.name = name;
+        this.outcomes = new boolean[window];
+        this.minSamples = minSamples;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = unit.toNanos( openPeriod );
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public synchronized State getState()
+    {
+        if ( state == State.OPEN && System.nanoTime() - openedAt >= openNanos )
+        {
+            transition( State.HALF_OPEN );
+        }
+
+        return state;
+    }
+
+    /**
+     * @return the share of recent requests that failed, between 0 and 1.
+     */
+    public synchronized double getFailureRate()
+    {
+        return samples == 0 ? 0 : (double) failures / samples;
+    }
+
+    /**
+     * @return the moving average time to connect, in nanoseconds; -1 if never measured.
+     */
+    public synchronized double getConnectLatency()
+    {
+        return connectLatency;
+    }
+
+    /**
+     * @return the moving average time to run a command, in nanoseconds; -1 if never measured.
+     */
+    public synchronized double getExecLatency()
+    {
+        return execLatency;
+    }
+
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+
+    /**
+     * @return the typical time to serve a request here, in nanoseconds: the command latency if measured, else the
+     *         connect latency; -1 if neither has been measured yet.
+     */
+    synchronized double getLatency()
+    {
+        return execLatency >= 0 ? execLatency : connectLatency;
+    }
+
+    /**
+     * Expected cost of sending one more request here: the typical latency, scaled by the requests already waiting
+     * on it.
+     *
+     * @param unmeasured Latency to assume while this host has none measured, so that requests already sent to it
+     *            still count until the first one completes.
+     */
+    synchronized double score( final double unmeasured )
+    {
+        final double latency = getLatency();
+        return ( latency >= 0 ? latency : unmeasured ) * ( inFlight + 1 );
+    }
+
+    /**
+     * Claim the right to send a request, if the breaker allows one.
+     *
+     * @return the ticket to report the request's outcome with, or -1 if the breaker refused it.
+     */
+    synchronized long acquire()
+    {
+        final State current = getState();
+        if ( current == State.OPEN || ( current == State.HALF_OPEN && probing ) )
+        {
+            return -1;
+        }
+
+        if ( current == State.HALF_OPEN )
+        {
+            probing = true;
+        }
+
+        inFlight++;
+        return generation;
+    }
+
+    synchronized void connected( final long nanos )
+    {
+        connectLatency = connectLatency < 0 ? nanos : connectLatency + WEIGHT * ( nanos - connectLatency );
+    }
+
+    synchronized void succeeded( final long ticket, final long nanos )
+    {
+        inFlight--;
+        execLatency = execLatency < 0 ? nanos : execLatency + WEIGHT * ( nanos - execLatency );
+        if ( ticket != generation )
+        {
+            return;
+        }
+
+        record( false );
+        if ( state == State.HALF_OPEN )
+        {
+            transition( State.CLOSED );
+            reset();
+        }
+    }
+
+    /**
+     * Give up a request without judging the host, for failures that were none of its doing.
+     */
+    synchronized void abandoned( final long ticket )
+    {
+        inFlight--;
+        if ( ticket == generation && state == State.HALF_OPEN )
+        {
+            // let another request probe it instead.
+            probing = false;
+        }
+    }
+
+    synchronized void failed( final long ticket )
+    {
+        inFlight--;
+        if ( ticket != generation )
+        {
+            return;
+        }
+
+        record( true );
+        if ( state == State.HALF_OPEN || ( samples >= minSamples && getFailureRate() >= failureThreshold ) )
+        {
+            transition( State.OPEN );
+            openedAt = System.nanoTime();
+        }
+    }
+
+    private void transition( final State to )
+    {
+        state = to;
+        probing = false;
+        generation++;
+    }
+
+    private void record( final boolean failure )
+    {
+        if ( samples == outcomes.length )
+        {
+            if ( outcomes[next] )
+            {
+                failures--;
+            }
+        }
+        else
+        {
+            samples++;
+        }
+
+        outcomes[next] = failure;
+        if ( failure )
+        {
+            failures++;
+        }
+
+        next = ( next + 1 ) % outcomes.length;
+    }
+
+    private void reset()
+    {
+        next = 0;
+        samples = 0;
+        failures = 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "%s [%s, failures: %.0f%%, in flight: %d, latency: %.1fms]", name, getState(),
+                              getFailureRate() * 100, getInFlight(), Math.max( 0, getLatency() ) / 1000000 );
+    }
+
+}
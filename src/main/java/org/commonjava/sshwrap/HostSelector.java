@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.commonjava.sshwrap.config.DefaultSSHConfiguration;
+import org.commonjava.sshwrap.config.Host;
+import org.commonjava.sshwrap.config.SSHConfiguration;
+import org.commonjava.sshwrap.ui.Prompter;
+
+/**
+ * Runs each request on whichever one of a set of equivalent hosts (replicas of a service, say) is expected to answer
+ * fastest, skipping hosts whose circuit breaker has tripped.
+ * <p>
+ * Hosts are named as for {@link SSHConfiguration#lookup(String)}, and tracked by the host name and port they resolve
+ * to. Each request goes to the healthy host with the lowest expected cost: its moving-average latency, multiplied by
+ * the number of requests it is already serving. Connections are opened on first use and kept for later requests.
+ * </p>
+ */
+public final class HostSelector
+{
+
+    private static final Logger LOGGER = Logger.getLogger( HostSelector.class );
+
+    private final SSHConfiguration config;
+
+    private final ConnectionFactory factory;
+
+    private final Map<String, HostHealth> health = new LinkedHashMap<String, HostHealth>();
+
+    private final Map<String, String> keys = new LinkedHashMap<String, String>();
+
+    private final Map<String, SSHConnection> connections = new LinkedHashMap<String, SSHConnection>();
+
+    public HostSelector( final SSHConfiguration config, final Prompter prompter, final String... hosts )
+    {
+        this( config, new ConnectionFactory()
+        {
+            public SSHConnection connect( final String host )
+                throws SSHWrapException
+            {
+                return new SSHConnection.Builder( host, prompter ).withConfig( config )
+                                                                    .create();
+            }
+        }, 20, 5, 0.5, 30, TimeUnit.SECONDS, hosts );
+    }
+
+    /**
+     * @param window Number of recent outcomes the failure rate is computed over.
+     * @param minSamples Outcomes needed before the breaker can trip.
+     * @param failureThreshold Failure rate (0-1) that trips the breaker.
+     * @param openPeriod How long a tripped breaker keeps the host out of rotation before letting a probe through.
+     */
+    public HostSelector( final SSHConfiguration config, final ConnectionFactory factory, final int window,
+                         final int minSamples, final double failureThreshold, final long openPeriod,
+                         final TimeUnit unit, final String... hosts )
+    {
+        this.config = config == null ? new DefaultSSHConfiguration() : config;
+        this.factory = factory;
+
+        for ( final String name : hosts )
+        {
+            final Host host = this.config.lookup( name );
+            final String key = host.getHostName() + ":" + host.getPort();
+            keys.put( name, key );
+
+            if ( !health.containsKey( key ) )
+            {
+                health.put( key, new HostHealth( key, window, minSamples, failureThreshold, openPeriod, unit ) );
+            }
+        }
+    }
+
+    /**
+     * @return the health of the given host (as named to the constructor), or null if it isn't one of this selector's.
+     */
+    public HostHealth getHealth( final String host )
+    {
+        final String key = keys.get( host );
+        return key == null ? null : health.get( key );
+    }
+
+    /**
+     * Run a command on the best available host.
+     *
+     * @param idempotent If true, a command that fails (other than by exiting non-zero) is re-run on the next best
+     *            host; otherwise only failures to connect fail over. Output of an idempotent command is held back until
+     *            it has succeeded, so a failed attempt's partial output never reaches the caller.
+     * @return the exit status.
+     * @throws SSHWrapException if every host is unavailable or has failed.
+     */
+    public int execute( final String command, final OutputStream cmdOutput, final boolean idempotent )
+        throws IOException, SSHWrapException
+    {
+        SSHWrapException last = null;
+        for ( final String name : ranked() )
+        {
+            final HostHealth h = health.get( keys.get( name ) );
+            final long ticket = h.acquire();
+            if ( ticket < 0 )
+            {
+                continue;
+            }
+
+            final SSHConnection connection;
+            try
+            {
+                connection = connection( name, h );
+            }
+            catch ( final SSHWrapException e )
+            {
+                h.failed( ticket );
+                LOGGER.warn( "Failed to connect to: " + name + "; trying the next host. Reason: " + e.getMessage() );
+                last = e;
+                continue;
+            }
+
+            final ByteArrayOutputStream attempt = idempotent ? new ByteArrayOutputStream() : null;
+            final CallerOutputStream out = new CallerOutputStream( idempotent ? attempt : cmdOutput );
+            final long start = System.nanoTime();
+            final int status;
+            try
+            {
+                // re-runs are left to the failover below, which keeps each attempt's output apart.
+                status = connection.execute( command, out, false );
+            }
+            catch ( final SSHWrapException e )
+            {
+                if ( out.failure != null )
+                {
+                    // the output couldn't be delivered; neither this host nor the next is to blame.
+                    h.abandoned( ticket );
+                    throw out.failure;
+                }
+
+                h.failed( ticket );
+                discard( name, connection );
+                if ( !idempotent )
+                {
+                    throw e;
+                }
+
+                LOGGER.warn( "Command failed on: " + name + "; trying the next host. Reason: " + e.getMessage() );
+                last = e;
+                continue;
+            }
+            catch ( final IOException e )
+            {
+                if ( out.failure != null )
+                {
+                    h.abandoned( ticket );
+                }
+                else
+                {
+                    h.failed( ticket );
+                    discard( name, connection );
+                }
+                throw e;
+            }
+            catch ( final RuntimeException e )
+            {
+                h.failed( ticket );
+                throw e;
+            }
+
+            if ( out.failure != null )
+            {
+                h.abandoned( ticket );
+                throw out.failure;
+            }
+
+            h.succeeded( ticket, System.nanoTime() - start );
+            if ( attempt != null )
+            {
+                attempt.writeTo( cmdOutput );
+            }
+
+            return status;
+        }
+
+        if ( last != null )
+        {
+            throw last;
+        }
+
+        throw new SSHWrapException( "No healthy host available among: %s", health.values() )
+            .withCategory( ErrorCategory.CONNECTION );
+    }
+
+    /**
+     * @return the host that would be chosen for the next request, or null if none is available.
+     */
+    public String select()
+    {
+        for ( final String name : ranked() )
+        {
+            if ( health.get( keys.get( name ) )
+                       .getState() != HostHealth.State.OPEN )
+            {
+                return name;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Close every connection this selector opened.
+     */
+    public synchronized void close()
+    {
+        for ( final SSHConnection connection : connections.values() )
+        {
+            connection.disconnect();
+        }
+
+        connections.clear();
+    }
+
+    private List<String> ranked()
+    {
+        final List<String> names = new ArrayList<String>( keys.keySet() );
+        final double unmeasured = unmeasuredLatency();
+        final Map<String, Double> scores = new LinkedHashMap<String, Double>();
+        for ( final String name : names )
+        {
+            scores.put( name, health.get( keys.get( name ) )
+                                    .score( unmeasured ) );
+        }
+
+        Collections.sort( names, new Comparator<String>()
+        {
+            public int compare( final String a, final String b )
+            {
+                return Double.compare( scores.get( a ), scores.get( b ) );
+            }
+        } );
+
+        return names;
+    }
+
+    /**
+     * @return the latency to assume for hosts not yet measured: the median of those that have been, or (before any
+     *         has) a nominal 1ns, so that hosts are still ranked by how many requests they are serving.
+     */
+    private double unmeasuredLatency()
+    {
+        final List<Double> measured = new ArrayList<Double>();
+        for ( final HostHealth h : health.values() )
+        {
+            final double latency = h.getLatency();
+            if ( latency >= 0 )
+            {
+                measured.add( latency );
+            }
+        }
+
+        if ( measured.isEmpty() )
+        {
+            return 1;
+        }
+
+        Collections.sort( measured );
+        return measured.get( measured.size() / 2 );
+    }
+
+    private SSHConnection connection( final String name, final HostHealth h )
+        throws SSHWrapException
+    {
+        synchronized ( this )
+        {
+            final SSHConnection existing = connections.get( name );
+            if ( existing != null )
+            {
+                return existing;
+            }
+        }
+
+        final long start = System.nanoTime();
+        final SSHConnection connection = factory.connect( name );
+        h.connected( System.nanoTime() - start );
+
+        synchronized ( this )
+        {
+            final SSHConnection existing = connections.get( name );
+            if ( existing != null )
+            {
+                connection.disconnect();
+                return existing;
+            }
+
+            connections.put( name, connection );
+        }
+
+        return connection;
+    }
+
+    private synchronized void discard( final String name, final SSHConnection connection )
+    {
+        if ( connections.get( name ) == connection && !connection.isConnected() )
+        {
+            connections.remove( name );
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Notes whether the caller's own stream failed, so that isn't held against the host.
+     */
+    private static final class CallerOutputStream
+        extends FilterOutputStream
+    {
+        private volatile IOException failure;
+
+        CallerOutputStream( final OutputStream out )
+        {
+            super( out );
+        }
+
+        @Override
+        public void write( final int b )
+            throws IOException
+        {
+            try
+            {
+                out.write( b );
+            }
+            catch ( final IOException e )
+            {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len )
+            throws IOException
+        {
+            try
+            {
+                out.write( b, off, len );
+            }
+            catch ( final IOException e )
+            {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush()
+            throws IOException
+        {
+            try
+            {
+                out.flush();
+            }
+            catch ( final IOException e )
+            {
+                failure = e;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to a host named as for {@link SSHConfiguration#lookup(String)}.
+     */
+    public interface ConnectionFactory
+    {
+        SSHConnection connect( String host )
+            throws SSHWrapException;
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap;
+
+import java.util.List;
+import java.util.Vector;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.IdentityRepository;
+
+/**
+ * The keys offered by one connection, in order. Unlike JSch's own repository, dropping them doesn't wipe them, since
+ * they may be shared with other connections (through the identity cache, or the agent).
+ */
+final class IdentityList
+    implements IdentityRepository
+{
+
+    private final Vector<Identity> identities;
+
+    IdentityList( final List<Identity> identities )
+    {
+        this.identities = new Vector<Identity>( identities );
+    }
+
+    public Vector<Identity> getIdentities()
+    {
+        return new Vector<Identity>( identities );
+    }
+
+    public boolean add( final byte[] identity )
+    {
+        return false;
+    }
+
+    public boolean remove( final byte[] blob )
+    {
+        return false;
+    }
+
+    public void removeAll()
+    {
+        identities.clear();
+    }
+
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.commonjava.sshwrap.config.Host;
+import org.commonjava.sshwrap.config.SSHConfiguration;
+
+import com.jcraft.jsch.UserInfo;
+
+/**
+ * Reference-counted registry of authenticated bastion connections, keyed by jump chain (the ProxyJump value). Every
+ * {@link SSHConnection} routed through the same chain shares one bastion session and multiplexes its traffic over
+ * direct-tcpip channels, so fanning out to many targets costs one bastion handshake instead of one per target.
+ * <p>
+ * Bastions that are no longer referenced linger for {@link #setIdleTimeout(long)} milliseconds before they are
+ * disconnected, so sequential connect/disconnect loops don't re-authenticate to the bastion each time.
+ * </p>
+ */
+public final class JumpHostPool
+{
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private static final JumpHostPool SHARED = new JumpHostPool();
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /** Guards the registry only; never held while a bastion connects. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private ScheduledExecutorService reaper;
+
+    public static JumpHostPool getSharedInstance()
+    {
+        return SHARED;
+    }
+
+    public JumpHostPool setIdleTimeout( final long idleTimeout )
+    {
+        lock.lock();
+        try
+        {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get (connecting it if need be) the bastion at the end of the given chain, and take a reference to it. Bastions
+     * are connected outside the pool's lock, so a slow or hung bastion only holds up callers routed through that same
+     * chain; those wait for its connection rather than open their own.
+     * <p>
+     * Sessions are shared by chain alone: a bastion is connected with the configuration and {@link UserInfo} of the
+     * caller that first needed it, and later callers through the same chain share it whatever they pass. Use a
+     * separate pool (see {@link SSHConnection.Builder#withJumpHostPool(JumpHostPool)}) for connections that must
+     * authenticate to the bastion differently.
+     * </p>
+     */
+    SSHConnection acquire( final String chain, final SSHConfiguration config, final UserInfo userInfo )
+        throws SSHWrapException
+    {
+        Entry entry;
+        boolean connector = false;
+        lock.lock();
+        try
+        {
+            entry = entries.get( chain );
+            if ( entry != null && entry.connection != null && !entry.connection.isConnected() )
+            {
+                entries.remove( chain );
+                entry.cancelReap();
+                entry = null;
+            }
+
+            if ( entry == null )
+            {
+                entry = new Entry( chain );
+                entries.put( chain, entry );
+                connector = true;
+            }
+
+            entry.cancelReap();
+            entry.references++;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if ( connector )
+        {
+            connect( entry, config, userInfo );
+        }
+        else
+        {
+            await( entry );
+        }
+
+        return entry.connection;
+    }
+
+    private void connect( final Entry entry, final SSHConfiguration config, final UserInfo userInfo )
+        throws SSHWrapException
+    {
+        try
+        {
+            checkLoop( entry.chain, config );
+
+            final SSHConnection connection =
+                new SSHConnection( jumpHost( entry.chain, config ), config, userInfo, this );
+            connection.connect();
+            entry.connected( connection );
+        }
+        catch ( final SSHWrapException e )
+        {
+            discard( entry );
+            entry.failed( e );
+            throw e;
+        }
+        catch ( final RuntimeException e )
+        {
+            discard( entry );
+            entry.failed( new SSHWrapException( "Failed to connect to bastion: %s", e, entry.chain ) );
+            throw e;
+        }
+    }
+
+    private void await( final Entry entry )
+        throws SSHWrapException
+    {
+        try
+        {
+            entry.ready.await();
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread()
+                  .interrupt();
+            release( entry );
+            throw new SSHWrapException( "Interrupted while waiting to connect through: %s", e, entry.chain );
+        }
+
+        if ( entry.failure != null )
+        {
+            throw new SSHWrapException( "Failed to connect through: %s\nReason: %s", entry.failure, entry.chain,
+                                        entry.failure.getMessage() ).withCategory( entry.failure.getCategory() );
+        }
+    }
+
+    /**
+     * Drop a bastion that failed to connect, so the next caller tries afresh.
+     */
+    private void discard( final Entry entry )
+    {
+        lock.lock();
+        try
+        {
+            if ( entries.get( entry.chain ) == entry )
+            {
+                entries.remove( entry.chain );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fail fast on a jump chain that routes back through itself, which would otherwise wait on its own connection.
+     */
+    static void checkLoop( final String chain, final SSHConfiguration config )
+        throws SSHWrapException
+    {
+        final Set<String> seen = new HashSet<String>();
+        String next = chain;
+        while ( next != null && !"none".equalsIgnoreCase( next ) )
+        {
+            if ( !seen.add( next ) )
+            {
+                throw new SSHWrapException( "ProxyJump loop detected while connecting through: %s", chain )
+                    .withCategory( ErrorCategory.CONFIGURATION );
+            }
+
+            next = jumpHost( next, config ).getProxyJump();
+        }
+    }
+
+    void release( final SSHConnection connection )
+    {
+        lock.lock();
+        try
+        {
+            for ( final Entry entry : entries.values() )
+            {
+                if ( entry.connection == connection )
+                {
+                    release( entry );
+                    return;
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void release( final Entry entry )
+    {
+        lock.lock();
+        try
+        {
+            entry.references--;
+            if ( entry.references <= 0 && entry.connection != null )
+            {
+                scheduleReap( entry );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Disconnect all bastions that currently have no connections routed through them.
+     */
+    public void closeIdle()
+    {
+        lock.lock();
+        try
+        {
+            for ( final Entry entry : new HashSet<Entry>( entries.values() ) )
+            {
+                if ( entry.references <= 0 )
+                {
+                    reap( entry );
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleReap( final Entry entry )
+    {
+        if ( idleTimeout <= 0 )
+        {
+            reap( entry );
+            return;
+        }
+
+        if ( reaper == null )
+        {
+            reaper = Executors.newSingleThreadScheduledExecutor( Workers.factory( "sshwrap jump-host reaper" ) );
+        }
+
+        entry.reaping = reaper.schedule( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                lock.lock();
+                try
+                {
+                    if ( entry.references <= 0 )
+                    {
+                        reap( entry );
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }, idleTimeout, TimeUnit.MILLISECONDS );
+    }
+
+    private void reap( final Entry entry )
+    {
+        entry.cancelReap();
+        if ( entries.get( entry.chain ) == entry )
+        {
+            entries.remove( entry.chain );
+        }
+
+        if ( entry.connection.isConnected() )
+        {
+            entry.connection.disconnect();
+        }
+    }
+
+    /**
+     * Resolve the last hop of a jump chain ([user@]host[:port],...) into a detached {@link Host} that is itself routed
+     * through the preceding hops, if any.
+     */
+    static Host jumpHost( final String chain, final SSHConfiguration config )
+        throws SSHWrapException
+    {
+        final int idx = chain.lastIndexOf( ',' );
+        String spec = chain.substring( idx + 1 );
+
+        String user = null;
+        int at = spec.lastIndexOf( '@' );
+        if ( at > -1 )
+        {
+            user = spec.substring( 0, at );
+            spec = spec.substring( at + 1 );
+        }
+
+        int port = -1;
+        final int colon = spec.lastIndexOf( ':' );
+        if ( colon > -1 && spec.indexOf( ':' ) == colon )
+        {
+            port = port( spec.substring( colon + 1 ), chain );
+            spec = spec.substring( 0, colon );
+        }
+        else if ( spec.startsWith( "[" ) && spec.contains( "]:" ) )
+        {
+            at = spec.indexOf( "]:" );
+            port = port( spec.substring( at + 2 ), chain );
+            spec = spec.substring( 1, at );
+        }
+
+        final Host h = new Host( config.lookup( spec ) );
+        if ( user != null )
+        {
+            h.setUser( user );
+        }
+
+        if ( port > 0 )
+        {
+            h.setPort( port );
+        }
+
+        if ( idx > -1 )
+        {
+            h.setProxyJump( chain.substring( 0, idx ) );
+        }
+
+        // forwards belong to the destination, never to the bastion.
+        h.getLocalForwards()
+         .clear();
+        h.getRemoteForwards()
+         .clear();
+
+        return h;
+    }
+
+    private static int port( final String value, final String chain )
+        throws SSHWrapException
+    {
+        try
+        {
+            final int port = Integer.parseInt( value );
+            if ( port > 0 && port < 65536 )
+            {
+                return port;
+            }
+        }
+        catch ( final NumberFormatException e )
+        {
+            // reported below.
+        }
+
+        throw new SSHWrapException( "Invalid port: %s in ProxyJump: %s", value, chain )
+            .withCategory( ErrorCategory.CONFIGURATION );
+    }
+
+    private static final class Entry
+    {
+        private final String chain;
+
+        private final CountDownLatch ready = new CountDownLatch( 1 );
+
+        private volatile SSHConnection connection;
+
+        private volatile SSHWrapException failure;
+
+        private int references;
+
+        private ScheduledFuture<?> reaping;
+
+        Entry( final String chain )
+        {
+            this.chain = chain;
+        }
+
+        void connected( final SSHConnection connection )
+        {
+            this.connection = connection;
+            ready.countDown();
+        }
+
+        void failed( final SSHWrapException failure )
+        {
+            this.failure = failure;
+            ready.countDown();
+        }
+
+        void cancelReap()
+        {
+            if ( reaping != null )
+            {
+                reaping.cancel( false );
+                reaping = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.io.BlockingPipe;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.SocketFactory;
+
+/**
+ * JSch {@link Proxy} that tunnels a session through a direct-tcpip channel opened on an already-authenticated
+ * bastion connection. Any number of these can share the same bastion, since each one only occupies a channel.
+ */
+final class JumpProxy
+    implements Proxy
+{
+
+    private final SSHConnection bastion;
+
+    private final int readTimeout;
+
+    private ChannelDirectTCPIP channel;
+
+    private BlockingPipe toTarget;
+
+    private BlockingPipe fromTarget;
+
+    /**
+     * @param readTimeout Milliseconds a read from the target may block before timing out, so JSch's keepalive logic
+     *            works just as it would over a socket with SO_TIMEOUT; 0 to block indefinitely.
+     */
+    JumpProxy( final SSHConnection bastion, final int readTimeout )
+    {
+        this.bastion = bastion;
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public void connect( final SocketFactory socketFactory, final String host, final int port, final int timeout )
+        throws Exception
+    {
+        toTarget = new BlockingPipe();
+        fromTarget = new BlockingPipe();
+        fromTarget.setReadTimeout( readTimeout );
+
+        channel = (ChannelDirectTCPIP) bastion.openChannel( ChannelType.direct_tcpip );
+        channel.setHost( host );
+        channel.setPort( port );
+        channel.setInputStream( toTarget.getInputStream() );
+        channel.setOutputStream( fromTarget.getOutputStream() );
+
+        // JSch passes the session's connect timeout, 0 if it has none; the bastion's ConnectTimeout applies then.
+        bastion.connectChannel( channel, timeout, TimeUnit.MILLISECONDS );
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return fromTarget.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return toTarget.getOutputStream();
+    }
+
+    @Override
+    public Socket getSocket()
+    {
+        return null;
+    }
+
+    @Override
+    public void close()
+    {
+        if ( channel != null )
+        {
+            channel.disconnect();
+            channel = null;
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.sshwrap;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.commonjava.sshwrap.io.BandwidthLimiter;
+import org.commonjava.sshwrap.io.ThrottledSink;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Handle on a command started with {@link SSHConnection#start(String, OutputStream)}. Output is written straight
+ * into the caller's streams by the session as it arrives (or, under a bandwidth limit, by a worker as the limit
+ * allows), so waiting costs nothing but a blocked thread, and the command can be signalled or cancelled at any point.
+ */
+public final class RemoteCommand
+{
+
+    private final String command;
+
+    private final ChannelExec channel;
+
+    private final Session session;
+
+    /** Counted down as each of stdout and stderr is done with. */
+    private final CountDownLatch closed = new CountDownLatch( 2 );
+
+    private final OutputStream stdout;
+
+    private final OutputStream stderr;
+
+    private volatile boolean cancelled;
+
+    RemoteCommand( final String command, final ChannelExec channel, final InputStream stdin,
+                   final OutputStream cmdOutput, final OutputStream errOutput )
+        throws SSHWrapException
+    {
+        this( command, channel, stdin, cmdOutput, errOutput, null );
+    }
+
+    /**
+     * @param limiter Limits the output passed on to the caller's streams (from worker threads, so the session isn't
+     *            held up); null for none.
+     */
+    RemoteCommand( final String command, final ChannelExec channel, final InputStream stdin,
+                   final OutputStream cmdOutput, final OutputStream errOutput, final BandwidthLimiter limiter )
+        throws SSHWrapException
+    {
+        this.command = command;
+        this.channel = channel;
+
+        try
+        {
+            session = channel.getSession();
+        }
+        catch ( final JSchException e )
+        {
+            throw new SSHWrapException( "Failed to access session for channel: %s", e, e.getMessage() );
+        }
+
+        channel.setCommand( command );
+        if ( stdin != null )
+        {
+            channel.setInputStream( stdin, true );
+        }
+
+        // JSch closes both streams by the time the channel is closed, after any exit status has been recorded.
+        final OutputStream err = errOutput == null ? new NullOutputStream() : errOutput;
+        stdout = throttle( new CompletionOutputStream( cmdOutput ), limiter );
+        stderr = throttle( new CompletionOutputStream( err ), limiter );
+        channel.setOutputStream( stdout );
+        channel.setExtOutputStream( stderr );
+    }
+
+    private static OutputStream throttle( final OutputStream out, final BandwidthLimiter limiter )
+    {
+        return limiter == null ? out : new ThrottledSink( out, limiter );
+    }
+
+    public String getCommand()
+    {
+        return command;
+    }
+
+    /**
+     * @return true once the command has exited, been cancelled, or lost its session.
+     */
+    public boolean isDone()
+    {
+        return channel.isClosed();
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * @return the command's exit status, or -1 if it hasn't exited (or never reported one).
+     */
+    public int getExitStatus()
+    {
+        return channel.getExitStatus();
+    }
+
+    /**
+     * Wait for the command to finish.
+     *
+     * @return the exit status.
+     */
+    public int waitFor()
+        throws InterruptedException
+    {
+        waitFor( 0, TimeUnit.MILLISECONDS );
+        return getExitStatus();
+    }
+
+    /**
+     * Wait up to the given time for the command to finish.
+     *
+     * @param timeout Maximum time to wait; 0 to wait indefinitely.
+     * @return true if the command finished in time.
+     */
+    public boolean waitFor( final long timeout, final TimeUnit unit )
+        throws InterruptedException
+    {
+        if ( timeout > 0 )
+        {
+            return closed.await( timeout, unit );
+        }
+
+        closed.await();
+        return true;
+    }
+
+    /**
+     * Deliver a signal (TERM, KILL, INT, HUP...) to the remote command, if the server supports it.
+     */
+    public void signal( final String signal )
+        throws SSHWrapException
+    {
+        try
+        {
+            channel.sendSignal( signal );
+        }
+        catch ( final Exception e )
+        {
+            throw new SSHWrapException( "Failed to send signal: %s to command: %s\nReason: %s", e, signal, command,
+                                        e.getMessage() );
+        }
+    }
+
+    /**
+     * Kill the remote command and release its channel immediately. Servers that don't support signals still terminate
+     * the command's session when the channel closes.
+     */
+    public void cancel()
+    {
+        if ( channel.isClosed() )
+        {
+            return;
+        }
+
+        cancelled = true;
+        if ( session.isConnected() )
+        {
+            try
+            {
+                channel.sendSignal( "KILL" );
+            }
+            catch ( final Exception e )
+            {
+                // not supported by the server; closing the channel will have to do.
+            }
+        }
+
+        channel.disconnect();
+    }
+
+    /**
+     * @return true if the command ended because the session went away underneath it, rather than by exiting.
+     */
+    boolean isSessionLost()
+    {
+        return channel.isClosed() && !cancelled && !session.isConnected() && channel.getExitStatus() == -1;
+    }
+
+    void release()
+    {
+        channel.disconnect();
+
+        // a channel that never connected is never closed by JSch, so its streams wouldn't be either.
+        IOUtils.closeQuietly( stdout );
+        IOUtils.closeQuietly( stderr );
+    }
+
+    /**
+     * Passes output through to the caller's stream, flushing (without closing) that stream when the channel is done
+     * with it, and noting that it is done so that waiters are released once both streams are.
+     */
+    private final class CompletionOutputStream
+        extends FilterOutputStream
+    {
+        private boolean done;
+
+        CompletionOutputStream( final OutputStream out )
+        {
+            super( out );
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len )
+            throws IOException
+        {
+            out.write( b, off, len );
+        }
+
+        @Override
+        public synchronized void close()
+            throws IOException
+        {
+            if ( done )
+            {
+                return;
+            }
+
+            done = true;
+            try
+            {
+                out.flush();
+            }
+            finally
+            {
+                closed.countDown();
+            }
+        }
+    }
+
+}
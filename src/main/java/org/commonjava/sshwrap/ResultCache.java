@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers the output of read-only commands (uname -a, cat /etc/os-release...) so repeating them on the same host
+ * doesn't cost another round trip.
+ * <p>
+ * Results are keyed by host, user, Host alias and command, kept for a fixed time, and evicted least recently used first once the cache
+ * holds too many entries or bytes. Only successful (exit status 0) runs are kept. Concurrent requests for a result
+ * that isn't cached are merged: one runs the command, and the rest wait for and share its result. A host's results
+ * are dropped whenever a connection to it reconnects, since the server (or what it's running) may have changed.
+ * </p>
+ */
+public final class ResultCache
+{
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    public static final long DEFAULT_TTL_SECONDS = 300;
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    private final long ttlNanos;
+
+    // access-ordered, so iteration starts with the least recently used.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+
+    private final Map<String, Pending> running = new HashMap<String, Pending>();
+
+    private final Map<String, Long> generations = new HashMap<String, Long>();
+
+    // bumped by clear(), so results of runs in progress at the time aren't kept.
+    private long epoch;
+
+    private long bytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long merged;
+
+    public ResultCache()
+    {
+        this( DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_TTL_SECONDS, TimeUnit.SECONDS );
+    }
+
+    /**
+     * @param maxEntries Most results kept.
+     * @param maxBytes Most output kept, in total; a single result larger than this is never kept.
+     * @param ttl How long a result is reused for.
+     */
+    public ResultCache( final int maxEntries, final long maxBytes, final long ttl, final TimeUnit unit )
+    {
+        this.maxEntries = Math.max( 1, maxEntries );
+        this.maxBytes = Math.max( 0, maxBytes );
+        this.ttlNanos = unit.toNanos( ttl );
+    }
+
+    /**
+     * Copy the command's output from the cache, or run it on the given connection if there is no fresh result (or
+     * wait for the run already in progress, if another caller got there first).
+     *
+     * @return the exit status.
+     */
+    public int execute( final SSHConnection connection, final String command, final OutputStream cmdOutput )
+        throws IOException, SSHWrapException
+    {
+        final String hostKey = connection.getHostKey();
+        final String key = key( connection, command );
+
+        final Entry cached;
+        final Pending pending;
+        final boolean leader;
+        final long generation;
+        synchronized ( this )
+        {
+            final Entry entry = entries.get( key );
+            if ( entry != null && System.nanoTime() - entry.created < ttlNanos )
+            {
+                hits++;
+                cached = entry;
+                pending = null;
+                leader = false;
+                generation = 0;
+            }
+            else
+            {
+                if ( entry != null )
+                {
+                    remove( key );
+                }
+
+                cached = null;
+
+                final Pending existing = running.get( key );
+                if ( existing != null )
+                {
+                    merged++;
+                    pending = existing;
+                    leader = false;
+                }
+                else
+                {
+                    misses++;
+                    pending = new Pending();
+                    running.put( key, pending );
+                    leader = true;
+                }
+
+                generation = generation( hostKey );
+            }
+        }
+
+        if ( cached != null )
+        {
+            cmdOutput.write( cached.output );
+            return cached.status;
+        }
+
+        if ( !leader )
+        {
+            return pending.await( cmdOutput );
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int status;
+        final byte[] output;
+        try
+        {
+            try
+            {
+                status = connection.execute( command, out, true );
+            }
+            catch ( final IOException e )
+            {
+                pending.fail( e );
+                throw e;
+            }
+            catch ( final SSHWrapException e )
+            {
+                pending.fail( e );
+                throw e;
+            }
+            catch ( final RuntimeException e )
+            {
+                pending.fail( new SSHWrapException( "Command failed: %s", e, command ) );
+                throw e;
+            }
+
+            output = out.toByteArray();
+            pending.complete( status, output );
+
+            synchronized ( this )
+            {
+                // a reconnect while the command ran means the result may already be stale.
+                if ( status == 0 && output.length <= maxBytes && generation == generation( hostKey ) )
+                {
+                    remove( key );
+                    entries.put( key, new Entry( status, output ) );
+                    bytes += output.length;
+                    evict();
+                }
+            }
+        }
+        finally
+        {
+            // whatever went wrong (an Error, even), nobody is left waiting on this run; a no-op once it has settled.
+            pending.fail( new SSHWrapException( "Command failed: %s", command ) );
+            synchronized ( this )
+            {
+                running.remove( key );
+            }
+        }
+
+        // the result is settled for everyone else; a failure writing it out is this caller's alone.
+        cmdOutput.write( output );
+        return status;
+    }
+
+    /**
+     * Drop every result for the given connection's host.
+     */
+    public void invalidate( final SSHConnection connection )
+    {
+        invalidate( connection.getHostKey() );
+    }
+
+    /**
+     * Drop the result of one command on the given connection's host.
+     */
+    public synchronized void invalidate( final SSHConnection connection, final String command )
+    {
+        remove( key( connection, command ) );
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+        epoch++;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return the requests that shared a run already in progress instead of running the command again.
+     */
+    public synchronized long getMerged()
+    {
+        return merged;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format( "ResultCache [entries: %d, bytes: %d, hits: %d, misses: %d, merged: %d]",
+                              entries.size(), bytes, hits, misses, merged );
+    }
+
+    /**
+     * Drop every result for a host, given as host:port, whoever ran it.
+     */
+    synchronized void invalidate( final String hostKey )
+    {
+        final Long generation = generations.get( hostKey );
+        generations.put( hostKey, generation == null ? 1 : generation + 1 );
+
+        final String prefix = hostKey + '\0';
+        for ( final Iterator<Map.Entry<String, Entry>> it = entries.entrySet()
+                                                                   .iterator(); it.hasNext(); )
+        {
+            final Map.Entry<String, Entry> e = it.next();
+            if ( e.getKey()
+                  .startsWith( prefix ) )
+            {
+                bytes -= e.getValue().output.length;
+                it.remove();
+            }
+        }
+    }
+
+    private static String key( final SSHConnection connection, final String command )
+    {
+        return connection.getResultKey() + '\0' + command;
+    }
+
+    private long generation( final String hostKey )
+    {
+        final Long generation = generations.get( hostKey );
+        return epoch + ( generation == null ? 0 : generation );
+    }
+
+    private void remove( final String key )
+    {
+        final Entry removed = entries.remove( key );
+        if ( removed != null )
+        {
+            bytes -= removed.output.length;
+        }
+    }
+
+    private void evict()
+    {
+        final Iterator<Entry> it = entries.values()
+                                          .iterator();
+        while ( it.hasNext() && ( entries.size() > maxEntries || bytes > maxBytes ) )
+        {
+            bytes -= it.next().output.length;
+            it.remove();
+        }
+    }
+
+    private static final class Entry
+    {
+        final int status;
+
+        final byte[] output;
+
+        final long created = System.nanoTime();
+
+        Entry( final int status, final byte[] output )
+        {
+            this.status = status;
+            this.output = output;
+        }
+    }
+
+    /**
+     * A run in progress, which callers asking for the same result wait on. It is settled exactly once, by whichever of
+     * {@link #complete(int, byte[])} and {@link #fail(Exception)} comes first.
+     */
+    private static final class Pending
+    {
+        private final CountDownLatch done = new CountDownLatch( 1 );
+
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private int status;
+
+        private byte[] output;
+
+        private Exception error;
+
+        void complete( final int status, final byte[] output )
+        {
+            if ( settled.compareAndSet( false, true ) )
+            {
+                this.status = status;
+                this.output = output;
+                done.countDown();
+            }
+        }
+
+        void fail( final Exception error )
+        {
+            if ( settled.compareAndSet( false, true ) )
+            {
+                this.error = error;
+                done.countDown();
+            }
+        }
+
+        int await( final OutputStream cmdOutput )
+            throws IOException, SSHWrapException
+        {
+            try
+            {
+                done.await();
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread()
+                      .interrupt();
+                throw new SSHWrapException( "Interrupted while waiting for a shared command result." );
+            }
+
+            if ( error instanceof IOException )
+            {
+                throw (IOException) error;
+            }
+            else if ( error != null )
+            {
+                throw (SSHWrapException) error;
+            }
+
+            cmdOutput.write( output );
+            return status;
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Retries operations that fail transiently (see {@link ErrorCategory#isTransient()}), with exponential backoff and
+ * full jitter between attempts.
+ * <p>
+ * Each host also has a retry budget, so a host that is down (or overloaded) isn't hammered by every caller retrying
+ * at once: each failure spends a token, each success earns back a fraction of one, and retries stop while the host's
+ * tokens are at or below half their maximum. First attempts are never held back.
+ * </p>
+ */
+public final class RetryPolicy
+{
+
+    private static final Logger LOGGER = Logger.getLogger( RetryPolicy.class );
+
+    private final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<String, Budget>();
+
+    private final Random random = new Random();
+
+    private int maxAttempts = 3;
+
+    private long baseDelayNanos = TimeUnit.MILLISECONDS.toNanos( 100 );
+
+    private long maxDelayNanos = TimeUnit.SECONDS.toNanos( 5 );
+
+    private double budgetTokens = 10;
+
+    private double budgetRefill = 0.1;
+
+    /**
+     * Total attempts per operation, including the first. Default: 3.
+     */
+    public RetryPolicy setMaxAttempts( final int maxAttempts )
+    {
+        this.maxAttempts = Math.max( 1, maxAttempts );
+        return this;
+    }
+
+    /**
+     * The n-th retry waits a random time between zero and min(max, base * 2^(n-1)). Default: 100ms base, 5s max.
+     */
+    public RetryPolicy setBackoff( final long base, final long max, final TimeUnit unit )
+    {
+        this.baseDelayNanos = unit.toNanos( base );
+        this.maxDelayNanos = unit.toNanos( max );
+        return this;
+    }
+
+    /**
+     * Size the per-host retry budget. Default: 10 tokens, refilled by 0.1 per success.
+     */
+    public RetryPolicy setRetryBudget( final double tokens, final double refillPerSuccess )
+    {
+        this.budgetTokens = tokens;
+        this.budgetRefill = refillPerSuccess;
+        budgets.clear();
+        return this;
+    }
+
+    /**
+     * Run an operation against a host, retrying transient failures as this policy allows.
+     *
+     * @param hostKey Identifies the host whose retry budget is charged.
+     * @param deadline {@link System#nanoTime()} by which to give up; 0 for none.
+     */
+    public <T> T call( final String hostKey, final long deadline, final Attempt<T> attempt )
+        throws SSHWrapException
+    {
+        final Budget budget = budget( hostKey );
+        for ( int n = 1;; n++ )
+        {
+            try
+            {
+                final T result = attempt.run();
+                budget.success();
+
+                return result;
+            }
+            catch ( final SSHWrapException e )
+            {
+                final boolean transientFailure = e.isTransient();
+                if ( transientFailure )
+                {
+                    budget.failure();
+                }
+
+                if ( !transientFailure || !attempt.isRetryable( e ) || n >= maxAttempts || !budget.allowsRetry() )
+                {
+                    throw e;
+                }
+
+                final long delay = backoff( n );
+                if ( deadline != 0 && System.nanoTime() + delay >= deadline )
+                {
+                    throw e;
+                }
+
+                if ( LOGGER.isDebugEnabled() )
+                {
+                    LOGGER.debug( String.format( "%s: attempt %d failed (%s); retrying in %dms", hostKey, n,
+                                                 e.getCategory(), TimeUnit.NANOSECONDS.toMillis( delay ) ) );
+                }
+
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep( delay );
+                }
+                catch ( final InterruptedException ie )
+                {
+                    Thread.currentThread()
+                          .interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private long backoff( final int retry )
+    {
+        final long ceiling = Math.min( maxDelayNanos, baseDelayNanos << Math.min( retry - 1, 30 ) );
+        synchronized ( random )
+        {
+            return (long) ( random.nextDouble() * Math.max( 0, ceiling ) );
+        }
+    }
+
+    private Budget budget( final String hostKey )
+    {
+        Budget budget = budgets.get( hostKey );
+        if ( budget == null )
+        {
+            final Budget created = new Budget( budgetTokens, budgetRefill );
+            budget = budgets.putIfAbsent( hostKey, created );
+            if ( budget == null )
+            {
+                budget = created;
+            }
+        }
+
+        return budget;
+    }
+
+    /**
+     * One try at an operation.
+     */
+    public abstract static class Attempt<T>
+    {
+        public abstract T run()
+            throws SSHWrapException;
+
+        /**
+         * Veto retrying a transient failure that nonetheless isn't safe to repeat, e.g. a non-idempotent command that
+         * may already have run. Default: any transient failure may be retried.
+         */
+        public boolean isRetryable( final SSHWrapException error )
+        {
+            return true;
+        }
+    }
+
+    private static final class Budget
+    {
+        private final double max;
+
+        private final double refill;
+
+        private double tokens;
+
+        Budget( final double max, final double refill )
+        {
+            this.max = max;
+            this.refill = refill;
+            this.tokens = max;
+        }
+
+        synchronized void success()
+        {
+            tokens = Math.min( max, tokens + refill );
+        }
+
+        synchronized void failure()
+        {
+            tokens = Math.max( 0, tokens - 1 );
+        }
+
+        synchronized boolean allowsRetry()
+        {
+            return tokens > max / 2;
+        }
+    }
+
+}
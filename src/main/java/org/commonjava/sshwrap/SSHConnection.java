@@ -22,26 +22,75 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.log4j.Logger;
+import org.commonjava.sshwrap.auth.IdentityCache;
+import org.commonjava.sshwrap.auth.SSHAgent;
 import org.commonjava.sshwrap.config.DefaultSSHConfiguration;
 import org.commonjava.sshwrap.config.Host;
 import org.commonjava.sshwrap.config.LocalForward;
 import org.commonjava.sshwrap.config.RemoteForward;
 import org.commonjava.sshwrap.config.SSHConfiguration;
+import org.commonjava.sshwrap.io.BandwidthLimiter;
+import org.commonjava.sshwrap.io.ThrottledInputStream;
+import org.commonjava.sshwrap.io.ThrottledOutputStream;
+import org.commonjava.sshwrap.io.ThrottledSink;
+import org.commonjava.sshwrap.mux.ControlClient;
+import org.commonjava.sshwrap.mux.ControlMaster;
+import org.commonjava.sshwrap.net.HappyEyeballsSocketFactory;
+import org.commonjava.sshwrap.net.HostResolver;
+import org.commonjava.sshwrap.net.ThrottledSocketFactory;
+import org.commonjava.sshwrap.reactive.ReactiveCommand;
+import org.commonjava.sshwrap.reactive.ReactiveTunnel;
+import org.commonjava.sshwrap.subsystem.Correlator;
+import org.commonjava.sshwrap.subsystem.Framing;
+import org.commonjava.sshwrap.subsystem.NetconfSession;
+import org.commonjava.sshwrap.subsystem.SubsystemChannel;
+import org.commonjava.sshwrap.tune.Algorithms;
+import org.commonjava.sshwrap.tune.CipherCalibrator;
+import org.commonjava.sshwrap.tune.CompressionAdvisor;
+import org.commonjava.sshwrap.tune.LinkStatistics;
+import org.commonjava.sshwrap.tune.MeasuringOutputStream;
+import org.commonjava.sshwrap.tune.WindowTuner;
 import org.commonjava.sshwrap.ui.Prompter;
 
 import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelDirectTCPIP;
 import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Identity;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
 import com.jcraft.jsch.UserInfo;
 
 public class SSHConnection
 {
 
+    private static final Logger LOGGER = Logger.getLogger( SSHConnection.class );
+
+    private static final int DEFAULT_SERVER_ALIVE_COUNT_MAX = 3;
+
+    private static final String DEFAULT_AUTHENTICATIONS = "publickey,keyboard-interactive,password";
+
+    private static final String BATCH_AUTHENTICATIONS = "publickey";
+
+    private static final String COMPRESSION = "zlib@openssh.com,zlib,none";
+
+    private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    /** JSch's channel thread gives up on a direct-tcpip open after about 50s, without marking the channel closed. */
+    private static final int DIRECT_TCPIP_OPEN_WAIT = 60000;
+
     private final SSHConfiguration config;
 
     private final JSch jsch;
@@ -52,188 +101,1269 @@ public class SSHConnection
 
     private final UserInfo userInfo;
 
-    private SSHConnection( final Host host, final SSHConfiguration config, final UserInfo userInfo )
+    private final JumpHostPool jumpHosts;
+
+    private transient SSHConnection bastion;
+
+    private transient ControlClient control;
+
+    private transient ControlMaster master;
+
+    private volatile boolean autoReconnect = true;
+
+    private HostResolver hostResolver = HostResolver.getSharedInstance();
+
+    private CompressionAdvisor compressionAdvisor;
+
+    private WindowTuner windowTuner;
+
+    private IdentityCache identityCache;
+
+    private SSHAgent agent;
+
+    private RetryPolicy retryPolicy;
+
+    private ResultCache resultCache;
+
+    private String alias;
+
+    private volatile int generation;
+
+    /** Guards connecting and disconnecting; a lock rather than a monitor, so virtual threads wait on it unpinned. */
+    private final ReentrantLock connectLock = new ReentrantLock();
+
+    /**
+     * Create an unconnected instance; {@link #connect()} must be called once it has been configured. Protected so that
+     * code built on connections (followers, publishers...) can be exercised against a stand-in.
+     */
+    protected SSHConnection( final Host host, final SSHConfiguration config, final UserInfo userInfo,
+                   final JumpHostPool jumpHosts )
+    {
+        this.host = host;
+        this.config = config;
+        this.userInfo = userInfo;
+        this.jumpHosts = jumpHosts;
+        jsch = new JSch();
+    }
+
+    public boolean isConnected()
+    {
+        if ( session != null && session.isConnected() )
+        {
+            return true;
+        }
+
+        return control != null && control.isAlive();
+    }
+
+    /**
+     * @return true if this connection runs commands through a control master owned by another connection (usually in
+     *         another process). Operations the master can't carry for it (channels, commands with input or started
+     *         without waiting, SFTP), and everything once the master has gone, run over a session of its own, which is
+     *         established the first time one is needed.
+     */
+    public boolean isControlClient()
+    {
+        return control != null;
+    }
+
+    /**
+     * @return the client used to reach the shared connection's control master, or null if this connection isn't a
+     *         control client.
+     */
+    public ControlClient getControlClient()
+    {
+        return control;
+    }
+
+    /**
+     * Share this connection with other sshwrap clients through the given control file, as OpenSSH's ControlMaster
+     * does. Sharing stops when this connection is disconnected.
+     */
+    public SSHConnection shareControl( final File controlFile )
+        throws SSHWrapException
+    {
+        checkConnected();
+        if ( control != null )
+        {
+            throw new SSHWrapException( "Cannot share a connection that is itself a control client." )
+                .withCategory( ErrorCategory.CONFIGURATION );
+        }
+
+        if ( master != null )
+        {
+            master.stop();
+        }
+
+        try
+        {
+            master = ControlMaster.start( this, controlFile );
+        }
+        catch ( final IOException e )
+        {
+            throw new SSHWrapException( "Failed to start control master at: %s\nReason: %s", e, controlFile,
+                                        e.getMessage() );
+        }
+
+        return this;
+    }
+
+    private void checkConnected()
+        throws SSHWrapException
+    {
+        if ( !isConnected() )
+        {
+            throw new SSHWrapException( "You must call connect() before attempting this operation!" )
+                .withCategory( ErrorCategory.CONFIGURATION );
+        }
+    }
+
+    /**
+     * Like {@link #checkConnected()}, but transparently re-establishes a session that was dropped (by a keepalive
+     * timeout, a NAT idle timeout, a server restart...) rather than failing, unless auto-reconnect is disabled. A
+     * connection that was explicitly disconnected stays disconnected. A control client gets a session of its own here,
+     * since whatever needs one can't go through its master.
+     */
+    private void ensureConnected()
+        throws SSHWrapException
+    {
+        connectLock.lock();
+        try
+        {
+            if ( control != null && session == null )
+            {
+                connectWithRetry();
+            }
+            else if ( session != null && !session.isConnected() && autoReconnect )
+            {
+                reconnect();
+            }
+
+            checkConnected();
+        }
+        finally
+        {
+            connectLock.unlock();
+        }
+    }
+
+    /**
+     * Tear down the current session (if any) and establish a new one to the same {@link Host}, re-applying all of its
+     * port forwards. A control client establishes a session of its own this way.
+     */
+    public SSHConnection reconnect()
+        throws SSHWrapException
+    {
+        connectLock.lock();
+        try
+        {
+            if ( session != null )
+            {
+                session.disconnect();
+                session = null;
+            }
+
+            releaseBastion();
+            connectWithRetry();
+
+            return this;
+        }
+        finally
+        {
+            connectLock.unlock();
+        }
+    }
+
+    public boolean isAutoReconnect()
+    {
+        return autoReconnect;
+    }
+
+    public SSHConnection setAutoReconnect( final boolean autoReconnect )
+    {
+        this.autoReconnect = autoReconnect;
+        return this;
+    }
+
+    SSHConnection setHostResolver( final HostResolver hostResolver )
+    {
+        this.hostResolver = hostResolver;
+        return this;
+    }
+
+    SSHConnection setCompressionAdvisor( final CompressionAdvisor compressionAdvisor )
+    {
+        this.compressionAdvisor = compressionAdvisor;
+        return this;
+    }
+
+    SSHConnection setWindowTuner( final WindowTuner windowTuner )
+    {
+        this.windowTuner = windowTuner;
+        return this;
+    }
+
+    SSHConnection setIdentityCache( final IdentityCache identityCache )
+    {
+        this.identityCache = identityCache;
+        return this;
+    }
+
+    SSHConnection setAgent( final SSHAgent agent )
+    {
+        this.agent = agent;
+        return this;
+    }
+
+    SSHConnection setRetryPolicy( final RetryPolicy retryPolicy )
+    {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    SSHConnection setResultCache( final ResultCache resultCache )
+    {
+        this.resultCache = resultCache;
+        return this;
+    }
+
+    /**
+     * @param alias The name the host was looked up by in the configuration.
+     */
+    SSHConnection setAlias( final String alias )
+    {
+        this.alias = alias;
+        return this;
+    }
+
+    /**
+     * @return the number of times this connection has (re)connected. Anything learned from the server under an
+     *         earlier generation may no longer hold.
+     */
+    public int getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * @return the host:port this connection is to, as its statistics, limits and cached results are keyed.
+     */
+    public String getHostKey()
+    {
+        return LinkStatistics.key( host );
+    }
+
+    /**
+     * @return the host key, then the user and the name the host was configured under: what a command prints can depend
+     *         on who runs it, and two aliases for one address may well be different machines behind it.
+     */
+    String getResultKey()
+    {
+        return getHostKey() + '\0' + host.getUser() + '\0' + ( alias == null ? host.getHostName() : alias );
+    }
+
+    private LinkStatistics linkStatistics()
+    {
+        if ( windowTuner != null )
+        {
+            return windowTuner.getStatistics();
+        }
+
+        return compressionAdvisor == null ? null : compressionAdvisor.getStatistics();
+    }
+
+    /**
+     * @return the limiter shared by every connection to this host (and answering to
+     *         {@link BandwidthLimiter#getGlobalInstance()}), which all of this connection's transfers are charged to.
+     *         Unlimited unless a rate has been set on it.
+     */
+    public BandwidthLimiter getBandwidthLimiter()
+    {
+        return BandwidthLimiter.forHost( LinkStatistics.key( host ) );
+    }
+
+    /**
+     * @return a limiter for a single transfer, capped at the given rate (bytes per second; 0 for none) on top of the
+     *         host and global limits.
+     */
+    public BandwidthLimiter newOperationLimiter( final long bytesPerSecond )
+    {
+        return new BandwidthLimiter( bytesPerSecond, getBandwidthLimiter() );
+    }
+
+    void connect()
+        throws SSHWrapException
+    {
+        connectLock.lock();
+        try
+        {
+            connectLocked();
+        }
+        finally
+        {
+            connectLock.unlock();
+        }
+    }
+
+    private void connectLocked()
+        throws SSHWrapException
+    {
+        try
+        {
+            jsch.setKnownHosts( config.getKnownHosts() );
+        }
+        catch ( final JSchException e )
+        {
+            throw new SSHWrapException( "Failed to initialize known hosts: %s", e, e.getMessage() )
+                .withCategory( ErrorCategory.CONFIGURATION );
+        }
+        catch ( final IOException e )
+        {
+            throw new SSHWrapException( "Failed to initialize known hosts: %s", e, e.getMessage() )
+                .withCategory( ErrorCategory.CONFIGURATION );
+        }
+
+        try
+        {
+            jsch.removeAllIdentity();
+        }
+        catch ( final JSchException e )
+        {
+            throw new SSHWrapException( "Failed to reset identities: %s", e, e.getMessage() );
+        }
+
+        if ( identityCache != null || agent != null )
+        {
+            jsch.setIdentityRepository( new IdentityList( sharedIdentities() ) );
+        }
+        else
+        {
+            for ( final File identityFile : identities() )
+            {
+                try
+                {
+                    jsch.addIdentity( identityFile.getAbsolutePath() );
+                }
+                catch ( final JSchException e )
+                {
+                    throw new SSHWrapException( "Failed to load key: %s.\nReason: %s", e, identityFile,
+                                                e.getMessage() ).withCategory( ErrorCategory.CONFIGURATION );
+                }
+            }
+        }
+
+        try
+        {
+            session = jsch.getSession( host.getUser(), host.getHostName(), host.getPort() );
+            if ( userInfo != null && !host.isBatchMode() )
+            {
+                session.setUserInfo( userInfo );
+            }
+
+            session.setConfig( "PreferredAuthentications", preferredAuthentications() );
+
+            Algorithms.applyCiphers( session, host.getCiphers() );
+            Algorithms.applyMacs( session, host.getMacs() );
+            Algorithms.applyKex( session, host.getKexAlgorithms() );
+            Algorithms.applyHostKeyAlgorithms( session, host.getHostKeyAlgorithms() );
+
+            if ( host.isCompression() )
+            {
+                session.setConfig( "compression.s2c", COMPRESSION );
+                session.setConfig( "compression.c2s", COMPRESSION );
+                session.setConfig( "compression_level", Integer.toString( host.getCompressionLevel() > 0
+                                ? host.getCompressionLevel() : DEFAULT_COMPRESSION_LEVEL ) );
+            }
+
+            final String strict = host.getStrictHostKeyChecking();
+            if ( "yes".equalsIgnoreCase( strict ) || "no".equalsIgnoreCase( strict )
+                || "ask".equalsIgnoreCase( strict ) )
+            {
+                session.setConfig( "StrictHostKeyChecking", strict.toLowerCase() );
+            }
+
+            final String proxyJump = host.getProxyJump();
+            final String proxyCommand = host.getProxyCommand();
+            if ( proxyJump != null && !"none".equalsIgnoreCase( proxyJump ) )
+            {
+                bastion = jumpHosts.acquire( proxyJump, config, userInfo );
+                session.setProxy( new JumpProxy( bastion, host.getServerAliveInterval() * 1000 ) );
+            }
+            else if ( proxyCommand != null && !"none".equalsIgnoreCase( proxyCommand ) )
+            {
+                session.setProxy( new CommandProxy( proxyCommand, host.getUser() ) );
+            }
+            else
+            {
+                session.setSocketFactory( new HappyEyeballsSocketFactory( hostResolver,
+                                                                          host.getConnectTimeout() * 1000 ) );
+            }
+
+            if ( host.getServerAliveInterval() > 0 )
+            {
+                session.setServerAliveInterval( host.getServerAliveInterval() * 1000 );
+                session.setServerAliveCountMax( host.getServerAliveCountMax() > 0 ? host.getServerAliveCountMax()
+                                : DEFAULT_SERVER_ALIVE_COUNT_MAX );
+            }
+
+            if ( host.getConnectTimeout() > 0 )
+            {
+                session.connect( host.getConnectTimeout() * 1000 );
+            }
+            else
+            {
+                session.connect();
+            }
+
+            // forwarded connections are charged to this host's bandwidth limit, like everything else.
+            final ThrottledSocketFactory throttled = new ThrottledSocketFactory( getBandwidthLimiter() );
+            for ( final LocalForward lf : host.getLocalForwards() )
+            {
+                final String bind = lf.getLocalAddress() == null ? "127.0.0.1" : lf.getLocalAddress();
+                session.setPortForwardingL( bind, lf.getLocalPort(), lf.getRemoteAddress(), lf.getRemotePort(),
+                                            throttled );
+            }
+
+            for ( final RemoteForward rf : host.getRemoteForwards() )
+            {
+                if ( rf.getLocalAddress() == null )
+                {
+                    session.setPortForwardingR( rf.getLocalPort(), rf.getRemoteAddress(), rf.getRemotePort(),
+                                                throttled );
+                }
+                else
+                {
+                    session.setPortForwardingR( rf.getLocalAddress(), rf.getLocalPort(), rf.getRemoteAddress(),
+                                                rf.getRemotePort(), throttled );
+                }
+            }
+
+        }
+        catch ( final JSchException e )
+        {
+            if ( session != null && session.isConnected() )
+            {
+                // a forward couldn't be set up; don't leave the session running through a bastion we release.
+                session.disconnect();
+            }
+
+            releaseBastion();
+            throw new SSHWrapException( "Failed to initialize/connect SSH session for %s@%s:%s\nReason: %s", e,
+                                        host.getUser(), host.getHostName(), host.getPort(), e.getMessage() );
+        }
+    }
+
+    /**
+     * Connect, retrying transient failures if a {@link RetryPolicy} is set.
+     */
+    void connectWithRetry()
+        throws SSHWrapException
+    {
+        connectLock.lock();
+        try
+        {
+            if ( retryPolicy == null )
+            {
+                connect();
+            }
+            else
+            {
+                retryPolicy.call( LinkStatistics.key( host ), 0, new RetryPolicy.Attempt<Void>()
+                {
+                    @Override
+                    public Void run()
+                        throws SSHWrapException
+                    {
+                        connect();
+                        return null;
+                    }
+                } );
+            }
+
+            if ( ++generation > 1 && resultCache != null )
+            {
+                resultCache.invalidate( getHostKey() );
+            }
+        }
+        finally
+        {
+            connectLock.unlock();
+        }
+    }
+
+    /**
+     * Collect the keys to offer, loading identity files through the identity cache so keys unlocked by earlier
+     * connections are reused. A host with its own IdentityFile gets only that key, signed by the agent when it holds
+     * the same key (so no passphrase is needed); otherwise the agent's keys (unless the host is restricted to
+     * IdentitiesOnly) come first, then the identity files.
+     */
+    List<Identity> sharedIdentities()
+        throws SSHWrapException
+    {
+        if ( identityCache == null )
+        {
+            // keys still have to be loaded somehow; keep them for this connection's reconnects at least.
+            identityCache = new IdentityCache();
+        }
+
+        final List<Identity> result = new ArrayList<Identity>();
+        final File identityFile = hostIdentityFile();
+        if ( identityFile != null )
+        {
+            final Identity key = identityCache.get( identityFile );
+            final byte[] blob = key.getPublicKeyBlob();
+            for ( final Identity held : agentIdentities() )
+            {
+                if ( blob != null && Arrays.equals( blob, held.getPublicKeyBlob() ) )
+                {
+                    result.add( held );
+                    return result;
+                }
+            }
+
+            result.add( key );
+            return result;
+        }
+
+        if ( !host.isIdentitiesOnly() )
+        {
+            result.addAll( agentIdentities() );
+        }
+
+        for ( final File file : config.getIdentities() )
+        {
+            result.add( identityCache.get( file ) );
+        }
+
+        return result;
+    }
+
+    private List<Identity> agentIdentities()
+    {
+        if ( agent != null )
+        {
+            try
+            {
+                return agent.getIdentities();
+            }
+            catch ( final IOException e )
+            {
+                LOGGER.warn( "Failed to list ssh-agent keys; using identity files only. Reason: " + e.getMessage() );
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * Offer only the host's own IdentityFile when it has one, so servers with a low MaxAuthTries don't lock us out
+     * after we cycle through every default key.
+     */
+    Set<File> identities()
+    {
+        final File identityFile = hostIdentityFile();
+        if ( identityFile != null )
+        {
+            return Collections.singleton( identityFile );
+        }
+
+        return config.getIdentities();
+    }
+
+    /**
+     * @return the host's IdentityFile, or null if it has none (or it can't be read, as when it names a key that has
+     *         been removed).
+     */
+    private File hostIdentityFile()
+    {
+        final File identityFile = host.getIdentityFile();
+        return identityFile != null && identityFile.canRead() ? identityFile : null;
+    }
+
+    /**
+     * Use the host's PreferredAuthentications if given. Otherwise, skip JSch's default leading gssapi-with-mic
+     * attempt (a wasted round trip on servers without Kerberos) and try publickey first. In BatchMode, methods that
+     * need to prompt are never tried.
+     */
+    String preferredAuthentications()
+    {
+        final String preferred = host.getPreferredAuthentications();
+        if ( preferred != null && preferred.length() > 0 )
+        {
+            return preferred;
+        }
+
+        return host.isBatchMode() ? BATCH_AUTHENTICATIONS : DEFAULT_AUTHENTICATIONS;
+    }
+
+    private void releaseBastion()
+    {
+        if ( bastion != null )
+        {
+            jumpHosts.release( bastion );
+            bastion = null;
+        }
+    }
+
+    public Channel openChannel( final ChannelType type )
+        throws SSHWrapException
+    {
+        ensureConnected();
+
+        try
+        {
+            final Channel channel = session.openChannel( type.channelName() );
+
+            int window = host.getChannelWindowSize();
+            if ( window < 1 && windowTuner != null )
+            {
+                window = windowTuner.recommendWindowSize( LinkStatistics.key( host ) );
+            }
+
+            WindowTuner.apply( channel, window, host.getChannelPacketSize() );
+            if ( windowTuner != null )
+            {
+                windowTuner.getStatistics()
+                           .get( LinkStatistics.key( host ) )
+                           .setWindowSize( window > 0 ? window : WindowTuner.DEFAULT_WINDOW_SIZE );
+            }
+
+            return channel;
+        }
+        catch ( final JSchException e )
+        {
+            throw new SSHWrapException( "Failed to open channel: %s\nReason: %s", e, type, e.getMessage() );
+        }
+    }
+
+    public int execute( final String command, final OutputStream cmdOutput )
+        throws IOException, SSHWrapException
+    {
+        return execute( command, null, cmdOutput, false, 0 );
+    }
+
+    /**
+     * Run a read-only command whose result may be reused: from the {@link ResultCache} the connection was built with,
+     * if any, where identical concurrent requests also share one run. The command is treated as idempotent.
+     */
+    public int executeCached( final String command, final OutputStream cmdOutput )
+        throws IOException, SSHWrapException
+    {
+        if ( resultCache == null )
+        {
+            return execute( command, null, cmdOutput, true, 0 );
+        }
+
+        return resultCache.execute( this, command, cmdOutput );
+    }
+
+    /**
+     * Run a command, feeding it the given input and copying its output to the given stream.
+     */
+    public int execute( final String command, final InputStream stdin, final OutputStream cmdOutput )
+        throws IOException, SSHWrapException
+    {
+        return execute( command, stdin, cmdOutput, false, 0 );
+    }
+
+    /**
+     * Run a command, copying its output to the given stream.
+     * <p>
+     * If the session turns out to be dead before the command starts, it is re-established and the command is sent
+     * again. If the session drops while the command is running, the command is only re-run when the caller declares
+     * it idempotent; in that case, output from the interrupted attempt has already been written to cmdOutput.
+     * </p>
+     * 
+     * @return the remote exit status, or {@link Byte#MIN_VALUE} if the calling thread was interrupted (in which case
+     *         the remote command is killed).
+     */
+    public int execute( final String command, final OutputStream cmdOutput, final boolean idempotent )
+        throws IOException, SSHWrapException
+    {
+        return execute( command, null, cmdOutput, idempotent, 0 );
+    }
+
+    /**
+     * Run a command, copying its output to the given stream, and kill it if it hasn't finished (including the time
+     * spent opening its channel) by the given deadline.
+     * 
+     * @throws SSHWrapException if the deadline passes; the remote command is killed and its channel released first.
+     */
+    public int execute( final String command, final OutputStream cmdOutput, final long timeout, final TimeUnit unit )
+        throws IOException, SSHWrapException
+    {
+        return execute( command, null, cmdOutput, false, unit.toNanos( timeout ) );
+    }
+
+    private int execute( final String command, final InputStream stdin, final OutputStream cmdOutput,
+                         final boolean idempotent, final long timeoutNanos )
+        throws IOException, SSHWrapException
+    {
+        final long deadline = timeoutNanos > 0 ? System.nanoTime() + timeoutNanos : 0;
+        if ( stdin == null && isSharingMaster() )
+        {
+            try
+            {
+                return control.execute( command, cmdOutput, timeoutNanos, TimeUnit.NANOSECONDS );
+            }
+            catch ( final SSHWrapException e )
+            {
+                // unless the master took the command with it, carry on over a session of our own.
+                if ( e.getCategory() == ErrorCategory.SESSION_LOST )
+                {
+                    final SessionLostException lost = new SessionLostException( true, e );
+                    if ( !isRerunnable( lost, idempotent ) )
+                    {
+                        throw lost;
+                    }
+                }
+                else if ( e.getCategory() != ErrorCategory.CONNECTION )
+                {
+                    throw e;
+                }
+
+                LOGGER.info( "Control master: " + control.getControlFile() + " is unavailable; connecting directly. "
+                    + "Reason: " + e.getMessage() );
+            }
+        }
+
+        if ( retryPolicy != null )
+        {
+            return retryPolicy.call( LinkStatistics.key( host ), deadline, new RetryPolicy.Attempt<Integer>()
+            {
+                @Override
+                public Integer run()
+                    throws SSHWrapException
+                {
+                    return executeOnce( command, stdin, cmdOutput, deadline );
+                }
+
+                @Override
+                public boolean isRetryable( final SSHWrapException error )
+                {
+                    return !( error instanceof SessionLostException )
+                        || isRerunnable( (SessionLostException) error, idempotent );
+                }
+            } );
+        }
+
+        try
+        {
+            return executeOnce( command, stdin, cmdOutput, deadline );
+        }
+        catch ( final SessionLostException e )
+        {
+            if ( !isRerunnable( e, idempotent ) )
+            {
+                throw e;
+            }
+
+            return executeOnce( command, stdin, cmdOutput, deadline );
+        }
+    }
+
+    /**
+     * @return true if commands should go through the control master: there is one, it was alive when last checked, and
+     *         this connection hasn't had to establish a session of its own.
+     */
+    private boolean isSharingMaster()
+    {
+        connectLock.lock();
+        try
+        {
+            return control != null && session == null && control.isAlive();
+        }
+        finally
+        {
+            connectLock.unlock();
+        }
+    }
+
+    /**
+     * A command whose session dropped can be sent again if it never started, or if running it twice is harmless.
+     */
+    boolean isRerunnable( final SessionLostException e, final boolean idempotent )
+    {
+        return autoReconnect && ( !e.isStarted() || idempotent );
+    }
+
+    private int executeOnce( final String command, final InputStream stdin, final OutputStream cmdOutput,
+                             final long deadline )
+        throws SSHWrapException
+    {
+        final LinkStatistics statistics = linkStatistics();
+        final MeasuringOutputStream measured =
+            statistics == null ? null : new MeasuringOutputStream( cmdOutput, compressionAdvisor != null );
+
+        final OutputStream out = measured == null ? cmdOutput : measured;
+
+        final RemoteCommand cmd = start( command, stdin, out, null, remaining( deadline ) );
+        try
+        {
+            if ( !cmd.waitFor( remaining( deadline ), TimeUnit.NANOSECONDS ) )
+            {
+                cmd.cancel();
+                throw new SSHWrapException( "Command: %s on %s@%s:%s did not finish before its deadline.", command,
+                                            host.getUser(), host.getHostName(), host.getPort() )
+                    .withCategory( ErrorCategory.TIMEOUT );
+            }
+
+            if ( cmd.isSessionLost() )
+            {
+                throw new SessionLostException( true, null );
+            }
+
+            if ( measured != null )
+            {
+                measured.record( statistics.get( LinkStatistics.key( host ) ), compressionAdvisor );
+            }
+
+            return cmd.getExitStatus();
+        }
+        catch ( final InterruptedException e )
+        {
+            cmd.cancel();
+            Thread.currentThread()
+                  .interrupt();
+
+            return Byte.MIN_VALUE;
+        }
+        finally
+        {
+            cmd.release();
+        }
+    }
+
+    /**
+     * Start a command without waiting for it, writing its output to the given stream as it arrives.
+     * 
+     * @return a handle to wait for, signal or cancel the command.
+     */
+    public RemoteCommand start( final String command, final OutputStream cmdOutput )
+        throws SSHWrapException
+    {
+        return start( command, null, cmdOutput, null, 0, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Start a command without waiting for it, writing its output and error output to the given streams as they
+     * arrive.
+     * 
+     * @param errOutput Destination for the command's stderr; null to discard it.
+     * @param openTimeout Maximum time to wait for the channel to open; 0 to use the host's ConnectTimeout.
+     * @return a handle to wait for, signal or cancel the command.
+     */
+    public RemoteCommand start( final String command, final OutputStream cmdOutput, final OutputStream errOutput,
+                                final long openTimeout, final TimeUnit unit )
+        throws SSHWrapException
+    {
+        return start( command, null, cmdOutput, errOutput, openTimeout, unit );
+    }
+
+    /**
+     * Start a command without waiting for it, feeding it the given input and writing its output and error output to
+     * the given streams as they arrive.
+     * 
+     * @param stdin Input for the command, sent until it ends; null for none.
+     * @param errOutput Destination for the command's stderr; null to discard it.
+     * @param openTimeout Maximum time to wait for the channel to open; 0 to use the host's ConnectTimeout.
+     * @return a handle to wait for, signal or cancel the command.
+     */
+    public RemoteCommand start( final String command, final InputStream stdin, final OutputStream cmdOutput,
+                                final OutputStream errOutput, final long openTimeout, final TimeUnit unit )
+        throws SSHWrapException
+    {
+        final long openTimeoutNanos = unit.toNanos( openTimeout );
+        if ( retryPolicy == null )
+        {
+            return start( command, stdin, cmdOutput, errOutput, openTimeoutNanos );
+        }
+
+        // a command whose channel never opened hasn't run, so opening can always be retried.
+        final long deadline = openTimeoutNanos > 0 ? System.nanoTime() + openTimeoutNanos : 0;
+        return retryPolicy.call( LinkStatistics.key( host ), deadline, new RetryPolicy.Attempt<RemoteCommand>()
+        {
+            @Override
+            public RemoteCommand run()
+                throws SSHWrapException
+            {
+                return start( command, stdin, cmdOutput, errOutput, remaining( deadline ) );
+            }
+        } );
+    }
+
+    /**
+     * Open and start an exec channel. All of its streams are charged to this host's {@link BandwidthLimiter}, if it
+     * (or the global limiter) has a limit set when the command starts. Output is held back on worker threads (see
+     * {@link ThrottledSink}), so the session and its other channels only wait once a command's buffer is full.
+     */
+    private RemoteCommand start( final String command, final InputStream stdin, final OutputStream cmdOutput,
+                                 final OutputStream errOutput, final long openTimeoutNanos )
+        throws SSHWrapException
+    {
+        final BandwidthLimiter limiter = getBandwidthLimiter();
+        final ChannelExec channel = (ChannelExec) openChannel( ChannelType.exec );
+        final RemoteCommand cmd;
+        if ( limiter.isLimited() )
+        {
+            // JSch reads stdin on the channel's own thread, so that can be throttled in place.
+            cmd =
+                new RemoteCommand( command, channel, stdin == null ? null : new ThrottledInputStream( stdin, limiter ),
+                                   cmdOutput, errOutput, limiter );
+        }
+        else
+        {
+            cmd = new RemoteCommand( command, channel, stdin, cmdOutput, errOutput );
+        }
+
+        try
+        {
+            connectChannel( channel, openTimeoutNanos );
+        }
+        catch ( final SSHWrapException e )
+        {
+            cmd.release();
+            throw e;
+        }
+
+        return cmd;
+    }
+
+    /**
+     * Copy a stream to a remote file over SFTP, at no more than this host's bandwidth limit.
+     */
+    public void upload( final InputStream in, final String remotePath )
+        throws SSHWrapException
+    {
+        upload( in, remotePath, getBandwidthLimiter() );
+    }
+
+    /**
+     * Copy a stream to a remote file over SFTP, at no more than the given limiter (and its parents) allows.
+     */
+    public void upload( final InputStream in, final String remotePath, final BandwidthLimiter limiter )
+        throws SSHWrapException
+    {
+        final ChannelSftp sftp = openSftp();
+        try
+        {
+            sftp.put( new ThrottledInputStream( in, limiter ), remotePath );
+        }
+        catch ( final SftpException e )
+        {
+            throw new SSHWrapException( "Failed to upload: %s\nReason: %s", e, remotePath, e.getMessage() );
+        }
+        finally
+        {
+            sftp.disconnect();
+        }
+    }
+
+    /**
+     * Copy a remote file to a stream over SFTP, at no more than this host's bandwidth limit.
+     */
+    public void download( final String remotePath, final OutputStream out )
+        throws SSHWrapException
+    {
+        download( remotePath, out, getBandwidthLimiter() );
+    }
+
+    /**
+     * Copy a remote file to a stream over SFTP, at no more than the given limiter (and its parents) allows.
+     */
+    public void download( final String remotePath, final OutputStream out, final BandwidthLimiter limiter )
+        throws SSHWrapException
+    {
+        final ChannelSftp sftp = openSftp();
+        try
+        {
+            sftp.get( remotePath, new ThrottledOutputStream( out, limiter ) );
+        }
+        catch ( final SftpException e )
+        {
+            throw new SSHWrapException( "Failed to download: %s\nReason: %s", e, remotePath, e.getMessage() );
+        }
+        finally
+        {
+            sftp.disconnect();
+        }
+    }
+
+    /**
+     * Open a subsystem as a stream of messages delimited by the given framing; see {@link SubsystemChannel}.
+     *
+     * @param correlator Pairs responses with pipelined requests; null if the subsystem's messages can't be paired.
+     * @param timeout Maximum time to wait for the channel to open; 0 to use the host's ConnectTimeout.
+     */
+    public SubsystemChannel openSubsystem( final String subsystem, final Framing framing, final Correlator correlator,
+                                           final long timeout, final TimeUnit unit )
         throws SSHWrapException
     {
-        this.host = host;
-        this.config = config;
-        this.userInfo = userInfo;
-        jsch = new JSch();
+        return SubsystemChannel.open( this, subsystem, framing, correlator, timeout, unit );
+    }
 
-        connect();
+    /**
+     * Open a NETCONF session, negotiating chunked framing if the server supports it.
+     */
+    public NetconfSession openNetconf( final long timeout, final TimeUnit unit )
+        throws SSHWrapException
+    {
+        return NetconfSession.open( this, timeout, unit );
     }
 
-    public boolean isConnected()
+    /**
+     * Start a command whose output is published as it arrives; see {@link ReactiveCommand}.
+     *
+     * @param timeout Maximum time to wait for the channel to open; 0 to use the host's ConnectTimeout.
+     */
+    public ReactiveCommand startReactive( final String command, final long timeout, final TimeUnit unit )
+        throws SSHWrapException
     {
-        return session != null && session.isConnected();
+        return ReactiveCommand.start( this, command, timeout, unit );
     }
 
-    private void checkConnected()
+    /**
+     * Open a connection to the given host and port, as seen from the server, with both directions as reactive
+     * streams; see {@link ReactiveTunnel}.
+     */
+    public ReactiveTunnel openReactiveTunnel( final String remoteHost, final int remotePort, final long timeout,
+                                              final TimeUnit unit )
         throws SSHWrapException
     {
-        if ( !isConnected() )
-        {
-            throw new SSHWrapException( "You must call connect() before attempting this operation!" );
-        }
+        return ReactiveTunnel.open( this, remoteHost, remotePort, timeout, unit );
     }
 
-    private void connect()
+    private ChannelSftp openSftp()
         throws SSHWrapException
     {
+        final ChannelSftp sftp = (ChannelSftp) openChannel( ChannelType.sftp );
         try
         {
-            jsch.setKnownHosts( config.getKnownHosts() );
+            connectChannel( sftp, 0 );
         }
-        catch ( final JSchException e )
+        catch ( final SSHWrapException e )
         {
-            throw new SSHWrapException( "Failed to initialize known hosts: %s", e, e.getMessage() );
+            sftp.disconnect();
+            throw e;
         }
-        catch ( final IOException e )
+
+        return sftp;
+    }
+
+    /**
+     * Connect a channel obtained from {@link #openChannel(ChannelType)}, giving up after the given time (or the host's
+     * ConnectTimeout, if zero).
+     */
+    public void connectChannel( final Channel channel, final long timeout, final TimeUnit unit )
+        throws SSHWrapException
+    {
+        connectChannel( channel, unit.toNanos( timeout ) );
+    }
+
+    private void connectChannel( final Channel channel, final long timeoutNanos )
+        throws SSHWrapException
+    {
+        int millis = (int) TimeUnit.NANOSECONDS.toMillis( timeoutNanos );
+        if ( timeoutNanos > 0 && millis < 1 )
+        {
+            millis = 1;
+        }
+        else if ( timeoutNanos <= 0 )
         {
-            throw new SSHWrapException( "Failed to initialize known hosts: %s", e, e.getMessage() );
+            millis = host.getConnectTimeout() * 1000;
         }
 
-        for ( final File identityFile : config.getIdentities() )
+        Session s = null;
+        try
         {
-            try
+            s = channel.getSession();
+            if ( channel instanceof ChannelDirectTCPIP )
             {
-                jsch.addIdentity( identityFile.getAbsolutePath() );
+                // JSch sends this open, and waits for its confirmation, on the channel's own thread once connect() has
+                // returned. The wait also covers the server's connection to the destination, so it isn't timed.
+                channel.connect();
+                awaitOpen( channel, s, millis > 0 ? millis : DIRECT_TCPIP_OPEN_WAIT );
             }
-            catch ( final JSchException e )
+            else
             {
-                throw new SSHWrapException( "Failed to load key: %s.\nReason: %s", e, identityFile, e.getMessage() );
+                final long start = System.nanoTime();
+                channel.connect( millis );
+
+                // the open exchange is a single request/response, so it doubles as a round-trip probe.
+                final LinkStatistics statistics = linkStatistics();
+                if ( statistics != null )
+                {
+                    statistics.get( LinkStatistics.key( host ) )
+                              .recordRoundTrip( System.nanoTime() - start );
+                }
             }
         }
-
-        try
+        catch ( final JSchException e )
         {
-            session = jsch.getSession( host.getUser(), host.getHostName(), host.getPort() );
-            if ( userInfo != null )
+            if ( s != null && !s.isConnected() )
             {
-                session.setUserInfo( userInfo );
+                throw new SessionLostException( false, e );
             }
 
-            session.connect();
+            // JSch keeps the reason code of an SSH_MSG_CHANNEL_OPEN_FAILURE as the channel's exit status.
+            if ( channel.getExitStatus() > 0 && !channel.isConnected() )
+            {
+                throw new ChannelRefusedException( channel.getExitStatus(), e );
+            }
 
-            for ( final LocalForward lf : host.getLocalForwards() )
+            throw new SSHWrapException( "Failed to connect channel: %s", e, e.getMessage() );
+        }
+    }
+
+    /**
+     * Wait for a channel whose open is in progress on another thread to be confirmed or refused.
+     */
+    private void awaitOpen( final Channel channel, final Session s, final int millis )
+        throws SSHWrapException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( millis );
+        long sleep = 1;
+        try
+        {
+            // JSch has no callback for the confirmation, only the flags it sets.
+            while ( !channel.isConnected() )
             {
-                if ( lf.getLocalAddress() == null )
-                {
-                    session.setPortForwardingL( lf.getLocalPort(), lf.getRemoteAddress(), lf.getRemotePort() );
-                }
-                else
+                if ( !s.isConnected() )
                 {
-                    session.setPortForwardingL( lf.getLocalAddress(), lf.getLocalPort(), lf.getRemoteAddress(),
-                                                lf.getRemotePort() );
+                    throw new SessionLostException( false, null );
                 }
-            }
 
-            for ( final RemoteForward rf : host.getRemoteForwards() )
-            {
-                if ( rf.getLocalAddress() == null )
+                if ( channel.isClosed() )
                 {
-                    session.setPortForwardingR( rf.getLocalPort(), rf.getRemoteAddress(), rf.getRemotePort() );
+                    if ( channel.getExitStatus() > 0 )
+                    {
+                        throw new ChannelRefusedException( channel.getExitStatus(), null );
+                    }
+
+                    throw new SSHWrapException( "Channel was closed while opening." );
                 }
-                else
+
+                final long remaining = deadline - System.nanoTime();
+                if ( remaining <= 0 )
                 {
-                    session.setPortForwardingR( rf.getLocalAddress(), rf.getLocalPort(), rf.getRemoteAddress(),
-                                                rf.getRemotePort() );
+                    channel.disconnect();
+                    throw new SSHWrapException( "Channel to %s@%s:%s did not open within %sms.", host.getUser(),
+                                                host.getHostName(), host.getPort(), millis )
+                        .withCategory( ErrorCategory.TIMEOUT );
                 }
-            }
 
+                Thread.sleep( Math.min( sleep, TimeUnit.NANOSECONDS.toMillis( remaining ) + 1 ) );
+                sleep = Math.min( sleep * 2, 50 );
+            }
         }
-        catch ( final JSchException e )
+        catch ( final InterruptedException e )
         {
-            throw new SSHWrapException( "Failed to initialize/connect SSH session for %s@%s:%s\nReason: %s", e,
-                                        host.getUser(), host.getHostName(), host.getPort(), e.getMessage() );
+            channel.disconnect();
+            Thread.currentThread()
+                  .interrupt();
+            throw new SSHWrapException( "Interrupted while opening channel.", e );
         }
     }
 
-    public Channel openChannel( final ChannelType type )
+    private static long remaining( final long deadline )
         throws SSHWrapException
     {
-        checkConnected();
-
-        try
+        if ( deadline == 0 )
         {
-            final Channel channel = session.openChannel( type.channelName() );
-
-            return channel;
+            return 0;
         }
-        catch ( final JSchException e )
+
+        final long remaining = deadline - System.nanoTime();
+        if ( remaining <= 0 )
         {
-            throw new SSHWrapException( "Failed to open channel: %s\nReason: %s", e, type, e.getMessage() );
+            throw new SSHWrapException( "Deadline passed before the operation could complete." )
+                .withCategory( ErrorCategory.TIMEOUT );
         }
+
+        return remaining;
     }
 
-    public int execute( final String command, final OutputStream cmdOutput )
-        throws IOException, SSHWrapException
+    public SSHConnection disconnect()
     {
-        ChannelExec channel = null;
+        connectLock.lock();
         try
         {
-            channel = (ChannelExec) openChannel( ChannelType.exec );
-            ( channel ).setCommand( command );
-
-            final InputStream in = channel.getInputStream();
-
-            try
-            {
-                channel.connect();
-            }
-            catch ( final JSchException e )
+            if ( master != null )
             {
-                throw new SSHWrapException( "Failed to connect channel: %s", e, e.getMessage() );
+                master.stop();
+                master = null;
             }
 
-            final byte[] tmp = new byte[1024];
-            while ( true )
-            {
-                while ( in.available() > 0 )
-                {
-                    final int i = in.read( tmp );
-                    if ( i < 0 )
-                    {
-                        break;
-                    }
+            control = null;
 
-                    cmdOutput.write( tmp, 0, i );
-                }
+            if ( session != null )
+            {
+                session.disconnect();
+                session = null;
+            }
 
-                if ( channel.isClosed() )
-                {
-                    return channel.getExitStatus();
-                }
+            releaseBastion();
 
-                try
-                {
-                    Thread.sleep( 500 );
-                }
-                catch ( final InterruptedException ee )
-                {
-                    Thread.currentThread()
-                          .interrupt();
-                    break;
-                }
-            }
+            return this;
         }
         finally
         {
-            if ( channel != null )
-            {
-                channel.disconnect();
-            }
+            connectLock.unlock();
+        }
+    }
+
+    /**
+     * Signals that the session went away underneath a command.
+     */
+    static final class SessionLostException
+        extends SSHWrapException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean started;
+
+        SessionLostException( final boolean started, final Throwable cause )
+        {
+            super( "SSH session was lost %s the command started.", cause, started ? "after" : "before" );
+            this.started = started;
+            withCategory( ErrorCategory.SESSION_LOST );
         }
 
-        return Byte.MIN_VALUE;
+        boolean isStarted()
+        {
+            return started;
+        }
     }
 
-    public SSHConnection disconnect()
+    /**
+     * Signals that the server answered a channel open with SSH_MSG_CHANNEL_OPEN_FAILURE.
+     */
+    static final class ChannelRefusedException
+        extends SSHWrapException
     {
-        session.disconnect();
-        session = null;
+        private static final long serialVersionUID = 1L;
 
-        return this;
+        /** The reason code servers send when a channel would exceed their limit (MaxSessions, in OpenSSH). */
+        private static final int ADMINISTRATIVELY_PROHIBITED = 1;
+
+        private final int reason;
+
+        ChannelRefusedException( final int reason, final Throwable cause )
+        {
+            super( "Server refused to open channel (reason code: %s).", cause, reason );
+            this.reason = reason;
+            withCategory( ErrorCategory.CHANNEL );
+        }
+
+        int getReason()
+        {
+            return reason;
+        }
+
+        boolean isAdministrativelyProhibited()
+        {
+            return reason == ADMINISTRATIVELY_PROHIBITED;
+        }
     }
 
     public static final class Builder
@@ -252,6 +1382,42 @@ public class SSHConnection
 
         private final Set<RemoteForward> remoteForwards = new HashSet<RemoteForward>();
 
+        private String proxyJump;
+
+        private JumpHostPool jumpHosts = JumpHostPool.getSharedInstance();
+
+        private boolean autoReconnect = true;
+
+        private HostResolver hostResolver = HostResolver.getSharedInstance();
+
+        private CipherCalibrator cipherCalibrator;
+
+        private CompressionAdvisor compressionAdvisor;
+
+        private WindowTuner windowTuner;
+
+        private IdentityCache identityCache = IdentityCache.getSharedInstance();
+
+        private SSHAgent agent;
+
+        private boolean useAgent;
+
+        private RetryPolicy retryPolicy;
+
+        private ResultCache resultCache;
+
+        private int channelWindowSize;
+
+        private int channelPacketSize;
+
+        private long bandwidthLimit = -1;
+
+        private int serverAliveInterval;
+
+        private int serverAliveCountMax;
+
+        private int connectTimeout;
+
         public Builder( final String host, final Prompter prompter )
         {
             this.host = host;
@@ -314,15 +1480,179 @@ public class SSHConnection
             return this;
         }
 
-        public SSHConnection create()
-            throws SSHWrapException
+        /**
+         * Route the connection through one or more bastions, overriding any ProxyJump setting from the configuration.
+         * 
+         * @param proxyJump Comma-separated jump chain, in the form [user@]host[:port],...
+         */
+        public Builder withProxyJump( final String proxyJump )
+        {
+            this.proxyJump = proxyJump;
+            return this;
+        }
+
+        /**
+         * Send a keepalive after the given number of seconds of inactivity, and drop the session after count
+         * unanswered keepalives, overriding ServerAliveInterval/ServerAliveCountMax from the configuration.
+         */
+        public Builder withServerAlive( final int interval, final int count )
+        {
+            this.serverAliveInterval = interval;
+            this.serverAliveCountMax = count;
+            return this;
+        }
+
+        /**
+         * Give up on connecting (and on opening each channel) after the given number of seconds, overriding
+         * ConnectTimeout from the configuration.
+         */
+        public Builder withConnectTimeout( final int connectTimeout )
+        {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * Control whether dropped sessions are re-established transparently on next use (the default).
+         */
+        public Builder withAutoReconnect( final boolean autoReconnect )
+        {
+            this.autoReconnect = autoReconnect;
+            return this;
+        }
+
+        /**
+         * Resolve (and cache) host addresses through the given resolver instead of the process-wide one.
+         */
+        public Builder withHostResolver( final HostResolver hostResolver )
+        {
+            this.hostResolver = hostResolver;
+            return this;
+        }
+
+        /**
+         * When the configuration doesn't name any Ciphers for the host, propose them in the fastest-first order
+         * measured (once, then remembered) by the given calibrator.
+         */
+        public Builder withCipherCalibration( final CipherCalibrator cipherCalibrator )
+        {
+            this.cipherCalibrator = cipherCalibrator;
+            return this;
+        }
+
+        /**
+         * When the configuration doesn't say whether to compress for the host, decide from the throughput and
+         * compressibility the given advisor has seen on earlier connections, and feed it measurements from this one.
+         */
+        public Builder withAdaptiveCompression( final CompressionAdvisor compressionAdvisor )
+        {
+            this.compressionAdvisor = compressionAdvisor;
+            return this;
+        }
+
+        /**
+         * Advertise the given receive window and maximum packet size (bytes) on each channel; 0 keeps the configured
+         * (or JSch's default) value. Bulk transfer on one channel is capped at about window / RTT.
+         */
+        public Builder withChannelWindow( final int windowSize, final int packetSize )
+        {
+            this.channelWindowSize = windowSize;
+            this.channelPacketSize = packetSize;
+            return this;
+        }
+
+        /**
+         * When no channel window is configured for the host, size each new channel from the bandwidth-delay product
+         * the given tuner has measured on earlier channels to the same host.
+         */
+        public Builder withAdaptiveWindow( final WindowTuner windowTuner )
+        {
+            this.windowTuner = windowTuner;
+            return this;
+        }
+
+        /**
+         * Load identity files through the given cache instead of the process-wide one, or (with null) afresh for each
+         * connection, as JSch does.
+         */
+        public Builder withIdentityCache( final IdentityCache identityCache )
+        {
+            this.identityCache = identityCache;
+            return this;
+        }
+
+        /**
+         * Offer the keys held by the ssh-agent at the host's IdentityAgent or SSH_AUTH_SOCK, when the Java runtime can
+         * reach it. No agent is used unless asked for.
+         */
+        public Builder withAgent()
+        {
+            this.agent = null;
+            this.useAgent = true;
+            return this;
+        }
+
+        /**
+         * Offer the keys held by the given ssh-agent, or (with null) don't use an agent at all.
+         */
+        public Builder withAgent( final SSHAgent agent )
+        {
+            this.agent = agent;
+            this.useAgent = agent != null;
+            return this;
+        }
+
+        /**
+         * Retry transient failures to connect, open channels and run commands as the given policy allows. Commands
+         * that may already have run are only retried when declared idempotent.
+         */
+        public Builder withRetryPolicy( final RetryPolicy retryPolicy )
+        {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Cap the combined rate (bytes per second; 0 for none) of all transfers to this host, from every connection
+         * to it. The limit can be changed later through {@link SSHConnection#getBandwidthLimiter()}.
+         */
+        public Builder withBandwidthLimit( final long bytesPerSecond )
+        {
+            this.bandwidthLimit = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Serve {@link SSHConnection#executeCached(String, OutputStream)} from the given cache, which may be shared by
+         * any number of connections.
+         */
+        public Builder withResultCache( final ResultCache resultCache )
+        {
+            this.resultCache = resultCache;
+            return this;
+        }
+
+        /**
+         * Share bastion sessions through the given pool instead of the process-wide one.
+         */
+        public Builder withJumpHostPool( final JumpHostPool jumpHosts )
+        {
+            this.jumpHosts = jumpHosts;
+            return this;
+        }
+
+        /**
+         * @return the configured host, with this builder's overrides applied to a copy of it.
+         */
+        Host host()
         {
             if ( config == null )
             {
                 config = new DefaultSSHConfiguration();
             }
 
-            final Host h = config.lookup( host );
+            // the configuration may hand out a shared instance; overrides for this connection go on a copy.
+            final Host h = new Host( config.lookup( host ) );
             if ( user != null )
             {
                 h.setUser( user );
@@ -343,7 +1673,88 @@ public class SSHConnection
                 h.addRemoteForward( rf );
             }
 
-            return new SSHConnection( h, config, prompter );
+            if ( proxyJump != null )
+            {
+                h.setProxyJump( proxyJump );
+            }
+
+            if ( connectTimeout > 0 )
+            {
+                h.setConnectTimeout( connectTimeout );
+            }
+
+            if ( cipherCalibrator != null && h.getCiphers() == null )
+            {
+                h.setCiphers( cipherCalibrator.getFastestOrder() );
+            }
+
+            if ( channelWindowSize > 0 )
+            {
+                h.setChannelWindowSize( channelWindowSize );
+            }
+
+            if ( channelPacketSize > 0 )
+            {
+                h.setChannelPacketSize( channelPacketSize );
+            }
+
+            if ( compressionAdvisor != null && h.getCompression() == null )
+            {
+                h.setCompression( compressionAdvisor.recommend( LinkStatistics.key( h ) ) );
+            }
+
+            if ( serverAliveInterval > 0 )
+            {
+                h.setServerAliveInterval( serverAliveInterval );
+                h.setServerAliveCountMax( serverAliveCountMax );
+            }
+
+            return h;
+        }
+
+        public SSHConnection create()
+            throws SSHWrapException
+        {
+            final Host h = host();
+            if ( bandwidthLimit >= 0 )
+            {
+                BandwidthLimiter.forHost( LinkStatistics.key( h ) )
+                                .setRate( bandwidthLimit );
+            }
+
+            final SSHConnection connection = new SSHConnection( h, config, prompter, jumpHosts );
+            connection.setAutoReconnect( autoReconnect );
+            connection.setHostResolver( hostResolver );
+            connection.setCompressionAdvisor( compressionAdvisor );
+            connection.setWindowTuner( windowTuner );
+            connection.setIdentityCache( identityCache );
+            connection.setResultCache( resultCache );
+            connection.setAlias( host );
+            if ( useAgent )
+            {
+                connection.setAgent( agent != null ? agent : SSHAgent.forSocket( SSHAgent.socketPath( h ) ) );
+            }
+            connection.setRetryPolicy( retryPolicy );
+
+            final String controlMaster = h.getControlMaster();
+            final File controlFile = ControlMaster.resolveControlPath( h );
+            if ( controlFile != null && !"yes".equals( controlMaster ) && !"ask".equals( controlMaster ) )
+            {
+                // connects a session of its own only if, and once, it needs one.
+                connection.control = ControlClient.connect( controlFile );
+                if ( connection.control != null )
+                {
+                    return connection;
+                }
+            }
+
+            connection.connectWithRetry();
+            if ( controlFile != null && controlMaster != null && !"no".equals( controlMaster ) )
+            {
+                connection.shareControl( controlFile );
+            }
+
+            return connection;
         }
     }
 
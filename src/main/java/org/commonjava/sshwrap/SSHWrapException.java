@@ -26,6 +26,8 @@ public class SSHWrapException
 
     private final Object[] params;
 
+    private ErrorCategory category;
+
     public SSHWrapException( final String message, final Throwable cause, final Object... params )
     {
         super( message, cause );
@@ -50,6 +52,36 @@ public class SSHWrapException
         params = null;
     }
 
+    /**
+     * Declare what kind of failure this is, rather than leaving it to be worked out from the cause.
+     */
+    public SSHWrapException withCategory( final ErrorCategory category )
+    {
+        this.category = category;
+        return this;
+    }
+
+    /**
+     * @return the kind of failure: as declared when thrown, or else as classified from the cause.
+     */
+    public ErrorCategory getCategory()
+    {
+        return category == null ? ErrorCategory.classify( getCause() ) : category;
+    }
+
+    /**
+     * @return true if the operation that failed may well succeed when tried again.
+     */
+    public boolean isTransient()
+    {
+        return getCategory().isTransient();
+    }
+
+    ErrorCategory getAssignedCategory()
+    {
+        return category;
+    }
+
     @Override
     public String getMessage()
     {
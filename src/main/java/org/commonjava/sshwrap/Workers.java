@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates the threads sshwrap runs its own blocking work on (connect attempts, fact gathering, subsystem readers,
+ * follow resumption, control master clients...), as virtual threads when enabled and the JVM has them (Java 21 and
+ * later), and as daemon platform threads otherwise.
+ * <p>
+ * Virtual mode is off unless enabled with {@link #setVirtual(boolean)} or the <code>sshwrap.virtualThreads</code>
+ * system property. Callers fanning out over many hosts should run their blocking {@link SSHConnection} calls on
+ * {@link #newExecutor(String)} too, so that waiting on a remote command doesn't tie up a platform thread. Note that
+ * JSch still reads each session on a platform thread of its own; that costs one thread per connection, rather than
+ * one per connection and per outstanding call.
+ * </p>
+ */
+public final class Workers
+{
+
+    private static final Logger LOGGER = Logger.getLogger( Workers.class );
+
+    private static final Method OF_VIRTUAL;
+
+    private static final Method NAME;
+
+    private static final Method UNSTARTED;
+
+    private static final Method FACTORY;
+
+    private static final Method PER_TASK;
+
+    private static volatile boolean virtual;
+
+    static
+    {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        Method factory = null;
+        Method perTask = null;
+        try
+        {
+            final Class<?> builder = Class.forName( "java.lang.Thread$Builder" );
+            ofVirtual = Thread.class.getMethod( "ofVirtual" );
+            name = builder.getMethod( "name", String.class );
+            unstarted = builder.getMethod( "unstarted", Runnable.class );
+            factory = builder.getMethod( "factory" );
+            perTask = Executors.class.getMethod( "newThreadPerTaskExecutor", ThreadFactory.class );
+
+            // where virtual threads are still a preview feature, this fails unless previews are enabled.
+            ofVirtual.invoke( null );
+        }
+        catch ( final Exception e )
+        {
+            ofVirtual = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+        FACTORY = factory;
+        PER_TASK = perTask;
+
+        if ( Boolean.getBoolean( "sshwrap.virtualThreads" ) )
+        {
+            setVirtual( true );
+        }
+    }
+
+    private Workers()
+    {
+    }
+
+    /**
+     * @return true if this JVM supports virtual threads.
+     */
+    public static boolean isVirtualAvailable()
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    public static boolean isVirtual()
+    {
+        return virtual;
+    }
+
+    /**
+     * Switch threads created from now on to (or from) virtual threads. Threads already running are unaffected.
+     *
+     * @return true if virtual threads are now in use; false if they were requested but aren't available.
+     */
+    public static boolean setVirtual( final boolean enabled )
+    {
+        if ( enabled && !isVirtualAvailable() )
+        {
+            LOGGER.warn( "Virtual threads requested, but this JVM doesn't support them; using platform threads." );
+        }
+
+        virtual = enabled && isVirtualAvailable();
+        return virtual;
+    }
+
+    /**
+     * Create (without starting) a thread to run the given task.
+     */
+    public static Thread newThread( final String name, final Runnable task )
+    {
+        if ( virtual )
+        {
+            final Object builder = invoke( NAME, invoke( OF_VIRTUAL, null ), name );
+            return (Thread) invoke( UNSTARTED, builder, task );
+        }
+
+        final Thread t = new Thread( task, name );
+        t.setDaemon( true );
+        return t;
+    }
+
+    /**
+     * @return a factory for {@link #newThread(String, Runnable)}, deciding between virtual and platform threads as
+     *         each thread is created.
+     */
+    public static ThreadFactory factory( final String name )
+    {
+        return new ThreadFactory()
+        {
+            public Thread newThread( final Runnable r )
+            {
+                return Workers.newThread( name, r );
+            }
+        };
+    }
+
+    /**
+     * @return an executor that starts a new virtual thread per task in virtual mode, or a cached pool of daemon
+     *         platform threads otherwise. Shut it down when finished with it.
+     */
+    public static ExecutorService newExecutor( final String name )
+    {
+        if ( virtual )
+        {
+            final Object builder = invoke( NAME, invoke( OF_VIRTUAL, null ), name );
+            return (ExecutorService) invoke( PER_TASK, null, invoke( FACTORY, builder ) );
+        }
+
+        return Executors.newCachedThreadPool( factory( name ) );
+    }
+
+    private static Object invoke( final Method method, final Object target, final Object... args )
+    {
+        try
+        {
+            return method.invoke( target, args );
+        }
+        catch ( final Exception e )
+        {
+            // only reachable if the JVM's own virtual thread API misbehaves.
+            throw new IllegalStateException( "Failed to create virtual thread: " + e.getMessage(), e );
+        }
+    }
+
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.auth;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.ErrorCategory;
+import org.commonjava.sshwrap.SSHWrapException;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.IdentityRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+
+/**
+ * Process-wide cache of private keys loaded from identity files.
+ * <p>
+ * JSch normally re-reads each key file on every connection and, for encrypted keys, asks for the passphrase again.
+ * Keys handed out by this cache are shared by every connection, so once one of them has been unlocked (by whichever
+ * connection first needed it) the others use it without decrypting or prompting. Entries are reloaded if the file
+ * changes, and dropped (their key material wiped) when they expire.
+ * </p>
+ */
+public final class IdentityCache
+{
+
+    private static final IdentityCache SHARED = new IdentityCache();
+
+    private static Method getIdentityRepository;
+
+    static
+    {
+        try
+        {
+            // package-private in JSch; the only way to get at a key JSch has loaded from a file.
+            getIdentityRepository = JSch.class.getDeclaredMethod( "getIdentityRepository" );
+            getIdentityRepository.setAccessible( true );
+        }
+        catch ( final Exception e )
+        {
+            getIdentityRepository = null;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private long expiryNanos;
+
+    public static IdentityCache getSharedInstance()
+    {
+        return SHARED;
+    }
+
+    /**
+     * Forget (and wipe) keys this long after they were loaded; 0, the default, keeps them for the life of the process.
+     */
+    public synchronized void setExpiry( final long expiry, final TimeUnit unit )
+    {
+        expiryNanos = unit.toNanos( expiry );
+    }
+
+    /**
+     * @return the shared key for the given identity file, loading it if it isn't cached (or has changed or expired).
+     */
+    public Identity get( final File file )
+        throws SSHWrapException
+    {
+        final String path;
+        try
+        {
+            path = file.getCanonicalPath();
+        }
+        catch ( final IOException e )
+        {
+            throw new SSHWrapException( "Failed to resolve key: %s.\nReason: %s", e, file, e.getMessage() )
+                .withCategory( ErrorCategory.CONFIGURATION );
+        }
+
+        final long now = System.nanoTime();
+        final long modified = file.lastModified();
+
+        Entry entry;
+        Entry stale = null;
+        boolean loader = false;
+        synchronized ( this )
+        {
+            entry = entries.get( path );
+            if ( entry == null || entry.modified != modified || entry.isExpired( now, expiryNanos ) )
+            {
+                stale = entry;
+                entry = new Entry( path, modified, now );
+                entries.put( path, entry );
+                loader = true;
+            }
+        }
+
+        if ( stale != null )
+        {
+            stale.clear();
+        }
+
+        // the key is read and parsed outside the lock; anyone else after the same file waits for this load.
+        if ( loader )
+        {
+            entry.load.run();
+        }
+
+        try
+        {
+            return entry.load.get();
+        }
+        catch ( final ExecutionException e )
+        {
+            synchronized ( this )
+            {
+                if ( entries.get( path ) == entry )
+                {
+                    entries.remove( path );
+                }
+            }
+
+            if ( e.getCause() instanceof SSHWrapException )
+            {
+                throw (SSHWrapException) e.getCause();
+            }
+
+            throw new SSHWrapException( "Failed to load key: %s.\nReason: %s", e.getCause(), path,
+                                        e.getCause()
+                                         .getMessage() ).withCategory( ErrorCategory.CONFIGURATION );
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread()
+                  .interrupt();
+            throw new SSHWrapException( "Interrupted while waiting for key: %s to load.", e, path );
+        }
+    }
+
+    /**
+     * Drop and wipe any key cached for the given file.
+     */
+    public void invalidate( final File file )
+        throws IOException
+    {
+        final Entry entry;
+        synchronized ( this )
+        {
+            entry = entries.remove( file.getCanonicalPath() );
+        }
+
+        if ( entry != null )
+        {
+            entry.clear();
+        }
+    }
+
+    /**
+     * Drop and wipe every cached key.
+     */
+    public void clear()
+    {
+        final List<Entry> removed;
+        synchronized ( this )
+        {
+            removed = new ArrayList<Entry>( entries.values() );
+            entries.clear();
+        }
+
+        for ( final Entry entry : removed )
+        {
+            entry.clear();
+        }
+    }
+
+    /**
+     * Drop and wipe keys that have outlived the expiry.
+     */
+    public void evictExpired()
+    {
+        final List<Entry> removed = new ArrayList<Entry>();
+        synchronized ( this )
+        {
+            final long now = System.nanoTime();
+            for ( final Iterator<Entry> it = entries.values()
+                                                    .iterator(); it.hasNext(); )
+            {
+                final Entry entry = it.next();
+                if ( entry.isExpired( now, expiryNanos ) )
+                {
+                    it.remove();
+                    removed.add( entry );
+                }
+            }
+        }
+
+        for ( final Entry entry : removed )
+        {
+            entry.clear();
+        }
+    }
+
+    private static Identity load( final String path )
+        throws SSHWrapException
+    {
+        if ( getIdentityRepository == null )
+        {
+            throw new SSHWrapException( "Identity caching is not supported by this JSch version." )
+                .withCategory( ErrorCategory.CONFIGURATION );
+        }
+
+        try
+        {
+            final JSch loader = new JSch();
+            loader.addIdentity( path );
+
+            final IdentityRepository repo = (IdentityRepository) getIdentityRepository.invoke( loader );
+            final Vector<?> identities = repo.getIdentities();
+            if ( identities.isEmpty() )
+            {
+                throw new SSHWrapException( "Failed to load key: %s.", path )
+                    .withCategory( ErrorCategory.CONFIGURATION );
+            }
+
+            return new SharedIdentity( (Identity) identities.get( 0 ) );
+        }
+        catch ( final JSchException e )
+        {
+            throw new SSHWrapException( "Failed to load key: %s.\nReason: %s", e, path, e.getMessage() )
+                .withCategory( ErrorCategory.CONFIGURATION );
+        }
+        catch ( final SSHWrapException e )
+        {
+            throw e;
+        }
+        catch ( final Exception e )
+        {
+            throw new SSHWrapException( "Failed to load key: %s.\nReason: %s", e, path, e.getMessage() )
+                .withCategory( ErrorCategory.CONFIGURATION );
+        }
+    }
+
+    private static final class Entry
+    {
+        final FutureTask<Identity> load;
+
+        final long modified;
+
+        final long loaded;
+
+        Entry( final String path, final long modified, final long loaded )
+        {
+            this.load = new FutureTask<Identity>( new Callable<Identity>()
+            {
+                public Identity call()
+                    throws SSHWrapException
+                {
+                    return IdentityCache.load( path );
+                }
+            } );
+            this.modified = modified;
+            this.loaded = loaded;
+        }
+
+        boolean isExpired( final long now, final long expiryNanos )
+        {
+            return expiryNanos > 0 && now - loaded >= expiryNanos;
+        }
+
+        /**
+         * Wipe the key, if it has loaded; one still loading goes to whoever is waiting for it, and is left to the
+         * garbage collector.
+         */
+        void clear()
+        {
+            if ( load.isDone() )
+            {
+                try
+                {
+                    load.get()
+                        .clear();
+                }
+                catch ( final ExecutionException e )
+                {
+                    // nothing was loaded.
+                }
+                catch ( final InterruptedException e )
+                {
+                    // can't happen once done.
+                    Thread.currentThread()
+                          .interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Serializes access to a key used by several sessions at once, since unlocking and signing both touch its state.
+     * Once wiped, it refuses to sign, so a session still holding it simply moves on to its next key.
+     */
+    private static final class SharedIdentity
+        implements Identity
+    {
+        private final Identity delegate;
+
+        private boolean cleared;
+
+        SharedIdentity( final Identity delegate )
+        {
+            this.delegate = delegate;
+        }
+
+        public synchronized boolean setPassphrase( final byte[] passphrase )
+            throws JSchException
+        {
+            return !cleared && delegate.setPassphrase( passphrase );
+        }
+
+        public synchronized byte[] getPublicKeyBlob()
+        {
+            return delegate.getPublicKeyBlob();
+        }
+
+        public synchronized byte[] getSignature( final byte[] data )
+        {
+            return cleared ? null : delegate.getSignature( data );
+        }
+
+        public synchronized boolean decrypt()
+        {
+            return !cleared && delegate.decrypt();
+        }
+
+        public synchronized String getAlgName()
+        {
+            return delegate.getAlgName();
+        }
+
+        public synchronized String getName()
+        {
+            return delegate.getName();
+        }
+
+        public synchronized boolean isEncrypted()
+        {
+            return cleared || delegate.isEncrypted();
+        }
+
+        public synchronized void clear()
+        {
+            cleared = true;
+            delegate.clear();
+        }
+    }
+
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.auth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.commonjava.sshwrap.config.Host;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSchException;
+
+/**
+ * Client for a running ssh-agent. Keys held by the agent are offered as JSch identities whose signatures are made by
+ * the agent, so private key material (and passphrases) never enter this process.
+ * <p>
+ * The agent listens on a Unix domain socket. Java runtimes from 16 on can connect to it directly; on older ones, a
+ * {@link Connector} must be supplied, for instance a bridge command such as
+ * <code>socat - UNIX-CONNECT:/path/to/socket</code> via {@link #commandConnector(String...)}.
+ * </p>
+ */
+public final class SSHAgent
+{
+
+    private static final Logger LOGGER = Logger.getLogger( SSHAgent.class );
+
+    private static final int SSH_AGENT_FAILURE = 5;
+
+    private static final int SSH2_AGENTC_REQUEST_IDENTITIES = 11;
+
+    private static final int SSH2_AGENT_IDENTITIES_ANSWER = 12;
+
+    private static final int SSH2_AGENTC_SIGN_REQUEST = 13;
+
+    private static final int SSH2_AGENT_SIGN_RESPONSE = 14;
+
+    private static final int MAX_MESSAGE = 256 * 1024;
+
+    /** Key types JSch can authenticate with; the agent may hold others. */
+    private static final List<String> SUPPORTED_TYPES = Arrays.asList( "ssh-rsa", "ssh-dss" );
+
+    private static final ConcurrentMap<String, SSHAgent> AGENTS = new ConcurrentHashMap<String, SSHAgent>();
+
+    private final Connector connector;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private Connection connection;
+
+    public SSHAgent( final Connector connector )
+    {
+        this.connector = connector;
+    }
+
+    /**
+     * @return the agent socket the given host should use: its IdentityAgent if set, otherwise SSH_AUTH_SOCK; null if
+     *         there is none or the agent is disabled for the host.
+     */
+    public static String socketPath( final Host host )
+    {
+        String path = host == null ? null : host.getIdentityAgent();
+        if ( path == null || "SSH_AUTH_SOCK".equals( path ) )
+        {
+            path = System.getenv( "SSH_AUTH_SOCK" );
+        }
+        else if ( "none".equalsIgnoreCase( path ) )
+        {
+            return null;
+        }
+        else if ( path.startsWith( "${" ) && path.endsWith( "}" ) )
+        {
+            path = System.getenv( path.substring( 2, path.length() - 1 ) );
+        }
+        else if ( path.startsWith( "$" ) )
+        {
+            path = System.getenv( path.substring( 1 ) );
+        }
+        else if ( path.startsWith( "~/" ) )
+        {
+            path = System.getProperty( "user.home" ) + path.substring( 1 );
+        }
+
+        return path == null || path.length() == 0 ? null : path;
+    }
+
+    /**
+     * @return the process-wide client for the agent at the given socket, or null if there is no socket or this Java
+     *         runtime can't open Unix domain sockets.
+     */
+    public static SSHAgent forSocket( final String path )
+    {
+        if ( path == null )
+        {
+            return null;
+        }
+
+        SSHAgent agent = AGENTS.get( path );
+        if ( agent == null )
+        {
+            final Connector connector = unixSocketConnector( path );
+            if ( connector == null )
+            {
+                return null;
+            }
+
+            final SSHAgent created = new SSHAgent( connector );
+            agent = AGENTS.putIfAbsent( path, created );
+            if ( agent == null )
+            {
+                agent = created;
+            }
+        }
+
+        return agent;
+    }
+
+    /**
+     * @return a connector for the Unix domain socket at the given path, or null if this Java runtime can't open Unix
+     *         domain sockets.
+     */
+    public static Connector unixSocketConnector( final String path )
+    {
+        final Method of;
+        final Method open;
+        try
+        {
+            // Java 16+; looked up reflectively so the library still runs (without agent support) on older runtimes.
+            of = Class.forName( "java.net.UnixDomainSocketAddress" )
+                      .getMethod( "of", String.class );
+            open = SocketChannel.class.getMethod( "open", SocketAddress.class );
+        }
+        catch ( final Exception e )
+        {
+            return null;
+        }
+
+        return new Connector()
+        {
+            public Connection connect()
+                throws IOException
+            {
+                final SocketChannel channel;
+                try
+                {
+                    channel = (SocketChannel) open.invoke( null, of.invoke( null, path ) );
+                }
+                catch ( final Exception e )
+                {
+                    final Throwable cause = e.getCause() == null ? e : e.getCause();
+                    if ( cause instanceof IOException )
+                    {
+                        throw (IOException) cause;
+                    }
+
+                    throw new IOException( "Failed to connect to agent socket: " + path + ": " + cause );
+                }
+
+                return new Connection()
+                {
+                    private final InputStream in = Channels.newInputStream( channel );
+
+                    private final OutputStream out = Channels.newOutputStream( channel );
+
+                    public InputStream getInputStream()
+                    {
+                        return in;
+                    }
+
+                    public OutputStream getOutputStream()
+                    {
+                        return out;
+                    }
+
+                    public void close()
+                        throws IOException
+                    {
+                        channel.close();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return a connector that talks to the agent through the stdin/stdout of a bridge command.
+     */
+    public static Connector commandConnector( final String... command )
+    {
+        return new Connector()
+        {
+            public Connection connect()
+                throws IOException
+            {
+                final Process process = new ProcessBuilder( command ).start();
+                process.getErrorStream()
+                       .close();
+
+                return new Connection()
+                {
+                    public InputStream getInputStream()
+                    {
+                        return process.getInputStream();
+                    }
+
+                    public OutputStream getOutputStream()
+                    {
+                        return process.getOutputStream();
+                    }
+
+                    public void close()
+                    {
+                        process.destroy();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return the keys the agent holds that JSch can use, as identities that sign through the agent.
+     */
+    public List<Identity> getIdentities()
+        throws IOException
+    {
+        final DataInputStream reply = request( new byte[] { SSH2_AGENTC_REQUEST_IDENTITIES } );
+        final int type = reply.readUnsignedByte();
+        if ( type != SSH2_AGENT_IDENTITIES_ANSWER )
+        {
+            throw new IOException( "Unexpected agent reply to identities request: " + type );
+        }
+
+        final int count = reply.readInt();
+        final List<Identity> identities = new ArrayList<Identity>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            final byte[] blob = readString( reply );
+            final String comment = new String( readString( reply ), "UTF-8" );
+            final String algorithm =
+                new String( readString( new DataInputStream( new ByteArrayInputStream( blob ) ) ), "UTF-8" );
+
+            if ( SUPPORTED_TYPES.contains( algorithm ) )
+            {
+                identities.add( new AgentIdentity( blob, algorithm, comment ) );
+            }
+            else if ( LOGGER.isDebugEnabled() )
+            {
+                LOGGER.debug( "Skipping agent key: " + comment + " of unsupported type: " + algorithm );
+            }
+        }
+
+        return identities;
+    }
+
+    /**
+     * Have the agent sign data with one of its keys.
+     * 
+     * @return the signature blob (algorithm name and signature), or null if the agent refused.
+     */
+    public byte[] sign( final byte[] keyBlob, final byte[] data )
+        throws IOException
+    {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream( keyBlob.length + data.length + 16 );
+        final DataOutputStream out = new DataOutputStream( buf );
+        out.writeByte( SSH2_AGENTC_SIGN_REQUEST );
+        out.writeInt( keyBlob.length );
+        out.write( keyBlob );
+        out.writeInt( data.length );
+        out.write( data );
+        out.writeInt( 0 );
+
+        final DataInputStream reply = request( buf.toByteArray() );
+        final int type = reply.readUnsignedByte();
+        if ( type == SSH2_AGENT_SIGN_RESPONSE )
+        {
+            return readString( reply );
+        }
+        else if ( type != SSH_AGENT_FAILURE )
+        {
+            throw new IOException( "Unexpected agent reply to sign request: " + type );
+        }
+
+        return null;
+    }
+
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            disconnect();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send one message and read the reply, reconnecting once if the agent connection turns out to be dead.
+     */
+    private DataInputStream request( final byte[] message )
+        throws IOException
+    {
+        lock.lock();
+        try
+        {
+            try
+            {
+                return exchange( message );
+            }
+            catch ( final IOException e )
+            {
+                disconnect();
+                return exchange( message );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private DataInputStream exchange( final byte[] message )
+        throws IOException
+    {
+        if ( connection == null )
+        {
+            connection = connector.connect();
+        }
+
+        final DataOutputStream out = new DataOutputStream( connection.getOutputStream() );
+        out.writeInt( message.length );
+        out.write( message );
+        out.flush();
+
+        final DataInputStream in = new DataInputStream( connection.getInputStream() );
+        final int len = in.readInt();
+        if ( len < 1 || len > MAX_MESSAGE )
+        {
+            throw new IOException( "Invalid agent reply length: " + len );
+        }
+
+        final byte[] reply = new byte[len];
+        in.readFully( reply );
+
+        return new DataInputStream( new ByteArrayInputStream( reply ) );
+    }
+
+    private void disconnect()
+    {
+        if ( connection != null )
+        {
+            try
+            {
+                connection.close();
+            }
+            catch ( final IOException e )
+            {
+                // already gone.
+            }
+
+            connection = null;
+        }
+    }
+
+    private static byte[] readString( final DataInputStream in )
+        throws IOException
+    {
+        final int len = in.readInt();
+        if ( len < 0 || len > in.available() )
+        {
+            throw new EOFException( "Truncated agent message" );
+        }
+
+        final byte[] value = new byte[len];
+        in.readFully( value );
+
+        return value;
+    }
+
+    /**
+     * Opens a connection to the agent.
+     */
+    public interface Connector
+    {
+        Connection connect()
+            throws IOException;
+    }
+
+    /**
+     * A connection to the agent, carrying its request/response protocol.
+     */
+    public interface Connection
+    {
+        InputStream getInputStream();
+
+        OutputStream getOutputStream();
+
+        void close()
+            throws IOException;
+    }
+
+    /**
+     * An agent-held key. It has no private part here, so it is never encrypted and signs by asking the agent.
+     */
+    private final class AgentIdentity
+        implements Identity
+    {
+        private final byte[] blob;
+
+        private final String algorithm;
+
+        private final String comment;
+
+        AgentIdentity( final byte[] blob, final String algorithm, final String comment )
+        {
+            this.blob = blob;
+            this.algorithm = algorithm;
+            this.comment = comment;
+        }
+
+        public boolean setPassphrase( final byte[] passphrase )
+            throws JSchException
+        {
+            return true;
+        }
+
+        public byte[] getPublicKeyBlob()
+        {
+            return blob;
+        }
+
+        public byte[] getSignature( final byte[] data )
+        {
+            try
+            {
+                return sign( blob, data );
+            }
+            catch ( final IOException e )
+            {
+                LOGGER.warn( "ssh-agent failed to sign with key: " + comment + ": " + e.getMessage() );
+                return null;
+            }
+        }
+
+        public boolean decrypt()
+        {
+            return true;
+        }
+
+        public String getAlgName()
+        {
+            return algorithm;
+        }
+
+        public String getName()
+        {
+            return comment;
+        }
+
+        public boolean isEncrypted()
+        {
+            return false;
+        }
+
+        public void clear()
+        {
+        }
+    }
+
+}
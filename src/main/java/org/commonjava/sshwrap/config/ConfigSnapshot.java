@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.config;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Parsed configuration (the host table and the known_hosts content) saved in a binary form that loads without
+ * parsing, for short-lived processes that would otherwise re-read a large config on every start.
+ * <p>
+ * A snapshot records the path, size and modification time of each file it was built from, and is only used while
+ * they all still match; otherwise it is rebuilt. It is read through a memory mapping and written to a temporary file
+ * that then replaces the old snapshot, so a concurrent reader never sees a partial one.
+ * </p>
+ */
+final class ConfigSnapshot
+{
+
+    private static final Logger LOGGER = Logger.getLogger( ConfigSnapshot.class );
+
+    private static final int MAGIC = 0x53534857;
+
+    private static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private final Map<String, Host> hosts;
+
+    private final byte[] knownHosts;
+
+    ConfigSnapshot( final Map<String, Host> hosts, final byte[] knownHosts )
+    {
+        this.hosts = hosts;
+        this.knownHosts = knownHosts;
+    }
+
+    Map<String, Host> getHosts()
+    {
+        return hosts;
+    }
+
+    byte[] getKnownHosts()
+    {
+        return knownHosts;
+    }
+
+    /**
+     * @return the snapshot, or null if it doesn't exist, is unreadable, or is older than any of the given sources.
+     */
+    static ConfigSnapshot read( final File snapshot, final File... sources )
+    {
+        if ( !snapshot.isFile() )
+        {
+            return null;
+        }
+
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile( snapshot, "r" );
+            final FileChannel channel = file.getChannel();
+            final MappedByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+
+            if ( buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getInt() != sources.length )
+            {
+                return null;
+            }
+
+            for ( final File source : sources )
+            {
+                if ( !source.getAbsolutePath()
+                            .equals( readString( buf ) ) || buf.getLong() != length( source )
+                    || buf.getLong() != source.lastModified() )
+                {
+                    return null;
+                }
+            }
+
+            // each entry starts with at least its name's length.
+            final int count = readSize( buf, 4 );
+            final Map<String, Host> hosts = new LinkedHashMap<String, Host>( count * 2 );
+            for ( int i = 0; i < count; i++ )
+            {
+                hosts.put( readString( buf ), readHost( buf ) );
+            }
+
+            final byte[] knownHosts = new byte[readSize( buf, 1 )];
+            buf.get( knownHosts );
+
+            if ( buf.hasRemaining() )
+            {
+                LOGGER.debug( "Ignoring corrupt configuration snapshot: " + snapshot );
+                return null;
+            }
+
+            return new ConfigSnapshot( hosts, knownHosts );
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.debug( "Ignoring unreadable configuration snapshot: " + snapshot + ": " + e.getMessage() );
+            return null;
+        }
+        catch ( final BufferUnderflowException e )
+        {
+            LOGGER.debug( "Ignoring truncated or corrupt configuration snapshot: " + snapshot );
+            return null;
+        }
+        finally
+        {
+            if ( file != null )
+            {
+                try
+                {
+                    // the mapping stays valid after the file is closed.
+                    file.close();
+                }
+                catch ( final IOException e )
+                {
+                    // nothing left to read from it anyway.
+                }
+            }
+        }
+    }
+
+    /**
+     * Save this snapshot, recording the current state of the given sources.
+     */
+    void write( final File snapshot, final File... sources )
+        throws IOException
+    {
+        final File dir = snapshot.getAbsoluteFile()
+                                 .getParentFile();
+        if ( dir != null && !dir.isDirectory() && !dir.mkdirs() )
+        {
+            throw new IOException( "Cannot create directory: " + dir );
+        }
+
+        final File tmp = File.createTempFile( snapshot.getName(), ".tmp", dir );
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( sources.length );
+            for ( final File source : sources )
+            {
+                writeString( out, source.getAbsolutePath() );
+                out.writeLong( length( source ) );
+                out.writeLong( source.lastModified() );
+            }
+
+            out.writeInt( hosts.size() );
+            for ( final Map.Entry<String, Host> e : hosts.entrySet() )
+            {
+                writeString( out, e.getKey() );
+                writeHost( out, e.getValue() );
+            }
+
+            out.writeInt( knownHosts.length );
+            out.write( knownHosts );
+            out.close();
+
+            // renameTo won't replace an existing file everywhere.
+            if ( !tmp.renameTo( snapshot ) && ( !snapshot.delete() || !tmp.renameTo( snapshot ) ) )
+            {
+                throw new IOException( "Cannot replace: " + snapshot );
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly( out );
+            tmp.delete();
+        }
+    }
+
+    private static long length( final File source )
+    {
+        return source.isFile() ? source.length() : -1;
+    }
+
+    private static void writeHost( final DataOutputStream out, final Host h )
+        throws IOException
+    {
+        out.writeBoolean( h.isPatternsApplied() );
+        writeString( out, h.getHostName() );
+        out.writeInt( h.getPort() );
+        writeString( out, h.getIdentityFile() == null ? null : h.getIdentityFile()
+                                                               .getPath() );
+        writeString( out, h.getUser() );
+        writeString( out, h.getPreferredAuthentications() );
+        writeBoolean( out, h.getBatchMode() );
+        writeString( out, h.getStrictHostKeyChecking() );
+        writeString( out, h.getProxyJump() );
+        writeString( out, h.getProxyCommand() );
+        writeString( out, h.getControlMaster() );
+        writeString( out, h.getControlPath() );
+        out.writeInt( h.getServerAliveInterval() );
+        out.writeInt( h.getServerAliveCountMax() );
+        out.writeInt( h.getConnectTimeout() );
+        writeString( out, h.getCiphers() );
+        writeString( out, h.getMacs() );
+        writeString( out, h.getKexAlgorithms() );
+        writeString( out, h.getHostKeyAlgorithms() );
+        writeBoolean( out, h.getCompression() );
+        out.writeInt( h.getCompressionLevel() );
+        out.writeInt( h.getChannelWindowSize() );
+        out.writeInt( h.getChannelPacketSize() );
+        writeBoolean( out, h.getIdentitiesOnly() );
+        writeString( out, h.getIdentityAgent() );
+
+        out.writeInt( h.getLocalForwards()
+                       .size() );
+        for ( final LocalForward f : h.getLocalForwards() )
+        {
+            writeString( out, f.getLocalAddress() );
+            out.writeInt( f.getLocalPort() );
+            writeString( out, f.getRemoteAddress() );
+            out.writeInt( f.getRemotePort() );
+        }
+
+        out.writeInt( h.getRemoteForwards()
+                       .size() );
+        for ( final RemoteForward f : h.getRemoteForwards() )
+        {
+            writeString( out, f.getLocalAddress() );
+            out.writeInt( f.getLocalPort() );
+            writeString( out, f.getRemoteAddress() );
+            out.writeInt( f.getRemotePort() );
+        }
+    }
+
+    private static Host readHost( final ByteBuffer buf )
+    {
+        final Host h = new Host();
+        h.setPatternsApplied( buf.get() != 0 );
+        h.setHostName( readString( buf ) );
+        h.setPort( buf.getInt() );
+        final String identityFile = readString( buf );
+        h.setIdentityFile( identityFile == null ? null : new File( identityFile ) );
+        h.setUser( readString( buf ) );
+        h.setPreferredAuthentications( readString( buf ) );
+        h.setBatchMode( readBoolean( buf ) );
+        h.setStrictHostKeyChecking( readString( buf ) );
+        h.setProxyJump( readString( buf ) );
+        h.setProxyCommand( readString( buf ) );
+        h.setControlMaster( readString( buf ) );
+        h.setControlPath( readString( buf ) );
+        h.setServerAliveInterval( buf.getInt() );
+        h.setServerAliveCountMax( buf.getInt() );
+        h.setConnectTimeout( buf.getInt() );
+        h.setCiphers( readString( buf ) );
+        h.setMacs( readString( buf ) );
+        h.setKexAlgorithms( readString( buf ) );
+        h.setHostKeyAlgorithms( readString( buf ) );
+        h.setCompression( readBoolean( buf ) );
+        h.setCompressionLevel( buf.getInt() );
+        h.setChannelWindowSize( buf.getInt() );
+        h.setChannelPacketSize( buf.getInt() );
+        h.setIdentitiesOnly( readBoolean( buf ) );
+        h.setIdentityAgent( readString( buf ) );
+
+        // a forward is at least two string lengths and two ports.
+        for ( int i = readSize( buf, 16 ); i > 0; i-- )
+        {
+            h.addLocalForward( new LocalForward( readString( buf ), buf.getInt(), readString( buf ), buf.getInt() ) );
+        }
+
+        for ( int i = readSize( buf, 16 ); i > 0; i-- )
+        {
+            h.addRemoteForward( new RemoteForward( readString( buf ), buf.getInt(), readString( buf ), buf.getInt() ) );
+        }
+
+        return h;
+    }
+
+    private static void writeString( final DataOutputStream out, final String s )
+        throws IOException
+    {
+        if ( s == null )
+        {
+            out.writeInt( -1 );
+            return;
+        }
+
+        final byte[] bytes = s.getBytes( UTF8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    private static String readString( final ByteBuffer buf )
+    {
+        final int length = buf.getInt();
+        if ( length == -1 )
+        {
+            return null;
+        }
+
+        if ( length < 0 || length > buf.remaining() )
+        {
+            throw new BufferUnderflowException();
+        }
+
+        final byte[] bytes = new byte[length];
+        buf.get( bytes );
+        return new String( bytes, UTF8 );
+    }
+
+    /**
+     * Read a count or length, and check it against what is left of the snapshot, so that a corrupt one can't cause a
+     * huge allocation.
+     *
+     * @param minBytesEach Fewest bytes each counted item takes up.
+     * @throws BufferUnderflowException if the size is negative, or more items than the rest of the snapshot can hold.
+     */
+    private static int readSize( final ByteBuffer buf, final int minBytesEach )
+    {
+        final int size = buf.getInt();
+        if ( size < 0 || size > buf.remaining() / minBytesEach )
+        {
+            throw new BufferUnderflowException();
+        }
+
+        return size;
+    }
+
+    private static void writeBoolean( final DataOutputStream out, final Boolean b )
+        throws IOException
+    {
+        out.writeByte( b == null ? -1 : b ? 1 : 0 );
+    }
+
+    private static Boolean readBoolean( final ByteBuffer buf )
+    {
+        final byte b = buf.get();
+        return b < 0 ? null : Boolean.valueOf( b != 0 );
+    }
+
+}
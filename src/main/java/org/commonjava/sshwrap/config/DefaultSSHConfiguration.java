@@ -30,16 +30,18 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.commonjava.sshwrap.io.BufferPool;
 
 /**
  * Forked from git://egit.eclipse.org/jgit.git@94207f0a43a44261b8170d3cdba3028059775d9d Simple configuration parser for
@@ -51,6 +53,8 @@ import org.apache.commons.lang.StringUtils;
 public class DefaultSSHConfiguration
     implements SSHConfiguration
 {
+    private static final Logger LOGGER = Logger.getLogger( DefaultSSHConfiguration.class );
+
     /** IANA assigned port number for SSH. */
     static final int SSH_PORT = 22;
 
@@ -63,7 +67,12 @@ public class DefaultSSHConfiguration
     /** Cached entries read out of the configuration file. */
     private Map<String, Host> hosts;
 
-    private byte[] knownHostsBuffer;
+    private volatile byte[] knownHostsBuffer;
+
+    private final ReentrantLock knownHostsLock = new ReentrantLock();
+
+    /** Guards {@link #hosts} and the entries in it, which lookup() completes and adds to. */
+    private final ReentrantLock hostsLock = new ReentrantLock();
 
     /**
      * Obtain the user's configuration data.
@@ -100,6 +109,42 @@ public class DefaultSSHConfiguration
         privateKeys = initPrivateKeys( sshDir );
     }
 
+    private DefaultSSHConfiguration( final File sshDir, final File snapshot )
+    {
+        configFile = new File( sshDir, "config" );
+        knownHosts = new File( sshDir, "known_hosts" );
+        privateKeys = initPrivateKeys( sshDir );
+
+        final ConfigSnapshot saved = ConfigSnapshot.read( snapshot, configFile, knownHosts );
+        if ( saved != null )
+        {
+            hosts = saved.getHosts();
+            knownHostsBuffer = saved.getKnownHosts();
+            return;
+        }
+
+        hosts = parseHosts();
+        try
+        {
+            knownHostsBuffer = readKnownHosts();
+            new ConfigSnapshot( hosts, knownHostsBuffer ).write( snapshot, configFile, knownHosts );
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.warn( "Failed to save configuration snapshot: " + snapshot + ". Reason: " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Like {@link #DefaultSSHConfiguration(File)}, but loads the parsed configuration from the given snapshot file
+     * while the config and known_hosts files are unchanged since it was saved, and (re)saves it when they have
+     * changed. Suited to short-lived processes, which would otherwise parse the same files on every start.
+     */
+    public static DefaultSSHConfiguration withSnapshot( final File sshDir, final File snapshot )
+    {
+        return new DefaultSSHConfiguration( sshDir, snapshot );
+    }
+
     /**
      * Obtain the user's configuration data.
      * <p>
@@ -126,34 +171,55 @@ public class DefaultSSHConfiguration
     }
 
     @Override
-    public synchronized InputStream getKnownHosts()
+    public InputStream getKnownHosts()
         throws IOException
     {
-        if ( knownHostsBuffer == null )
+        // read on every connect; once loaded, don't make concurrent connects queue up for it.
+        byte[] buffer = knownHostsBuffer;
+        if ( buffer == null )
         {
-            if ( knownHosts != null && knownHosts.exists() && knownHosts.canRead() )
+            knownHostsLock.lock();
+            try
             {
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                FileInputStream fis = null;
-                try
+                buffer = knownHostsBuffer;
+                if ( buffer == null )
                 {
-                    fis = new FileInputStream( knownHosts );
-                    IOUtils.copy( fis, baos );
+                    buffer = readKnownHosts();
+                    knownHostsBuffer = buffer;
                 }
-                finally
-                {
-                    IOUtils.closeQuietly( fis );
-                }
-
-                knownHostsBuffer = baos.toByteArray();
             }
-            else
+            finally
             {
-                knownHostsBuffer = new byte[0];
+                knownHostsLock.unlock();
             }
         }
 
-        return new ByteArrayInputStream( knownHostsBuffer );
+        return new ByteArrayInputStream( buffer );
+    }
+
+    private byte[] readKnownHosts()
+        throws IOException
+    {
+        if ( knownHosts == null || !knownHosts.exists() || !knownHosts.canRead() )
+        {
+            return new byte[0];
+        }
+
+        // the file's size is only a hint: it may change while being read.
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream( (int) knownHosts.length() );
+        FileInputStream fis = null;
+        try
+        {
+            fis = new FileInputStream( knownHosts );
+            BufferPool.getSharedInstance()
+                      .copy( fis, baos );
+        }
+        finally
+        {
+            IOUtils.closeQuietly( fis );
+        }
+
+        return baos.toByteArray();
     }
 
     /**
@@ -164,46 +230,56 @@ public class DefaultSSHConfiguration
     @Override
     public Host lookup( final String hostName )
     {
-        boolean isNew = false;
-        Host h = hosts.get( hostName );
-        if ( h == null )
+        hostsLock.lock();
+        try
         {
-            isNew = true;
-            h = new Host();
-        }
+            boolean isNew = false;
+            Host h = hosts.get( hostName );
+            if ( h == null )
+            {
+                isNew = true;
+                h = new Host();
+            }
 
-        if ( h.isPatternsApplied() )
-        {
-            return h;
-        }
+            if ( h.isPatternsApplied() )
+            {
+                return h;
+            }
 
-        if ( h.getHostName() == null )
-        {
-            h.setHostName( hostName );
-        }
+            if ( h.getHostName() == null )
+            {
+                h.setHostName( hostName );
+            }
 
-        if ( h.getUser() == null )
-        {
-            h.setUser( userName() );
-        }
+            if ( h.getUser() == null )
+            {
+                h.setUser( userName() );
+            }
 
-        if ( h.getPort() < 1 )
-        {
-            h.setPort( SSH_PORT );
-        }
+            if ( h.getPort() < 1 )
+            {
+                h.setPort( SSH_PORT );
+            }
+
+            h.setPatternsApplied( true );
 
-        h.setPatternsApplied( true );
+            if ( isNew )
+            {
+                hosts.put( hostName, h );
+            }
 
-        if ( isNew )
+            return h;
+        }
+        finally
         {
-            hosts.put( hostName, h );
+            hostsLock.unlock();
         }
-
-        return h;
     }
 
-    private synchronized Map<String, Host> parseHosts()
+    private Map<String, Host> parseHosts()
     {
+        // lookup() caches the hosts it creates here, so this must be writable even without a config file.
+        Map<String, Host> hosts = new LinkedHashMap<String, Host>();
         if ( configFile.exists() && configFile.canRead() )
         {
             FileInputStream in = null;
@@ -214,7 +290,7 @@ public class DefaultSSHConfiguration
             }
             catch ( final IOException err )
             {
-                hosts = Collections.emptyMap();
+                // fall back to no configured hosts.
             }
             finally
             {
@@ -338,6 +414,27 @@ public class DefaultSSHConfiguration
                     }
                 }
             }
+            else if ( StringUtils.equalsIgnoreCase( "IdentitiesOnly", keyword ) )
+            {
+                for ( final Host c : current )
+                {
+                    if ( c.getIdentitiesOnly() == null )
+                    {
+                        c.setIdentitiesOnly( yesno( dequote( argValue ) ) );
+                    }
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "IdentityAgent", keyword ) )
+            {
+                final String value = dequote( argValue );
+                for ( final Host c : current )
+                {
+                    if ( c.getIdentityAgent() == null )
+                    {
+                        c.setIdentityAgent( value );
+                    }
+                }
+            }
             else if ( StringUtils.equalsIgnoreCase( "StrictHostKeyChecking", keyword ) )
             {
                 final String value = dequote( argValue );
@@ -349,6 +446,198 @@ public class DefaultSSHConfiguration
                     }
                 }
             }
+            else if ( StringUtils.equalsIgnoreCase( "ProxyJump", keyword ) )
+            {
+                final String value = nows( dequote( argValue ) );
+                for ( final Host c : current )
+                {
+                    if ( c.getProxyJump() == null )
+                    {
+                        c.setProxyJump( value );
+                    }
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "ProxyCommand", keyword ) )
+            {
+                final String value = dequote( argValue );
+                for ( final Host c : current )
+                {
+                    if ( c.getProxyCommand() == null )
+                    {
+                        c.setProxyCommand( value );
+                    }
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "ControlMaster", keyword ) )
+            {
+                final String value = dequote( argValue ).toLowerCase();
+                for ( final Host c : current )
+                {
+                    if ( c.getControlMaster() == null )
+                    {
+                        c.setControlMaster( value );
+                    }
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "ControlPath", keyword ) )
+            {
+                final String value = dequote( argValue );
+                for ( final Host c : current )
+                {
+                    if ( c.getControlPath() == null )
+                    {
+                        c.setControlPath( value );
+                    }
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "ServerAliveInterval", keyword ) )
+            {
+                try
+                {
+                    final int interval = Integer.parseInt( dequote( argValue ) );
+                    for ( final Host c : current )
+                    {
+                        if ( c.getServerAliveInterval() < 1 )
+                        {
+                            c.setServerAliveInterval( interval );
+                        }
+                    }
+                }
+                catch ( final NumberFormatException nfe )
+                {
+                    // Bad interval. Don't set it.
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "ServerAliveCountMax", keyword ) )
+            {
+                try
+                {
+                    final int count = Integer.parseInt( dequote( argValue ) );
+                    for ( final Host c : current )
+                    {
+                        if ( c.getServerAliveCountMax() < 1 )
+                        {
+                            c.setServerAliveCountMax( count );
+                        }
+                    }
+                }
+                catch ( final NumberFormatException nfe )
+                {
+                    // Bad count. Don't set it.
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "ConnectTimeout", keyword ) )
+            {
+                try
+                {
+                    final int timeout = Integer.parseInt( dequote( argValue ) );
+                    for ( final Host c : current )
+                    {
+                        if ( c.getConnectTimeout() < 1 )
+                        {
+                            c.setConnectTimeout( timeout );
+                        }
+                    }
+                }
+                catch ( final NumberFormatException nfe )
+                {
+                    // Bad timeout. Don't set it.
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "Ciphers", keyword ) )
+            {
+                final String value = nows( dequote( argValue ) );
+                for ( final Host c : current )
+                {
+                    if ( c.getCiphers() == null )
+                    {
+                        c.setCiphers( value );
+                    }
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "MACs", keyword ) )
+            {
+                final String value = nows( dequote( argValue ) );
+                for ( final Host c : current )
+                {
+                    if ( c.getMacs() == null )
+                    {
+                        c.setMacs( value );
+                    }
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "KexAlgorithms", keyword ) )
+            {
+                final String value = nows( dequote( argValue ) );
+                for ( final Host c : current )
+                {
+                    if ( c.getKexAlgorithms() == null )
+                    {
+                        c.setKexAlgorithms( value );
+                    }
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "HostKeyAlgorithms", keyword ) )
+            {
+                final String value = nows( dequote( argValue ) );
+                for ( final Host c : current )
+                {
+                    if ( c.getHostKeyAlgorithms() == null )
+                    {
+                        c.setHostKeyAlgorithms( value );
+                    }
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "Compression", keyword ) )
+            {
+                for ( final Host c : current )
+                {
+                    if ( c.getCompression() == null )
+                    {
+                        c.setCompression( yesno( dequote( argValue ) ) );
+                    }
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "CompressionLevel", keyword ) )
+            {
+                try
+                {
+                    final int level = Integer.parseInt( dequote( argValue ) );
+                    for ( final Host c : current )
+                    {
+                        if ( c.getCompressionLevel() < 1 )
+                        {
+                            c.setCompressionLevel( level );
+                        }
+                    }
+                }
+                catch ( final NumberFormatException nfe )
+                {
+                    // Bad level. Don't set it.
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "ChannelWindowSize", keyword ) )
+            {
+                final int size = parseSize( dequote( argValue ) );
+                for ( final Host c : current )
+                {
+                    if ( c.getChannelWindowSize() < 1 )
+                    {
+                        c.setChannelWindowSize( size );
+                    }
+                }
+            }
+            else if ( StringUtils.equalsIgnoreCase( "ChannelPacketSize", keyword ) )
+            {
+                final int size = parseSize( dequote( argValue ) );
+                for ( final Host c : current )
+                {
+                    if ( c.getChannelPacketSize() < 1 )
+                    {
+                        c.setChannelPacketSize( size );
+                    }
+                }
+            }
             else if ( StringUtils.equalsIgnoreCase( "LocalForward", keyword ) )
             {
                 final String[] argParts = argValue.split( ":" );
@@ -411,6 +700,51 @@ public class DefaultSSHConfiguration
         return value;
     }
 
+    /**
+     * Parse a byte count with an optional K, M or G suffix (as in RekeyLimit).
+     * 
+     * @return the size, or 0 if the value isn't a valid, positive size.
+     */
+    private static int parseSize( final String value )
+    {
+        if ( value.length() == 0 )
+        {
+            return 0;
+        }
+
+        long multiplier = 1;
+        String digits = value;
+        switch ( Character.toUpperCase( value.charAt( value.length() - 1 ) ) )
+        {
+            case 'K':
+                multiplier = 1024;
+                break;
+            case 'M':
+                multiplier = 1024 * 1024;
+                break;
+            case 'G':
+                multiplier = 1024 * 1024 * 1024;
+                break;
+            default:
+        }
+
+        if ( multiplier > 1 )
+        {
+            digits = value.substring( 0, value.length() - 1 );
+        }
+
+        try
+        {
+            final long size = Long.parseLong( digits ) * multiplier;
+            return size > 0 && size <= Integer.MAX_VALUE ? (int) size : 0;
+        }
+        catch ( final NumberFormatException nfe )
+        {
+            // Bad size. Don't set it.
+            return 0;
+        }
+    }
+
     private static String nows( final String value )
     {
         final StringBuilder b = new StringBuilder();
@@ -433,7 +767,7 @@ public class DefaultSSHConfiguration
         return Boolean.FALSE;
     }
 
-    private File toFile( final String path )
+    static File toFile( final String path )
     {
         if ( path.startsWith( "~/" ) )
         {
@@ -447,19 +781,19 @@ public class DefaultSSHConfiguration
         return new File( userHome(), path );
     }
 
-    private Set<File> initPrivateKeys( final File sshDir )
+    private static Set<File> initPrivateKeys( final File sshDir )
     {
         final Set<File> privateKeys = new HashSet<File>();
         privateKeys.add( new File( sshDir, "identity" ) );
         privateKeys.add( new File( sshDir, "id_rsa" ) );
         privateKeys.add( new File( sshDir, "id_dsa" ) );
 
-        validatePrivateKeys();
+        validatePrivateKeys( privateKeys );
 
         return privateKeys;
     }
 
-    private void validatePrivateKeys()
+    private static void validatePrivateKeys( final Set<File> privateKeys )
     {
         for ( final Iterator<File> it = privateKeys.iterator(); it.hasNext(); )
         {
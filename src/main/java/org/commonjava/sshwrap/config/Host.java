@@ -31,10 +31,83 @@ public class Host
 
     private String strictHostKeyChecking;
 
+    private String proxyJump;
+
+    private String proxyCommand;
+
+    private String controlMaster;
+
+    private String controlPath;
+
+    private int serverAliveInterval;
+
+    private int connectTimeout;
+
+    private String ciphers;
+
+    private String macs;
+
+    private String kexAlgorithms;
+
+    private String hostKeyAlgorithms;
+
+    private Boolean compression;
+
+    private int compressionLevel;
+
+    private int channelWindowSize;
+
+    private int channelPacketSize;
+
+    private Boolean identitiesOnly;
+
+    private String identityAgent;
+
+    private int serverAliveCountMax;
+
     private Set<LocalForward> localForwards = new HashSet<LocalForward>();
 
     private Set<RemoteForward> remoteForwards = new HashSet<RemoteForward>();
 
+    public Host()
+    {
+    }
+
+    /**
+     * Create a detached copy of another host configuration, so it can be adjusted (for instance, routed through a
+     * different jump chain) without affecting the cached original.
+     */
+    public Host( final Host base )
+    {
+        patternsApplied = base.patternsApplied;
+        hostName = base.hostName;
+        port = base.port;
+        identityFile = base.identityFile;
+        user = base.user;
+        preferredAuthentications = base.preferredAuthentications;
+        batchMode = base.batchMode;
+        strictHostKeyChecking = base.strictHostKeyChecking;
+        proxyJump = base.proxyJump;
+        proxyCommand = base.proxyCommand;
+        controlMaster = base.controlMaster;
+        controlPath = base.controlPath;
+        serverAliveInterval = base.serverAliveInterval;
+        serverAliveCountMax = base.serverAliveCountMax;
+        connectTimeout = base.connectTimeout;
+        ciphers = base.ciphers;
+        macs = base.macs;
+        kexAlgorithms = base.kexAlgorithms;
+        hostKeyAlgorithms = base.hostKeyAlgorithms;
+        compression = base.compression;
+        compressionLevel = base.compressionLevel;
+        channelWindowSize = base.channelWindowSize;
+        channelPacketSize = base.channelPacketSize;
+        identitiesOnly = base.identitiesOnly;
+        identityAgent = base.identityAgent;
+        localForwards = new HashSet<LocalForward>( base.localForwards );
+        remoteForwards = new HashSet<RemoteForward>( base.remoteForwards );
+    }
+
     /**
      * @return the value StrictHostKeyChecking property, the valid values are "yes" (unknown hosts are not accepted),
      *         "no" (unknown hosts are always accepted), and "ask" (user should be asked before accepting the host)
@@ -94,6 +167,160 @@ public class Host
         return batchMode != null && batchMode.booleanValue();
     }
 
+    /**
+     * @return the comma-separated chain of jump hosts ([user@]host[:port]) to connect through, in order; null (or
+     *         "none") for a direct connection.
+     */
+    public String getProxyJump()
+    {
+        return proxyJump;
+    }
+
+    /**
+     * @return the command whose stdin/stdout should be used as the transport to this host, with %h, %p and %r not
+     *         yet expanded; null for a direct connection.
+     */
+    public String getProxyCommand()
+    {
+        return proxyCommand;
+    }
+
+    /**
+     * @return the ControlMaster mode: "yes" to share this connection with other processes, "auto" to use a shared
+     *         connection if one is listening (and otherwise share this one), "no" to only use an existing shared
+     *         connection; null if not configured.
+     */
+    public String getControlMaster()
+    {
+        return controlMaster;
+    }
+
+    /**
+     * @return path of the control file used to locate a shared connection, with %h, %p, %r, %l and %% not yet
+     *         expanded; null (or "none") if connection sharing is disabled.
+     */
+    public String getControlPath()
+    {
+        return controlPath;
+    }
+
+    /**
+     * @return seconds of inactivity after which a keepalive is sent to the server; 0 to disable keepalives.
+     */
+    public int getServerAliveInterval()
+    {
+        return serverAliveInterval;
+    }
+
+    /**
+     * @return number of unanswered keepalives after which the session is considered dead; 0 for the default (3).
+     */
+    public int getServerAliveCountMax()
+    {
+        return serverAliveCountMax;
+    }
+
+    /**
+     * @return seconds to wait for the TCP connection and SSH handshake (and for each channel to open) before giving
+     *         up; 0 to wait indefinitely.
+     */
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    /**
+     * @return the cipher list, comma-separated in order of preference. A leading '+' appends to the default list, '-'
+     *         removes from it and '^' moves to its front. Null to use the default list.
+     */
+    public String getCiphers()
+    {
+        return ciphers;
+    }
+
+    /**
+     * @return the MAC algorithm list, in the same format as {@link #getCiphers()}.
+     */
+    public String getMacs()
+    {
+        return macs;
+    }
+
+    /**
+     * @return the key exchange algorithm list, in the same format as {@link #getCiphers()}.
+     */
+    public String getKexAlgorithms()
+    {
+        return kexAlgorithms;
+    }
+
+    /**
+     * @return the host key algorithm list, in the same format as {@link #getCiphers()}.
+     */
+    public String getHostKeyAlgorithms()
+    {
+        return hostKeyAlgorithms;
+    }
+
+    /**
+     * @return true if zlib transport compression should be requested for this host connection.
+     */
+    public boolean isCompression()
+    {
+        return compression != null && compression.booleanValue();
+    }
+
+    public Boolean getCompression()
+    {
+        return compression;
+    }
+
+    /**
+     * @return the zlib compression level (1-9) to use when compression is enabled; 0 for the default (6).
+     */
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    /**
+     * @return the receive window (bytes) to advertise on each channel; 0 for JSch's default.
+     */
+    public int getChannelWindowSize()
+    {
+        return channelWindowSize;
+    }
+
+    /**
+     * @return the largest packet (bytes) the server may send on each channel; 0 for JSch's default.
+     */
+    public int getChannelPacketSize()
+    {
+        return channelPacketSize;
+    }
+
+    /**
+     * @return true if only configured identity files should be offered, even when an ssh-agent holds other keys.
+     */
+    public boolean isIdentitiesOnly()
+    {
+        return identitiesOnly != null && identitiesOnly.booleanValue();
+    }
+
+    public Boolean getIdentitiesOnly()
+    {
+        return identitiesOnly;
+    }
+
+    /**
+     * @return the ssh-agent socket to use instead of SSH_AUTH_SOCK; "none" to disable the agent, or null for the
+     *         environment's agent.
+     */
+    public String getIdentityAgent()
+    {
+        return identityAgent;
+    }
+
     public boolean isPatternsApplied()
     {
         return patternsApplied;
@@ -154,6 +381,91 @@ public class Host
         this.strictHostKeyChecking = strictHostKeyChecking;
     }
 
+    public void setProxyJump( final String proxyJump )
+    {
+        this.proxyJump = proxyJump;
+    }
+
+    public void setProxyCommand( final String proxyCommand )
+    {
+        this.proxyCommand = proxyCommand;
+    }
+
+    public void setControlMaster( final String controlMaster )
+    {
+        this.controlMaster = controlMaster;
+    }
+
+    public void setControlPath( final String controlPath )
+    {
+        this.controlPath = controlPath;
+    }
+
+    public void setServerAliveInterval( final int serverAliveInterval )
+    {
+        this.serverAliveInterval = serverAliveInterval;
+    }
+
+    public void setServerAliveCountMax( final int serverAliveCountMax )
+    {
+        this.serverAliveCountMax = serverAliveCountMax;
+    }
+
+    public void setConnectTimeout( final int connectTimeout )
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setCiphers( final String ciphers )
+    {
+        this.ciphers = ciphers;
+    }
+
+    public void setMacs( final String macs )
+    {
+        this.macs = macs;
+    }
+
+    public void setKexAlgorithms( final String kexAlgorithms )
+    {
+        this.kexAlgorithms = kexAlgorithms;
+    }
+
+    public void setHostKeyAlgorithms( final String hostKeyAlgorithms )
+    {
+        this.hostKeyAlgorithms = hostKeyAlgorithms;
+    }
+
+    public void setCompression( final Boolean compression )
+    {
+        this.compression = compression;
+    }
+
+    public void setCompressionLevel( final int compressionLevel )
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public void setChannelWindowSize( final int channelWindowSize )
+    {
+        this.channelWindowSize = channelWindowSize;
+    }
+
+    public void setChannelPacketSize( final int channelPacketSize )
+    {
+        this.channelPacketSize = channelPacketSize;
+    }
+
+    public void setIdentitiesOnly( final Boolean identitiesOnly )
+    {
+        this.identitiesOnly = identitiesOnly;
+    }
+
+    public void setIdentityAgent( final String identityAgent )
+    {
+        this.identityAgent = identityAgent;
+    }
+
     public void setLocalForwards( final Set<LocalForward> localForwards )
     {
         this.localForwards = localForwards;
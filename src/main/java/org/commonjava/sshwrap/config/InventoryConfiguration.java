@@ -0,0 +1,618 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Configuration for a large fleet, loaded from an inventory table rather than held as one {@link Host} per host.
+ * <p>
+ * Each host is a row of a few columns: name, address, user, port, identity file, jump chain, and profile. Names and
+ * addresses are packed into one byte array; users, identity files and jump chains are stored once each in a
+ * dictionary that rows index into; everything else comes from the row's profile, a {@link Host} template shared by
+ * every row that names it. No per-host objects are kept: {@link #lookup(String)} builds a fresh {@link Host} from the
+ * row each time. {@link #getEstimatedSize()} reports what the table occupies.
+ * </p>
+ * <p>
+ * Names not in the inventory, identities and known hosts come from a base configuration, usually a
+ * {@link DefaultSSHConfiguration}.
+ * </p>
+ */
+public final class InventoryConfiguration
+    implements SSHConfiguration
+{
+
+    /** Columns an inventory file may have, in any order; only name is required. */
+    public static final List<String> COLUMNS =
+        Arrays.asList( "name", "hostname", "user", "port", "identityfile", "proxyjump", "profile" );
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final int NONE = -1;
+
+    private final SSHConfiguration base;
+
+    private final int size;
+
+    /** UTF-8 names and addresses, back to back. */
+    private final byte[] text;
+
+    private final int[] nameStart;
+
+    private final int[] nameLength;
+
+    /** Start of the address in {@link #text}, or NONE if the name is the address. */
+    private final int[] addressStart;
+
+    private final int[] addressLength;
+
+    private final char[] port;
+
+    private final int[] user;
+
+    private final int[] identityFile;
+
+    private final int[] proxyJump;
+
+    private final int[] profile;
+
+    private final String[] dictionary;
+
+    private final Host[] profiles;
+
+    /** Open-addressing index of row + 1 by name hash; 0 is an empty slot. */
+    private final int[] index;
+
+    private InventoryConfiguration( final Builder builder )
+    {
+        base = builder.base;
+        size = builder.size;
+        text = Arrays.copyOf( builder.text, builder.textLength );
+        nameStart = Arrays.copyOf( builder.nameStart, size );
+        nameLength = Arrays.copyOf( builder.nameLength, size );
+        addressStart = Arrays.copyOf( builder.addressStart, size );
+        addressLength = Arrays.copyOf( builder.addressLength, size );
+        port = Arrays.copyOf( builder.port, size );
+        user = Arrays.copyOf( builder.user, size );
+        identityFile = Arrays.copyOf( builder.identityFile, size );
+        proxyJump = Arrays.copyOf( builder.proxyJump, size );
+        profile = Arrays.copyOf( builder.profile, size );
+        dictionary = builder.dictionary.toArray( new String[builder.dictionary.size()] );
+        profiles = builder.profiles.toArray( new Host[builder.profiles.size()] );
+
+        int slots = 1;
+        while ( slots < size * 2 )
+        {
+            slots <<= 1;
+        }
+
+        index = new int[slots];
+        for ( int row = 0; row < size; row++ )
+        {
+            final int slot = find( text, nameStart[row], nameLength[row] );
+
+            // a repeated name replaces the earlier row.
+            index[slot] = row + 1;
+        }
+    }
+
+    @Override
+    public Host lookup( final String hostName )
+    {
+        final byte[] name = hostName.getBytes( UTF8 );
+        final int row = index[find( name, 0, name.length )] - 1;
+        if ( row < 0 )
+        {
+            return base.lookup( hostName );
+        }
+
+        final Host h = new Host( profiles[profile[row]] );
+        h.setHostName( addressStart[row] == NONE ? hostName : new String( text, addressStart[row],
+                                                                          addressLength[row], UTF8 ) );
+
+        if ( user[row] != NONE )
+        {
+            h.setUser( dictionary[user[row]] );
+        }
+        else if ( h.getUser() == null )
+        {
+            h.setUser( DefaultSSHConfiguration.userName() );
+        }
+
+        if ( port[row] > 0 )
+        {
+            h.setPort( port[row] );
+        }
+        else if ( h.getPort() < 1 )
+        {
+            h.setPort( DefaultSSHConfiguration.SSH_PORT );
+        }
+
+        if ( identityFile[row] != NONE )
+        {
+            h.setIdentityFile( DefaultSSHConfiguration.toFile( dictionary[identityFile[row]] ) );
+        }
+
+        if ( proxyJump[row] != NONE )
+        {
+            h.setProxyJump( dictionary[proxyJump[row]] );
+        }
+
+        h.setPatternsApplied( true );
+
+        return h;
+    }
+
+    @Override
+    public Set<File> getIdentities()
+    {
+        return base.getIdentities();
+    }
+
+    @Override
+    public InputStream getKnownHosts()
+        throws IOException
+    {
+        return base.getKnownHosts();
+    }
+
+    /**
+     * @return true if the given name is in the inventory (rather than left to the base configuration).
+     */
+    public boolean contains( final String hostName )
+    {
+        final byte[] name = hostName.getBytes( UTF8 );
+        return index[find( name, 0, name.length )] != 0;
+    }
+
+    /**
+     * @return the number of rows loaded.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return approximately how many bytes of heap the inventory occupies, not counting the profiles or the base
+     *         configuration.
+     */
+    public long getEstimatedSize()
+    {
+        // array headers are 16 bytes; strings are 40 bytes plus two per character, the worst case across JVMs.
+        long bytes = 16L * 12 + text.length + 4L * index.length + 2L * size;
+        bytes += 4L * size * 8;
+        for ( final String s : dictionary )
+        {
+            bytes += 4 + 40 + 2L * s.length();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return {@link #getEstimatedSize()} divided between the rows.
+     */
+    public double getBytesPerHost()
+    {
+        return size == 0 ? 0 : getEstimatedSize() / (double) size;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "InventoryConfiguration [hosts=" + size + ", distinct values=" + dictionary.length + ", profiles="
+            + profiles.length + ", estimated bytes=" + getEstimatedSize() + "]";
+    }
+
+    /**
+     * @return the slot holding the given name, or the empty slot where it would go.
+     */
+    private int find( final byte[] name, final int off, final int len )
+    {
+        int h = 0;
+        for ( int i = off; i < off + len; i++ )
+        {
+            h = 31 * h + name[i];
+        }
+
+        // spread the bits, since the table size is a power of two.
+        h ^= ( h >>> 16 );
+
+        final int mask = index.length - 1;
+        int slot = h & mask;
+        while ( index[slot] != 0 && !nameEquals( index[slot] - 1, name, off, len ) )
+        {
+            slot = ( slot + 1 ) & mask;
+        }
+
+        return slot;
+    }
+
+    private boolean nameEquals( final int row, final byte[] name, final int off, final int len )
+    {
+        if ( nameLength[row] != len )
+        {
+            return false;
+        }
+
+        final int start = nameStart[row];
+        for ( int i = 0; i < len; i++ )
+        {
+            if ( text[start + i] != name[off + i] )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Collects inventory rows, from files or one at a time, into an {@link InventoryConfiguration}.
+     */
+    public static final class Builder
+    {
+        private final SSHConfiguration base;
+
+        private final Map<String, Integer> dictionaryIndex = new HashMap<String, Integer>();
+
+        private final List<String> dictionary = new ArrayList<String>();
+
+        private final Map<String, Integer> profileIndex = new HashMap<String, Integer>();
+
+        private final List<Host> profiles = new ArrayList<Host>();
+
+        private int size;
+
+        private byte[] text = new byte[4096];
+
+        private int textLength;
+
+        private int[] nameStart = new int[256];
+
+        private int[] nameLength = new int[256];
+
+        private int[] addressStart = new int[256];
+
+        private int[] addressLength = new int[256];
+
+        private char[] port = new char[256];
+
+        private int[] user = new int[256];
+
+        private int[] identityFile = new int[256];
+
+        private int[] proxyJump = new int[256];
+
+        private int[] profile = new int[256];
+
+        /**
+         * @param base Supplies identities, known hosts, and the configuration of names not in the inventory.
+         */
+        public Builder( final SSHConfiguration base )
+        {
+            this.base = base;
+            profiles.add( new Host() );
+        }
+
+        /**
+         * Set the configuration shared by rows without a profile.
+         */
+        public Builder withDefaults( final Host defaults )
+        {
+            profiles.set( 0, new Host( defaults ) );
+            return this;
+        }
+
+        /**
+         * Register a template for rows whose profile column names it. Rows override its address, user, port,
+         * identity file and jump chain where they give them.
+         */
+        public Builder withProfile( final String name, final Host template )
+        {
+            final Integer existing = profileIndex.get( name );
+            if ( existing != null )
+            {
+                profiles.set( existing, new Host( template ) );
+            }
+            else
+            {
+                profileIndex.put( name, profiles.size() );
+                profiles.add( new Host( template ) );
+            }
+
+            return this;
+        }
+
+        /**
+         * Add one host.
+         *
+         * @param hostName Address to connect to; null if the name is the address.
+         * @param port 0 for the profile's port (or 22).
+         * @param profile Name of a registered profile; null for the defaults.
+         */
+        public Builder withHost( final String name, final String hostName, final String user, final int port,
+                                 final String identityFile, final String proxyJump, final String profile )
+        {
+            if ( name == null || name.length() == 0 )
+            {
+                throw new IllegalArgumentException( "Host name cannot be empty." );
+            }
+
+            if ( port < 0 || port > 65535 )
+            {
+                throw new IllegalArgumentException( "Invalid port: " + port + " for host: " + name );
+            }
+
+            int profileRow = 0;
+            if ( profile != null && profile.length() > 0 )
+            {
+                final Integer p = profileIndex.get( profile );
+                if ( p == null )
+                {
+                    throw new IllegalArgumentException( "Unknown profile: " + profile + " for host: " + name );
+                }
+                profileRow = p;
+            }
+
+            ensureRows( size + 1 );
+
+            nameStart[size] = textLength;
+            nameLength[size] = append( name );
+            if ( hostName == null || hostName.length() == 0 || hostName.equals( name ) )
+            {
+                addressStart[size] = NONE;
+                addressLength[size] = 0;
+            }
+            else
+            {
+                addressStart[size] = textLength;
+                addressLength[size] = append( hostName );
+            }
+
+            this.port[size] = (char) port;
+            this.user[size] = intern( user );
+            this.identityFile[size] = intern( identityFile );
+            this.proxyJump[size] = intern( proxyJump );
+            this.profile[size] = profileRow;
+            size++;
+
+            return this;
+        }
+
+        /**
+         * Add the hosts in a UTF-8 CSV file; see {@link #load(Reader)}.
+         */
+        public Builder load( final File csv )
+            throws IOException
+        {
+            Reader reader = null;
+            try
+            {
+                reader = new InputStreamReader( new FileInputStream( csv ), UTF8 );
+                return load( reader );
+            }
+            finally
+            {
+                IOUtils.closeQuietly( reader );
+            }
+        }
+
+        /**
+         * Add the hosts in CSV form. The first row names the columns (from {@link InventoryConfiguration#COLUMNS},
+         * in any order and case); each row after it is a host. Fields may be quoted, with "" for a quote. Blank lines
+         * and lines starting with # are skipped.
+         */
+        public Builder load( final Reader csv )
+            throws IOException
+        {
+            final BufferedReader br = new BufferedReader( csv );
+            int[] columns = null;
+            int lineNumber = 0;
+            String line;
+            while ( ( line = br.readLine() ) != null )
+            {
+                lineNumber++;
+                if ( line.trim()
+                         .length() == 0 || line.startsWith( "#" ) )
+                {
+                    continue;
+                }
+
+                final List<String> fields = split( line, lineNumber );
+                if ( columns == null )
+                {
+                    columns = header( fields, lineNumber );
+                    continue;
+                }
+
+                final String[] row = new String[COLUMNS.size()];
+                for ( int i = 0; i < fields.size() && i < columns.length; i++ )
+                {
+                    row[columns[i]] = fields.get( i );
+                }
+
+                try
+                {
+                    withHost( row[0], row[1], row[2], row[3] == null || row[3].length() == 0 ? 0
+                                    : Integer.parseInt( row[3] ), row[4], row[5], row[6] );
+                }
+                catch ( final IllegalArgumentException e )
+                {
+                    // NumberFormatException included.
+                    throw new IOException( "Line " + lineNumber + ": " + e.getMessage() );
+                }
+            }
+
+            return this;
+        }
+
+        public InventoryConfiguration create()
+        {
+            return new InventoryConfiguration( this );
+        }
+
+        private static int[] header( final List<String> fields, final int lineNumber )
+            throws IOException
+        {
+            final int[] columns = new int[fields.size()];
+            boolean named = false;
+            for ( int i = 0; i < columns.length; i++ )
+            {
+                columns[i] = COLUMNS.indexOf( fields.get( i )
+                                                    .toLowerCase() );
+                if ( columns[i] < 0 )
+                {
+                    throw new IOException( "Line " + lineNumber + ": unknown column: " + fields.get( i ) );
+                }
+                named |= columns[i] == 0;
+            }
+
+            if ( !named )
+            {
+                throw new IOException( "Line " + lineNumber + ": no name column." );
+            }
+
+            return columns;
+        }
+
+        private static List<String> split( final String line, final int lineNumber )
+            throws IOException
+        {
+            final List<String> fields = new ArrayList<String>();
+            final StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for ( int i = 0; i < line.length(); i++ )
+            {
+                final char c = line.charAt( i );
+                if ( quoted )
+                {
+                    if ( c != '"' )
+                    {
+                        field.append( c );
+                    }
+                    else if ( i + 1 < line.length() && line.charAt( i + 1 ) == '"' )
+                    {
+                        field.append( c );
+                        i++;
+                    }
+                    else
+                    {
+                        quoted = false;
+                    }
+                }
+                else if ( c == '"' )
+                {
+                    quoted = true;
+                }
+                else if ( c == ',' )
+                {
+                    fields.add( field.toString()
+                                     .trim() );
+                    field.setLength( 0 );
+                }
+                else
+                {
+                    field.append( c );
+                }
+            }
+
+            if ( quoted )
+            {
+                throw new IOException( "Line " + lineNumber + ": unterminated quote." );
+            }
+
+            fields.add( field.toString()
+                             .trim() );
+            return fields;
+        }
+
+        /**
+         * @return the dictionary index of the value, adding it if it's new; NONE for no value.
+         */
+        private int intern( final String value )
+        {
+            if ( value == null || value.length() == 0 )
+            {
+                return NONE;
+            }
+
+            Integer i = dictionaryIndex.get( value );
+            if ( i == null )
+            {
+                i = dictionary.size();
+                dictionary.add( value );
+                dictionaryIndex.put( value, i );
+            }
+
+            return i;
+        }
+
+        private int append( final String s )
+        {
+            final byte[] bytes = s.getBytes( UTF8 );
+            if ( textLength + bytes.length > text.length )
+            {
+                text = Arrays.copyOf( text, Math.max( text.length * 2, textLength + bytes.length ) );
+            }
+
+            System.arraycopy( bytes, 0, text, textLength, bytes.length );
+            textLength += bytes.length;
+
+            return bytes.length;
+        }
+
+        private void ensureRows( final int rows )
+        {
+            if ( rows <= nameStart.length )
+            {
+                return;
+            }
+
+            final int capacity = Math.max( rows, nameStart.length * 2 );
+            nameStart = Arrays.copyOf( nameStart, capacity );
+            nameLength = Arrays.copyOf( nameLength, capacity );
+            addressStart = Arrays.copyOf( addressStart, capacity );
+            addressLength = Arrays.copyOf( addressLength, capacity );
+            port = Arrays.copyOf( port, capacity );
+            user = Arrays.copyOf( user, capacity );
+            identityFile = Arrays.copyOf( identityFile, capacity );
+            proxyJump = Arrays.copyOf( proxyJump, capacity );
+            profile = Arrays.copyOf( profile, capacity );
+        }
+    }
+
+}
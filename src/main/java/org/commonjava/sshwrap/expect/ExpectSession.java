@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.expect;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.commonjava.sshwrap.ChannelType;
+import org.commonjava.sshwrap.ErrorCategory;
+import org.commonjava.sshwrap.SSHConnection;
+import org.commonjava.sshwrap.SSHWrapException;
+
+import com.jcraft.jsch.ChannelShell;
+
+/**
+ * Drives an interactive shell the way expect(1) does: wait for one of several prompts, send a response, repeat.
+ * <p>
+ * Output is matched by the session's own reader thread as it arrives, so a session costs no thread of its own while
+ * waiting, and each character is scanned once against the patterns being waited for (see {@link PatternSet}). Output
+ * that arrives while nothing is being waited for is held (up to a limit) and scanned by the next
+ * {@link #expect(PatternSet, long, TimeUnit)}.
+ * </p>
+ */
+public final class ExpectSession
+{
+
+    /** Most characters of unmatched output held, by default; older output is dropped, as expect's match_max. */
+    public static final int DEFAULT_MAX_BUFFER = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private static final int DECODE_CHARS = 4096;
+
+    private final SSHConnection connection;
+
+    private final ChannelShell channel;
+
+    private final Charset charset;
+
+    private final CharsetDecoder decoder;
+
+    private final OutputStream transcript;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    private OutputStream input;
+
+    /** Undecoded input, kept ready for writing; between chunks, it holds at most a partial character. */
+    private ByteBuffer pending = ByteBuffer.allocate( 0 );
+
+    private final CharBuffer decoded = CharBuffer.allocate( DECODE_CHARS );
+
+    private int maxBuffer = DEFAULT_MAX_BUFFER;
+
+    private boolean eof;
+
+    private PatternSet active;
+
+    private int state;
+
+    private int scanned;
+
+    private Match match;
+
+    private ExpectSession( final SSHConnection connection, final ChannelShell channel, final Charset charset,
+                           final OutputStream transcript )
+    {
+        this.connection = connection;
+        this.channel = channel;
+        this.charset = charset;
+        this.transcript = transcript;
+        this.decoder = charset.newDecoder()
+                              .onMalformedInput( CodingErrorAction.REPLACE )
+                              .onUnmappableCharacter( CodingErrorAction.REPLACE );
+    }
+
+    /**
+     * Open a shell (with a pseudo-terminal) on the given connection.
+     */
+    public static ExpectSession open( final SSHConnection connection, final long timeout, final TimeUnit unit )
+        throws SSHWrapException
+    {
+        return open( connection, UTF_8, null, timeout, unit );
+    }
+
+    /**
+     * Open a shell (with a pseudo-terminal) on the given connection.
+     *
+     * @param charset Encoding of the shell's input and output.
+     * @param transcript Receives a copy of all output, as it arrives; null for none. It is flushed, not closed, when
+     *            the shell ends.
+     * @param timeout Maximum time to wait for the shell to open; 0 to use the host's ConnectTimeout.
+     */
+    public static ExpectSession open( final SSHConnection connection, final Charset charset,
+                                      final OutputStream transcript, final long timeout, final TimeUnit unit )
+        throws SSHWrapException
+    {
+        final ChannelShell channel = (ChannelShell) connection.openChannel( ChannelType.shell );
+        final ExpectSession session = new ExpectSession( connection, channel, charset, transcript );
+
+        channel.setPty( true );
+        channel.setOutputStream( session.new Sink() );
+        try
+        {
+            session.input = channel.getOutputStream();
+            connection.connectChannel( channel, timeout, unit );
+        }
+        catch ( final IOException e )
+        {
+            channel.disconnect();
+            throw new SSHWrapException( "Failed to open shell input: %s", e, e.getMessage() );
+        }
+        catch ( final SSHWrapException e )
+        {
+            channel.disconnect();
+            throw e;
+        }
+
+        return session;
+    }
+
+    /**
+     * Hold at most this many characters of unmatched output.
+     */
+    public ExpectSession setMaxBuffer( final int maxBuffer )
+    {
+        lock.lock();
+        try
+        {
+            this.maxBuffer = Math.max( 1, maxBuffer );
+            trim();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        return this;
+    }
+
+    /**
+     * Wait for any of the given literal strings.
+     */
+    public Match expect( final long timeout, final TimeUnit unit, final String... literals )
+        throws SSHWrapException, InterruptedException
+    {
+        return expect( PatternSet.of( literals ), timeout, unit );
+    }
+
+    /**
+     * Wait for output matching any of the given patterns, consuming everything up to the end of the match.
+     *
+     * @param timeout Maximum time to wait; 0 to wait indefinitely.
+     * @throws SSHWrapException if nothing matches in time, or the shell ends first.
+     */
+    public Match expect( final PatternSet patterns, final long timeout, final TimeUnit unit )
+        throws SSHWrapException, InterruptedException
+    {
+        final long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos( timeout ) : 0;
+
+        lock.lock();
+        try
+        {
+            active = patterns;
+            state = 0;
+            scanned = 0;
+            match = null;
+            scan();
+
+            while ( match == null && !eof )
+            {
+                if ( deadline == 0 )
+                {
+                    changed.await();
+                }
+                else
+                {
+                    final long remaining = deadline - System.nanoTime();
+                    if ( remaining <= 0 )
+                    {
+                        throw new SSHWrapException( "Timed out waiting for any of %d patterns. Last output:\n%s",
+                                                    patterns.size(), tail() ).withCategory( ErrorCategory.TIMEOUT );
+                    }
+
+                    changed.awaitNanos( remaining );
+                }
+            }
+
+            if ( match == null )
+            {
+                throw new SSHWrapException( "Shell ended while waiting for any of %d patterns. Last output:\n%s",
+                                            patterns.size(), tail() )
+                    .withCategory( connection.isConnected() ? ErrorCategory.CHANNEL : ErrorCategory.SESSION_LOST );
+            }
+
+            return match;
+        }
+        finally
+        {
+            active = null;
+            match = null;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the shell to end (after sending "exit", say).
+     *
+     * @param timeout Maximum time to wait; 0 to wait indefinitely.
+     * @return the output not consumed by any match.
+     */
+    public String expectEnd( final long timeout, final TimeUnit unit )
+        throws SSHWrapException, InterruptedException
+    {
+        final long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos( timeout ) : 0;
+
+        lock.lock();
+        try
+        {
+            while ( !eof )
+            {
+                if ( deadline == 0 )
+                {
+                    changed.await();
+                }
+                else
+                {
+                    final long remaining = deadline - System.nanoTime();
+                    if ( remaining <= 0 )
+                    {
+                        throw new SSHWrapException( "Timed out waiting for the shell to end." )
+                            .withCategory( ErrorCategory.TIMEOUT );
+                    }
+
+                    changed.awaitNanos( remaining );
+                }
+            }
+
+            final String rest = buffer.toString();
+            buffer.setLength( 0 );
+
+            return rest;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Type the given text into the shell.
+     */
+    public void send( final String text )
+        throws IOException
+    {
+        input.write( text.getBytes( charset.name() ) );
+        input.flush();
+    }
+
+    /**
+     * Type the given text followed by a carriage return, as the Enter key does.
+     */
+    public void sendLine( final String text )
+        throws IOException
+    {
+        send( text + "\r" );
+    }
+
+    /**
+     * @return the output received but not yet consumed by a match.
+     */
+    public String getBuffered()
+    {
+        lock.lock();
+        try
+        {
+            return buffer.toString();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public boolean isOpen()
+    {
+        return !channel.isClosed();
+    }
+
+    /**
+     * Close the shell, waking anyone waiting on it.
+     */
+    public void close()
+    {
+        channel.disconnect();
+
+        lock.lock();
+        try
+        {
+            eof = true;
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add newly arrived output to the buffer and scan it. Runs on the session's reader thread.
+     */
+    private void received( final byte[] b, final int off, final int len )
+    {
+        lock.lock();
+        try
+        {
+            // both buffers are reused from chunk to chunk; the input one only grows to the largest chunk seen.
+            if ( pending.remaining() < len )
+            {
+                final ByteBuffer grown = ByteBuffer.allocate( Math.max( pending.position() + len, DECODE_CHARS ) );
+                pending.flip();
+                grown.put( pending );
+                pending = grown;
+            }
+
+            pending.put( b, off, len )
+                   .flip();
+
+            CoderResult result;
+            do
+            {
+                decoded.clear();
+                result = decoder.decode( pending, decoded, false );
+                decoded.flip();
+                buffer.append( decoded );
+            }
+            while ( result.isOverflow() );
+
+            // keep any partial character for next time.
+            pending.compact();
+
+            trim();
+            scan();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void ended()
+    {
+        lock.lock();
+        try
+        {
+            eof = true;
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Feed the output not yet seen by the active patterns through them, stopping at the first match.
+     */
+    private void scan()
+    {
+        if ( active == null || match != null )
+        {
+            return;
+        }
+
+        int end = -1;
+        int start = -1;
+        int index = -1;
+        for ( int i = scanned; i < buffer.length(); i++ )
+        {
+            state = active.step( state, buffer.charAt( i ) );
+            final int literal = active.literalAt( state );
+            if ( literal >= 0 )
+            {
+                end = i + 1;
+                start = Math.max( 0, end - active.literalLength( literal ) );
+                index = active.patternIndexOfLiteral( literal );
+                break;
+            }
+        }
+
+        if ( active.hasRegexes() )
+        {
+            final int[] regex = active.findRegex( buffer, 0, end < 0 ? buffer.length() : end );
+            if ( regex != null )
+            {
+                index = regex[0];
+                start = regex[1];
+                end = regex[2];
+            }
+        }
+
+        if ( index < 0 )
+        {
+            scanned = buffer.length();
+            return;
+        }
+
+        match = new Match( index, buffer.substring( start, end ), buffer.substring( 0, start ) );
+        buffer.delete( 0, end );
+        scanned = 0;
+        state = 0;
+        changed.signalAll();
+    }
+
+    private void trim()
+    {
+        final int excess = buffer.length() - maxBuffer;
+        if ( excess > 0 )
+        {
+            buffer.delete( 0, excess );
+            scanned = Math.max( 0, scanned - excess );
+        }
+    }
+
+    private String tail()
+    {
+        return buffer.substring( Math.max( 0, buffer.length() - 256 ) );
+    }
+
+    /**
+     * Receives the shell's output from the session.
+     */
+    private final class Sink
+        extends OutputStream
+    {
+        @Override
+        public void write( final int b )
+            throws IOException
+        {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len )
+            throws IOException
+        {
+            if ( transcript != null )
+            {
+                transcript.write( b, off, len );
+            }
+
+            received( b, off, len );
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            try
+            {
+                if ( transcript != null )
+                {
+                    transcript.flush();
+                }
+            }
+            finally
+            {
+                ended();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.expect;
+
+/**
+ * Outcome of {@link ExpectSession#expect(PatternSet, long, java.util.concurrent.TimeUnit)}: which pattern matched, the
+ * text it matched, and the output that came before it.
+ */
+public final class Match
+{
+
+    private final int index;
+
+    private final String text;
+
+    private final String before;
+
+    Match( final int index, final String text, final String before )
+    {
+        this.index = index;
+        this.text = text;
+        this.before = before;
+    }
+
+    /**
+     * @return the index of the pattern that matched, in the order the patterns were added to the set.
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+
+    public String getText()
+    {
+        return text;
+    }
+
+    /**
+     * @return the output between the end of the previous match (or the start of the session) and this one.
+     */
+    public String getBefore()
+    {
+        return before;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Match [" + index + ": '" + text + "']";
+    }
+
+}
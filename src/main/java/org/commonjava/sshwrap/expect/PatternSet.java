@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.expect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable set of prompts for {@link ExpectSession#expect(PatternSet, long, java.util.concurrent.TimeUnit)} to wait
+ * for: literal strings and regular expressions, identified by the order they were added in.
+ * <p>
+ * Literals are compiled into a single Aho-Corasick automaton, so output is scanned once, a character at a time as it
+ * arrives, whatever the number of literals; a session only keeps its current automaton state, so one set can be shared
+ * by any number of sessions. Regular expressions can't be matched that way, so each is only tried against a bounded
+ * window of the most recent output; prefer literals for prompts that allow it.
+ * </p>
+ */
+public final class PatternSet
+{
+
+    /** Characters of output a regular expression is tried against, by default. */
+    public static final int DEFAULT_REGEX_WINDOW = 1024;
+
+    private static final int[] NONE = new int[0];
+
+    // automaton: for each state, its sorted outgoing characters and their target states.
+    private final char[][] edgeChars;
+
+    private final int[][] edgeTargets;
+
+    private final int[] fail;
+
+    // the literals ending at each state, including those reached through fail links.
+    private final int[][] outputs;
+
+    private final int[] literalIndexes;
+
+    private final String[] literals;
+
+    private final Pattern[] regexes;
+
+    private final int[] regexIndexes;
+
+    private final int regexWindow;
+
+    private PatternSet( final List<Object> patterns, final int regexWindow )
+    {
+        this.regexWindow = regexWindow;
+
+        final List<String> lits = new ArrayList<String>();
+        final List<Integer> litIdx = new ArrayList<Integer>();
+        final List<Pattern> res = new ArrayList<Pattern>();
+        final List<Integer> reIdx = new ArrayList<Integer>();
+        for ( int i = 0; i < patterns.size(); i++ )
+        {
+            final Object p = patterns.get( i );
+            if ( p instanceof Pattern )
+            {
+                res.add( (Pattern) p );
+                reIdx.add( i );
+            }
+            else
+            {
+                lits.add( (String) p );
+                litIdx.add( i );
+            }
+        }
+
+        literals = lits.toArray( new String[lits.size()] );
+        literalIndexes = toArray( litIdx );
+        regexes = res.toArray( new Pattern[res.size()] );
+        regexIndexes = toArray( reIdx );
+
+        // build the trie.
+        final List<StringBuilder> chars = new ArrayList<StringBuilder>();
+        final List<List<Integer>> targets = new ArrayList<List<Integer>>();
+        final List<List<Integer>> ends = new ArrayList<List<Integer>>();
+        addState( chars, targets, ends );
+        for ( int l = 0; l < literals.length; l++ )
+        {
+            int state = 0;
+            for ( int i = 0; i < literals[l].length(); i++ )
+            {
+                final char c = literals[l].charAt( i );
+                final int at = chars.get( state )
+                                    .indexOf( String.valueOf( c ) );
+                if ( at < 0 )
+                {
+                    final int created = addState( chars, targets, ends );
+                    chars.get( state )
+                         .append( c );
+                    targets.get( state )
+                           .add( created );
+                    state = created;
+                }
+                else
+                {
+                    state = targets.get( state )
+                                   .get( at );
+                }
+            }
+
+            ends.get( state )
+                .add( l );
+        }
+
+        final int count = chars.size();
+        edgeChars = new char[count][];
+        edgeTargets = new int[count][];
+        for ( int s = 0; s < count; s++ )
+        {
+            // sort edges by character for binary search.
+            final char[] cs = chars.get( s )
+                                   .toString()
+                                   .toCharArray();
+            final int[] ts = toArray( targets.get( s ) );
+            final Integer[] order = new Integer[cs.length];
+            for ( int i = 0; i < order.length; i++ )
+            {
+                order[i] = i;
+            }
+
+            Arrays.sort( order, new Comparator<Integer>()
+            {
+                public int compare( final Integer a, final Integer b )
+                {
+                    return cs[a] - cs[b];
+                }
+            } );
+
+            edgeChars[s] = new char[cs.length];
+            edgeTargets[s] = new int[cs.length];
+            for ( int i = 0; i < order.length; i++ )
+            {
+                edgeChars[s][i] = cs[order[i]];
+                edgeTargets[s][i] = ts[order[i]];
+            }
+        }
+
+        // breadth-first: fail links, and outputs merged along them.
+        fail = new int[count];
+        outputs = new int[count][];
+        outputs[0] = toArray( ends.get( 0 ) );
+
+        final LinkedList<Integer> queue = new LinkedList<Integer>();
+        for ( final int child : edgeTargets[0] )
+        {
+            fail[child] = 0;
+            queue.add( child );
+        }
+
+        while ( !queue.isEmpty() )
+        {
+            final int s = queue.removeFirst();
+
+            final List<Integer> out = new ArrayList<Integer>( ends.get( s ) );
+            for ( final int o : outputs[fail[s]] )
+            {
+                out.add( o );
+            }
+            outputs[s] = out.isEmpty() ? NONE : toArray( out );
+
+            for ( int i = 0; i < edgeChars[s].length; i++ )
+            {
+                final int child = edgeTargets[s][i];
+                int f = fail[s];
+                int next = edge( f, edgeChars[s][i] );
+                while ( next < 0 && f != 0 )
+                {
+                    f = fail[f];
+                    next = edge( f, edgeChars[s][i] );
+                }
+
+                fail[child] = next < 0 ? 0 : next;
+                queue.add( child );
+            }
+        }
+    }
+
+    /**
+     * @return a set matching any of the given literal strings.
+     */
+    public static PatternSet of( final String... literals )
+    {
+        final Builder builder = new Builder();
+        for ( final String literal : literals )
+        {
+            builder.withLiteral( literal );
+        }
+
+        return builder.create();
+    }
+
+    /**
+     * @return the number of patterns in the set.
+     */
+    public int size()
+    {
+        return literals.length + regexes.length;
+    }
+
+    boolean hasRegexes()
+    {
+        return regexes.length > 0;
+    }
+
+    /**
+     * Advance the automaton by one character.
+     *
+     * @return the new state.
+     */
+    int step( final int state, final char c )
+    {
+        int s = state;
+        int next = edge( s, c );
+        while ( next < 0 && s != 0 )
+        {
+            s = fail[s];
+            next = edge( s, c );
+        }
+
+        return next < 0 ? 0 : next;
+    }
+
+    /**
+     * @return the longest literal ending at the given state (numbered among the literals only), or -1 if none does.
+     */
+    int literalAt( final int state )
+    {
+        final int[] out = outputs[state];
+        if ( out.length == 0 )
+        {
+            return -1;
+        }
+
+        int best = out[0];
+        for ( final int o : out )
+        {
+            if ( literals[o].length() > literals[best].length() )
+            {
+                best = o;
+            }
+        }
+
+        return best;
+    }
+
+    int literalLength( final int literal )
+    {
+        return literals[literal].length();
+    }
+
+    int patternIndexOfLiteral( final int literal )
+    {
+        return literalIndexes[literal];
+    }
+
+    /**
+     * Try the regular expressions against the end of the given text.
+     *
+     * @param from Earliest position a match may start at.
+     * @param to Position matches must end by.
+     * @return {pattern index, start, end} of the match ending first, or null if none matches.
+     */
+    int[] findRegex( final CharSequence text, final int from, final int to )
+    {
+        int[] best = null;
+        final int start = Math.max( from, to - regexWindow );
+        for ( int r = 0; r < regexes.length; r++ )
+        {
+            final Matcher m = regexes[r].matcher( text );
+            m.region( start, to );
+            if ( m.find() && ( best == null || m.end() < best[2] ) )
+            {
+                best = new int[] { regexIndexes[r], m.start(), m.end() };
+            }
+        }
+
+        return best;
+    }
+
+    private int edge( final int state, final char c )
+    {
+        final int at = Arrays.binarySearch( edgeChars[state], c );
+        return at < 0 ? -1 : edgeTargets[state][at];
+    }
+
+    private static int addState( final List<StringBuilder> chars, final List<List<Integer>> targets,
+                                 final List<List<Integer>> ends )
+    {
+        chars.add( new StringBuilder() );
+        targets.add( new ArrayList<Integer>() );
+        ends.add( new ArrayList<Integer>() );
+
+        return chars.size() - 1;
+    }
+
+    private static int[] toArray( final List<Integer> list )
+    {
+        final int[] result = new int[list.size()];
+        for ( int i = 0; i < result.length; i++ )
+        {
+            result[i] = list.get( i );
+        }
+
+        return result;
+    }
+
+    public static final class Builder
+    {
+        private final List<Object> patterns = new ArrayList<Object>();
+
+        private int regexWindow = DEFAULT_REGEX_WINDOW;
+
+        /**
+         * Match the given text exactly. Its index is the number of patterns added before it.
+         */
+        public Builder withLiteral( final String literal )
+        {
+            if ( literal == null || literal.length() == 0 )
+            {
+                throw new IllegalArgumentException( "Literal patterns cannot be empty." );
+            }
+
+            patterns.add( literal );
+            return this;
+        }
+
+        /**
+         * Match the given regular expression. Its index is the number of patterns added before it.
+         */
+        public Builder withRegex( final String regex )
+        {
+            return withRegex( Pattern.compile( regex ) );
+        }
+
+        public Builder withRegex( final Pattern regex )
+        {
+            patterns.add( regex );
+            return this;
+        }
+
+        /**
+         * Try regular expressions against at most this many of the most recent characters of output.
+         */
+        public Builder withRegexWindow( final int regexWindow )
+        {
+            this.regexWindow = Math.max( 1, regexWindow );
+            return this;
+        }
+
+        public PatternSet create()
+        {
+            if ( patterns.isEmpty() )
+            {
+                throw new IllegalArgumentException( "At least one pattern is required." );
+            }
+
+            return new PatternSet( new ArrayList<Object>( patterns ), regexWindow );
+        }
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.facts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.SSHConnection;
+import org.commonjava.sshwrap.SSHWrapException;
+import org.commonjava.sshwrap.Workers;
+
+/**
+ * Gathers any number of facts from a host in one round trip.
+ * <p>
+ * The registered probes are joined into a single /bin/sh script, each probe's output bracketed by marker lines that
+ * carry a marker unique to the run (so no probe output can forge one) and the probe's exit status. The output is
+ * split at the markers and each probe's section is parsed on its own thread. {@link #gatherAll(Collection, long,
+ * TimeUnit)} does the same for many hosts at once.
+ * </p>
+ */
+public final class FactGatherer
+{
+
+    private static final ExecutorService WORKERS =
+        Executors.newCachedThreadPool( Workers.factory( "sshwrap facts" ) );
+
+    private final List<FactProbe<?>> probes = new CopyOnWriteArrayList<FactProbe<?>>();
+
+    public FactGatherer( final FactProbe<?>... probes )
+    {
+        for ( final FactProbe<?> probe : probes )
+        {
+            register( probe );
+        }
+    }
+
+    /**
+     * Add a probe to those gathered. Probe names must be unique.
+     */
+    public FactGatherer register( final FactProbe<?> probe )
+    {
+        for ( final FactProbe<?> p : probes )
+        {
+            if ( p.getName()
+                  .equals( probe.getName() ) )
+            {
+                throw new IllegalArgumentException( "A probe named: " + probe.getName() + " is already registered." );
+            }
+        }
+
+        probes.add( probe );
+        return this;
+    }
+
+    /**
+     * Gather every registered fact from the given host.
+     *
+     * @param timeout Maximum time for the whole script to run; 0 for no limit.
+     */
+    public Facts gather( final SSHConnection connection, final long timeout, final TimeUnit unit )
+        throws IOException, SSHWrapException
+    {
+        final List<FactProbe<?>> run = new ArrayList<FactProbe<?>>( probes );
+        final String marker = "@@sshwrap-facts-" + UUID.randomUUID();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int status = connection.execute( "/bin/sh -c " + quote( script( run, marker ) ), out, timeout, unit );
+        if ( status != 0 )
+        {
+            throw new SSHWrapException( "Fact script exited with status: %d on: %s", status,
+                                        connection.getHostKey() );
+        }
+
+        return parse( connection.getHostKey(), run, marker, out.toString( "UTF-8" ) );
+    }
+
+    /**
+     * Split the script's output into the probes' sections, and parse those concurrently.
+     */
+    static Facts parse( final String host, final List<FactProbe<?>> run, final String marker, final String output )
+        throws SSHWrapException
+    {
+        final Facts facts = new Facts( host );
+        final List<Future<?>> parsing = new ArrayList<Future<?>>();
+        for ( int i = 0; i < run.size(); i++ )
+        {
+            final FactProbe<?> probe = run.get( i );
+            final String begin = marker + " BEGIN " + i + "\n";
+            final String end = "\n" + marker + " END " + i + " ";
+
+            final int from = output.indexOf( begin );
+            final int to = from < 0 ? -1 : output.indexOf( end, from + begin.length() );
+            if ( to < 0 )
+            {
+                facts.error( probe.getName(), "No output section found." );
+                continue;
+            }
+
+            final int eol = output.indexOf( '\n', to + end.length() );
+            final String exit = output.substring( to + end.length(), eol < 0 ? output.length() : eol )
+                                      .trim();
+            if ( !"0".equals( exit ) )
+            {
+                facts.error( probe.getName(), "Probe exited with status: " + exit );
+                continue;
+            }
+
+            final String section = output.substring( from + begin.length(), to );
+            parsing.add( WORKERS.submit( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        facts.put( probe.getName(), probe.parse( section ) );
+                    }
+                    catch ( final RuntimeException e )
+                    {
+                        facts.error( probe.getName(), "Failed to parse output: " + e );
+                    }
+                }
+            } ) );
+        }
+
+        await( parsing );
+
+        return facts;
+    }
+
+    /**
+     * Gather every registered fact from all of the given hosts concurrently. A host that fails is reported through
+     * {@link Facts#getFailure()} rather than failing the rest.
+     */
+    public Map<SSHConnection, Facts> gatherAll( final Collection<SSHConnection> connections, final long timeout,
+                                                final TimeUnit unit )
+        throws InterruptedException
+    {
+        final Map<SSHConnection, Future<Facts>> futures = new LinkedHashMap<SSHConnection, Future<Facts>>();
+        for ( final SSHConnection connection : connections )
+        {
+            futures.put( connection, WORKERS.submit( new Callable<Facts>()
+            {
+                public Facts call()
+                {
+                    try
+                    {
+                        return gather( connection, timeout, unit );
+                    }
+                    catch ( final Exception e )
+                    {
+                        final Facts failed = new Facts( connection.getHostKey() );
+                        failed.fail( e );
+                        return failed;
+                    }
+                }
+            } ) );
+        }
+
+        final Map<SSHConnection, Facts> result = new LinkedHashMap<SSHConnection, Facts>();
+        for ( final Map.Entry<SSHConnection, Future<Facts>> e : futures.entrySet() )
+        {
+            try
+            {
+                result.put( e.getKey(), e.getValue()
+                                         .get() );
+            }
+            catch ( final ExecutionException ee )
+            {
+                final Facts failed = new Facts( e.getKey()
+                                                 .getHostKey() );
+                failed.fail( ee );
+                result.put( e.getKey(), failed );
+            }
+        }
+
+        return result;
+    }
+
+    private static String script( final List<FactProbe<?>> run, final String marker )
+    {
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < run.size(); i++ )
+        {
+            // each probe gets its own shell, so one with a syntax error can't break the rest. The newline printed
+            // before the END marker is stripped again when parsing.
+            sb.append( "echo '" )
+              .append( marker )
+              .append( " BEGIN " )
+              .append( i )
+              .append( "'\n/bin/sh -c " )
+              .append( quote( run.get( i )
+                                 .getCommand() ) )
+              .append( " </dev/null 2>/dev/null\nprintf '\\n%s %d\\n' '" )
+              .append( marker )
+              .append( " END " )
+              .append( i )
+              .append( "' $?\n" );
+        }
+
+        return sb.toString();
+    }
+
+    private static String quote( final String s )
+    {
+        return "'" + s.replace( "'", "'\\''" ) + "'";
+    }
+
+    private static void await( final List<Future<?>> futures )
+        throws SSHWrapException
+    {
+        for ( final Future<?> f : futures )
+        {
+            try
+            {
+                f.get();
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread()
+                      .interrupt();
+                throw new SSHWrapException( "Interrupted while parsing facts." );
+            }
+            catch ( final ExecutionException e )
+            {
+                throw new SSHWrapException( "Failed to parse facts: %s", e.getCause(), e.getCause()
+                                                                                          .getMessage() );
+            }
+        }
+    }
+
+}
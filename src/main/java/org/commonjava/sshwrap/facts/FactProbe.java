@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.facts;
+
+/**
+ * One fact about a host: the shell snippet that reveals it, and how to turn that snippet's output into a value.
+ * Snippets run under /bin/sh with no input, and their error output is discarded. See {@link StandardFacts} for the
+ * common ones.
+ */
+public abstract class FactProbe<T>
+{
+
+    private final String name;
+
+    private final String command;
+
+    protected FactProbe( final String name, final String command )
+    {
+        this.name = name;
+        this.command = command;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getCommand()
+    {
+        return command;
+    }
+
+    /**
+     * Turn the snippet's output into the fact's value. Only called when the snippet exits with status 0.
+     *
+     * @throws RuntimeException if the output can't be understood; the fact is then reported as missing.
+     */
+    public abstract T parse( String output );
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.facts;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The facts gathered from one host, by probe.
+ */
+public final class Facts
+{
+
+    private final String host;
+
+    private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+    private final Map<String, String> errors = new LinkedHashMap<String, String>();
+
+    private Exception failure;
+
+    Facts( final String host )
+    {
+        this.host = host;
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    /**
+     * @return the probe's value, or null if it couldn't be gathered.
+     */
+    @SuppressWarnings( "unchecked" )
+    public synchronized <T> T get( final FactProbe<T> probe )
+    {
+        return (T) values.get( probe.getName() );
+    }
+
+    public synchronized boolean has( final FactProbe<?> probe )
+    {
+        return values.containsKey( probe.getName() );
+    }
+
+    /**
+     * @return why the probe's value couldn't be gathered, or null if it was.
+     */
+    public synchronized String getError( final FactProbe<?> probe )
+    {
+        return errors.get( probe.getName() );
+    }
+
+    /**
+     * @return every fact gathered, by probe name.
+     */
+    public synchronized Map<String, Object> asMap()
+    {
+        return Collections.unmodifiableMap( new LinkedHashMap<String, Object>( values ) );
+    }
+
+    /**
+     * @return why no facts at all could be gathered from the host (it was unreachable, say), or null.
+     */
+    public synchronized Exception getFailure()
+    {
+        return failure;
+    }
+
+    synchronized void put( final String probe, final Object value )
+    {
+        values.put( probe, value );
+    }
+
+    synchronized void error( final String probe, final String error )
+    {
+        errors.put( probe, error );
+    }
+
+    synchronized void fail( final Exception failure )
+    {
+        this.failure = failure;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "Facts [" + host + ": " + ( failure == null ? values : failure.getMessage() ) + "]";
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.facts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Probes for facts commonly gathered from Unix hosts.
+ */
+public final class StandardFacts
+{
+
+    /** Fully-qualified host name, falling back to the short one. */
+    public static final FactProbe<String> HOSTNAME = new FactProbe<String>( "hostname",
+                                                                            "hostname -f || hostname" )
+    {
+        @Override
+        public String parse( final String output )
+        {
+            return output.trim();
+        }
+    };
+
+    /** Output of uname -a. */
+    public static final FactProbe<String> KERNEL = new FactProbe<String>( "kernel", "uname -a" )
+    {
+        @Override
+        public String parse( final String output )
+        {
+            return output.trim();
+        }
+    };
+
+    /** Machine architecture, as uname -m. */
+    public static final FactProbe<String> ARCHITECTURE = new FactProbe<String>( "architecture", "uname -m" )
+    {
+        @Override
+        public String parse( final String output )
+        {
+            return output.trim();
+        }
+    };
+
+    /** The contents of /etc/os-release (ID, VERSION_ID, PRETTY_NAME...). */
+    public static final FactProbe<Map<String, String>> OS_RELEASE =
+        new FactProbe<Map<String, String>>( "os-release", "cat /etc/os-release" )
+        {
+            @Override
+            public Map<String, String> parse( final String output )
+            {
+                final Map<String, String> release = new LinkedHashMap<String, String>();
+                for ( final String line : output.split( "\n" ) )
+                {
+                    final int eq = line.indexOf( '=' );
+                    if ( eq < 1 || line.startsWith( "#" ) )
+                    {
+                        continue;
+                    }
+
+                    String value = line.substring( eq + 1 )
+                                       .trim();
+                    if ( value.length() > 1 && ( value.startsWith( "\"" ) || value.startsWith( "'" ) )
+                        && value.endsWith( value.substring( 0, 1 ) ) )
+                    {
+                        value = value.substring( 1, value.length() - 1 );
+                    }
+
+                    release.put( line.substring( 0, eq )
+                                     .trim(), value );
+                }
+
+                return Collections.unmodifiableMap( release );
+            }
+        };
+
+    /** Number of online processors. */
+    public static final FactProbe<Integer> CPU_COUNT =
+        new FactProbe<Integer>( "cpu-count", "nproc 2>/dev/null || getconf _NPROCESSORS_ONLN" )
+        {
+            @Override
+            public Integer parse( final String output )
+            {
+                return Integer.valueOf( output.trim() );
+            }
+        };
+
+    /** Seconds since boot (Linux). */
+    public static final FactProbe<Long> UPTIME_SECONDS = new FactProbe<Long>( "uptime", "cat /proc/uptime" )
+    {
+        @Override
+        public Long parse( final String output )
+        {
+            final String seconds = output.trim()
+                                         .split( "\\s+" )[0];
+            return (long) Double.parseDouble( seconds );
+        }
+    };
+
+    /** /proc/meminfo (Linux), in bytes: MemTotal, MemAvailable, SwapTotal... */
+    public static final FactProbe<Map<String, Long>> MEMORY =
+        new FactProbe<Map<String, Long>>( "memory", "cat /proc/meminfo" )
+        {
+            @Override
+            public Map<String, Long> parse( final String output )
+            {
+                final Map<String, Long> memory = new LinkedHashMap<String, Long>();
+                for ( final String line : output.split( "\n" ) )
+                {
+                    final String[] parts = line.split( "[:\\s]+" );
+                    if ( parts.length < 2 )
+                    {
+                        continue;
+                    }
+
+                    final long value = Long.parseLong( parts[1] );
+                    memory.put( parts[0], parts.length > 2 && "kB".equals( parts[2] ) ? value * 1024 : value );
+                }
+
+                return Collections.unmodifiableMap( memory );
+            }
+        };
+
+    /** Mounted filesystems, from df -P: mount point to {size, used, available} in bytes. */
+    public static final FactProbe<Map<String, List<Long>>> FILESYSTEMS =
+        new FactProbe<Map<String, List<Long>>>( "filesystems", "df -P -k" )
+        {
+            @Override
+            public Map<String, List<Long>> parse( final String output )
+            {
+                final Map<String, List<Long>> filesystems = new LinkedHashMap<String, List<Long>>();
+                final String[] lines = output.split( "\n" );
+                for ( int i = 1; i < lines.length; i++ )
+                {
+                    // Filesystem 1024-blocks Used Available Capacity Mounted-on; the mount point may hold spaces.
+                    final String[] parts = lines[i].trim()
+                                                   .split( "\\s+", 6 );
+                    if ( parts.length < 6 )
+                    {
+                        continue;
+                    }
+
+                    final List<Long> usage = new ArrayList<Long>( 3 );
+                    for ( int p = 1; p <= 3; p++ )
+                    {
+                        usage.add( Long.parseLong( parts[p] ) * 1024 );
+                    }
+
+                    filesystems.put( parts[5], Collections.unmodifiableList( usage ) );
+                }
+
+                return Collections.unmodifiableMap( filesystems );
+            }
+        };
+
+    private StandardFacts()
+    {
+    }
+
+    /**
+     * @return all of the standard probes.
+     */
+    public static FactProbe<?>[] all()
+    {
+        return new FactProbe<?>[] { HOSTNAME, KERNEL, ARCHITECTURE, OS_RELEASE, CPU_COUNT, UPTIME_SECONDS, MEMORY,
+            FILESYSTEMS };
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.follow;
+
+/**
+ * Position in a followed file: the byte offset reached, and the inode it was reached in, so that a file replaced (by
+ * log rotation, say) while nobody was following it is read from its start rather than from a stale offset.
+ * Checkpoints can be persisted with {@link #toString()} and restored with {@link #parse(String)}.
+ */
+public final class Checkpoint
+{
+
+    /** Follow from the start of the file. */
+    public static final Checkpoint START = new Checkpoint( 0, null );
+
+    /** Follow only what is appended from now on, as tail -f does. */
+    public static final Checkpoint END = new Checkpoint( -1, null );
+
+    private final long offset;
+
+    private final String inode;
+
+    /**
+     * @param offset Byte offset to resume from; -1 for the current end of the file.
+     * @param inode The file's inode when the offset was reached; null if unknown.
+     */
+    public Checkpoint( final long offset, final String inode )
+    {
+        this.offset = offset;
+        this.inode = inode;
+    }
+
+    /**
+     * Restore a checkpoint saved with {@link #toString()}.
+     */
+    public static Checkpoint parse( final String checkpoint )
+    {
+        final int colon = checkpoint.indexOf( ':' );
+        if ( colon < 0 )
+        {
+            return new Checkpoint( Long.parseLong( checkpoint.trim() ), null );
+        }
+
+        final String inode = checkpoint.substring( 0, colon )
+                                       .trim();
+        return new Checkpoint( Long.parseLong( checkpoint.substring( colon + 1 )
+                                                         .trim() ), inode.length() == 0 ? null : inode );
+    }
+
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    public String getInode()
+    {
+        return inode;
+    }
+
+    @Override
+    public String toString()
+    {
+        return ( inode == null ? "" : inode ) + ":" + offset;
+    }
+
+    @Override
+    public boolean equals( final Object obj )
+    {
+        if ( this == obj )
+        {
+            return true;
+        }
+
+        if ( !( obj instanceof Checkpoint ) )
+        {
+            return false;
+        }
+
+        final Checkpoint other = (Checkpoint) obj;
+        return offset == other.offset && ( inode == null ? other.inode == null : inode.equals( other.inode ) );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (int) ( offset ^ ( offset >>> 32 ) ) * 31 + ( inode == null ? 0 : inode.hashCode() );
+    }
+
+}
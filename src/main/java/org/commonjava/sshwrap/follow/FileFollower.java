@@ -0,0 +1,579 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.follow;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.commonjava.sshwrap.ChannelType;
+import org.commonjava.sshwrap.SSHConnection;
+import org.commonjava.sshwrap.SSHWrapException;
+import org.commonjava.sshwrap.Workers;
+
+import com.jcraft.jsch.ChannelExec;
+
+/**
+ * Follows any number of files on one host, the way tail -F does, over a single exec channel.
+ * <p>
+ * A small /bin/sh loop on the host checks each file's inode and size, and sends whatever was appended since the last
+ * check as a batch, framed with its byte offset. Between checks it blocks in inotifywait (waking as soon as any of
+ * the files' directories change) when that is installed, or sleeps for the poll interval when it isn't. A file whose
+ * inode changes, or that shrinks, has been rotated or truncated and is read again from its start.
+ * </p>
+ * <p>
+ * The follower tracks a {@link Checkpoint} per file as batches are delivered. If the channel or session is lost, it
+ * reconnects and resumes each file from its checkpoint; the checkpoints can also be saved and passed to a new
+ * follower later. Output is handled on the session's reader thread, so no thread is held per follower.
+ * </p>
+ */
+public final class FileFollower
+{
+
+    private static final Logger LOGGER = Logger.getLogger( FileFollower.class );
+
+    /** Largest batch sent for one file at a time; more is sent in further batches straight away. */
+    private static final int MAX_BATCH = 1024 * 1024;
+
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private static final ExecutorService RESUMERS =
+        Executors.newCachedThreadPool( Workers.factory( "sshwrap follow" ) );
+
+    private final SSHConnection connection;
+
+    private final FollowListener listener;
+
+    private final String marker = "@@sshwrap-follow-" + UUID.randomUUID();
+
+    private final Map<String, Checkpoint> checkpoints = new LinkedHashMap<String, Checkpoint>();
+
+    private long pollMillis = 250;
+
+    private ChannelExec channel;
+
+    private List<String> paths;
+
+    private int run;
+
+    private boolean started;
+
+    private boolean stopped;
+
+    public FileFollower( final SSHConnection connection, final FollowListener listener )
+    {
+        this.connection = connection;
+        this.listener = listener;
+    }
+
+    /**
+     * Follow a file from its current end.
+     */
+    public FileFollower follow( final String path )
+        throws SSHWrapException
+    {
+        return follow( path, Checkpoint.END );
+    }
+
+    /**
+     * Follow a file from the given checkpoint. If the follower is already running, it restarts (from every file's
+     * checkpoint) to include the new file.
+     */
+    public FileFollower follow( final String path, final Checkpoint from )
+        throws SSHWrapException
+    {
+        final boolean restart;
+        synchronized ( this )
+        {
+            checkpoints.put( path, from );
+            restart = started && !stopped;
+        }
+
+        if ( restart )
+        {
+            launch();
+        }
+
+        return this;
+    }
+
+    /**
+     * How often to check the files when inotifywait isn't available on the host. Default: 250ms.
+     */
+    public synchronized FileFollower setPollInterval( final long interval, final TimeUnit unit )
+    {
+        this.pollMillis = Math.max( 10, unit.toMillis( interval ) );
+        return this;
+    }
+
+    public FileFollower start()
+        throws SSHWrapException
+    {
+        synchronized ( this )
+        {
+            if ( started )
+            {
+                return this;
+            }
+
+            started = true;
+        }
+
+        launch();
+        return this;
+    }
+
+    /**
+     * Stop following. Checkpoints remain available.
+     */
+    public void stop()
+    {
+        final ChannelExec current;
+        synchronized ( this )
+        {
+            stopped = true;
+            current = channel;
+            channel = null;
+        }
+
+        if ( current != null )
+        {
+            current.disconnect();
+        }
+    }
+
+    public synchronized Checkpoint getCheckpoint( final String path )
+    {
+        return checkpoints.get( path );
+    }
+
+    /**
+     * @return every file's checkpoint, to resume from later.
+     */
+    public synchronized Map<String, Checkpoint> getCheckpoints()
+    {
+        return new LinkedHashMap<String, Checkpoint>( checkpoints );
+    }
+
+    /**
+     * (Re)start the remote loop from the current checkpoints.
+     */
+    private void launch()
+        throws SSHWrapException
+    {
+        final ChannelExec previous;
+        final String script;
+        final int current;
+        synchronized ( this )
+        {
+            if ( stopped )
+            {
+                return;
+            }
+
+            previous = channel;
+            channel = null;
+            paths = new ArrayList<String>( checkpoints.keySet() );
+            current = ++run;
+            script = script();
+        }
+
+        if ( previous != null )
+        {
+            previous.disconnect();
+        }
+
+        final ChannelExec exec = (ChannelExec) connection.openChannel( ChannelType.exec );
+        exec.setCommand( "/bin/sh -c " + quote( script ) );
+        exec.setOutputStream( new Sink( current ) );
+        try
+        {
+            connection.connectChannel( exec, 0, TimeUnit.MILLISECONDS );
+        }
+        catch ( final SSHWrapException e )
+        {
+            exec.disconnect();
+            throw e;
+        }
+
+        final boolean superseded;
+        synchronized ( this )
+        {
+            superseded = stopped || run != current;
+            if ( !superseded )
+            {
+                channel = exec;
+            }
+        }
+
+        if ( superseded )
+        {
+            exec.disconnect();
+        }
+    }
+
+    private String script()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append( "M=" )
+          .append( quote( marker ) )
+          .append( "; I=" )
+          .append( pollMillis / 1000.0 )
+          .append( "\nT=$(mktemp) || exit 1\ntrap 'rm -f \"$T\"' EXIT\ntrap 'exit 1' INT TERM HUP\n" )
+          .append( "W=; command -v inotifywait >/dev/null 2>&1 && W=1\n" );
+
+        final Set<String> dirs = new LinkedHashSet<String>();
+        final StringBuilder indexes = new StringBuilder();
+        for ( int n = 0; n < paths.size(); n++ )
+        {
+            final String path = paths.get( n );
+            final Checkpoint cp = checkpoints.get( path );
+            sb.append( 'f' )
+              .append( n )
+              .append( '=' )
+              .append( quote( path ) )
+              .append( "; o" )
+              .append( n )
+              .append( '=' )
+              .append( cp.getOffset() )
+              .append( "; i" )
+              .append( n )
+              .append( '=' )
+              .append( quote( cp.getInode() == null ? "" : cp.getInode() ) )
+              .append( '\n' );
+
+            indexes.append( ' ' )
+                   .append( n );
+
+            final int slash = path.lastIndexOf( '/' );
+            dirs.add( quote( slash < 0 ? "." : slash == 0 ? "/" : path.substring( 0, slash ) ) );
+        }
+
+        // per file: detect rotation or truncation, then send what was appended in batches of at most MAX_BATCH.
+        sb.append( "while :; do\nfor n in" )
+          .append( indexes )
+          .append( "; do\n" )
+          .append( "eval \"f=\\$f$n o=\\$o$n i=\\$i$n\"\n" )
+          .append( "s=$(stat -L -c '%i %s' \"$f\" 2>/dev/null || stat -L -f '%i %z' \"$f\" 2>/dev/null)\n" )
+          .append( "if [ -z \"$s\" ]; then [ \"$o\" -lt 0 ] && eval \"o$n=0\"; continue; fi\n" )
+          .append( "ino=${s% *}; size=${s#* }\n" )
+          .append( "if [ -n \"$i\" ] && [ \"$ino\" != \"$i\" ] || [ \"$size\" -lt \"$o\" ]; then " )
+          .append( "echo \"$M R $n $ino\"; o=0; fi\n" )
+          .append( "[ \"$o\" -lt 0 ] && o=$size\n" )
+          .append( "i=$ino\n" )
+          .append( "while [ \"$size\" -gt \"$o\" ]; do\n" )
+          .append( "c=$((size-o)); [ $c -gt " )
+          .append( MAX_BATCH )
+          .append( " ] && c=" )
+          .append( MAX_BATCH )
+          .append( "\ntail -c +$((o+1)) \"$f\" 2>/dev/null | head -c $c >\"$T\"\n" )
+          .append( "c=$(wc -c <\"$T\"); c=$((c))\n" )
+          .append( "[ $c -eq 0 ] && break\n" )
+          .append( "echo \"$M D $n $ino $o $c\"; cat \"$T\"; o=$((o+c))\n" )
+          .append( "done\n" )
+          .append( "eval \"o$n=\\$o i$n=\\$i\"\n" )
+          .append( "done\n" )
+          .append( "if [ -n \"$W\" ]; then inotifywait -qq -t 1 -e modify,create,moved_to,delete,move_self" );
+
+        for ( final String dir : dirs )
+        {
+            sb.append( ' ' )
+              .append( dir );
+        }
+
+        // exit status 2 is inotifywait's timeout; anything but an event or a timeout means it can't watch.
+        sb.append( " >/dev/null 2>&1; r=$?; [ $r -gt 2 ] || [ $r -eq 1 ] && sleep $I; else sleep $I; fi\ndone\n" );
+
+        return sb.toString();
+    }
+
+    private void header( final int current, final String line )
+    {
+        final String[] parts = line.split( " " );
+        if ( parts.length < 4 || !marker.equals( parts[0] ) )
+        {
+            LOGGER.warn( "Ignoring unexpected output from follow loop on " + connection.getHostKey() + ": " + line );
+            return;
+        }
+
+        final String path;
+        synchronized ( this )
+        {
+            if ( current != run )
+            {
+                return;
+            }
+
+            path = paths.get( Integer.parseInt( parts[2] ) );
+            if ( "R".equals( parts[1] ) )
+            {
+                checkpoints.put( path, new Checkpoint( 0, parts[3] ) );
+            }
+        }
+
+        if ( "R".equals( parts[1] ) )
+        {
+            listener.rotated( path );
+        }
+    }
+
+    private void appended( final int current, final int index, final String inode, final long offset,
+                           final byte[] data )
+    {
+        final String path;
+        synchronized ( this )
+        {
+            if ( current != run )
+            {
+                return;
+            }
+
+            path = paths.get( index );
+        }
+
+        listener.appended( path, offset, data );
+
+        synchronized ( this )
+        {
+            if ( current == run )
+            {
+                checkpoints.put( path, new Checkpoint( offset + data.length, inode ) );
+            }
+        }
+    }
+
+    /**
+     * The loop's output ended. Unless that was asked for, resume from the checkpoints (reconnecting if need be),
+     * backing off while attempts fail transiently.
+     */
+    private void ended( final int current )
+    {
+        synchronized ( this )
+        {
+            if ( stopped || current != run )
+            {
+                return;
+            }
+        }
+
+        RESUMERS.execute( new Runnable()
+        {
+            public void run()
+            {
+                listener.interrupted( new SSHWrapException( "Follow loop on %s ended unexpectedly.",
+                                                            connection.getHostKey() ) );
+
+                long backoff = 500;
+                int expected = current;
+                while ( true )
+                {
+                    synchronized ( FileFollower.this )
+                    {
+                        if ( stopped || expected != run )
+                        {
+                            return;
+                        }
+                    }
+
+                    try
+                    {
+                        Thread.sleep( backoff );
+                        if ( !connection.isConnected() )
+                        {
+                            connection.reconnect();
+                        }
+
+                        launch();
+                        return;
+                    }
+                    catch ( final InterruptedException e )
+                    {
+                        Thread.currentThread()
+                              .interrupt();
+                        return;
+                    }
+                    catch ( final SSHWrapException e )
+                    {
+                        if ( !retry( e ) )
+                        {
+                            return;
+                        }
+                    }
+                    catch ( final RuntimeException e )
+                    {
+                        if ( !retry( new SSHWrapException( "Failed to resume following on %s: %s", e,
+                                                           connection.getHostKey(), e.getMessage() ) ) )
+                        {
+                            return;
+                        }
+                    }
+
+                    synchronized ( FileFollower.this )
+                    {
+                        // a failed launch still took a run; carry on from it, unless another launch has succeeded.
+                        if ( channel != null )
+                        {
+                            return;
+                        }
+
+                        expected = run;
+                    }
+
+                    backoff = Math.min( MAX_BACKOFF_MILLIS, backoff * 2 );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Report a failed attempt to resume. One that trying again won't fix (bad configuration, a rejected host key...)
+     * stops the follower.
+     *
+     * @return true if resuming should be tried again.
+     */
+    private boolean retry( final SSHWrapException failure )
+    {
+        listener.interrupted( failure );
+        if ( failure.isTransient() )
+        {
+            return true;
+        }
+
+        LOGGER.warn( "Giving up following on " + connection.getHostKey() + ": " + failure.getMessage() );
+        stop();
+        return false;
+    }
+
+    private static String quote( final String s )
+    {
+        return "'" + s.replace( "'", "'\\''" ) + "'";
+    }
+
+    /**
+     * Parses the loop's output as the session delivers it: header lines, each followed (for data) by exactly the
+     * number of bytes it announces.
+     */
+    private final class Sink
+        extends OutputStream
+    {
+        private final int current;
+
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        private final byte[] one = new byte[1];
+
+        /** The batch being filled; handed to the listener once full, so a new one is allocated for each batch. */
+        private byte[] data;
+
+        private int filled;
+
+        private int index;
+
+        private String inode;
+
+        private long offset;
+
+        Sink( final int current )
+        {
+            this.current = current;
+        }
+
+        @Override
+        public void write( final int b )
+            throws IOException
+        {
+            one[0] = (byte) b;
+            write( one, 0, 1 );
+        }
+
+        @Override
+        public void write( final byte[] b, int off, int len )
+            throws IOException
+        {
+            while ( len > 0 )
+            {
+                if ( data != null )
+                {
+                    final int n = Math.min( len, data.length - filled );
+                    System.arraycopy( b, off, data, filled, n );
+                    filled += n;
+                    off += n;
+                    len -= n;
+
+                    if ( filled == data.length )
+                    {
+                        final byte[] batch = data;
+                        data = null;
+                        appended( current, index, inode, offset, batch );
+                    }
+
+                    continue;
+                }
+
+                final byte c = b[off++];
+                len--;
+                if ( c != '\n' )
+                {
+                    line.write( c );
+                    continue;
+                }
+
+                final String header = line.toString( "UTF-8" );
+                line.reset();
+
+                final String[] parts = header.split( " " );
+                if ( parts.length == 6 && "D".equals( parts[1] ) && marker.equals( parts[0] ) )
+                {
+                    index = Integer.parseInt( parts[2] );
+                    inode = parts[3];
+                    offset = Long.parseLong( parts[4] );
+                    data = new byte[Integer.parseInt( parts[5] )];
+                    filled = 0;
+                    if ( data.length == 0 )
+                    {
+                        data = null;
+                    }
+                }
+                else
+                {
+                    header( current, header );
+                }
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            ended( current );
+        }
+    }
+
+}
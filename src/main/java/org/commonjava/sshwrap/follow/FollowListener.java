@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.follow;
+
+/**
+ * Receives what a {@link FileFollower} reads. Calls are made on the SSH session's reader thread, one at a time, so
+ * they should return quickly (handing work off if need be); until they do, no other data arrives on the session.
+ */
+public interface FollowListener
+{
+
+    /**
+     * Bytes were appended to a file.
+     *
+     * @param offset Position in the file of the first byte.
+     * @param data A new array on each call, which the listener may keep.
+     */
+    void appended( String path, long offset, byte[] data );
+
+    /**
+     * The file was replaced or truncated; following continues from the start of the new file.
+     */
+    void rotated( String path );
+
+    /**
+     * Following stopped unexpectedly (the session was lost, say), or an attempt to resume failed. The follower keeps
+     * trying to resume from its checkpoints until {@link FileFollower#stop()} is called, or until an attempt fails in
+     * a way that isn't {@link org.commonjava.sshwrap.SSHWrapException#isTransient() transient}, which stops it.
+     */
+    void interrupted( Exception reason );
+
+}
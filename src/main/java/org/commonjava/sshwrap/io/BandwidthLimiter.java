@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.io;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket limiting the bytes per second passing through the streams that share it.
+ * <p>
+ * Limiters form a chain (per operation, then per host, then process-wide), and data must clear every limiter in its
+ * chain. A caller that has to wait is parked until exactly when its tokens will have accrued, rather than polling.
+ * The rate can be changed at any time; callers already waiting re-plan against the new rate immediately. While a
+ * limiter has no rate set, data passes it without taking its lock.
+ * </p>
+ */
+public final class BandwidthLimiter
+{
+
+    /** Largest amount granted at once, and so the most that can pass in a burst after idling. */
+    private static final long MIN_BURST = 32 * 1024;
+
+    private static final BandwidthLimiter GLOBAL = new BandwidthLimiter( 0, null );
+
+    private static final ConcurrentMap<String, BandwidthLimiter> HOSTS =
+        new ConcurrentHashMap<String, BandwidthLimiter>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    private final BandwidthLimiter parent;
+
+    /** Read without the lock on the data path, so that unlimited limiters cost nothing there. */
+    private volatile long rate;
+
+    private double tokens;
+
+    private long updated = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond Limit; 0 for none.
+     * @param parent Limiter that data passing this one must also clear; null for none.
+     */
+    public BandwidthLimiter( final long bytesPerSecond, final BandwidthLimiter parent )
+    {
+        this.parent = parent;
+        this.rate = Math.max( 0, bytesPerSecond );
+        this.tokens = burst( rate );
+    }
+
+    /**
+     * @return the process-wide limiter, which every host's limiter answers to. Unlimited until a rate is set.
+     */
+    public static BandwidthLimiter getGlobalInstance()
+    {
+        return GLOBAL;
+    }
+
+    /**
+     * @return the limiter shared by all connections to the given host (host:port), created unlimited on first use.
+     */
+    public static BandwidthLimiter forHost( final String key )
+    {
+        BandwidthLimiter limiter = HOSTS.get( key );
+        if ( limiter == null )
+        {
+            final BandwidthLimiter created = new BandwidthLimiter( 0, GLOBAL );
+            limiter = HOSTS.putIfAbsent( key, created );
+            if ( limiter == null )
+            {
+                limiter = created;
+            }
+        }
+
+        return limiter;
+    }
+
+    public BandwidthLimiter getParent()
+    {
+        return parent;
+    }
+
+    public long getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * @return true if this limiter or any of its parents has a rate set.
+     */
+    public boolean isLimited()
+    {
+        for ( BandwidthLimiter l = this; l != null; l = l.parent )
+        {
+            if ( l.rate > 0 )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Change the limit, effective immediately, including for transfers in progress. Commands started while no limiter
+     * in their chain had a rate aren't throttled at all, so a new limit only applies to them from the next command.
+     *
+     * @param bytesPerSecond The new limit; 0 for none.
+     */
+    public void setRate( final long bytesPerSecond )
+    {
+        lock.lock();
+        try
+        {
+            refill( System.nanoTime() );
+            rate = Math.max( 0, bytesPerSecond );
+            tokens = Math.min( tokens, burst( rate ) );
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the most bytes a single {@link #acquire(int)} should ask for along this chain.
+     */
+    public int getChunkSize()
+    {
+        long chunk = Integer.MAX_VALUE;
+        for ( BandwidthLimiter l = this; l != null; l = l.parent )
+        {
+            final long r = l.getRate();
+            if ( r > 0 )
+            {
+                chunk = Math.min( chunk, burst( r ) );
+            }
+        }
+
+        return (int) Math.min( chunk, 64 * 1024 );
+    }
+
+    /**
+     * Wait until the given number of bytes may pass this limiter and all of its parents.
+     */
+    public void acquire( final int bytes )
+        throws InterruptedIOException
+    {
+        for ( BandwidthLimiter l = this; l != null; l = l.parent )
+        {
+            l.take( bytes );
+        }
+    }
+
+    private void take( final int bytes )
+        throws InterruptedIOException
+    {
+        if ( rate <= 0 )
+        {
+            return;
+        }
+
+        lock.lock();
+        try
+        {
+            while ( rate > 0 )
+            {
+                final long now = System.nanoTime();
+                refill( now );
+
+                // never ask for more than the bucket holds, or we'd wait forever.
+                final double needed = Math.min( bytes, burst( rate ) );
+                if ( tokens >= needed )
+                {
+                    tokens -= bytes;
+                    return;
+                }
+
+                final long wait = (long) Math.ceil( ( needed - tokens ) * TimeUnit.SECONDS.toNanos( 1 ) / rate );
+                try
+                {
+                    changed.awaitNanos( wait );
+                }
+                catch ( final InterruptedException e )
+                {
+                    Thread.currentThread()
+                          .interrupt();
+                    throw new InterruptedIOException( "Interrupted while waiting for bandwidth" );
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void refill( final long now )
+    {
+        if ( rate > 0 )
+        {
+            final double accrued = (double) ( now - updated ) * rate / TimeUnit.SECONDS.toNanos( 1 );
+            tokens = Math.min( burst( rate ), tokens + accrued );
+        }
+
+        updated = now;
+    }
+
+    private static long burst( final long rate )
+    {
+        return Math.max( MIN_BURST, rate / 10 );
+    }
+
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.sshwrap.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-memory pipe connecting one writer to one reader.
+ * <p>
+ * Unlike {@link java.io.PipedInputStream}, this pipe doesn't track the liveness of the threads using it, so it can be
+ * written from whatever thread JSch happens to be running on (session reader threads, caller threads, pooled workers)
+ * without spuriously reporting a broken pipe when one of those threads exits.
+ * </p>
+ */
+public final class BlockingPipe
+{
+
+    public static final int DEFAULT_CAPACITY = 32 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition readable = lock.newCondition();
+
+    private final Condition writable = lock.newCondition();
+
+    private final byte[] buffer;
+
+    private int head;
+
+    private int count;
+
+    private boolean writeClosed;
+
+    private boolean readClosed;
+
+    private long readTimeoutMillis;
+
+    private final InputStream in = new PipeInputStream();
+
+    private final OutputStream out = new PipeOutputStream();
+
+    public BlockingPipe()
+    {
+        this( DEFAULT_CAPACITY );
+    }
+
+    public BlockingPipe( final int capacity )
+    {
+        buffer = new byte[capacity];
+    }
+
+    public InputStream getInputStream()
+    {
+        return in;
+    }
+
+    public OutputStream getOutputStream()
+    {
+        return out;
+    }
+
+    /**
+     * Limit how long a read may block waiting for data. When the timeout elapses, the read fails with an
+     * {@link InterruptedIOException}, just like a socket with SO_TIMEOUT set. Zero (the default) waits forever.
+     */
+    public void setReadTimeout( final long millis )
+    {
+        readTimeoutMillis = millis;
+    }
+
+    private int read( final byte[] b, final int off, final int len )
+        throws IOException
+    {
+        if ( len == 0 )
+        {
+            return 0;
+        }
+
+        lock.lock();
+        try
+        {
+            long remaining = TimeUnit.MILLISECONDS.toNanos( readTimeoutMillis );
+            while ( count == 0 )
+            {
+                if ( readClosed )
+                {
+                    throw new IOException( "Pipe closed" );
+                }
+
+                if ( writeClosed )
+                {
+                    return -1;
+                }
+
+                try
+                {
+                    if ( readTimeoutMillis > 0 )
+                    {
+                        if ( remaining <= 0 )
+                        {
+                            throw new InterruptedIOException( "Read timed out" );
+                        }
+                        remaining = readable.awaitNanos( remaining );
+                    }
+                    else
+                    {
+                        readable.await();
+                    }
+                }
+                catch ( final InterruptedException e )
+                {
+                    Thread.currentThread()
+                          .interrupt();
+                    throw new InterruptedIOException( "Interrupted while waiting for pipe data" );
+                }
+            }
+
+            final int n = Math.min( len, count );
+            final int first = Math.min( n, buffer.length - head );
+            System.arraycopy( buffer, head, b, off, first );
+            if ( first < n )
+            {
+                System.arraycopy( buffer, 0, b, off + first, n - first );
+            }
+
+            head = ( head + n ) % buffer.length;
+            count -= n;
+            writable.signalAll();
+
+            return n;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void write( final byte[] b, int off, int len )
+        throws IOException
+    {
+        lock.lock();
+        try
+        {
+            while ( len > 0 )
+            {
+                if ( writeClosed )
+                {
+                    throw new IOException( "Pipe closed" );
+                }
+
+                if ( readClosed )
+                {
+                    throw new IOException( "Pipe reader closed" );
+                }
+
+                if ( count == buffer.length )
+                {
+                    try
+                    {
+                        writable.await();
+                    }
+                    catch ( final InterruptedException e )
+                    {
+                        Thread.currentThread()
+                              .interrupt();
+                        throw new InterruptedIOException( "Interrupted while waiting for pipe space" );
+                    }
+                    continue;
+                }
+
+                final int tail = ( head + count ) % buffer.length;
+                final int n = Math.min( len, Math.min( buffer.length - count, buffer.length - tail ) );
+                System.arraycopy( b, off, buffer, tail, n );
+
+                count += n;
+                off += n;
+                len -= n;
+                readable.signalAll();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private int available()
+    {
+        lock.lock();
+        try
+        {
+            return count;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void closeWrite()
+    {
+        lock.lock();
+        try
+        {
+            writeClosed = true;
+            readable.signalAll();
+            writable.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void closeRead()
+    {
+        lock.lock();
+        try
+        {
+            readClosed = true;
+            count = 0;
+            readable.signalAll();
+            writable.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private final class PipeInputStream
+        extends InputStream
+    {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            // the pipe's lock is reentrant, and waiting releases it fully, so it can guard the one-byte array too.
+            lock.lock();
+            try
+            {
+                final int n = BlockingPipe.this.read( one, 0, 1 );
+                return n < 0 ? -1 : one[0] & 0xff;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int read( final byte[] b, final int off, final int len )
+            throws IOException
+        {
+            return BlockingPipe.this.read( b, off, len );
+        }
+
+        @Override
+        public int available()
+        {
+            return BlockingPipe.this.available();
+        }
+
+        @Override
+        public void close()
+        {
+            closeRead();
+        }
+    }
+
+    private final class PipeOutputStream
+        extends OutputStream
+    {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public void write( final int b )
+            throws IOException
+        {
+            lock.lock();
+            try
+            {
+                one[0] = (byte) b;
+                BlockingPipe.this.write( one, 0, 1 );
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len )
+            throws IOException
+        {
+            BlockingPipe.this.write( b, off, len );
+        }
+
+        @Override
+        public void close()
+        {
+            closeWrite();
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed-size copy buffers, so the library's copy loops reuse buffers rather than allocating one per call.
+ * <p>
+ * Buffers default to the largest SSH packet payload (32K), so a buffer takes a whole packet in one read. The pool keeps
+ * at most a fixed number of idle buffers; beyond that, a released buffer is left to the garbage collector, and an
+ * acquire from an empty pool allocates. {@link #getAllocated()} counts those allocations: once it stops increasing
+ * under a steady load, the copy paths have stopped allocating.
+ * </p>
+ */
+public final class BufferPool
+{
+
+    /** Largest SSH packet payload a peer must accept (RFC 4253, section 6.1). */
+    public static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private static final BufferPool SHARED = new BufferPool( DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED );
+
+    private final int bufferSize;
+
+    /** Backed by an array, so returning a buffer doesn't allocate a queue node. */
+    private final BlockingQueue<byte[]> idle;
+
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * @param bufferSize Size of each buffer, in bytes.
+     * @param maxPooled Most idle buffers kept for reuse.
+     */
+    public BufferPool( final int bufferSize, final int maxPooled )
+    {
+        this.bufferSize = bufferSize;
+        this.idle = new ArrayBlockingQueue<byte[]>( Math.max( 1, maxPooled ) );
+    }
+
+    public static BufferPool getSharedInstance()
+    {
+        return SHARED;
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * @return an idle buffer, or a new one if none is idle. Hand it back with {@link #release(byte[])}.
+     */
+    public byte[] acquire()
+    {
+        final byte[] buffer = idle.poll();
+        if ( buffer != null )
+        {
+            return buffer;
+        }
+
+        allocated.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire()}. It must not be used afterwards.
+     */
+    public void release( final byte[] buffer )
+    {
+        if ( buffer != null && buffer.length == bufferSize )
+        {
+            idle.offer( buffer );
+        }
+    }
+
+    /**
+     * Copy a stream to its end through a pooled buffer. Neither stream is closed.
+     *
+     * @return the number of bytes copied.
+     */
+    public long copy( final InputStream in, final OutputStream out )
+        throws IOException
+    {
+        final byte[] buffer = acquire();
+        try
+        {
+            long total = 0;
+            int read;
+            while ( ( read = in.read( buffer ) ) > -1 )
+            {
+                out.write( buffer, 0, read );
+                total += read;
+            }
+
+            return total;
+        }
+        finally
+        {
+            release( buffer );
+        }
+    }
+
+    /**
+     * @return the number of buffers this pool has had to allocate.
+     */
+    public long getAllocated()
+    {
+        return allocated.get();
+    }
+
+    /**
+     * @return the number of buffers waiting to be reused.
+     */
+    public int getIdle()
+    {
+        return idle.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BufferPool [bufferSize=" + bufferSize + ", allocated=" + allocated + ", idle=" + idle.size() + "]";
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Limits how fast data can be read from the underlying stream, charging each read to a {@link BandwidthLimiter}.
+ */
+public final class ThrottledInputStream
+    extends FilterInputStream
+{
+
+    private final BandwidthLimiter limiter;
+
+    public ThrottledInputStream( final InputStream in, final BandwidthLimiter limiter )
+    {
+        super( in );
+        this.limiter = limiter;
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        final int b = in.read();
+        if ( b >= 0 )
+        {
+            limiter.acquire( 1 );
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read( final byte[] b, final int off, final int len )
+        throws IOException
+    {
+        final int n = in.read( b, off, Math.min( len, limiter.getChunkSize() ) );
+        if ( n > 0 )
+        {
+            limiter.acquire( n );
+        }
+
+        return n;
+    }
+
+    @Override
+    public long skip( final long n )
+        throws IOException
+    {
+        final long skipped = in.skip( Math.min( n, limiter.getChunkSize() ) );
+        if ( skipped > 0 )
+        {
+            limiter.acquire( (int) skipped );
+        }
+
+        return skipped;
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Limits how fast data can be written to the underlying stream, charging each write to a {@link BandwidthLimiter}
+ * before passing it on.
+ */
+public final class ThrottledOutputStream
+    extends FilterOutputStream
+{
+
+    private final BandwidthLimiter limiter;
+
+    public ThrottledOutputStream( final OutputStream out, final BandwidthLimiter limiter )
+    {
+        super( out );
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void write( final int b )
+        throws IOException
+    {
+        limiter.acquire( 1 );
+        out.write( b );
+    }
+
+    @Override
+    public void write( final byte[] b, int off, int len )
+        throws IOException
+    {
+        while ( len > 0 )
+        {
+            final int n = Math.min( len, limiter.getChunkSize() );
+            limiter.acquire( n );
+            out.write( b, off, n );
+
+            off += n;
+            len -= n;
+        }
+    }
+
+}
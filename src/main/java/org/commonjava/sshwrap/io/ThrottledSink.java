@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.sshwrap.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.commonjava.sshwrap.Workers;
+
+/**
+ * Output stream for JSch to write a channel's data into, which a worker thread passes on to the destination at no
+ * more than a {@link BandwidthLimiter} allows.
+ * <p>
+ * JSch writes channel data from the session's thread, so throttling there (as {@link ThrottledOutputStream} would)
+ * holds up every other channel on the session. Here the session only copies into a buffer, and waits only once the
+ * buffer is full: JSch reopens the window as soon as data is written, so a full buffer is the only backpressure the
+ * server sees. The buffer is sized to absorb a command's bursts at any sensible rate.
+ * </p>
+ * <p>
+ * Closing this stream doesn't wait; the destination is closed by the worker once everything written before has been
+ * passed on. If the destination fails, the next write here fails with its exception, and JSch closes the channel.
+ * </p>
+ */
+public final class ThrottledSink
+    extends OutputStream
+{
+
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private final BlockingPipe pipe;
+
+    private final OutputStream sink;
+
+    private volatile IOException failure;
+
+    public ThrottledSink( final OutputStream out, final BandwidthLimiter limiter )
+    {
+        this( out, limiter, DEFAULT_CAPACITY );
+    }
+
+    public ThrottledSink( final OutputStream out, final BandwidthLimiter limiter, final int capacity )
+    {
+        pipe = new BlockingPipe( capacity );
+        sink = pipe.getOutputStream();
+
+        final InputStream in = new ThrottledInputStream( pipe.getInputStream(), limiter );
+        Workers.newThread( "throttled-output", new Runnable()
+        {
+            public void run()
+            {
+                drain( in, out );
+            }
+        } )
+               .start();
+    }
+
+    @Override
+    public void write( final int b )
+        throws IOException
+    {
+        write( new byte[] { (byte) b }, 0, 1 );
+    }
+
+    @Override
+    public void write( final byte[] b, final int off, final int len )
+        throws IOException
+    {
+        try
+        {
+            sink.write( b, off, len );
+        }
+        catch ( final IOException e )
+        {
+            throw failure == null ? e : failure;
+        }
+    }
+
+    /**
+     * Mark the end of the data; the worker closes the destination once it has passed on the rest.
+     */
+    @Override
+    public void close()
+    {
+        IOUtils.closeQuietly( sink );
+    }
+
+    private void drain( final InputStream in, final OutputStream out )
+    {
+        final BufferPool buffers = BufferPool.getSharedInstance();
+        final byte[] buf = buffers.acquire();
+        try
+        {
+            int read;
+            while ( ( read = in.read( buf ) ) != -1 )
+            {
+                out.write( buf, 0, read );
+            }
+        }
+        catch ( final IOException e )
+        {
+            failure = e;
+
+            // the session's next write fails, rather than filling a buffer nobody reads.
+            IOUtils.closeQuietly( in );
+        }
+        finally
+        {
+            buffers.release( buf );
+            IOUtils.closeQuietly( out );
+        }
+    }
+
+}
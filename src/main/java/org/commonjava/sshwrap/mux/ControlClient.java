@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.mux;
+
+import static org.commonjava.sshwrap.mux.ControlProtocol.FRAME_DATA;
+import static org.commonjava.sshwrap.mux.ControlProtocol.FRAME_EXIT;
+import static org.commonjava.sshwrap.mux.ControlProtocol.FRAME_EXT_DATA;
+import static org.commonjava.sshwrap.mux.ControlProtocol.FRAME_TIMEOUT;
+import static org.commonjava.sshwrap.mux.ControlProtocol.NONCE_LENGTH;
+import static org.commonjava.sshwrap.mux.ControlProtocol.OPEN_DIRECT_TCPIP;
+import static org.commonjava.sshwrap.mux.ControlProtocol.OPEN_EXEC;
+import static org.commonjava.sshwrap.mux.ControlProtocol.OPEN_SHELL;
+import static org.commonjava.sshwrap.mux.ControlProtocol.OPEN_SUBSYSTEM;
+import static org.commonjava.sshwrap.mux.ControlProtocol.PROOF_LENGTH;
+import static org.commonjava.sshwrap.mux.ControlProtocol.ROLE_CLIENT;
+import static org.commonjava.sshwrap.mux.ControlProtocol.ROLE_MASTER;
+import static org.commonjava.sshwrap.mux.ControlProtocol.STATUS_OK;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.commonjava.sshwrap.ChannelType;
+import org.commonjava.sshwrap.ErrorCategory;
+import org.commonjava.sshwrap.SSHWrapException;
+import org.commonjava.sshwrap.io.BufferPool;
+
+/**
+ * Opens channels through a {@link ControlMaster} running in another process (or this one), instead of establishing a
+ * session of its own.
+ * <p>
+ * Failures are categorized so callers can tell whether the request reached the master: {@link ErrorCategory#CONNECTION}
+ * means it never did (the master is gone, or couldn't prove it holds the cookie), so nothing ran;
+ * {@link ErrorCategory#SESSION_LOST} means the master went away after it was sent.
+ * </p>
+ */
+public final class ControlClient
+{
+
+    /** How long a liveness check is trusted, so that frequent {@link #isAlive()} calls don't each reach the master. */
+    private static final long ALIVE_CHECK_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+
+    private final File controlFile;
+
+    private final String address;
+
+    private final String cookie;
+
+    private volatile boolean alive;
+
+    private volatile long checked;
+
+    private ControlClient( final File controlFile, final String address, final String cookie )
+    {
+        this.controlFile = controlFile;
+        this.address = address;
+        this.cookie = cookie;
+    }
+
+    /**
+     * Locate the master published in the given control file.
+     * 
+     * @return the client, or null if there is no live master behind the file.
+     */
+    public static ControlClient connect( final File controlFile )
+    {
+        if ( controlFile == null || !controlFile.canRead() )
+        {
+            return null;
+        }
+
+        BufferedReader reader = null;
+        final ControlClient client;
+        try
+        {
+            reader = new BufferedReader( new FileReader( controlFile ) );
+            final String address = reader.readLine()
+                                         .trim();
+            final String cookie = reader.readLine()
+                                        .trim();
+
+            client = new ControlClient( controlFile, address, cookie );
+        }
+        catch ( final IOException e )
+        {
+            return null;
+        }
+        catch ( final RuntimeException e )
+        {
+            // truncated or garbled control file.
+            return null;
+        }
+        finally
+        {
+            IOUtils.closeQuietly( reader );
+        }
+
+        return client.isAlive() ? client : null;
+    }
+
+    public File getControlFile()
+    {
+        return controlFile;
+    }
+
+    /**
+     * @return true if the master was reachable when last checked. Each request updates this, and it is checked afresh
+     *         at most once a second otherwise.
+     */
+    public boolean isAlive()
+    {
+        if ( checked != 0 && System.nanoTime() - checked < ALIVE_CHECK_NANOS )
+        {
+            return alive;
+        }
+
+        ControlProtocol.Link link = null;
+        try
+        {
+            link = ControlProtocol.connect( address );
+            setAlive( true );
+        }
+        catch ( final IOException e )
+        {
+            setAlive( false );
+        }
+        finally
+        {
+            ControlProtocol.closeQuietly( link );
+        }
+
+        return alive;
+    }
+
+    private void setAlive( final boolean alive )
+    {
+        this.alive = alive;
+        final long now = System.nanoTime();
+        checked = now == 0 ? 1 : now;
+    }
+
+    /**
+     * Run a command through the master, copying its stdout (and stderr) to the given stream.
+     * 
+     * @return the remote exit status.
+     */
+    public int execute( final String command, final OutputStream cmdOutput )
+        throws IOException, SSHWrapException
+    {
+        return execute( command, cmdOutput, 0, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Run a command through the master, copying its stdout (and stderr) to the given stream. The master kills it if it
+     * hasn't finished (including the time spent opening its channel) by the given deadline.
+     * 
+     * @param timeout the deadline; 0 for none.
+     * @return the remote exit status.
+     * @throws IOException if the output couldn't be written.
+     * @throws SSHWrapException with category {@link ErrorCategory#TIMEOUT} if the deadline passed; see the class
+     *             documentation for the others.
+     */
+    public int execute( final String command, final OutputStream cmdOutput, final long timeout, final TimeUnit unit )
+        throws IOException, SSHWrapException
+    {
+        final ControlStream stream = open( OPEN_EXEC, command, 0, millis( timeout, unit ) );
+        try
+        {
+            stream.setExtOutputStream( cmdOutput );
+
+            final BufferPool pool = BufferPool.getSharedInstance();
+            final byte[] buffer = pool.acquire();
+            final int status;
+            try
+            {
+                // only writing to cmdOutput may fail with an IOException of its own; all else is the master's doing.
+                try
+                {
+                    stream.getOutputStream()
+                          .close();
+                }
+                catch ( final IOException e )
+                {
+                    throw lost( command, e );
+                }
+
+                while ( true )
+                {
+                    final int read;
+                    try
+                    {
+                        read = stream.getInputStream()
+                                     .read( buffer );
+                    }
+                    catch ( final IOException e )
+                    {
+                        throw lost( command, e );
+                    }
+
+                    if ( read < 0 )
+                    {
+                        break;
+                    }
+
+                    cmdOutput.write( buffer, 0, read );
+                }
+
+                try
+                {
+                    status = stream.waitForExitStatus();
+                }
+                catch ( final IOException e )
+                {
+                    throw lost( command, e );
+                }
+            }
+            finally
+            {
+                pool.release( buffer );
+            }
+
+            if ( stream.isTimedOut() )
+            {
+                throw new SSHWrapException( "Command: %s through control master: %s did not finish before its "
+                    + "deadline.", command, controlFile ).withCategory( ErrorCategory.TIMEOUT );
+            }
+
+            if ( status == -1 )
+            {
+                throw lost( command, null );
+            }
+
+            return status;
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    private SSHWrapException lost( final String command, final Throwable cause )
+    {
+        setAlive( false );
+        return new SSHWrapException( "Control master: %s went away while running: %s", cause, controlFile, command )
+            .withCategory( ErrorCategory.SESSION_LOST );
+    }
+
+    private static int millis( final long timeout, final TimeUnit unit )
+    {
+        if ( timeout <= 0 )
+        {
+            return 0;
+        }
+
+        final long millis = Math.max( 1, unit.toMillis( timeout ) );
+        return millis > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) millis;
+    }
+
+    /**
+     * Open a channel of the given type through the master.
+     * 
+     * @param arg The command (exec), subsystem name (subsystem) or destination host (direct_tcpip); ignored for shell.
+     * @param destPort The destination port for direct_tcpip; ignored otherwise.
+     */
+    public ControlStream openChannel( final ChannelType type, final String arg, final int destPort )
+        throws IOException, SSHWrapException
+    {
+        switch ( type )
+        {
+            case exec:
+                return open( OPEN_EXEC, arg, 0, 0 );
+            case shell:
+                return open( OPEN_SHELL, "", 0, 0 );
+            case subsystem:
+                return open( OPEN_SUBSYSTEM, arg, 0, 0 );
+            case direct_tcpip:
+                return open( OPEN_DIRECT_TCPIP, arg, destPort, 0 );
+            default:
+                throw new SSHWrapException( "Channel type: %s cannot be opened through a control master.", type )
+                    .withCategory( ErrorCategory.CONFIGURATION );
+        }
+    }
+
+    private ControlStream open( final byte op, final String arg, final int destPort, final int timeout )
+        throws SSHWrapException
+    {
+        final ControlProtocol.Link link;
+        try
+        {
+            link = ControlProtocol.connect( address );
+        }
+        catch ( final IOException e )
+        {
+            setAlive( false );
+            throw new SSHWrapException( "Cannot reach control master: %s\nReason: %s", e, controlFile, e.getMessage() )
+                .withCategory( ErrorCategory.CONNECTION );
+        }
+
+        boolean sent = false;
+        try
+        {
+            final DataInputStream in = new DataInputStream( new BufferedInputStream( link.getInputStream() ) );
+            final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( link.getOutputStream() ) );
+
+            // nothing about the request goes out until the master has shown it holds the cookie.
+            final byte[] clientNonce = ControlProtocol.nonce();
+            out.write( clientNonce );
+            out.flush();
+
+            final byte[] masterNonce = new byte[NONCE_LENGTH];
+            in.readFully( masterNonce );
+            final byte[] proof = new byte[PROOF_LENGTH];
+            in.readFully( proof );
+            final byte[] expected = ControlProtocol.proof( cookie, ROLE_MASTER, clientNonce, masterNonce );
+            if ( !MessageDigest.isEqual( proof, expected ) )
+            {
+                setAlive( false );
+                throw new SSHWrapException( "Control master: %s could not prove it holds the cookie; not using it.",
+                                            controlFile ).withCategory( ErrorCategory.CONNECTION );
+            }
+
+            out.write( ControlProtocol.proof( cookie, ROLE_CLIENT, clientNonce, masterNonce ) );
+            out.writeByte( op );
+            out.writeUTF( arg == null ? "" : arg );
+            out.writeInt( destPort );
+            out.writeInt( timeout );
+            out.flush();
+            sent = true;
+
+            final int status = in.read();
+            if ( status < 0 )
+            {
+                throw new IOException( "connection closed by master" );
+            }
+
+            if ( status != STATUS_OK )
+            {
+                final ErrorCategory category = ControlProtocol.category( in.readUTF() );
+                throw new SSHWrapException( "Control master: %s refused to open channel.\nReason: %s", controlFile,
+                                            in.readUTF() ).withCategory( category );
+            }
+
+            setAlive( true );
+            return new ControlStream( link, in, out );
+        }
+        catch ( final IOException e )
+        {
+            link.close();
+            setAlive( false );
+
+            // once the request is out, the master may have acted on it.
+            throw new SSHWrapException( "Control master: %s went away %s the request was sent.\nReason: %s", e,
+                                        controlFile, sent ? "after" : "before", e.getMessage() )
+                .withCategory( sent ? ErrorCategory.SESSION_LOST : ErrorCategory.CONNECTION );
+        }
+        catch ( final SSHWrapException e )
+        {
+            link.close();
+            throw e;
+        }
+    }
+
+    /**
+     * One channel carried over a control master connection.
+     */
+    public static final class ControlStream
+    {
+        private final ControlProtocol.Link link;
+
+        private final ControlProtocol.FrameInputStream in;
+
+        private final OutputStream out;
+
+        private volatile OutputStream extOutput;
+
+        private Integer exitStatus;
+
+        private boolean timedOut;
+
+        ControlStream( final ControlProtocol.Link link, final DataInputStream in, final DataOutputStream out )
+        {
+            this.link = link;
+            final ControlProtocol.FrameWriter writer = new ControlProtocol.FrameWriter( out, true );
+            this.out = new ControlProtocol.FrameOutputStream( writer, FRAME_DATA );
+            this.in = new ControlProtocol.FrameInputStream( in )
+            {
+                @Override
+                protected void otherFrame( final byte type, final byte[] data, final int length )
+                    throws IOException
+                {
+                    if ( type == FRAME_EXT_DATA )
+                    {
+                        final OutputStream ext = extOutput;
+                        if ( ext != null )
+                        {
+                            ext.write( data, 0, length );
+                        }
+                    }
+                    else if ( type == FRAME_EXIT && length == 4 )
+                    {
+                        setExitStatus( ( ( data[0] & 0xff ) << 24 ) | ( ( data[1] & 0xff ) << 16 )
+                            | ( ( data[2] & 0xff ) << 8 ) | ( data[3] & 0xff ) );
+                    }
+                    else if ( type == FRAME_TIMEOUT )
+                    {
+                        setTimedOut();
+                    }
+                }
+            };
+        }
+
+        /**
+         * @return the remote channel's stdout (or the forwarded connection's data).
+         */
+        public InputStream getInputStream()
+        {
+            return in;
+        }
+
+        /**
+         * @return the remote channel's stdin (or the forwarded connection's data). Closing it signals EOF.
+         */
+        public OutputStream getOutputStream()
+        {
+            return out;
+        }
+
+        /**
+         * Route the remote channel's stderr to the given stream; it is discarded otherwise.
+         */
+        public void setExtOutputStream( final OutputStream extOutput )
+        {
+            this.extOutput = extOutput;
+        }
+
+        /**
+         * Drain any remaining output and wait for the master to report the channel's exit status.
+         * 
+         * @return the exit status, or -1 if the master went away (or killed the channel at its deadline) before
+         *         reporting it.
+         */
+        public int waitForExitStatus()
+            throws IOException
+        {
+            final BufferPool pool = BufferPool.getSharedInstance();
+            final byte[] skip = pool.acquire();
+            try
+            {
+                while ( getExitStatus() == null && in.read( skip ) > -1 )
+                {
+                    // discard unread output.
+                }
+            }
+            finally
+            {
+                pool.release( skip );
+            }
+
+            // the exit frame follows the EOF frame.
+            while ( getExitStatus() == null && !isTimedOut() && in.nextFrameAfterEof() )
+            {
+                // keep reading until it shows up.
+            }
+
+            final Integer status = getExitStatus();
+            return status == null ? -1 : status;
+        }
+
+        /**
+         * @return true if the master killed the channel because its deadline passed.
+         */
+        public synchronized boolean isTimedOut()
+        {
+            return timedOut;
+        }
+
+        private synchronized void setExitStatus( final int status )
+        {
+            exitStatus = status;
+        }
+
+        private synchronized Integer getExitStatus()
+        {
+            return exitStatus;
+        }
+
+        private synchronized void setTimedOut()
+        {
+            timedOut = true;
+        }
+
+        public void close()
+        {
+            link.close();
+        }
+    }
+
+}
@@ -0,0 +1,538 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.mux;
+
+import static org.commonjava.sshwrap.mux.ControlProtocol.FRAME_DATA;
+import static org.commonjava.sshwrap.mux.ControlProtocol.FRAME_EOF;
+import static org.commonjava.sshwrap.mux.ControlProtocol.FRAME_EXIT;
+import static org.commonjava.sshwrap.mux.ControlProtocol.FRAME_EXT_DATA;
+import static org.commonjava.sshwrap.mux.ControlProtocol.FRAME_TIMEOUT;
+import static org.commonjava.sshwrap.mux.ControlProtocol.NONCE_LENGTH;
+import static org.commonjava.sshwrap.mux.ControlProtocol.OPEN_DIRECT_TCPIP;
+import static org.commonjava.sshwrap.mux.ControlProtocol.OPEN_EXEC;
+import static org.commonjava.sshwrap.mux.ControlProtocol.OPEN_SHELL;
+import static org.commonjava.sshwrap.mux.ControlProtocol.OPEN_SUBSYSTEM;
+import static org.commonjava.sshwrap.mux.ControlProtocol.PROOF_LENGTH;
+import static org.commonjava.sshwrap.mux.ControlProtocol.ROLE_CLIENT;
+import static org.commonjava.sshwrap.mux.ControlProtocol.ROLE_MASTER;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.commonjava.sshwrap.ChannelType;
+import org.commonjava.sshwrap.SSHConnection;
+import org.commonjava.sshwrap.SSHWrapException;
+import org.commonjava.sshwrap.Workers;
+import org.commonjava.sshwrap.config.Host;
+import org.commonjava.sshwrap.io.BlockingPipe;
+import org.commonjava.sshwrap.io.BufferPool;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSubsystem;
+
+/**
+ * Shares one connected {@link SSHConnection} with other sshwrap clients on the same machine, modeled on OpenSSH's
+ * ControlMaster.
+ * <p>
+ * The master listens on a Unix domain socket next to the control file (on an ephemeral loopback port where the Java
+ * runtime can't open one), and publishes that address, together with a random cookie, in the control file, which is
+ * readable only by its owner. {@link ControlClient}s locate the master through the same file, and every channel they
+ * open is carried over the master's session, so they never perform their own handshake.
+ * </p>
+ */
+public final class ControlMaster
+{
+
+    private static final Logger LOGGER = Logger.getLogger( ControlMaster.class );
+
+    private static final ScheduledExecutorService DEADLINES =
+        Executors.newSingleThreadScheduledExecutor( Workers.factory( "sshwrap control deadlines" ) );
+
+    private final Backend backend;
+
+    private final File controlFile;
+
+    private final String cookie;
+
+    private final ControlProtocol.Listener listener;
+
+    private volatile boolean running = true;
+
+    private ControlMaster( final Backend backend, final File controlFile, final boolean unix )
+        throws IOException
+    {
+        this.backend = backend;
+        this.controlFile = controlFile;
+        cookie = ControlProtocol.hex( ControlProtocol.nonce() );
+
+        final ControlProtocol.Listener socket =
+            unix ? ControlProtocol.listenUnix( new File( controlFile.getPath() + ".sock" ) ) : null;
+        listener = socket != null ? socket : ControlProtocol.listenTcp();
+    }
+
+    /**
+     * Resolve the ControlPath of a host into a file, expanding %h, %p, %r, %l, %% and a leading ~/.
+     * 
+     * @return the control file, or null if connection sharing isn't configured for the host.
+     */
+    public static File resolveControlPath( final Host host )
+    {
+        return ControlProtocol.controlFile( host );
+    }
+
+    /**
+     * Start sharing the given connection through the given control file, replacing any control file already there.
+     */
+    public static ControlMaster start( final SSHConnection connection, final File controlFile )
+        throws IOException
+    {
+        return start( new SessionBackend( connection ), controlFile, true );
+    }
+
+    /**
+     * Start serving clients' channels from the given backend.
+     * 
+     * @param unix false to listen on loopback TCP even where Unix domain sockets are available.
+     */
+    static ControlMaster start( final Backend backend, final File controlFile, final boolean unix )
+        throws IOException
+    {
+        final ControlMaster master = new ControlMaster( backend, controlFile, unix );
+        try
+        {
+            master.publish();
+        }
+        catch ( final IOException e )
+        {
+            master.listener.close();
+            throw e;
+        }
+
+        final Thread acceptor = Workers.newThread( "sshwrap control master: " + controlFile, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                master.accept();
+            }
+        } );
+
+        acceptor.start();
+
+        return master;
+    }
+
+    public File getControlFile()
+    {
+        return controlFile;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * @return where clients reach this master: "unix:" and a socket path, or a loopback port.
+     */
+    String getAddress()
+    {
+        return listener.getAddress();
+    }
+
+    public void stop()
+    {
+        running = false;
+        listener.close();
+        controlFile.delete();
+    }
+
+    private void publish()
+        throws IOException
+    {
+        final File dir = controlFile.getAbsoluteFile()
+                                    .getParentFile();
+        if ( dir != null && !dir.isDirectory() && !dir.mkdirs() )
+        {
+            throw new IOException( "Cannot create control directory: " + dir );
+        }
+
+        if ( ControlProtocol.isSharedWritable( dir ) )
+        {
+            throw new IOException( "Refusing to publish a control file where other users can replace it: " + dir );
+        }
+
+        // created exclusively and owner-only, under a name no one can predict, so no one else can have opened it.
+        final File tmp = ControlProtocol.createPrivateFile( dir, "." + controlFile.getName() );
+        try
+        {
+            FileWriter writer = null;
+            try
+            {
+                writer = new FileWriter( tmp );
+                writer.write( listener.getAddress() + "\n" + cookie + "\n" );
+            }
+            finally
+            {
+                IOUtils.closeQuietly( writer );
+            }
+
+            if ( !tmp.renameTo( controlFile ) )
+            {
+                controlFile.delete();
+                if ( !tmp.renameTo( controlFile ) )
+                {
+                    throw new IOException( "Cannot publish control file: " + controlFile );
+                }
+            }
+        }
+        finally
+        {
+            // only still there if it wasn't published.
+            tmp.delete();
+        }
+    }
+
+    private void accept()
+    {
+        while ( running )
+        {
+            final ControlProtocol.Link link;
+            try
+            {
+                link = listener.accept();
+            }
+            catch ( final IOException e )
+            {
+                if ( running )
+                {
+                    LOGGER.error( "Control master stopped accepting clients: " + e.getMessage(), e );
+                    stop();
+                }
+                return;
+            }
+
+            final Thread handler = Workers.newThread( "sshwrap control client: " + controlFile, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        handle( link );
+                    }
+                    catch ( final IOException e )
+                    {
+                        LOGGER.debug( "Control client failed: " + e.getMessage(), e );
+                    }
+                    finally
+                    {
+                        link.close();
+                    }
+                }
+            } );
+
+            handler.start();
+        }
+    }
+
+    /**
+     * Prove the cookie to the client, and check the client's proof in return.
+     * 
+     * @return false if the client couldn't prove it holds the cookie.
+     */
+    private boolean authenticate( final DataInputStream in, final DataOutputStream out )
+        throws IOException
+    {
+        final byte[] clientNonce = new byte[NONCE_LENGTH];
+        in.readFully( clientNonce );
+
+        final byte[] masterNonce = ControlProtocol.nonce();
+        out.write( masterNonce );
+        out.write( ControlProtocol.proof( cookie, ROLE_MASTER, clientNonce, masterNonce ) );
+        out.flush();
+
+        final byte[] proof = new byte[PROOF_LENGTH];
+        in.readFully( proof );
+
+        return MessageDigest.isEqual( proof, ControlProtocol.proof( cookie, ROLE_CLIENT, clientNonce, masterNonce ) );
+    }
+
+    private void handle( final ControlProtocol.Link link )
+        throws IOException
+    {
+        final DataInputStream in = new DataInputStream( new BufferedInputStream( link.getInputStream() ) );
+        final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( link.getOutputStream() ) );
+
+        if ( !authenticate( in, out ) )
+        {
+            LOGGER.warn( "Rejected control client with an invalid cookie." );
+            return;
+        }
+
+        final byte op = in.readByte();
+        final String arg = in.readUTF();
+        final int port = in.readInt();
+        final int timeout = in.readInt();
+        final long started = System.nanoTime();
+
+        final BlockingPipe stdin = new BlockingPipe();
+        final ControlProtocol.FrameWriter writer = new ControlProtocol.FrameWriter( out, false );
+        final ControlProtocol.FrameOutputStream extOutput =
+            new ControlProtocol.FrameOutputStream( writer, FRAME_EXT_DATA );
+        final BackendChannel channel;
+        try
+        {
+            // any output arriving before the status reply waits in the writer, rather than overtaking it.
+            channel =
+                backend.open( op, arg, port, stdin.getInputStream(),
+                              new ControlProtocol.FrameOutputStream( writer, FRAME_DATA ), extOutput, timeout );
+        }
+        catch ( final SSHWrapException e )
+        {
+            writer.refuse( e.getCategory(), e.getMessage() );
+            return;
+        }
+
+        // whichever comes first of the exit status and the deadline is reported; the other is dropped.
+        final AtomicBoolean settled = new AtomicBoolean();
+        ScheduledFuture<?> deadline = null;
+        if ( timeout > 0 )
+        {
+            final long remaining = TimeUnit.MILLISECONDS.toNanos( timeout ) - ( System.nanoTime() - started );
+            deadline = DEADLINES.schedule( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if ( settled.compareAndSet( false, true ) )
+                    {
+                        try
+                        {
+                            writer.writeFrame( FRAME_TIMEOUT, null, 0, 0 );
+                        }
+                        catch ( final IOException e )
+                        {
+                            LOGGER.debug( "Failed to report a deadline to a control client: " + e.getMessage(), e );
+                        }
+
+                        channel.close();
+                    }
+                }
+            }, Math.max( remaining, 0 ), TimeUnit.NANOSECONDS );
+        }
+
+        try
+        {
+            writer.accept();
+            if ( pumpStdin( in, stdin.getOutputStream() ) )
+            {
+                try
+                {
+                    extOutput.awaitClosed();
+                }
+                catch ( final InterruptedException e )
+                {
+                    Thread.currentThread()
+                          .interrupt();
+                }
+
+                if ( settled.compareAndSet( false, true ) )
+                {
+                    final byte[] status = new byte[4];
+                    final int exit = channel.getExitStatus();
+                    status[0] = (byte) ( exit >>> 24 );
+                    status[1] = (byte) ( exit >>> 16 );
+                    status[2] = (byte) ( exit >>> 8 );
+                    status[3] = (byte) exit;
+                    writer.writeFrame( FRAME_EXIT, status, 0, 4 );
+                }
+            }
+        }
+        finally
+        {
+            if ( deadline != null )
+            {
+                deadline.cancel( false );
+            }
+
+            channel.close();
+        }
+    }
+
+    /**
+     * Copy stdin frames from the client into the channel.
+     * 
+     * @return true if the client signalled the end of its input and is waiting for the exit status, false if it went
+     *         away.
+     */
+    private boolean pumpStdin( final DataInputStream in, final OutputStream stdin )
+        throws IOException
+    {
+        final BufferPool pool = BufferPool.getSharedInstance();
+        final byte[] buffer = pool.acquire();
+        try
+        {
+            while ( true )
+            {
+                final int type = in.read();
+                if ( type < 0 )
+                {
+                    return false;
+                }
+
+                // pass data through a chunk at a time; other frames are dropped.
+                int remaining = ControlProtocol.readLength( in );
+                while ( remaining > 0 )
+                {
+                    final int n = Math.min( remaining, buffer.length );
+                    in.readFully( buffer, 0, n );
+                    if ( type == FRAME_DATA )
+                    {
+                        stdin.write( buffer, 0, n );
+                    }
+                    remaining -= n;
+                }
+
+                if ( type == FRAME_EOF )
+                {
+                    return true;
+                }
+            }
+        }
+        finally
+        {
+            pool.release( buffer );
+            stdin.close();
+        }
+    }
+
+    /**
+     * Runs the channels clients ask for: over the shared connection's session, or over a stand-in in tests.
+     */
+    interface Backend
+    {
+        /**
+         * Open a channel and wire it to the given streams, closing both output streams once the channel has closed
+         * (as JSch does).
+         * 
+         * @param timeout the client's deadline in milliseconds, counted from its request; 0 for none.
+         */
+        BackendChannel open( byte op, String arg, int port, InputStream stdin, OutputStream out, OutputStream err,
+                             int timeout )
+            throws SSHWrapException;
+    }
+
+    interface BackendChannel
+    {
+        /**
+         * @return the exit status, once the channel's output streams have been closed.
+         */
+        int getExitStatus();
+
+        void close();
+    }
+
+    private static final class SessionBackend
+        implements Backend
+    {
+        private final SSHConnection connection;
+
+        SessionBackend( final SSHConnection connection )
+        {
+            this.connection = connection;
+        }
+
+        public BackendChannel open( final byte op, final String arg, final int port, final InputStream stdin,
+                                    final OutputStream out, final OutputStream err, final int timeout )
+            throws SSHWrapException
+        {
+            final Channel channel;
+            switch ( op )
+            {
+                case OPEN_EXEC:
+                {
+                    channel = connection.openChannel( ChannelType.exec );
+                    ( (ChannelExec) channel ).setCommand( arg );
+                    break;
+                }
+                case OPEN_SHELL:
+                {
+                    channel = connection.openChannel( ChannelType.shell );
+                    break;
+                }
+                case OPEN_SUBSYSTEM:
+                {
+                    channel = connection.openChannel( ChannelType.subsystem );
+                    ( (ChannelSubsystem) channel ).setSubsystem( arg );
+                    break;
+                }
+                case OPEN_DIRECT_TCPIP:
+                {
+                    channel = connection.openChannel( ChannelType.direct_tcpip );
+                    ( (ChannelDirectTCPIP) channel ).setHost( arg );
+                    ( (ChannelDirectTCPIP) channel ).setPort( port );
+                    break;
+                }
+                default:
+                    throw new SSHWrapException( "Unsupported control operation: %s", op );
+            }
+
+            channel.setInputStream( stdin );
+            channel.setOutputStream( out );
+            channel.setExtOutputStream( err );
+
+            // the client's deadline bounds the open too; without one, the host's ConnectTimeout does.
+            connection.connectChannel( channel, timeout, TimeUnit.MILLISECONDS );
+
+            return new BackendChannel()
+            {
+                public int getExitStatus()
+                {
+                    return channel.getExitStatus();
+                }
+
+                public void close()
+                {
+                    channel.disconnect();
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,1085 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.mux;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.commonjava.sshwrap.ErrorCategory;
+import org.commonjava.sshwrap.config.Host;
+import org.commonjava.sshwrap.io.BufferPool;
+
+/**
+ * Wire format shared by {@link ControlMaster} and {@link ControlClient}.
+ * <p>
+ * Each client request uses its own connection to the master: a Unix domain socket where the Java runtime can open one
+ * (16 and later), loopback TCP otherwise. The two sides first prove to each other that they hold the master's cookie,
+ * without sending it: the client sends a nonce, the master answers with a nonce of its own and an HMAC of both under
+ * the cookie, and the client answers with its own HMAC. Only then does the client send an operation, its argument and
+ * its deadline; the master answers with a status byte (and a category and message on failure). After that, both
+ * sides exchange frames of the form: type (byte), length (int), payload.
+ * </p>
+ */
+final class ControlProtocol
+{
+
+    static final byte OPEN_EXEC = 1;
+
+    static final byte OPEN_SHELL = 2;
+
+    static final byte OPEN_SUBSYSTEM = 3;
+
+    static final byte OPEN_DIRECT_TCPIP = 4;
+
+    static final byte STATUS_OK = 0;
+
+    static final byte STATUS_FAILED = 1;
+
+    static final byte FRAME_DATA = 1;
+
+    static final byte FRAME_EXT_DATA = 2;
+
+    static final byte FRAME_EOF = 3;
+
+    static final byte FRAME_EXIT = 4;
+
+    /** Sent instead of {@link #FRAME_EXIT} when the master killed the channel at the client's deadline. */
+    static final byte FRAME_TIMEOUT = 5;
+
+    /** Larger writes are split; a peer announcing more than this is broken or hostile. */
+    static final int MAX_FRAME_LENGTH = 256 * 1024;
+
+    static final int NONCE_LENGTH = 16;
+
+    static final int PROOF_LENGTH = 32;
+
+    static final byte ROLE_MASTER = 'M';
+
+    static final byte ROLE_CLIENT = 'C';
+
+    /** Prefix of a published Unix domain socket address; a published TCP address is just the loopback port. */
+    static final String UNIX_ADDRESS = "unix:";
+
+    private static final int CONNECT_TIMEOUT = 1000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Method TO_PATH;
+
+    private static final Method GET_PERMISSIONS;
+
+    private static final Class<?> LINK_OPTION;
+
+    private static final Method CREATE_FILE;
+
+    private static final Object OWNER_ONLY;
+
+    private static final Method UNIX_ADDRESS_OF;
+
+    private static final Method OPEN_SERVER;
+
+    private static final Method BIND;
+
+    private static final Method OPEN_CLIENT;
+
+    private static final Object UNIX_FAMILY;
+
+    static
+    {
+        Method toPath = null;
+        Method getPermissions = null;
+        Class<?> linkOption = null;
+        Method createFile = null;
+        Object ownerOnly = null;
+        try
+        {
+            linkOption = Class.forName( "java.nio.file.LinkOption" );
+            toPath = File.class.getMethod( "toPath" );
+
+            final Class<?> files = Class.forName( "java.nio.file.Files" );
+            final Class<?> path = Class.forName( "java.nio.file.Path" );
+            getPermissions = files.getMethod( "getPosixFilePermissions", path, Array.newInstance( linkOption, 0 )
+                                                                                    .getClass() );
+
+            final Class<?> attribute = Class.forName( "java.nio.file.attribute.FileAttribute" );
+            createFile = files.getMethod( "createFile", path, Array.newInstance( attribute, 0 )
+                                                                   .getClass() );
+
+            final Class<?> permissions = Class.forName( "java.nio.file.attribute.PosixFilePermissions" );
+            ownerOnly = Array.newInstance( attribute, 1 );
+            Array.set( ownerOnly, 0, permissions.getMethod( "asFileAttribute", Set.class )
+                                                .invoke( null, permissions.getMethod( "fromString", String.class )
+                                                                          .invoke( null, "rw-------" ) ) );
+        }
+        catch ( final Exception e )
+        {
+            // before Java 7, permissions can't be read or set on creation.
+            getPermissions = null;
+            createFile = null;
+        }
+
+        TO_PATH = toPath;
+        GET_PERMISSIONS = getPermissions;
+        LINK_OPTION = linkOption;
+        CREATE_FILE = createFile;
+        OWNER_ONLY = ownerOnly;
+
+        Method addressOf = null;
+        Method openServer = null;
+        Method bind = null;
+        Method openClient = null;
+        Object unix = null;
+        try
+        {
+            // Java 16+, as for ssh-agent sockets.
+            addressOf = Class.forName( "java.net.UnixDomainSocketAddress" )
+                             .getMethod( "of", String.class );
+            final Class<?> family = Class.forName( "java.net.ProtocolFamily" );
+            openServer = ServerSocketChannel.class.getMethod( "open", family );
+            bind = ServerSocketChannel.class.getMethod( "bind", SocketAddress.class );
+            openClient = SocketChannel.class.getMethod( "open", SocketAddress.class );
+            unix = Class.forName( "java.net.StandardProtocolFamily" )
+                        .getField( "UNIX" )
+                        .get( null );
+        }
+        catch ( final Exception e )
+        {
+            addressOf = null;
+        }
+
+        UNIX_ADDRESS_OF = addressOf;
+        OPEN_SERVER = openServer;
+        BIND = bind;
+        OPEN_CLIENT = openClient;
+        UNIX_FAMILY = unix;
+    }
+
+    private ControlProtocol()
+    {
+    }
+
+    /**
+     * @return true if users other than the owner may create, replace or remove files in the given directory. This can
+     *         only be told on Java 7 and later, on file systems with POSIX permissions; elsewhere it's false.
+     */
+    static boolean isSharedWritable( final File dir )
+        throws IOException
+    {
+        if ( GET_PERMISSIONS == null || dir == null )
+        {
+            return false;
+        }
+
+        final Set<?> permissions;
+        try
+        {
+            permissions =
+                (Set<?>) GET_PERMISSIONS.invoke( null, TO_PATH.invoke( dir ), Array.newInstance( LINK_OPTION, 0 ) );
+        }
+        catch ( final InvocationTargetException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+
+            // not a POSIX file system.
+            return false;
+        }
+        catch ( final IllegalAccessException e )
+        {
+            return false;
+        }
+
+        for ( final Object permission : permissions )
+        {
+            final String name = ( (Enum<?>) permission ).name();
+            if ( "GROUP_WRITE".equals( name ) || "OTHERS_WRITE".equals( name ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Create a new, empty file in the given directory under a name no one can predict, readable and writable by its
+     * owner only from the moment it exists. Where permissions can't be given on creation (before Java 7, or off POSIX
+     * file systems), they are restricted straight afterwards.
+     */
+    static File createPrivateFile( final File dir, final String prefix )
+        throws IOException
+    {
+        if ( CREATE_FILE != null )
+        {
+            for ( int attempt = 0; attempt < 10; attempt++ )
+            {
+                final File file = new File( dir, prefix + "." + hex( nonce() ) + ".tmp" );
+                try
+                {
+                    CREATE_FILE.invoke( null, TO_PATH.invoke( file ), OWNER_ONLY );
+                    return file;
+                }
+                catch ( final InvocationTargetException e )
+                {
+                    final Throwable cause = e.getCause();
+                    if ( cause instanceof UnsupportedOperationException )
+                    {
+                        // not a POSIX file system.
+                        break;
+                    }
+
+                    if ( !"java.nio.file.FileAlreadyExistsException".equals( cause.getClass()
+                                                                                   .getName() ) )
+                    {
+                        throw cause instanceof IOException ? (IOException) cause
+                                        : new IOException( "Cannot create: " + file + ": " + cause );
+                    }
+                }
+                catch ( final IllegalAccessException e )
+                {
+                    break;
+                }
+            }
+        }
+
+        final File file = File.createTempFile( prefix, ".tmp", dir );
+        if ( !file.setReadable( false, false ) || !file.setWritable( false, false ) || !file.setReadable( true, true )
+            || !file.setWritable( true, true ) )
+        {
+            file.delete();
+            throw new IOException( "Cannot restrict the control file to its owner: " + file );
+        }
+
+        return file;
+    }
+
+    static File controlFile( final Host host )
+    {
+        final String path = host.getControlPath();
+        if ( path == null || "none".equalsIgnoreCase( path ) )
+        {
+            return null;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < path.length(); i++ )
+        {
+            final char c = path.charAt( i );
+            if ( c == '%' && i + 1 < path.length() )
+            {
+                final char token = path.charAt( ++i );
+                switch ( token )
+                {
+                    case 'h':
+                        sb.append( host.getHostName() );
+                        break;
+                    case 'p':
+                        sb.append( host.getPort() );
+                        break;
+                    case 'r':
+                        sb.append( host.getUser() );
+                        break;
+                    case 'l':
+                        sb.append( localHostName() );
+                        break;
+                    case '%':
+                        sb.append( '%' );
+                        break;
+                    default:
+                        sb.append( c )
+                          .append( token );
+                }
+            }
+            else
+            {
+                sb.append( c );
+            }
+        }
+
+        final String expanded = sb.toString();
+        if ( expanded.startsWith( "~/" ) )
+        {
+            return new File( System.getProperty( "user.home" ), expanded.substring( 2 ) );
+        }
+
+        return new File( expanded );
+    }
+
+    private static String localHostName()
+    {
+        try
+        {
+            return InetAddress.getLocalHost()
+                              .getHostName();
+        }
+        catch ( final UnknownHostException e )
+        {
+            return "localhost";
+        }
+    }
+
+    static byte[] nonce()
+    {
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes( nonce );
+        return nonce;
+    }
+
+    static String hex( final byte[] bytes )
+    {
+        final StringBuilder sb = new StringBuilder();
+        for ( final byte b : bytes )
+        {
+            sb.append( String.format( "%02x", b ) );
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return the HMAC-SHA256, under the cookie, of the role and both nonces: what one side sends to prove it holds
+     *         the cookie, without revealing it to a peer that doesn't.
+     */
+    static byte[] proof( final String cookie, final byte role, final byte[] clientNonce, final byte[] masterNonce )
+    {
+        try
+        {
+            final Mac mac = Mac.getInstance( "HmacSHA256" );
+            mac.init( new SecretKeySpec( cookie.getBytes( "UTF-8" ), "HmacSHA256" ) );
+            mac.update( role );
+            mac.update( clientNonce );
+            mac.update( masterNonce );
+            return mac.doFinal();
+        }
+        catch ( final GeneralSecurityException e )
+        {
+            throw new IllegalStateException( "HmacSHA256 is unavailable: " + e.getMessage(), e );
+        }
+        catch ( final UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( "UTF-8 is unavailable: " + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Read a frame length, refusing one that is negative or larger than any peer of ours sends.
+     */
+    static int readLength( final DataInputStream in )
+        throws IOException
+    {
+        final int length = in.readInt();
+        if ( length < 0 || length > MAX_FRAME_LENGTH )
+        {
+            throw new IOException( "Invalid control frame length: " + length );
+        }
+
+        return length;
+    }
+
+    /**
+     * @return the category named by a peer, or {@link ErrorCategory#UNKNOWN} if it names none we know.
+     */
+    static ErrorCategory category( final String name )
+    {
+        for ( final ErrorCategory category : ErrorCategory.values() )
+        {
+            if ( category.name()
+                         .equals( name ) )
+            {
+                return category;
+            }
+        }
+
+        return ErrorCategory.UNKNOWN;
+    }
+
+    static void closeQuietly( final Link link )
+    {
+        if ( link != null )
+        {
+            link.close();
+        }
+    }
+
+    /**
+     * @return true if this Java runtime can listen on, and connect to, Unix domain sockets.
+     */
+    static boolean isUnixAvailable()
+    {
+        return UNIX_ADDRESS_OF != null;
+    }
+
+    /**
+     * Listen on a Unix domain socket at the given path, replacing any stale socket left there.
+     * 
+     * @return the listener, or null if this Java runtime can't listen on Unix domain sockets there (for instance,
+     *         because the path is too long for one).
+     */
+    static Listener listenUnix( final File socketFile )
+    {
+        if ( !isUnixAvailable() )
+        {
+            return null;
+        }
+
+        socketFile.delete();
+
+        ServerSocketChannel server = null;
+        try
+        {
+            server = (ServerSocketChannel) OPEN_SERVER.invoke( null, UNIX_FAMILY );
+            BIND.invoke( server, UNIX_ADDRESS_OF.invoke( null, socketFile.getPath() ) );
+
+            // the directory is private to its owner already; the cookie check is what keeps other users out.
+            socketFile.setReadable( false, false );
+            socketFile.setWritable( false, false );
+            socketFile.setReadable( true, true );
+            socketFile.setWritable( true, true );
+        }
+        catch ( final Exception e )
+        {
+            if ( server != null )
+            {
+                try
+                {
+                    server.close();
+                }
+                catch ( final IOException closing )
+                {
+                    // nothing useful to do.
+                }
+            }
+
+            return null;
+        }
+
+        final ServerSocketChannel bound = server;
+        return new Listener()
+        {
+            public String getAddress()
+            {
+                return UNIX_ADDRESS + socketFile.getAbsolutePath();
+            }
+
+            public Link accept()
+                throws IOException
+            {
+                return new ChannelLink( bound.accept() );
+            }
+
+            public void close()
+            {
+                try
+                {
+                    bound.close();
+                }
+                catch ( final IOException e )
+                {
+                    // nothing useful to do.
+                }
+
+                socketFile.delete();
+            }
+        };
+    }
+
+    /**
+     * Listen on an ephemeral loopback TCP port.
+     */
+    static Listener listenTcp()
+        throws IOException
+    {
+        final ServerSocket server = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+        return new Listener()
+        {
+            public String getAddress()
+            {
+                return Integer.toString( server.getLocalPort() );
+            }
+
+            public Link accept()
+                throws IOException
+            {
+                final Socket socket = server.accept();
+                socket.setTcpNoDelay( true );
+                return new SocketLink( socket );
+            }
+
+            public void close()
+            {
+                try
+                {
+                    server.close();
+                }
+                catch ( final IOException e )
+                {
+                    // nothing useful to do.
+                }
+            }
+        };
+    }
+
+    /**
+     * Connect to a master at an address published by {@link Listener#getAddress()}.
+     */
+    static Link connect( final String address )
+        throws IOException
+    {
+        if ( address.startsWith( UNIX_ADDRESS ) )
+        {
+            if ( !isUnixAvailable() )
+            {
+                throw new IOException( "This Java runtime cannot open Unix domain sockets." );
+            }
+
+            try
+            {
+                return new ChannelLink( (SocketChannel) OPEN_CLIENT.invoke( null, UNIX_ADDRESS_OF.invoke(
+                    null, address.substring( UNIX_ADDRESS.length() ) ) ) );
+            }
+            catch ( final Exception e )
+            {
+                final Throwable cause = e.getCause() == null ? e : e.getCause();
+                if ( cause instanceof IOException )
+                {
+                    throw (IOException) cause;
+                }
+
+                throw new IOException( "Failed to connect to control socket: " + address + ": " + cause );
+            }
+        }
+
+        final int port;
+        try
+        {
+            port = Integer.parseInt( address );
+        }
+        catch ( final NumberFormatException e )
+        {
+            throw new IOException( "Invalid control address: " + address );
+        }
+
+        final Socket socket = new Socket();
+        try
+        {
+            socket.setTcpNoDelay( true );
+            socket.connect( new InetSocketAddress( "127.0.0.1", port ), CONNECT_TIMEOUT );
+        }
+        catch ( final IOException e )
+        {
+            socket.close();
+            throw e;
+        }
+
+        return new SocketLink( socket );
+    }
+
+    /**
+     * Where a master accepts its clients.
+     */
+    interface Listener
+    {
+        /**
+         * @return the address clients pass to {@link ControlProtocol#connect(String)}.
+         */
+        String getAddress();
+
+        Link accept()
+            throws IOException;
+
+        void close();
+    }
+
+    /**
+     * One connection between a client and its master. Its streams may be read and written from different threads at
+     * once, and closing it wakes up both.
+     */
+    interface Link
+    {
+        InputStream getInputStream()
+            throws IOException;
+
+        OutputStream getOutputStream()
+            throws IOException;
+
+        void close();
+    }
+
+    private static final class SocketLink
+        implements Link
+    {
+        private final Socket socket;
+
+        SocketLink( final Socket socket )
+        {
+            this.socket = socket;
+        }
+
+        public InputStream getInputStream()
+            throws IOException
+        {
+            return socket.getInputStream();
+        }
+
+        public OutputStream getOutputStream()
+            throws IOException
+        {
+            return socket.getOutputStream();
+        }
+
+        public void close()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch ( final IOException e )
+            {
+                // nothing useful to do.
+            }
+        }
+    }
+
+    /**
+     * A Unix domain socket. The streams call the channel directly: those from {@link java.nio.channels.Channels}
+     * serialize reads and writes on one lock, so a blocked read would hold up every write.
+     */
+    private static final class ChannelLink
+        implements Link
+    {
+        private final SocketChannel channel;
+
+        private final InputStream in = new InputStream()
+        {
+            @Override
+            public int read()
+                throws IOException
+            {
+                final byte[] one = new byte[1];
+                return read( one, 0, 1 ) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read( final byte[] b, final int off, final int len )
+                throws IOException
+            {
+                return len == 0 ? 0 : channel.read( ByteBuffer.wrap( b, off, len ) );
+            }
+        };
+
+        private final OutputStream out = new OutputStream()
+        {
+            @Override
+            public void write( final int b )
+                throws IOException
+            {
+                write( new byte[] { (byte) b }, 0, 1 );
+            }
+
+            @Override
+            public void write( final byte[] b, final int off, final int len )
+                throws IOException
+            {
+                final ByteBuffer buffer = ByteBuffer.wrap( b, off, len );
+                while ( buffer.hasRemaining() )
+                {
+                    channel.write( buffer );
+                }
+            }
+        };
+
+        ChannelLink( final SocketChannel channel )
+        {
+            this.channel = channel;
+        }
+
+        public InputStream getInputStream()
+        {
+            return in;
+        }
+
+        public OutputStream getOutputStream()
+        {
+            return out;
+        }
+
+        public void close()
+        {
+            try
+            {
+                channel.close();
+            }
+            catch ( final IOException e )
+            {
+                // nothing useful to do.
+            }
+        }
+    }
+
+    /**
+     * Writes whole frames to one control connection, from any number of threads. Until the status reply has been sent
+     * with {@link #accept()}, frames wait, so that no channel output can overtake it.
+     */
+    static final class FrameWriter
+    {
+        private final DataOutputStream out;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition replied = lock.newCondition();
+
+        private boolean accepted;
+
+        private boolean refused;
+
+        FrameWriter( final DataOutputStream out, final boolean accepted )
+        {
+            this.out = out;
+            this.accepted = accepted;
+        }
+
+        void writeFrame( final byte type, final byte[] data, final int off, final int len )
+            throws IOException
+        {
+            lock.lock();
+            try
+            {
+                while ( !accepted && !refused )
+                {
+                    replied.await();
+                }
+
+                if ( refused )
+                {
+                    throw new IOException( "Control channel was refused." );
+                }
+
+                out.writeByte( type );
+                out.writeInt( len );
+                if ( len > 0 )
+                {
+                    out.write( data, off, len );
+                }
+                out.flush();
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread()
+                      .interrupt();
+                throw new InterruptedIOException( "Interrupted while waiting to send a control frame." );
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Send the OK status, and let frames through.
+         */
+        void accept()
+            throws IOException
+        {
+            lock.lock();
+            try
+            {
+                accepted = true;
+                replied.signalAll();
+
+                out.writeByte( STATUS_OK );
+                out.flush();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Send the failed status, its category and reason; frames written afterwards fail.
+         */
+        void refuse( final ErrorCategory category, final String message )
+            throws IOException
+        {
+            lock.lock();
+            try
+            {
+                refused = true;
+                replied.signalAll();
+
+                out.writeByte( STATUS_FAILED );
+                out.writeUTF( category.name() );
+                out.writeUTF( message == null ? "unknown error" : message );
+                out.flush();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Output stream that wraps everything written to it into frames of the given type, and sends an EOF frame when
+     * closed.
+     */
+    static final class FrameOutputStream
+        extends OutputStream
+    {
+        private final FrameWriter out;
+
+        private final byte type;
+
+        private final CountDownLatch closed = new CountDownLatch( 1 );
+
+        FrameOutputStream( final FrameWriter out, final byte type )
+        {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write( final int b )
+            throws IOException
+        {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len )
+            throws IOException
+        {
+            if ( closed.getCount() == 0 )
+            {
+                throw new IOException( "Stream closed" );
+            }
+
+            for ( int written = 0; written < len; written += MAX_FRAME_LENGTH )
+            {
+                out.writeFrame( type, b, off + written, Math.min( len - written, MAX_FRAME_LENGTH ) );
+            }
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            if ( closed.getCount() > 0 )
+            {
+                closed.countDown();
+                if ( type == FRAME_DATA )
+                {
+                    out.writeFrame( FRAME_EOF, null, 0, 0 );
+                }
+            }
+        }
+
+        /**
+         * Wait until this stream is closed. JSch closes a channel's streams when the channel closes (or its session
+         * ends), after any exit status has arrived.
+         */
+        void awaitClosed()
+            throws InterruptedException
+        {
+            closed.await();
+        }
+    }
+
+    /**
+     * Input stream that unwraps DATA frames, treating an EOF frame (or the end of the connection) as end of stream.
+     * Frames of other types are handed to {@link #otherFrame(byte, byte[], int)}.
+     */
+    static class FrameInputStream
+        extends InputStream
+    {
+        private final DataInputStream in;
+
+        /** Reused for each data frame, since one is consumed before the next is read. */
+        private byte[] current = new byte[0];
+
+        /** Reused for each control frame's payload, which is handled before the next frame is read. */
+        private byte[] control = new byte[0];
+
+        private int limit;
+
+        private int pos;
+
+        private boolean eof;
+
+        FrameInputStream( final DataInputStream in )
+        {
+            this.in = in;
+        }
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            while ( pos >= limit )
+            {
+                if ( eof || !nextFrame() )
+                {
+                    eof = true;
+                    return -1;
+                }
+            }
+
+            return current[pos++] & 0xff;
+        }
+
+        @Override
+        public int read( final byte[] b, final int off, final int len )
+            throws IOException
+        {
+            while ( pos >= limit )
+            {
+                if ( eof || !nextFrame() )
+                {
+                    eof = true;
+                    return -1;
+                }
+            }
+
+            final int n = Math.min( len, limit - pos );
+            System.arraycopy( current, pos, b, off, n );
+            pos += n;
+
+            return n;
+        }
+
+        @Override
+        public int available()
+        {
+            return limit - pos;
+        }
+
+        private boolean nextFrame()
+            throws IOException
+        {
+            while ( true )
+            {
+                final int type = in.read();
+                if ( type < 0 )
+                {
+                    return false;
+                }
+
+                final int length = readLength( in );
+                if ( type == FRAME_DATA )
+                {
+                    if ( current.length < length )
+                    {
+                        current = new byte[Math.max( length, BufferPool.DEFAULT_BUFFER_SIZE )];
+                    }
+
+                    in.readFully( current, 0, length );
+                    limit = length;
+                    pos = 0;
+                    return true;
+                }
+
+                readControl( length );
+
+                if ( type == FRAME_EOF )
+                {
+                    return false;
+                }
+
+                otherFrame( (byte) type, control, length );
+            }
+        }
+
+        private void readControl( final int length )
+            throws IOException
+        {
+            if ( control.length < length )
+            {
+                control = new byte[Math.max( length, 64 )];
+            }
+
+            in.readFully( control, 0, length );
+        }
+
+        /**
+         * Read and dispatch one more frame once the data stream has ended, discarding any data payload.
+         * 
+         * @return false when the connection has closed.
+         */
+        boolean nextFrameAfterEof()
+            throws IOException
+        {
+            final int type = in.read();
+            if ( type < 0 )
+            {
+                return false;
+            }
+
+            final int length = readLength( in );
+            readControl( length );
+
+            if ( type != FRAME_DATA && type != FRAME_EOF )
+            {
+                otherFrame( (byte) type, control, length );
+            }
+
+            return true;
+        }
+
+        /**
+         * Handle a frame other than data or EOF. The payload is the first {@code length} bytes of {@code data}, which is
+         * reused once this returns.
+         */
+        protected void otherFrame( final byte type, final byte[] data, final int length )
+            throws IOException
+        {
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.Workers;
+
+import com.jcraft.jsch.SocketFactory;
+
+/**
+ * JSch {@link SocketFactory} implementing "happy eyeballs" (RFC 8305) connection racing: every address the host
+ * resolves to is tried, starting a new attempt whenever the previous one fails or hasn't succeeded within the
+ * attempt delay, and the first socket to connect wins. A dead route for one address family (typically IPv6) then
+ * costs one attempt delay instead of a full TCP timeout.
+ */
+public final class HappyEyeballsSocketFactory
+    implements SocketFactory
+{
+
+    public static final long DEFAULT_ATTEMPT_DELAY = 250;
+
+    /** Connect attempts running at once, across all factories; more wait for a thread to come free. */
+    private static final int MAX_CONNECTORS = 64;
+
+    private static final ThreadPoolExecutor CONNECTORS =
+        new ThreadPoolExecutor( MAX_CONNECTORS, MAX_CONNECTORS, 60, TimeUnit.SECONDS,
+                                new LinkedBlockingQueue<Runnable>(), Workers.factory( "sshwrap connect" ) );
+
+    static
+    {
+        CONNECTORS.allowCoreThreadTimeOut( true );
+    }
+
+    private final HostResolver resolver;
+
+    private final int connectTimeout;
+
+    private final long attemptDelay;
+
+    /**
+     * @param connectTimeout Milliseconds allowed for the whole race; 0 to only rely on the system's TCP timeout.
+     */
+    public HappyEyeballsSocketFactory( final HostResolver resolver, final int connectTimeout )
+    {
+        this( resolver, connectTimeout, DEFAULT_ATTEMPT_DELAY );
+    }
+
+    public HappyEyeballsSocketFactory( final HostResolver resolver, final int connectTimeout,
+                                       final long attemptDelay )
+    {
+        this.resolver = resolver;
+        this.connectTimeout = connectTimeout;
+        this.attemptDelay = attemptDelay;
+    }
+
+    @Override
+    public Socket createSocket( final String host, final int port )
+        throws IOException, UnknownHostException
+    {
+        final InetAddress[] addresses = resolver.resolve( host );
+        final long deadline = connectTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( connectTimeout )
+                        : 0;
+
+        final BlockingQueue<Attempt> results = new LinkedBlockingQueue<Attempt>();
+        final List<Attempt> started = new ArrayList<Attempt>( addresses.length );
+        IOException lastFailure = null;
+        int failed = 0;
+
+        try
+        {
+            while ( failed < addresses.length )
+            {
+                if ( started.size() < addresses.length )
+                {
+                    final Attempt attempt = new Attempt( new InetSocketAddress( addresses[started.size()], port ),
+                                                         results );
+                    started.add( attempt );
+                    CONNECTORS.execute( attempt );
+                }
+
+                long wait = started.size() < addresses.length ? TimeUnit.MILLISECONDS.toNanos( attemptDelay )
+                                : Long.MAX_VALUE;
+                if ( deadline != 0 )
+                {
+                    final long remaining = deadline - System.nanoTime();
+                    if ( remaining <= 0 )
+                    {
+                        break;
+                    }
+                    wait = Math.min( wait, remaining );
+                }
+
+                final Attempt done =
+                    wait == Long.MAX_VALUE ? results.take() : results.poll( wait, TimeUnit.NANOSECONDS );
+                if ( done == null )
+                {
+                    continue;
+                }
+
+                if ( done.failure == null )
+                {
+                    started.remove( done );
+                    return done.socket;
+                }
+
+                lastFailure = done.failure;
+                failed++;
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread()
+                  .interrupt();
+            throw new IOException( "Interrupted while connecting to " + host + ":" + port );
+        }
+        finally
+        {
+            for ( final Attempt attempt : started )
+            {
+                attempt.abandon();
+            }
+        }
+
+        resolver.invalidate( host );
+        if ( lastFailure == null || failed < addresses.length )
+        {
+            throw new SocketTimeoutException( "Timed out connecting to " + host + ":" + port + " after "
+                + connectTimeout + "ms" );
+        }
+
+        throw lastFailure;
+    }
+
+    @Override
+    public InputStream getInputStream( final Socket socket )
+        throws IOException
+    {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream( final Socket socket )
+        throws IOException
+    {
+        return socket.getOutputStream();
+    }
+
+    private final class Attempt
+        implements Runnable
+    {
+        private final InetSocketAddress address;
+
+        private final BlockingQueue<Attempt> results;
+
+        private final Socket socket = new Socket();
+
+        private volatile boolean abandoned;
+
+        private IOException failure;
+
+        Attempt( final InetSocketAddress address, final BlockingQueue<Attempt> results )
+        {
+            this.address = address;
+            this.results = results;
+        }
+
+        @Override
+        public void run()
+        {
+            if ( abandoned )
+            {
+                // the race was decided while this attempt waited for a thread.
+                return;
+            }
+
+            try
+            {
+                socket.setTcpNoDelay( true );
+                socket.connect( address, connectTimeout );
+            }
+            catch ( final IOException e )
+            {
+                failure = e;
+                closeQuietly();
+            }
+
+            if ( abandoned )
+            {
+                closeQuietly();
+            }
+            else
+            {
+                results.add( this );
+            }
+        }
+
+        /**
+         * Another attempt won (or the race was given up); make sure this socket doesn't leak.
+         */
+        void abandon()
+        {
+            abandoned = true;
+            closeQuietly();
+        }
+
+        private void closeQuietly()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch ( final IOException e )
+            {
+                // nothing useful to do.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.net;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves host names to addresses, caching both answers and failures for a bounded time so that repeated connects
+ * to the same host don't each pay for a blocking DNS lookup.
+ * <p>
+ * Addresses are returned interleaved by family, IPv6 first (as RFC 8305 prefers, whatever order the system resolver
+ * returned them in), then alternating. That is the order {@link HappyEyeballsSocketFactory} races them in.
+ * </p>
+ */
+public final class HostResolver
+{
+
+    public static final long DEFAULT_TTL = TimeUnit.SECONDS.toMillis( 60 );
+
+    public static final long DEFAULT_NEGATIVE_TTL = TimeUnit.SECONDS.toMillis( 5 );
+
+    private static final HostResolver SHARED = new HostResolver( DEFAULT_TTL, DEFAULT_NEGATIVE_TTL );
+
+    private final ConcurrentMap<String, Lookup> cache = new ConcurrentHashMap<String, Lookup>();
+
+    private final long ttl;
+
+    private final long negativeTtl;
+
+    private final NameService names;
+
+    public HostResolver( final long ttl, final long negativeTtl )
+    {
+        this( ttl, negativeTtl, NameService.SYSTEM );
+    }
+
+    HostResolver( final long ttl, final long negativeTtl, final NameService names )
+    {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.names = names;
+    }
+
+    public static HostResolver getSharedInstance()
+    {
+        return SHARED;
+    }
+
+    /**
+     * @return all addresses for the host, interleaved by address family; never empty.
+     */
+    public InetAddress[] resolve( final String hostName )
+        throws UnknownHostException
+    {
+        final String key = hostName.toLowerCase();
+        final long now = System.currentTimeMillis();
+
+        Lookup lookup = cache.get( key );
+        if ( lookup == null || lookup.expires < now )
+        {
+            try
+            {
+                lookup = new Lookup( interleave( names.getAllByName( hostName ) ), null, now + ttl );
+            }
+            catch ( final UnknownHostException e )
+            {
+                lookup = new Lookup( null, e, now + negativeTtl );
+            }
+
+            cache.put( key, lookup );
+        }
+
+        if ( lookup.failure != null )
+        {
+            throw new UnknownHostException( lookup.failure.getMessage() );
+        }
+
+        return lookup.addresses.clone();
+    }
+
+    /**
+     * Drop the cached answer for one host, for instance after every address it resolved to failed.
+     */
+    public void invalidate( final String hostName )
+    {
+        cache.remove( hostName.toLowerCase() );
+    }
+
+    public void clear()
+    {
+        cache.clear();
+    }
+
+    static InetAddress[] interleave( final InetAddress[] addresses )
+    {
+        if ( addresses.length < 2 )
+        {
+            return addresses;
+        }
+
+        final List<InetAddress> preferred = new ArrayList<InetAddress>();
+        final List<InetAddress> other = new ArrayList<InetAddress>();
+        for ( final InetAddress address : addresses )
+        {
+            if ( address instanceof Inet6Address )
+            {
+                preferred.add( address );
+            }
+            else
+            {
+                other.add( address );
+            }
+        }
+
+        final InetAddress[] result = new InetAddress[addresses.length];
+        int i = 0;
+        for ( int idx = 0; idx < Math.max( preferred.size(), other.size() ); idx++ )
+        {
+            if ( idx < preferred.size() )
+            {
+                result[i++] = preferred.get( idx );
+            }
+
+            if ( idx < other.size() )
+            {
+                result[i++] = other.get( idx );
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Looks names up; the system resolver, unless replaced for testing.
+     */
+    interface NameService
+    {
+        NameService SYSTEM = new NameService()
+        {
+            public InetAddress[] getAllByName( final String hostName )
+                throws UnknownHostException
+            {
+                return InetAddress.getAllByName( hostName );
+            }
+        };
+
+        InetAddress[] getAllByName( String hostName )
+            throws UnknownHostException;
+    }
+
+    private static final class Lookup
+    {
+        private final InetAddress[] addresses;
+
+        private final UnknownHostException failure;
+
+        private final long expires;
+
+        Lookup( final InetAddress[] addresses, final UnknownHostException failure, final long expires )
+        {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expires = expires;
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import org.commonjava.sshwrap.io.BandwidthLimiter;
+import org.commonjava.sshwrap.io.ThrottledInputStream;
+import org.commonjava.sshwrap.io.ThrottledOutputStream;
+
+import com.jcraft.jsch.ServerSocketFactory;
+import com.jcraft.jsch.SocketFactory;
+
+/**
+ * Creates the local ends of forwarded connections (listening sockets for local forwards, outgoing sockets for remote
+ * forwards) with their traffic charged to a {@link BandwidthLimiter}.
+ */
+public final class ThrottledSocketFactory
+    implements SocketFactory, ServerSocketFactory
+{
+
+    private final BandwidthLimiter limiter;
+
+    public ThrottledSocketFactory( final BandwidthLimiter limiter )
+    {
+        this.limiter = limiter;
+    }
+
+    public ServerSocket createServerSocket( final int port, final int backlog, final InetAddress bindAddr )
+        throws IOException
+    {
+        return new ServerSocket( port, backlog, bindAddr )
+        {
+            @Override
+            public Socket accept()
+                throws IOException
+            {
+                final Socket socket = new ThrottledSocket();
+                implAccept( socket );
+
+                return socket;
+            }
+        };
+    }
+
+    public Socket createSocket( final String host, final int port )
+        throws IOException, UnknownHostException
+    {
+        return new Socket( host, port );
+    }
+
+    public InputStream getInputStream( final Socket socket )
+        throws IOException
+    {
+        return new ThrottledInputStream( socket.getInputStream(), limiter );
+    }
+
+    public OutputStream getOutputStream( final Socket socket )
+        throws IOException
+    {
+        return new ThrottledOutputStream( socket.getOutputStream(), limiter );
+    }
+
+    /**
+     * Accepted socket whose streams are throttled, since JSch reads accepted sockets' streams directly.
+     */
+    private final class ThrottledSocket
+        extends Socket
+    {
+        @Override
+        public InputStream getInputStream()
+            throws IOException
+        {
+            return new ThrottledInputStream( super.getInputStream(), limiter );
+        }
+
+        @Override
+        public OutputStream getOutputStream()
+            throws IOException
+        {
+            return new ThrottledOutputStream( super.getOutputStream(), limiter );
+        }
+    }
+
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.reactive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.commonjava.sshwrap.Workers;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Publishes the data a channel receives, as it arrives, to a single subscriber, honoring its demand.
+ * <p>
+ * Signals are delivered on worker threads, one at a time, never on the session's reader thread: a subscriber may take
+ * its time over each one without holding up the session, as long as it keeps requesting.
+ * </p>
+ * <p>
+ * Demand is the one thing that does reach the session. JSch tops a channel's window back up as soon as received data
+ * has been handed over, so the only way to hold the remote producer back is to not take the data. This publisher
+ * buffers at most its capacity (by default, one channel window) of data the subscriber hasn't requested; beyond that,
+ * the session's reader thread waits until the subscriber requests more (or cancels). While it waits, every channel on
+ * the session waits with it. So a subscriber that may stop requesting for long should have a connection of its own,
+ * and one that doesn't want the data should cancel rather than leave it unrequested.
+ * </p>
+ * <p>
+ * On Java 9 and later, <code>org.reactivestreams.FlowAdapters.toFlowPublisher(publisher)</code> adapts this to a
+ * <code>java.util.concurrent.Flow.Publisher</code>.
+ * </p>
+ */
+public final class ChannelPublisher
+    implements Publisher<ByteBuffer>
+{
+
+    private static final Logger LOGGER = Logger.getLogger( ChannelPublisher.class );
+
+    private static final ExecutorService SIGNALS =
+        Executors.newCachedThreadPool( Workers.factory( "sshwrap publish" ) );
+
+    private final long capacity;
+
+    private final Runnable onCancel;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition drained = lock.newCondition();
+
+    private final ArrayDeque<ByteBuffer> buffered = new ArrayDeque<ByteBuffer>();
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private final OutputStream sink = new Sink();
+
+    private final Runnable deliver = new Runnable()
+    {
+        public void run()
+        {
+            deliver();
+        }
+    };
+
+    private Subscriber<? super ByteBuffer> subscriber;
+
+    /** Set once onSubscribe has returned, so no other signal can overtake it. */
+    private boolean subscribed;
+
+    private long bufferedBytes;
+
+    private long demand;
+
+    private boolean done;
+
+    private Throwable error;
+
+    private boolean cancelled;
+
+    private boolean terminated;
+
+    /**
+     * @param capacity Most bytes held for the subscriber before the writer has to wait.
+     * @param onCancel Run (once) when the subscriber cancels, to release the channel; may be null.
+     */
+    ChannelPublisher( final long capacity, final Runnable onCancel )
+    {
+        this.capacity = Math.max( 1, capacity );
+        this.onCancel = onCancel;
+    }
+
+    public void subscribe( final Subscriber<? super ByteBuffer> s )
+    {
+        if ( s == null )
+        {
+            throw new NullPointerException( "Subscriber cannot be null." );
+        }
+
+        lock.lock();
+        final boolean accepted;
+        try
+        {
+            accepted = subscriber == null;
+            if ( accepted )
+            {
+                subscriber = s;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if ( !accepted )
+        {
+            s.onSubscribe( new Subscription()
+            {
+                public void request( final long n )
+                {
+                }
+
+                public void cancel()
+                {
+                }
+            } );
+            s.onError( new IllegalStateException( "Channel data can only be subscribed to once." ) );
+            return;
+        }
+
+        s.onSubscribe( new Subscription()
+        {
+            public void request( final long n )
+            {
+                ChannelPublisher.this.request( n );
+            }
+
+            public void cancel()
+            {
+                ChannelPublisher.this.cancel();
+            }
+        } );
+
+        lock.lock();
+        try
+        {
+            subscribed = true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        drain();
+    }
+
+    /**
+     * @return the stream the channel writes its data into.
+     */
+    OutputStream getSink()
+    {
+        return sink;
+    }
+
+    /**
+     * End the stream with an error instead of completing it.
+     */
+    void fail( final Throwable cause )
+    {
+        lock.lock();
+        try
+        {
+            if ( error == null && !done )
+            {
+                error = cause;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        drain();
+    }
+
+    private void request( final long n )
+    {
+        boolean invalid = false;
+        lock.lock();
+        try
+        {
+            if ( cancelled || terminated )
+            {
+                return;
+            }
+
+            if ( n <= 0 )
+            {
+                // rule 3.9: a non-positive request is an error, signalled in place of anything else.
+                error = new IllegalArgumentException( "Requested " + n + " items; requests must be positive." );
+                buffered.clear();
+                bufferedBytes = 0;
+                drained.signalAll();
+                invalid = true;
+            }
+            else
+            {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        drain();
+
+        // nobody will take the channel's data any more, so release it as a cancel would.
+        if ( invalid && onCancel != null )
+        {
+            onCancel.run();
+        }
+    }
+
+    private void cancel()
+    {
+        lock.lock();
+        try
+        {
+            if ( cancelled )
+            {
+                return;
+            }
+
+            cancelled = true;
+            buffered.clear();
+            bufferedBytes = 0;
+            drained.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if ( onCancel != null )
+        {
+            onCancel.run();
+        }
+    }
+
+    /**
+     * Have a worker deliver whatever the subscriber has asked for, then any terminal signal. Only one worker delivers
+     * at a time; while it does, others just note that there's more to do, so signals are never concurrent or
+     * re-entrant.
+     */
+    private void drain()
+    {
+        if ( wip.getAndIncrement() == 0 )
+        {
+            SIGNALS.execute( deliver );
+        }
+    }
+
+    private void deliver()
+    {
+        int missed = 1;
+        do
+        {
+            while ( true )
+            {
+                final Subscriber<? super ByteBuffer> s;
+                final ByteBuffer next;
+                lock.lock();
+                try
+                {
+                    s = subscriber;
+                    if ( !subscribed || cancelled || terminated || demand == 0 || buffered.isEmpty() )
+                    {
+                        break;
+                    }
+
+                    next = buffered.poll();
+                    bufferedBytes -= next.remaining();
+                    if ( demand != Long.MAX_VALUE )
+                    {
+                        demand--;
+                    }
+
+                    drained.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+
+                try
+                {
+                    s.onNext( next );
+                }
+                catch ( final RuntimeException e )
+                {
+                    // rule 2.13 forbids it; treat the subscription as cancelled, so the channel isn't left waiting.
+                    LOGGER.warn( "Subscriber failed in onNext; cancelling its subscription.", e );
+                    cancel();
+                }
+            }
+
+            final Subscriber<? super ByteBuffer> s;
+            final Throwable failure;
+            boolean signal = false;
+            lock.lock();
+            try
+            {
+                s = subscriber;
+                failure = error;
+                if ( subscribed && !cancelled && !terminated && ( error != null || ( done && buffered.isEmpty() ) ) )
+                {
+                    // the terminal signal is sent once; nothing more after it.
+                    terminated = true;
+                    signal = true;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            if ( signal )
+            {
+                try
+                {
+                    if ( failure == null )
+                    {
+                        s.onComplete();
+                    }
+                    else
+                    {
+                        s.onError( failure );
+                    }
+                }
+                catch ( final RuntimeException e )
+                {
+                    LOGGER.warn( "Subscriber failed handling the end of its stream.", e );
+                }
+            }
+
+            missed = wip.addAndGet( -missed );
+        }
+        while ( missed != 0 );
+    }
+
+    private final class Sink
+        extends OutputStream
+    {
+        @Override
+        public void write( final int b )
+            throws IOException
+        {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len )
+            throws IOException
+        {
+            // not pooled: the subscriber owns each chunk it is given, and may keep it.
+            final ByteBuffer chunk = ByteBuffer.allocate( len );
+            chunk.put( b, off, len )
+                 .flip();
+
+            lock.lock();
+            try
+            {
+                while ( !cancelled && error == null && bufferedBytes >= capacity )
+                {
+                    drained.await();
+                }
+
+                if ( cancelled || error != null )
+                {
+                    return;
+                }
+
+                buffered.add( chunk );
+                bufferedBytes += len;
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread()
+                      .interrupt();
+                throw new InterruptedIOException( "Interrupted while waiting for the subscriber to catch up." );
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            drain();
+        }
+
+        @Override
+        public void close()
+        {
+            lock.lock();
+            try
+            {
+                done = true;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            drain();
+        }
+    }
+
+}
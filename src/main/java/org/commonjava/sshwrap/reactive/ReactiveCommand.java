@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.reactive;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.commonjava.sshwrap.ChannelType;
+import org.commonjava.sshwrap.SSHConnection;
+import org.commonjava.sshwrap.SSHWrapException;
+import org.commonjava.sshwrap.io.BandwidthLimiter;
+import org.commonjava.sshwrap.io.ThrottledSink;
+import org.commonjava.sshwrap.tune.WindowTuner;
+import org.reactivestreams.Publisher;
+
+import com.jcraft.jsch.ChannelExec;
+
+/**
+ * A remote command whose output is published as it arrives rather than copied into a stream.
+ * <p>
+ * Each of stdout and stderr accepts one subscriber, signalled on worker threads. Output nobody has asked for yet is
+ * held up to one channel window per stream, after which the session, and every other channel on it, waits until more
+ * is requested (see {@link ChannelPublisher}); so subscribe to both, and cancel the stderr subscription to discard it.
+ * Cancelling the stdout subscription ends the command.
+ * </p>
+ */
+public final class ReactiveCommand
+{
+
+    private final String command;
+
+    private final ChannelExec channel;
+
+    private final ChannelPublisher stdout;
+
+    private final ChannelPublisher stderr;
+
+    private ReactiveCommand( final String command, final ChannelExec channel )
+    {
+        this.command = command;
+        this.channel = channel;
+        this.stdout = new ChannelPublisher( WindowTuner.DEFAULT_WINDOW_SIZE, new Runnable()
+        {
+            public void run()
+            {
+                cancel();
+            }
+        } );
+        this.stderr = new ChannelPublisher( WindowTuner.DEFAULT_WINDOW_SIZE, null );
+    }
+
+    /**
+     * Start a command on the given connection.
+     *
+     * @param timeout Maximum time to wait for the channel to open; 0 to use the host's ConnectTimeout.
+     */
+    public static ReactiveCommand start( final SSHConnection connection, final String command, final long timeout,
+                                         final TimeUnit unit )
+        throws SSHWrapException
+    {
+        final ChannelExec channel = (ChannelExec) connection.openChannel( ChannelType.exec );
+        final ReactiveCommand cmd = new ReactiveCommand( command, channel );
+
+        final BandwidthLimiter limiter = connection.getBandwidthLimiter();
+        channel.setCommand( command );
+        channel.setInputStream( null );
+        final OutputStream out;
+        final OutputStream err;
+        if ( limiter.isLimited() )
+        {
+            // passed on from workers, so that waiting for bandwidth doesn't hold up the session.
+            out = new ThrottledSink( cmd.stdout.getSink(), limiter );
+            err = new ThrottledSink( cmd.stderr.getSink(), limiter );
+        }
+        else
+        {
+            out = cmd.stdout.getSink();
+            err = cmd.stderr.getSink();
+        }
+
+        channel.setOutputStream( out );
+        channel.setExtOutputStream( err, false );
+
+        try
+        {
+            connection.connectChannel( channel, timeout, unit );
+        }
+        catch ( final SSHWrapException e )
+        {
+            channel.disconnect();
+            cmd.stdout.fail( e );
+            cmd.stderr.fail( e );
+
+            // a channel that never connected is never closed by JSch, so its streams wouldn't be either.
+            IOUtils.closeQuietly( out );
+            IOUtils.closeQuietly( err );
+            throw e;
+        }
+
+        return cmd;
+    }
+
+    public String getCommand()
+    {
+        return command;
+    }
+
+    /**
+     * @return the command's standard output, completed when the command closes it.
+     */
+    public Publisher<ByteBuffer> getStdout()
+    {
+        return stdout;
+    }
+
+    /**
+     * @return the command's standard error, completed when the channel closes.
+     */
+    public Publisher<ByteBuffer> getStderr()
+    {
+        return stderr;
+    }
+
+    public boolean isDone()
+    {
+        return channel.isClosed();
+    }
+
+    /**
+     * @return the command's exit status, or -1 if it hasn't finished (or was cancelled).
+     */
+    public int getExitStatus()
+    {
+        return channel.isClosed() ? channel.getExitStatus() : -1;
+    }
+
+    /**
+     * Stop the command, closing its channel. Subscribers that haven't cancelled see their streams complete.
+     */
+    public void cancel()
+    {
+        channel.disconnect();
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.reactive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.ChannelType;
+import org.commonjava.sshwrap.SSHConnection;
+import org.commonjava.sshwrap.SSHWrapException;
+import org.commonjava.sshwrap.io.BlockingPipe;
+import org.commonjava.sshwrap.io.BufferPool;
+import org.commonjava.sshwrap.tune.WindowTuner;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+
+/**
+ * A connection forwarded through the SSH server (a direct-tcpip channel) with both directions as reactive streams:
+ * data from the far end is published by {@link #getInbound()}, and data for it is taken from whatever publisher
+ * {@link #getOutbound()} is subscribed to, one buffer at a time, as fast as the channel accepts it.
+ */
+public final class ReactiveTunnel
+{
+
+    private final String host;
+
+    private final int port;
+
+    private final ChannelDirectTCPIP channel;
+
+    private final ChannelPublisher inbound;
+
+    private final BlockingPipe outboundPipe = new BlockingPipe();
+
+    private final Subscriber<ByteBuffer> outbound = new Outbound();
+
+    private ReactiveTunnel( final String host, final int port, final ChannelDirectTCPIP channel )
+    {
+        this.host = host;
+        this.port = port;
+        this.channel = channel;
+        this.inbound = new ChannelPublisher( WindowTuner.DEFAULT_WINDOW_SIZE, new Runnable()
+        {
+            public void run()
+            {
+                close();
+            }
+        } );
+    }
+
+    /**
+     * Open a tunnel to the given host and port, as seen from the SSH server.
+     *
+     * @param timeout Maximum time to wait for the channel to open; 0 to use the host's ConnectTimeout.
+     */
+    public static ReactiveTunnel open( final SSHConnection connection, final String host, final int port,
+                                       final long timeout, final TimeUnit unit )
+        throws SSHWrapException
+    {
+        final ChannelDirectTCPIP channel = (ChannelDirectTCPIP) connection.openChannel( ChannelType.direct_tcpip );
+        final ReactiveTunnel tunnel = new ReactiveTunnel( host, port, channel );
+
+        channel.setHost( host );
+        channel.setPort( port );
+        channel.setInputStream( tunnel.outboundPipe.getInputStream() );
+        channel.setOutputStream( tunnel.inbound.getSink() );
+
+        try
+        {
+            connection.connectChannel( channel, timeout, unit );
+        }
+        catch ( final SSHWrapException e )
+        {
+            channel.disconnect();
+            tunnel.inbound.fail( e );
+            throw e;
+        }
+
+        return tunnel;
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * @return data from the far end, completed when it closes its side. Once a channel window of it is waiting to be
+     *         requested, the whole session waits too (see {@link ChannelPublisher}).
+     */
+    public Publisher<ByteBuffer> getInbound()
+    {
+        return inbound;
+    }
+
+    /**
+     * @return a subscriber that sends what it receives to the far end, and closes our side when its publisher
+     *         completes. Subscribe it to one publisher only.
+     */
+    public Subscriber<ByteBuffer> getOutbound()
+    {
+        return outbound;
+    }
+
+    public boolean isOpen()
+    {
+        return !channel.isClosed();
+    }
+
+    public void close()
+    {
+        channel.disconnect();
+        try
+        {
+            outboundPipe.getInputStream()
+                        .close();
+        }
+        catch ( final IOException e )
+        {
+            // nothing more to send, either way.
+        }
+    }
+
+    private final class Outbound
+        implements Subscriber<ByteBuffer>
+    {
+        private Subscription subscription;
+
+        public void onSubscribe( final Subscription s )
+        {
+            if ( subscription != null )
+            {
+                s.cancel();
+                return;
+            }
+
+            subscription = s;
+            s.request( 1 );
+        }
+
+        public void onNext( final ByteBuffer buffer )
+        {
+            final OutputStream out = outboundPipe.getOutputStream();
+            try
+            {
+                if ( buffer.hasArray() )
+                {
+                    out.write( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+                }
+                else
+                {
+                    final BufferPool pool = BufferPool.getSharedInstance();
+                    final byte[] chunk = pool.acquire();
+                    try
+                    {
+                        final ByteBuffer source = buffer.duplicate();
+                        while ( source.hasRemaining() )
+                        {
+                            final int n = Math.min( chunk.length, source.remaining() );
+                            source.get( chunk, 0, n );
+                            out.write( chunk, 0, n );
+                        }
+                    }
+                    finally
+                    {
+                        pool.release( chunk );
+                    }
+                }
+            }
+            catch ( final IOException e )
+            {
+                // the tunnel has closed; stop the publisher rather than keep feeding a dead channel.
+                subscription.cancel();
+                return;
+            }
+
+            subscription.request( 1 );
+        }
+
+        public void onError( final Throwable t )
+        {
+            close();
+        }
+
+        public void onComplete()
+        {
+            try
+            {
+                outboundPipe.getOutputStream()
+                            .close();
+            }
+            catch ( final IOException e )
+            {
+                // already closed.
+            }
+        }
+    }
+
+}
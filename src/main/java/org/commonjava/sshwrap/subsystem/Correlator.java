@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.subsystem;
+
+/**
+ * Pairs responses with the requests they answer, so several requests can be outstanding on one
+ * {@link SubsystemChannel} and answered in any order.
+ */
+public interface Correlator
+{
+
+    /**
+     * @return the id of the request the given message answers, or null if it isn't a response (a notification, say).
+     */
+    String getId( byte[] message );
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.subsystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Divides a subsystem's byte stream into messages. Implementations must be stateless, so one instance can serve any
+ * number of channels; see {@link StandardFraming} for the common ones.
+ */
+public interface Framing
+{
+
+    /**
+     * Write one message, including whatever delimits it. The caller flushes.
+     */
+    void write( OutputStream out, byte[] message )
+        throws IOException;
+
+    /**
+     * Read one message.
+     *
+     * @return the message, or null if the stream ended cleanly between messages.
+     * @throws IOException if the stream ends inside a message, or isn't framed as expected.
+     */
+    byte[] read( InputStream in )
+        throws IOException;
+
+}
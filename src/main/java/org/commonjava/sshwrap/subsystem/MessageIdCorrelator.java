@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.subsystem;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Correlates NETCONF replies by the message-id attribute of their root element, which the server copies from the
+ * &lt;rpc&gt; it is answering.
+ */
+public final class MessageIdCorrelator
+    implements Correlator
+{
+
+    private static final byte[] ATTRIBUTE = { 'm', 'e', 's', 's', 'a', 'g', 'e', '-', 'i', 'd' };
+
+    public String getId( final byte[] message )
+    {
+        // only the root element's start tag is searched, so ids quoted in the reply's content can't confuse it.
+        int root = -1;
+        int end = 0;
+        for ( ; end < message.length; end++ )
+        {
+            if ( root < 0 && message[end] == '<' && end + 1 < message.length && message[end + 1] != '?'
+                && message[end + 1] != '!' )
+            {
+                root = end;
+            }
+            else if ( root >= 0 && message[end] == '>' )
+            {
+                break;
+            }
+        }
+
+        if ( root < 0 )
+        {
+            return null;
+        }
+
+        for ( int i = root + 1; i + ATTRIBUTE.length < end; i++ )
+        {
+            if ( !isSpace( message[i - 1] ) || !matches( message, i ) )
+            {
+                continue;
+            }
+
+            int p = i + ATTRIBUTE.length;
+            while ( p < end && isSpace( message[p] ) )
+            {
+                p++;
+            }
+
+            if ( p >= end || message[p] != '=' )
+            {
+                continue;
+            }
+
+            p++;
+            while ( p < end && isSpace( message[p] ) )
+            {
+                p++;
+            }
+
+            if ( p >= end || ( message[p] != '"' && message[p] != '\'' ) )
+            {
+                continue;
+            }
+
+            final byte quote = message[p];
+            final int start = p + 1;
+            int close = start;
+            while ( close < end && message[close] != quote )
+            {
+                close++;
+            }
+
+            if ( close < end )
+            {
+                try
+                {
+                    return new String( message, start, close - start, "UTF-8" );
+                }
+                catch ( final UnsupportedEncodingException e )
+                {
+                    throw new IllegalStateException( "UTF-8 is not supported", e );
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean matches( final byte[] message, final int at )
+    {
+        for ( int i = 0; i < ATTRIBUTE.length; i++ )
+        {
+            if ( message[at + i] != ATTRIBUTE[i] )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isSpace( final byte b )
+    {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+}
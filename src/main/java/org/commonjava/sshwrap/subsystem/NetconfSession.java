@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.subsystem;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.commonjava.sshwrap.SSHConnection;
+import org.commonjava.sshwrap.SSHWrapException;
+
+/**
+ * NETCONF over SSH (RFC 6242): exchanges hellos, switches to chunked framing when both sides support base:1.1, and
+ * numbers RPCs so that many can be in flight on the one channel.
+ */
+public final class NetconfSession
+{
+
+    public static final String BASE_1_0 = "urn:ietf:params:netconf:base:1.0";
+
+    public static final String BASE_1_1 = "urn:ietf:params:netconf:base:1.1";
+
+    private static final String CLIENT_HELLO = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<hello xmlns=\"" + BASE_1_0 + "\"><capabilities><capability>" + BASE_1_0 + "</capability><capability>"
+        + BASE_1_1 + "</capability></capabilities></hello>";
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    private final SubsystemChannel channel;
+
+    private final String serverHello;
+
+    private final AtomicLong messageIds = new AtomicLong();
+
+    private NetconfSession( final SubsystemChannel channel, final String serverHello )
+    {
+        this.channel = channel;
+        this.serverHello = serverHello;
+    }
+
+    /**
+     * Open the netconf subsystem on the given connection and exchange hellos.
+     *
+     * @param timeout Maximum time to wait for the channel to open; 0 to use the host's ConnectTimeout.
+     */
+    public static NetconfSession open( final SSHConnection connection, final long timeout, final TimeUnit unit )
+        throws SSHWrapException
+    {
+        final SubsystemChannel channel =
+            SubsystemChannel.connect( connection, "netconf", StandardFraming.NETCONF_1_0, new MessageIdCorrelator(),
+                                      timeout, unit );
+        try
+        {
+            channel.send( bytes( CLIENT_HELLO ) );
+
+            final String hello = string( channel.readMessage() );
+            if ( hello.contains( BASE_1_1 ) )
+            {
+                channel.setFraming( StandardFraming.NETCONF_1_1 );
+            }
+
+            channel.start();
+
+            return new NetconfSession( channel, hello );
+        }
+        catch ( final SSHWrapException e )
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the hello the server sent, listing its capabilities and the session id.
+     */
+    public String getServerHello()
+    {
+        return serverHello;
+    }
+
+    public SubsystemChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * Send an operation (e.g. "&lt;get-config&gt;...&lt;/get-config&gt;") in an &lt;rpc&gt; with the next message-id.
+     *
+     * @return the future &lt;rpc-reply&gt;.
+     */
+    public Future<byte[]> rpc( final String operation )
+        throws SSHWrapException
+    {
+        final String id = Long.toString( messageIds.incrementAndGet() );
+        return channel.call( id, bytes( "<rpc message-id=\"" + id + "\" xmlns=\"" + BASE_1_0 + "\">" + operation
+            + "</rpc>" ) );
+    }
+
+    /**
+     * Wait for the next notification (or other message that answers no outstanding RPC).
+     *
+     * @return the message, or null if none arrived in time.
+     */
+    public String receive( final long timeout, final TimeUnit unit )
+        throws SSHWrapException, InterruptedException
+    {
+        final byte[] message = channel.receive( timeout, unit );
+        return message == null ? null : string( message );
+    }
+
+    /**
+     * Ask the server to end the session (waiting briefly for it to agree), then close the channel.
+     */
+    public void close()
+    {
+        try
+        {
+            if ( channel.isOpen() )
+            {
+                rpc( "<close-session/>" ).get( CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS );
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread()
+                  .interrupt();
+        }
+        catch ( final Exception e )
+        {
+            // closing anyway.
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the given message as text.
+     */
+    public static String string( final byte[] message )
+    {
+        try
+        {
+            return new String( message, "UTF-8" );
+        }
+        catch ( final UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( "UTF-8 is not supported", e );
+        }
+    }
+
+    private static byte[] bytes( final String message )
+    {
+        try
+        {
+            return message.getBytes( "UTF-8" );
+        }
+        catch ( final UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( "UTF-8 is not supported", e );
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.subsystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.commonjava.sshwrap.io.BufferPool;
+
+/**
+ * The framings subsystems commonly use. Messages larger than {@link #MAX_MESSAGE_SIZE} are refused rather than
+ * buffered.
+ */
+public enum StandardFraming
+    implements Framing
+{
+
+    /**
+     * NETCONF 1.0 (RFC 6242 section 4.3): each message is followed by the end-of-message marker "]]>]]>".
+     */
+    NETCONF_1_0
+    {
+        private final byte[] marker = { ']', ']', '>', ']', ']', '>' };
+
+        // for each prefix of the marker, the length of its longest proper prefix that is also a suffix (KMP).
+        private final int[] fallback = { 0, 1, 0, 1, 2, 3 };
+
+        public void write( final OutputStream out, final byte[] message )
+            throws IOException
+        {
+            out.write( message );
+            out.write( marker );
+        }
+
+        public byte[] read( final InputStream in )
+            throws IOException
+        {
+            final ByteArrayOutputStream message = new ByteArrayOutputStream();
+
+            int matched = 0;
+            int b;
+            while ( ( b = in.read() ) != -1 )
+            {
+                // a mismatch releases the front of the partial marker, keeping whatever could still begin one.
+                while ( matched > 0 && b != marker[matched] )
+                {
+                    final int next = fallback[matched - 1];
+                    message.write( marker, 0, matched - next );
+                    matched = next;
+                }
+
+                if ( b == marker[matched] )
+                {
+                    if ( ++matched == marker.length )
+                    {
+                        return message.toByteArray();
+                    }
+                }
+                else
+                {
+                    message.write( b );
+                    checkSize( message.size() );
+                }
+            }
+
+            if ( message.size() > 0 || matched > 0 )
+            {
+                throw new EOFException( "Stream ended inside a NETCONF 1.0 message." );
+            }
+
+            return null;
+        }
+    },
+
+    /**
+     * NETCONF 1.1 chunked framing (RFC 6242 section 4.2): chunks of "\n#size\n" followed by the data, ending with
+     * "\n##\n".
+     */
+    NETCONF_1_1
+    {
+        public void write( final OutputStream out, final byte[] message )
+            throws IOException
+        {
+            if ( message.length > 0 )
+            {
+                out.write( ( "\n#" + message.length + "\n" ).getBytes( "US-ASCII" ) );
+                out.write( message );
+            }
+
+            out.write( "\n##\n".getBytes( "US-ASCII" ) );
+        }
+
+        public byte[] read( final InputStream in )
+            throws IOException
+        {
+            final ByteArrayOutputStream message = new ByteArrayOutputStream();
+            final int first = in.read();
+            if ( first == -1 )
+            {
+                return null;
+            }
+
+            int lf = first;
+            while ( true )
+            {
+                expect( lf, '\n' );
+                expect( in.read(), '#' );
+
+                int c = in.read();
+                if ( c == '#' )
+                {
+                    expect( in.read(), '\n' );
+                    return message.toByteArray();
+                }
+
+                long size = 0;
+                int digits = 0;
+                while ( c >= '0' && c <= '9' && digits < 10 )
+                {
+                    size = size * 10 + ( c - '0' );
+                    digits++;
+                    c = in.read();
+                }
+
+                expect( c, '\n' );
+                if ( size < 1 )
+                {
+                    throw new IOException( "Invalid NETCONF 1.1 chunk size: " + size );
+                }
+
+                checkSize( message.size() + size );
+                copy( in, message, (int) size );
+
+                lf = in.read();
+            }
+        }
+
+        private void expect( final int actual, final char expected )
+            throws IOException
+        {
+            if ( actual == -1 )
+            {
+                throw new EOFException( "Stream ended inside a NETCONF 1.1 message." );
+            }
+
+            if ( actual != expected )
+            {
+                throw new IOException( "Invalid NETCONF 1.1 framing: expected '" + expected + "' but got: "
+                    + (char) actual );
+            }
+        }
+    },
+
+    /**
+     * Each message is preceded by its length, as a 4-byte big-endian unsigned integer.
+     */
+    LENGTH_PREFIXED
+    {
+        public void write( final OutputStream out, final byte[] message )
+            throws IOException
+        {
+            final int length = message.length;
+            out.write( new byte[] { (byte) ( length >>> 24 ), (byte) ( length >>> 16 ), (byte) ( length >>> 8 ),
+                (byte) length } );
+            out.write( message );
+        }
+
+        public byte[] read( final InputStream in )
+            throws IOException
+        {
+            long length = 0;
+            for ( int i = 0; i < 4; i++ )
+            {
+                final int b = in.read();
+                if ( b == -1 )
+                {
+                    if ( i == 0 )
+                    {
+                        return null;
+                    }
+
+                    throw new EOFException( "Stream ended inside a message length." );
+                }
+
+                length = ( length << 8 ) | b;
+            }
+
+            checkSize( length );
+
+            final ByteArrayOutputStream message = new ByteArrayOutputStream( (int) length );
+            copy( in, message, (int) length );
+
+            return message.toByteArray();
+        }
+    };
+
+    /** Largest message read, in bytes. */
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+    private static void checkSize( final long size )
+        throws IOException
+    {
+        if ( size > MAX_MESSAGE_SIZE )
+        {
+            throw new IOException( "Message exceeds " + MAX_MESSAGE_SIZE + " bytes." );
+        }
+    }
+
+    private static void copy( final InputStream in, final OutputStream out, final int length )
+        throws IOException
+    {
+        final BufferPool pool = BufferPool.getSharedInstance();
+        final byte[] buf = pool.acquire();
+        try
+        {
+            int remaining = length;
+            while ( remaining > 0 )
+            {
+                final int read = in.read( buf, 0, Math.min( buf.length, remaining ) );
+                if ( read == -1 )
+                {
+                    throw new EOFException( "Stream ended inside a message." );
+                }
+
+                out.write( buf, 0, read );
+                remaining -= read;
+            }
+        }
+        finally
+        {
+            pool.release( buf );
+        }
+    }
+
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.subsystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.commonjava.sshwrap.ChannelType;
+import org.commonjava.sshwrap.ErrorCategory;
+import org.commonjava.sshwrap.SSHConnection;
+import org.commonjava.sshwrap.SSHWrapException;
+import org.commonjava.sshwrap.Workers;
+
+import com.jcraft.jsch.ChannelSubsystem;
+
+/**
+ * Message-oriented channel to an SSH subsystem (netconf, say).
+ * <p>
+ * Messages are delimited by a {@link Framing}. Requests sent with {@link #call(String, byte[])} are pipelined: any
+ * number may be outstanding at once, and each response is handed to the request it answers, as identified by a
+ * {@link Correlator}, whatever order the server answers in. Messages that answer no outstanding request are queued for
+ * {@link #receive(long, TimeUnit)}. A single daemon thread per channel reads and dispatches incoming messages.
+ * </p>
+ */
+public final class SubsystemChannel
+{
+
+    private static final Logger LOGGER = Logger.getLogger( SubsystemChannel.class );
+
+    // queued when the channel ends, to wake receivers.
+    private static final byte[] END = new byte[0];
+
+    private final String subsystem;
+
+    private final ChannelSubsystem channel;
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    private final Correlator correlator;
+
+    private final ConcurrentMap<String, Reply> pending = new ConcurrentHashMap<String, Reply>();
+
+    private final BlockingQueue<byte[]> unsolicited = new LinkedBlockingQueue<byte[]>();
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private volatile Framing readFraming;
+
+    private volatile Framing writeFraming;
+
+    private volatile SSHWrapException failure;
+
+    private SubsystemChannel( final String subsystem, final ChannelSubsystem channel, final InputStream in,
+                              final OutputStream out, final Framing framing, final Correlator correlator )
+    {
+        this.subsystem = subsystem;
+        this.channel = channel;
+        this.in = new BufferedInputStream( in );
+        this.out = new BufferedOutputStream( out );
+        this.readFraming = framing;
+        this.writeFraming = framing;
+        this.correlator = correlator;
+    }
+
+    /**
+     * Open the given subsystem and start reading messages from it.
+     *
+     * @param correlator Matches responses to requests; null if the subsystem's messages can't be correlated, in which
+     *            case everything received goes to {@link #receive(long, TimeUnit)}.
+     * @param timeout Maximum time to wait for the channel to open; 0 to use the host's ConnectTimeout.
+     */
+    public static SubsystemChannel open( final SSHConnection connection, final String subsystem,
+                                         final Framing framing, final Correlator correlator, final long timeout,
+                                         final TimeUnit unit )
+        throws SSHWrapException
+    {
+        final SubsystemChannel channel = connect( connection, subsystem, framing, correlator, timeout, unit );
+        channel.start();
+
+        return channel;
+    }
+
+    /**
+     * Open the given subsystem without starting the reader, so a handshake can be read directly with
+     * {@link #readMessage()}.
+     */
+    static SubsystemChannel connect( final SSHConnection connection, final String subsystem, final Framing framing,
+                                     final Correlator correlator, final long timeout, final TimeUnit unit )
+        throws SSHWrapException
+    {
+        final ChannelSubsystem channel = (ChannelSubsystem) connection.openChannel( ChannelType.subsystem );
+        channel.setSubsystem( subsystem );
+        try
+        {
+            final InputStream in = channel.getInputStream();
+            final OutputStream out = channel.getOutputStream();
+            connection.connectChannel( channel, timeout, unit );
+
+            return new SubsystemChannel( subsystem, channel, in, out, framing, correlator );
+        }
+        catch ( final IOException e )
+        {
+            channel.disconnect();
+            throw new SSHWrapException( "Failed to open subsystem: %s\nReason: %s", e, subsystem, e.getMessage() );
+        }
+        catch ( final SSHWrapException e )
+        {
+            channel.disconnect();
+            throw e;
+        }
+    }
+
+    public String getSubsystem()
+    {
+        return subsystem;
+    }
+
+    public boolean isOpen()
+    {
+        return failure == null && !channel.isClosed();
+    }
+
+    /**
+     * @return the number of requests sent and not yet answered.
+     */
+    public int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    /**
+     * Send a request and return at once; the response (the next message the {@link Correlator} attributes to the
+     * given id) completes the returned future. The id must not be in use by another outstanding request.
+     */
+    public Future<byte[]> call( final String id, final byte[] request )
+        throws SSHWrapException
+    {
+        if ( correlator == null )
+        {
+            throw new SSHWrapException( "No correlator configured for subsystem: %s", subsystem )
+                .withCategory( ErrorCategory.CONFIGURATION );
+        }
+
+        final Reply reply = new Reply( id );
+        if ( pending.putIfAbsent( id, reply ) != null )
+        {
+            throw new SSHWrapException( "Request id: %s is already outstanding on subsystem: %s", id, subsystem )
+                .withCategory( ErrorCategory.CONFIGURATION );
+        }
+
+        // the channel may have ended before the reply was registered, leaving nobody to fail it.
+        final SSHWrapException failed = failure;
+        if ( failed != null )
+        {
+            pending.remove( id );
+            throw failed;
+        }
+
+        try
+        {
+            send( request );
+        }
+        catch ( final SSHWrapException e )
+        {
+            pending.remove( id );
+            throw e;
+        }
+
+        return reply;
+    }
+
+    /**
+     * Send a message that expects no correlated response.
+     */
+    public void send( final byte[] message )
+        throws SSHWrapException
+    {
+        writeLock.lock();
+        try
+        {
+            writeFraming.write( out, message );
+            out.flush();
+        }
+        catch ( final IOException e )
+        {
+            throw new SSHWrapException( "Failed to send to subsystem: %s\nReason: %s", e, subsystem, e.getMessage() );
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next message that didn't answer an outstanding request.
+     *
+     * @param timeout Maximum time to wait; 0 to wait indefinitely.
+     * @return the message, or null if none arrived in time.
+     * @throws SSHWrapException if the channel has ended and no more messages are queued.
+     */
+    public byte[] receive( final long timeout, final TimeUnit unit )
+        throws SSHWrapException, InterruptedException
+    {
+        final byte[] message = timeout > 0 ? unsolicited.poll( timeout, unit ) : unsolicited.take();
+        if ( message == END )
+        {
+            // leave it for any other receivers.
+            unsolicited.offer( END );
+            throw failure;
+        }
+
+        return message;
+    }
+
+    public void close()
+    {
+        channel.disconnect();
+    }
+
+    /**
+     * Change the framing, as when a handshake negotiates a new one. Only safe while the reader isn't running.
+     */
+    void setFraming( final Framing framing )
+    {
+        this.readFraming = framing;
+        this.writeFraming = framing;
+    }
+
+    /**
+     * Read the next message directly; only for use before {@link #start()}.
+     */
+    byte[] readMessage()
+        throws SSHWrapException
+    {
+        try
+        {
+            final byte[] message = readFraming.read( in );
+            if ( message == null )
+            {
+                throw new SSHWrapException( "Subsystem: %s closed the channel.", subsystem )
+                    .withCategory( ErrorCategory.CHANNEL );
+            }
+
+            return message;
+        }
+        catch ( final IOException e )
+        {
+            throw new SSHWrapException( "Failed to read from subsystem: %s\nReason: %s", e, subsystem,
+                                        e.getMessage() );
+        }
+    }
+
+    void start()
+    {
+        Workers.newThread( "sshwrap subsystem " + subsystem, new Runnable()
+        {
+            public void run()
+            {
+                read();
+            }
+        } )
+               .start();
+    }
+
+    private void read()
+    {
+        SSHWrapException error;
+        try
+        {
+            byte[] message;
+            while ( ( message = readFraming.read( in ) ) != null )
+            {
+                dispatch( message );
+            }
+
+            error =
+                new SSHWrapException( "Subsystem: %s closed the channel.", subsystem )
+                    .withCategory( ErrorCategory.CHANNEL );
+        }
+        catch ( final IOException e )
+        {
+            error = new SSHWrapException( "Failed to read from subsystem: %s\nReason: %s", e, subsystem,
+                                          e.getMessage() );
+        }
+        catch ( final RuntimeException e )
+        {
+            LOGGER.error( "Unexpected failure reading subsystem: " + subsystem, e );
+            error = new SSHWrapException( "Failed to read from subsystem: %s\nReason: %s", e, subsystem,
+                                          e.getMessage() );
+        }
+
+        failure = error;
+        unsolicited.offer( END );
+
+        final List<Reply> orphaned = new ArrayList<Reply>( pending.values() );
+        for ( final Reply reply : orphaned )
+        {
+            if ( pending.remove( reply.id, reply ) )
+            {
+                reply.fail( error );
+            }
+        }
+
+        channel.disconnect();
+    }
+
+    private void dispatch( final byte[] message )
+    {
+        final String id = correlator == null ? null : correlator.getId( message );
+        final Reply reply = id == null ? null : pending.remove( id );
+        if ( reply != null )
+        {
+            reply.complete( message );
+        }
+        else
+        {
+            unsolicited.offer( message );
+        }
+    }
+
+    private final class Reply
+        implements Future<byte[]>
+    {
+        private final String id;
+
+        private final CountDownLatch done = new CountDownLatch( 1 );
+
+        private volatile byte[] response;
+
+        private volatile SSHWrapException error;
+
+        private volatile boolean cancelled;
+
+        Reply( final String id )
+        {
+            this.id = id;
+        }
+
+        void complete( final byte[] response )
+        {
+            this.response = response;
+            done.countDown();
+        }
+
+        void fail( final SSHWrapException error )
+        {
+            this.error = error;
+            done.countDown();
+        }
+
+        /**
+         * Stop waiting for the response. The request itself has already been sent and can't be withdrawn; a response
+         * arriving later is queued for {@link SubsystemChannel#receive(long, TimeUnit)}.
+         */
+        public boolean cancel( final boolean mayInterruptIfRunning )
+        {
+            if ( pending.remove( id, this ) )
+            {
+                cancelled = true;
+                done.countDown();
+                return true;
+            }
+
+            return false;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        public boolean isDone()
+        {
+            return done.getCount() == 0;
+        }
+
+        public byte[] get()
+            throws InterruptedException, ExecutionException
+        {
+            done.await();
+            return result();
+        }
+
+        public byte[] get( final long timeout, final TimeUnit unit )
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if ( !done.await( timeout, unit ) )
+            {
+                throw new TimeoutException( "No response to request: " + id + " on subsystem: " + subsystem );
+            }
+
+            return result();
+        }
+
+        private byte[] result()
+            throws ExecutionException
+        {
+            if ( cancelled )
+            {
+                throw new CancellationException( "Request: " + id + " was cancelled." );
+            }
+
+            if ( error != null )
+            {
+                throw new ExecutionException( error );
+            }
+
+            return response;
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.tune;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+
+/**
+ * Applies OpenSSH-style algorithm lists (Ciphers, MACs, KexAlgorithms, HostKeyAlgorithms) to a JSch session.
+ */
+public final class Algorithms
+{
+
+    private Algorithms()
+    {
+    }
+
+    /**
+     * Set the cipher proposal in both directions.
+     * 
+     * @param spec The configured list; null leaves the session's proposal alone.
+     */
+    public static void applyCiphers( final Session session, final String spec )
+    {
+        apply( session, spec, "cipher.c2s", "cipher.s2c" );
+    }
+
+    public static void applyMacs( final Session session, final String spec )
+    {
+        apply( session, spec, "mac.c2s", "mac.s2c" );
+    }
+
+    public static void applyKex( final Session session, final String spec )
+    {
+        apply( session, spec, "kex" );
+    }
+
+    public static void applyHostKeyAlgorithms( final Session session, final String spec )
+    {
+        apply( session, spec, "server_host_key" );
+    }
+
+    private static void apply( final Session session, final String spec, final String... keys )
+    {
+        if ( spec == null || spec.length() == 0 )
+        {
+            return;
+        }
+
+        final String defaults = session.getConfig( keys[0] );
+        final String resolved = resolve( spec, defaults, "server_host_key".equals( keys[0] ) ? defaults : null );
+        if ( resolved.length() == 0 )
+        {
+            // nothing we can speak was left; keep the defaults so negotiation at least has a chance.
+            return;
+        }
+
+        for ( final String key : keys )
+        {
+            session.setConfig( key, resolved );
+        }
+    }
+
+    /**
+     * Resolve an OpenSSH algorithm list against the default list: "+a,b" appends, "-a,b" removes, "^a,b" prepends, and
+     * anything else replaces the defaults. Algorithms JSch has no implementation for are dropped.
+     * 
+     * @param supported Explicit list of supported names, or null to check each name against JSch's configuration.
+     */
+    static String resolve( final String spec, final String defaults, final String supported )
+    {
+        final List<String> defaultList = split( defaults );
+        final Set<String> result = new LinkedHashSet<String>();
+
+        final char op = spec.charAt( 0 );
+        final List<String> named = split( op == '+' || op == '-' || op == '^' ? spec.substring( 1 ) : spec );
+        switch ( op )
+        {
+            case '+':
+                result.addAll( defaultList );
+                result.addAll( named );
+                break;
+            case '-':
+                result.addAll( defaultList );
+                result.removeAll( named );
+                break;
+            case '^':
+                result.addAll( named );
+                result.addAll( defaultList );
+                break;
+            default:
+                result.addAll( named );
+        }
+
+        final List<String> supportedList = supported == null ? null : split( supported );
+        final List<String> usable = new ArrayList<String>( result.size() );
+        for ( final String name : result )
+        {
+            if ( supportedList == null ? JSch.getConfig( name ) != null : supportedList.contains( name ) )
+            {
+                usable.add( name );
+            }
+        }
+
+        return StringUtils.join( usable, ',' );
+    }
+
+    private static List<String> split( final String list )
+    {
+        if ( list == null || list.trim()
+                                 .length() == 0 )
+        {
+            return new ArrayList<String>();
+        }
+
+        return Arrays.asList( list.trim()
+                                  .split( "\\s*,\\s*" ) );
+    }
+
+}
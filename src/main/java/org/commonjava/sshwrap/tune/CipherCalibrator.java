@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.tune;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.Cipher;
+import com.jcraft.jsch.JSch;
+
+/**
+ * Measures bulk encryption throughput of each candidate cipher on this machine and remembers the fastest-first
+ * order, so later connections can propose it instead of JSch's fixed default order.
+ * <p>
+ * Throughput is measured by pushing packet-sized buffers through JSch's own cipher implementations in-process (the
+ * client side of a loopback transfer), which is where the cipher choice costs CPU. Results are stored per JVM and
+ * architecture, since intrinsics such as AES-NI support change the ranking.
+ * </p>
+ */
+public final class CipherCalibrator
+{
+
+    private static final Logger LOGGER = Logger.getLogger( CipherCalibrator.class );
+
+    public static final String DEFAULT_CANDIDATES =
+        "aes128-ctr,aes192-ctr,aes256-ctr,aes128-cbc,aes192-cbc,aes256-cbc,3des-ctr,3des-cbc,blowfish-cbc";
+
+    private static final int PACKET_SIZE = 32 * 1024;
+
+    private static final int WARMUP_BYTES = 4 * 1024 * 1024;
+
+    private static final int MEASURE_BYTES = 8 * 1024 * 1024;
+
+    private static final int ROUNDS = 3;
+
+    private static final String ORDER_KEY = "ciphers";
+
+    private static final String RUNTIME_KEY = "runtime";
+
+    private final File store;
+
+    private final String candidates;
+
+    private String order;
+
+    /**
+     * @param store File the measured order is persisted in; null to keep it in memory only.
+     */
+    public CipherCalibrator( final File store )
+    {
+        this( store, DEFAULT_CANDIDATES );
+    }
+
+    public CipherCalibrator( final File store, final String candidates )
+    {
+        this.store = store;
+        this.candidates = candidates;
+    }
+
+    /**
+     * @return the stored fastest-first cipher order for this runtime, calibrating (and storing) first if there is
+     *         none.
+     */
+    public synchronized String getFastestOrder()
+    {
+        if ( order == null )
+        {
+            order = load();
+        }
+
+        if ( order == null )
+        {
+            order = calibrate();
+        }
+
+        return order;
+    }
+
+    /**
+     * Measure every candidate cipher, store the resulting order and return it.
+     */
+    public synchronized String calibrate()
+    {
+        final Map<String, Double> rates = measure();
+        final List<String> names = new ArrayList<String>( rates.keySet() );
+        Collections.sort( names, new Comparator<String>()
+        {
+            @Override
+            public int compare( final String first, final String second )
+            {
+                return Double.compare( rates.get( second ), rates.get( first ) );
+            }
+        } );
+
+        order = StringUtils.join( names, ',' );
+        if ( LOGGER.isDebugEnabled() )
+        {
+            LOGGER.debug( "Cipher throughput (MB/s): " + rates + "; using order: " + order );
+        }
+
+        save( order );
+        return order;
+    }
+
+    /**
+     * @return throughput in MB/s for each candidate cipher available in this runtime.
+     */
+    public Map<String, Double> measure()
+    {
+        final Map<String, Double> rates = new LinkedHashMap<String, Double>();
+        final byte[] packet = new byte[PACKET_SIZE];
+        final byte[] key = new byte[32];
+        for ( int i = 0; i < key.length; i++ )
+        {
+            key[i] = (byte) i;
+        }
+
+        for ( final String name : candidates.split( "," ) )
+        {
+            final String className = JSch.getConfig( name );
+            if ( className == null )
+            {
+                continue;
+            }
+
+            try
+            {
+                final Cipher cipher = (Cipher) Class.forName( className )
+                                                    .newInstance();
+                cipher.init( Cipher.ENCRYPT_MODE, key, new byte[Math.max( cipher.getIVSize(), 16 )] );
+
+                run( cipher, packet, WARMUP_BYTES );
+
+                // best of several rounds, to filter out JIT and scheduling noise.
+                double best = 0;
+                for ( int round = 0; round < ROUNDS; round++ )
+                {
+                    final long start = System.nanoTime();
+                    run( cipher, packet, MEASURE_BYTES );
+                    final long elapsed = Math.max( 1, System.nanoTime() - start );
+
+                    best = Math.max( best, ( MEASURE_BYTES / ( 1024.0 * 1024.0 ) ) / ( elapsed / 1000000000.0 ) );
+                }
+
+                rates.put( name, best );
+            }
+            catch ( final Exception e )
+            {
+                // typically a key size this runtime's JCE policy won't allow; leave it out.
+                LOGGER.debug( "Skipping cipher: " + name + ": " + e.getMessage() );
+            }
+        }
+
+        return rates;
+    }
+
+    private static void run( final Cipher cipher, final byte[] packet, final int total )
+        throws Exception
+    {
+        for ( int done = 0; done < total; done += packet.length )
+        {
+            cipher.update( packet, 0, packet.length, packet, 0 );
+        }
+    }
+
+    private static String runtime()
+    {
+        return System.getProperty( "java.vm.name" ) + " " + System.getProperty( "java.version" ) + " "
+            + System.getProperty( "os.arch" );
+    }
+
+    private String load()
+    {
+        if ( store == null || !store.canRead() )
+        {
+            return null;
+        }
+
+        final Properties props = new Properties();
+        FileInputStream in = null;
+        try
+        {
+            in = new FileInputStream( store );
+            props.load( in );
+        }
+        catch ( final IOException e )
+        {
+            return null;
+        }
+        finally
+        {
+            IOUtils.closeQuietly( in );
+        }
+
+        if ( !runtime().equals( props.getProperty( RUNTIME_KEY ) )
+            || !candidates.equals( props.getProperty( "candidates" ) ) )
+        {
+            return null;
+        }
+
+        return props.getProperty( ORDER_KEY );
+    }
+
+    private void save( final String order )
+    {
+        if ( store == null )
+        {
+            return;
+        }
+
+        final Properties props = new Properties();
+        props.setProperty( ORDER_KEY, order );
+        props.setProperty( RUNTIME_KEY, runtime() );
+        props.setProperty( "candidates", candidates );
+
+        FileOutputStream out = null;
+        try
+        {
+            out = new FileOutputStream( store );
+            props.store( out, "sshwrap cipher calibration" );
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.warn( "Failed to store cipher calibration in: " + store + ": " + e.getMessage() );
+        }
+        finally
+        {
+            IOUtils.closeQuietly( out );
+        }
+    }
+
+}
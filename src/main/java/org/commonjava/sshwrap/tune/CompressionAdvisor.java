@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.tune;
+
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decides per host whether transport compression pays off, based on what {@link LinkStatistics} has observed.
+ * <p>
+ * Compression helps when the link, not the CPU, is the bottleneck: with a compression ratio r, a link of throughput
+ * L carries L / r bytes of payload per second, but never more than the local compressor can produce. Compression is
+ * recommended when that effective rate beats the raw link rate by a clear margin.
+ * </p>
+ */
+public final class CompressionAdvisor
+{
+
+    private static final Logger LOGGER = Logger.getLogger( CompressionAdvisor.class );
+
+    private static final int MIN_SAMPLES = 2;
+
+    private static final double REQUIRED_GAIN = 1.2;
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    private static final int SAMPLE_SIZE = MEGABYTE;
+
+    private final LinkStatistics statistics;
+
+    private final int level;
+
+    private double compressibleRate = -1;
+
+    private double incompressibleRate = -1;
+
+    public CompressionAdvisor( final LinkStatistics statistics )
+    {
+        this( statistics, Deflater.DEFAULT_COMPRESSION );
+    }
+
+    public CompressionAdvisor( final LinkStatistics statistics, final int level )
+    {
+        this.statistics = statistics;
+        this.level = level;
+    }
+
+    public LinkStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * @return true to enable compression, false to disable it, or null if too little is known about the host yet.
+     */
+    public Boolean recommend( final String key )
+    {
+        final LinkStatistics.Link link = statistics.get( key );
+        if ( link.getTransferSamples() < MIN_SAMPLES )
+        {
+            return null;
+        }
+
+        final double linkRate = link.getThroughput();
+        final double ratio = link.getCompressionRatio();
+        if ( linkRate <= 0 || ratio <= 0 )
+        {
+            return null;
+        }
+
+        final double compressorRate = compressorRate( ratio );
+        final double effective = Math.min( compressorRate, linkRate / ratio );
+        final boolean compress = effective > linkRate * REQUIRED_GAIN;
+
+        if ( LOGGER.isDebugEnabled() )
+        {
+            LOGGER.debug( String.format( "%s: link %.0f B/s, ratio %.2f, compressor %.0f B/s -> compression %s", key,
+                                         linkRate, ratio, compressorRate, compress ? "on" : "off" ) );
+        }
+
+        return compress;
+    }
+
+    /**
+     * Estimate local deflate throughput for data of the given ratio, interpolating between the measured rates for
+     * highly compressible and incompressible payloads.
+     */
+    private double compressorRate( final double ratio )
+    {
+        final double[] rates = benchmark();
+        final double r = Math.max( 0, Math.min( 1, ratio ) );
+
+        return rates[0] + ( rates[1] - rates[0] ) * r;
+    }
+
+    /**
+     * Measure how fast this machine deflates a compressible (text-like) and an incompressible (random) payload, at
+     * the advisor's compression level. Measured once, then remembered.
+     * 
+     * @return bytes per second for the compressible and incompressible payloads, in that order.
+     */
+    public synchronized double[] benchmark()
+    {
+        if ( compressibleRate < 0 )
+        {
+            final byte[] text = new byte[SAMPLE_SIZE];
+            final byte[] line =
+                "2012-01-01 00:00:00 INFO [worker-7] request completed status=200 bytes=5123\n".getBytes();
+            for ( int i = 0; i < text.length; i++ )
+            {
+                text[i] = line[i % line.length];
+            }
+
+            final byte[] noise = new byte[SAMPLE_SIZE];
+            new Random( 42 ).nextBytes( noise );
+
+            // warm up, then measure.
+            deflateRate( text );
+            deflateRate( noise );
+            compressibleRate = deflateRate( text );
+            incompressibleRate = deflateRate( noise );
+
+            if ( LOGGER.isDebugEnabled() )
+            {
+                LOGGER.debug( String.format( "Deflate throughput: compressible %.1f MB/s, incompressible %.1f MB/s",
+                                             compressibleRate / MEGABYTE, incompressibleRate / MEGABYTE ) );
+            }
+        }
+
+        return new double[] { compressibleRate, incompressibleRate };
+    }
+
+    /**
+     * @return compressed size / original size for the given sample, at the advisor's compression level.
+     */
+    public double ratio( final byte[] data, final int off, final int len )
+    {
+        if ( len == 0 )
+        {
+            return 1;
+        }
+
+        final Deflater deflater = new Deflater( level );
+        try
+        {
+            deflater.setInput( data, off, len );
+            deflater.finish();
+
+            final byte[] out = new byte[8192];
+            long compressed = 0;
+            while ( !deflater.finished() )
+            {
+                compressed += deflater.deflate( out );
+            }
+
+            return (double) compressed / len;
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private double deflateRate( final byte[] data )
+    {
+        final long start = System.nanoTime();
+        ratio( data, 0, data.length );
+        final long elapsed = Math.max( 1, System.nanoTime() - start );
+
+        return data.length / ( elapsed / 1000000000.0 );
+    }
+
+}
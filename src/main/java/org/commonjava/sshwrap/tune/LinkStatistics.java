@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.tune;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.commonjava.sshwrap.config.Host;
+
+/**
+ * Process-wide record of what has been observed about the network path to each host (throughput, compressibility of
+ * the data sent over it), kept as exponentially-weighted moving averages so recent behavior dominates.
+ */
+public final class LinkStatistics
+{
+
+    private static final LinkStatistics SHARED = new LinkStatistics();
+
+    private static final double WEIGHT = 0.3;
+
+    private final ConcurrentMap<String, Link> links = new ConcurrentHashMap<String, Link>();
+
+    public static LinkStatistics getSharedInstance()
+    {
+        return SHARED;
+    }
+
+    public static String key( final Host host )
+    {
+        return host.getHostName() + ":" + host.getPort();
+    }
+
+    /**
+     * @return the statistics for one host, created empty on first use.
+     */
+    public Link get( final String key )
+    {
+        Link link = links.get( key );
+        if ( link == null )
+        {
+            final Link created = new Link();
+            link = links.putIfAbsent( key, created );
+            if ( link == null )
+            {
+                link = created;
+            }
+        }
+
+        return link;
+    }
+
+    public void clear()
+    {
+        links.clear();
+    }
+
+    static double ewma( final double current, final double sample )
+    {
+        return current < 0 ? sample : current + WEIGHT * ( sample - current );
+    }
+
+    /**
+     * Observations for a single host.
+     */
+    public static final class Link
+    {
+        private double throughput = -1;
+
+        private double compressionRatio = -1;
+
+        private int transferSamples;
+
+        private long minRoundTrip = -1;
+
+        private int windowSize;
+
+        /**
+         * Record a transfer of the given size that took the given time.
+         */
+        public synchronized void recordTransfer( final long bytes, final long nanos )
+        {
+            if ( bytes <= 0 || nanos <= 0 )
+            {
+                return;
+            }
+
+            throughput = ewma( throughput, bytes / ( nanos / 1000000000.0 ) );
+            transferSamples++;
+        }
+
+        /**
+         * Record how well a sample of the data sent over this link compressed (compressed size / original size).
+         */
+        public synchronized void recordCompressionRatio( final double ratio )
+        {
+            compressionRatio = ewma( compressionRatio, ratio );
+        }
+
+        /**
+         * @return bytes per second, or -1 if nothing has been measured yet.
+         */
+        public synchronized double getThroughput()
+        {
+            return throughput;
+        }
+
+        /**
+         * @return compressed size / original size of sampled data, or -1 if nothing has been sampled yet.
+         */
+        public synchronized double getCompressionRatio()
+        {
+            return compressionRatio;
+        }
+
+        /**
+         * Record the time a request/response exchange with the server took. Only the minimum is kept, since anything
+         * above it is queueing or server-side work rather than the latency of the path itself.
+         */
+        public synchronized void recordRoundTrip( final long nanos )
+        {
+            if ( nanos > 0 && ( minRoundTrip < 0 || nanos < minRoundTrip ) )
+            {
+                minRoundTrip = nanos;
+            }
+        }
+
+        /**
+         * @return the smallest observed round-trip time in nanoseconds, or -1 if none has been observed.
+         */
+        public synchronized long getMinRoundTrip()
+        {
+            return minRoundTrip;
+        }
+
+        /**
+         * Note the channel window that was in effect for the transfers being measured.
+         */
+        public synchronized void setWindowSize( final int windowSize )
+        {
+            this.windowSize = windowSize;
+        }
+
+        /**
+         * @return the channel window last used on this link, or 0 if unknown.
+         */
+        public synchronized int getWindowSize()
+        {
+            return windowSize;
+        }
+
+        public synchronized int getTransferSamples()
+        {
+            return transferSamples;
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.tune;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.commonjava.sshwrap.io.BufferPool;
+
+/**
+ * Passes data through while counting it and keeping a bounded sample of its leading bytes, so that the throughput
+ * and compressibility of a transfer can be recorded in {@link LinkStatistics} once it finishes.
+ * <p>
+ * Throughput is timed from the first write to the last, so that neither opening the channel nor a command that takes
+ * its time to produce output counts against the link. The sample is a buffer from the shared {@link BufferPool},
+ * taken at the first write and handed back by {@link #record(LinkStatistics.Link, CompressionAdvisor)}; if a
+ * transfer is abandoned instead, the buffer is left to the garbage collector, since the channel may still write to
+ * it.
+ * </p>
+ */
+public final class MeasuringOutputStream
+    extends FilterOutputStream
+{
+
+    /** Transfers smaller than this say more about latency than about throughput, so they aren't recorded. */
+    public static final long MIN_MEASURED_BYTES = 256 * 1024;
+
+    private final boolean sampling;
+
+    private byte[] sample;
+
+    private int sampled;
+
+    private long count;
+
+    private long firstLength;
+
+    private long first;
+
+    private long last;
+
+    /**
+     * @param sampling Whether to keep a sample for {@link CompressionAdvisor#ratio(byte[], int, int)}.
+     */
+    public MeasuringOutputStream( final OutputStream out, final boolean sampling )
+    {
+        super( out );
+        this.sampling = sampling;
+    }
+
+    @Override
+    public void write( final int b )
+        throws IOException
+    {
+        write( new byte[] { (byte) b }, 0, 1 );
+    }
+
+    @Override
+    public void write( final byte[] b, final int off, final int len )
+        throws IOException
+    {
+        if ( count == 0 )
+        {
+            first = System.nanoTime();
+            firstLength = len;
+            if ( sampling )
+            {
+                sample = BufferPool.getSharedInstance()
+                                   .acquire();
+            }
+        }
+
+        out.write( b, off, len );
+
+        if ( sample != null && sampled < sample.length )
+        {
+            final int n = Math.min( len, sample.length - sampled );
+            System.arraycopy( b, off, sample, sampled, n );
+            sampled += n;
+        }
+
+        count += len;
+        last = System.nanoTime();
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Record this transfer against the given link, if it was large enough to be meaningful, and return the sample to
+     * the pool. Only call this once nothing more will be written.
+     */
+    public void record( final LinkStatistics.Link link, final CompressionAdvisor advisor )
+    {
+        try
+        {
+            if ( count < MIN_MEASURED_BYTES )
+            {
+                return;
+            }
+
+            // the first chunk had already arrived when the clock started.
+            link.recordTransfer( count - firstLength, last - first );
+            if ( advisor != null && sample != null )
+            {
+                link.recordCompressionRatio( advisor.ratio( sample, 0, sampled ) );
+            }
+        }
+        finally
+        {
+            if ( sample != null )
+            {
+                BufferPool.getSharedInstance()
+                          .release( sample );
+                sample = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+package org.commonjava.sshwrap.tune;
+
+import java.lang.reflect.Method;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.Channel;
+
+/**
+ * Sizes SSH channel windows and packets.
+ * <p>
+ * A single channel can never carry more than one window of data per round trip, so on long, fat links JSch's 1MB
+ * default window caps throughput well below what the path can do. Windows can be set explicitly per host, or grown
+ * adaptively toward the bandwidth-delay product observed in {@link LinkStatistics}.
+ * </p>
+ */
+public final class WindowTuner
+{
+
+    private static final Logger LOGGER = Logger.getLogger( WindowTuner.class );
+
+    /** JSch's own default for session channels. */
+    public static final int DEFAULT_WINDOW_SIZE = 1024 * 1024;
+
+    public static final int MAX_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    public static final int MIN_PACKET_SIZE = 1024;
+
+    /** JSch won't read transport packets beyond 256KB, so leave room for the message framing. */
+    public static final int MAX_PACKET_SIZE = 128 * 1024;
+
+    /** Throughput above this fraction of window / RTT means the window, not the path, was the limit. */
+    private static final double WINDOW_LIMITED = 0.8;
+
+    private static Method setLocalWindowSizeMax;
+
+    private static Method setLocalWindowSize;
+
+    private static Method setLocalPacketSize;
+
+    static
+    {
+        try
+        {
+            // package-private in JSch; there is no public way to size a channel.
+            setLocalWindowSizeMax = Channel.class.getDeclaredMethod( "setLocalWindowSizeMax", int.class );
+            setLocalWindowSize = Channel.class.getDeclaredMethod( "setLocalWindowSize", int.class );
+            setLocalPacketSize = Channel.class.getDeclaredMethod( "setLocalPacketSize", int.class );
+            setLocalWindowSizeMax.setAccessible( true );
+            setLocalWindowSize.setAccessible( true );
+            setLocalPacketSize.setAccessible( true );
+        }
+        catch ( final Exception e )
+        {
+            LOGGER.warn( "Channel window tuning unavailable in this JSch version: " + e.getMessage() );
+            setLocalWindowSizeMax = null;
+        }
+    }
+
+    private final LinkStatistics statistics;
+
+    private final int maxWindowSize;
+
+    public WindowTuner( final LinkStatistics statistics )
+    {
+        this( statistics, MAX_WINDOW_SIZE );
+    }
+
+    public WindowTuner( final LinkStatistics statistics, final int maxWindowSize )
+    {
+        this.statistics = statistics;
+        this.maxWindowSize = maxWindowSize;
+    }
+
+    public LinkStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * Size a channel before it is connected. Zero (or negative) sizes leave JSch's defaults in place.
+     * 
+     * @return true if the sizes could be applied.
+     */
+    public static boolean apply( final Channel channel, final int windowSize, final int packetSize )
+    {
+        if ( setLocalWindowSizeMax == null || ( windowSize < 1 && packetSize < 1 ) )
+        {
+            return false;
+        }
+
+        try
+        {
+            if ( windowSize > 0 )
+            {
+                setLocalWindowSizeMax.invoke( channel, windowSize );
+                setLocalWindowSize.invoke( channel, windowSize );
+            }
+
+            if ( packetSize > 0 )
+            {
+                setLocalPacketSize.invoke( channel,
+                                           Math.max( MIN_PACKET_SIZE, Math.min( MAX_PACKET_SIZE, packetSize ) ) );
+            }
+
+            return true;
+        }
+        catch ( final Exception e )
+        {
+            LOGGER.warn( "Failed to size channel: " + e.getMessage() );
+            return false;
+        }
+    }
+
+    /**
+     * Choose a window for the next channel to the given host: when the last measured throughput saturated the window
+     * in use, double it; otherwise settle at twice the measured bandwidth-delay product, leaving headroom for bursts.
+     * 
+     * @return the window size, or 0 if nothing has been measured yet.
+     */
+    public int recommendWindowSize( final String key )
+    {
+        final LinkStatistics.Link link = statistics.get( key );
+        final double throughput = link.getThroughput();
+        final long rtt = link.getMinRoundTrip();
+        if ( throughput <= 0 || rtt <= 0 )
+        {
+            return 0;
+        }
+
+        final int current = link.getWindowSize() > 0 ? link.getWindowSize() : DEFAULT_WINDOW_SIZE;
+        final double bdp = throughput * rtt / 1000000000.0;
+
+        final double target = bdp >= current * WINDOW_LIMITED ? current * 2.0 : bdp * 2;
+        final int window = (int) Math.max( DEFAULT_WINDOW_SIZE, Math.min( maxWindowSize, target ) );
+
+        if ( LOGGER.isDebugEnabled() )
+        {
+            LOGGER.debug( String.format( "%s: %.0f B/s x %d us RTT = %.0f B in flight; window %d -> %d", key,
+                                         throughput, rtt / 1000, bdp, current, window ) );
+        }
+
+        return window;
+    }
+
+}
@@ -0,0 +1,15 @@
+package org.commonjava.sshwrap.ui;
+
+/**
+ * Source of credentials for {@link HeadlessPrompter}. Implementations may block (on a remote vault, for instance); the
+ * prompter bounds how long it waits for them.
+ */
+public interface CredentialProvider
+{
+
+    /**
+     * @return the credential stored under the given key, or null if this provider doesn't have one.
+     */
+    String getCredential( String key );
+
+}
@@ -0,0 +1,46 @@
+package org.commonjava.sshwrap.ui;
+
+import java.util.Map;
+
+/**
+ * Reads credentials from environment variables. A key such as <code>password.db1.example.com</code> is looked up as
+ * the variable <code>&lt;PREFIX&gt;PASSWORD_DB1_EXAMPLE_COM</code>.
+ */
+public class EnvironmentCredentialProvider
+    implements CredentialProvider
+{
+
+    private final String prefix;
+
+    private final Map<String, String> environment;
+
+    public EnvironmentCredentialProvider( final String prefix )
+    {
+        this( prefix, System.getenv() );
+    }
+
+    public EnvironmentCredentialProvider( final String prefix, final Map<String, String> environment )
+    {
+        this.prefix = prefix == null ? "" : prefix;
+        this.environment = environment;
+    }
+
+    @Override
+    public String getCredential( final String key )
+    {
+        return environment.get( variableName( key ) );
+    }
+
+    public String variableName( final String key )
+    {
+        final StringBuilder sb = new StringBuilder( prefix );
+        for ( int i = 0; i < key.length(); i++ )
+        {
+            final char c = key.charAt( i );
+            sb.append( Character.isLetterOrDigit( c ) ? Character.toUpperCase( c ) : '_' );
+        }
+
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,316 @@
+package org.commonjava.sshwrap.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.commonjava.sshwrap.Workers;
+
+/**
+ * Answers prompts from {@link CredentialProvider}s, never from a person, so it can't block a worker thread waiting for
+ * input that will never come.
+ * <p>
+ * Each prompt is matched against rules (precompiled patterns, tried in the order they were added) that map it to a
+ * credential key; group references in the key ($1, $2...) are filled from the prompt. The providers are asked for each
+ * candidate key in turn, all within a fixed time budget per prompt. If no answer turns up in time, the prompt is
+ * declined, which fails that authentication method immediately. Yes/no questions (such as accepting an unknown host
+ * key) are answered "no" unless a rule says otherwise.
+ * </p>
+ * <p>
+ * One instance may serve many connections at once, for instance across a parallel fan-out: each answer is kept for the
+ * thread that prompted (JSch reads it back on that same thread) and handed out once. Lookups run on a bounded pool of
+ * worker threads and are interrupted once their prompt is settled, so providers that hang can't pile up threads.
+ * </p>
+ * <p>
+ * After the configured rules, these defaults apply: passwords are looked up under <code>password.user@host</code> and
+ * then <code>password</code>; passphrases under <code>passphrase./path/to/key</code> and then
+ * <code>passphrase</code>; keyboard-interactive prompts mentioning a password are treated like password prompts for
+ * the destination.
+ * </p>
+ */
+public class HeadlessPrompter
+    implements Prompter
+{
+
+    private static final Logger LOGGER = Logger.getLogger( HeadlessPrompter.class );
+
+    public enum PromptType
+    {
+        PASSWORD, PASSPHRASE, YES_NO, KEYBOARD_INTERACTIVE;
+    }
+
+    /** Lookups running at once, across all prompters; more wait for a thread, within their prompt's budget. */
+    private static final int MAX_LOOKUPS = 16;
+
+    private static final ThreadPoolExecutor LOOKUPS =
+        new ThreadPoolExecutor( MAX_LOOKUPS, MAX_LOOKUPS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                Workers.factory( "credential-lookup" ) );
+
+    static
+    {
+        LOOKUPS.allowCoreThreadTimeOut( true );
+    }
+
+    private static final List<Rule> DEFAULT_RULES =
+        Arrays.asList( new Rule( PromptType.PASSWORD, Pattern.compile( "Password for (\\S+)" ), "password.$1" ),
+                       new Rule( PromptType.PASSWORD, Pattern.compile( ".*" ), "password" ),
+                       new Rule( PromptType.PASSPHRASE, Pattern.compile( "Passphrase for (\\S+)" ), "passphrase.$1" ),
+                       new Rule( PromptType.PASSPHRASE, Pattern.compile( ".*" ), "passphrase" ),
+                       new Rule( PromptType.KEYBOARD_INTERACTIVE,
+                                 Pattern.compile( "(\\S+)\\n(?i:.*password.*)", Pattern.DOTALL ), "password.$1" ),
+                       new Rule( PromptType.KEYBOARD_INTERACTIVE, Pattern.compile( "(?i:.*password.*)",
+                                                                                    Pattern.DOTALL ), "password" ) );
+
+    private final List<CredentialProvider> providers;
+
+    private final List<Rule> rules = new CopyOnWriteArrayList<Rule>();
+
+    private final long budgetNanos;
+
+    private final ThreadLocal<String> password = new ThreadLocal<String>();
+
+    private final ThreadLocal<String> passphrase = new ThreadLocal<String>();
+
+    public HeadlessPrompter( final long budget, final TimeUnit unit, final CredentialProvider... providers )
+    {
+        this.budgetNanos = unit.toNanos( budget );
+        this.providers = Arrays.asList( providers );
+    }
+
+    /**
+     * Look up prompts of the given type that match the pattern (in full) under the given key. Keyboard-interactive
+     * prompts are matched as "destination\nprompt".
+     */
+    public HeadlessPrompter addRule( final PromptType type, final String pattern, final String key )
+    {
+        rules.add( new Rule( type, Pattern.compile( pattern, Pattern.DOTALL ), key ) );
+        return this;
+    }
+
+    /**
+     * Answer yes/no prompts matching the pattern (in full) with the given answer, without consulting providers.
+     */
+    public HeadlessPrompter addYesNoRule( final String pattern, final boolean answer )
+    {
+        rules.add( new Rule( PromptType.YES_NO, Pattern.compile( pattern, Pattern.DOTALL ), answer ? "yes" : "no" ) );
+        return this;
+    }
+
+    @Override
+    public String getPassphrase()
+    {
+        return take( passphrase );
+    }
+
+    @Override
+    public String getPassword()
+    {
+        return take( password );
+    }
+
+    @Override
+    public boolean promptPassword( final String message )
+    {
+        return offer( password, resolve( PromptType.PASSWORD, message ) );
+    }
+
+    @Override
+    public boolean promptPassphrase( final String message )
+    {
+        return offer( passphrase, resolve( PromptType.PASSPHRASE, message ) );
+    }
+
+    private static boolean offer( final ThreadLocal<String> answer, final String value )
+    {
+        if ( value == null )
+        {
+            answer.remove();
+            return false;
+        }
+
+        answer.set( value );
+        return true;
+    }
+
+    private static String take( final ThreadLocal<String> answer )
+    {
+        final String value = answer.get();
+        answer.remove();
+        return value;
+    }
+
+    @Override
+    public boolean promptYesNo( final String message )
+    {
+        for ( final Rule rule : rules )
+        {
+            if ( rule.type == PromptType.YES_NO && rule.pattern.matcher( message )
+                                                               .matches() )
+            {
+                return "yes".equals( rule.key );
+            }
+        }
+
+        LOGGER.warn( "Declining unanswered question: " + message );
+        return false;
+    }
+
+    @Override
+    public void showMessage( final String message )
+    {
+        LOGGER.info( message );
+    }
+
+    @Override
+    public String[] promptKeyboardInteractive( final String destination, final String name,
+                                               final String instruction, final String[] prompt, final boolean[] echo )
+    {
+        final String[] answers = new String[prompt.length];
+        for ( int i = 0; i < prompt.length; i++ )
+        {
+            answers[i] = resolve( PromptType.KEYBOARD_INTERACTIVE, destination + "\n" + prompt[i].trim() );
+            if ( answers[i] == null )
+            {
+                // cancel rather than send a partial answer.
+                return null;
+            }
+        }
+
+        return answers;
+    }
+
+    /**
+     * Ask every provider for every candidate key at once, then take the first answer in rule/provider order, so one
+     * slow provider can't use up the budget that faster ones (or later keys) would have answered within.
+     */
+    private String resolve( final PromptType type, final String message )
+    {
+        final long deadline = System.nanoTime() + budgetNanos;
+
+        final List<Rule> all = new ArrayList<Rule>( rules );
+        all.addAll( DEFAULT_RULES );
+
+        final List<Future<String>> lookups = new ArrayList<Future<String>>();
+        for ( final Rule rule : all )
+        {
+            if ( rule.type != type )
+            {
+                continue;
+            }
+
+            final Matcher matcher = rule.pattern.matcher( message );
+            if ( matcher.matches() )
+            {
+                final String key = expand( rule.key, matcher );
+                for ( final CredentialProvider provider : providers )
+                {
+                    lookups.add( LOOKUPS.submit( new Callable<String>()
+                    {
+                        public String call()
+                        {
+                            return provider.getCredential( key );
+                        }
+                    } ) );
+                }
+            }
+        }
+
+        try
+        {
+            for ( final Future<String> lookup : lookups )
+            {
+                final String value = await( lookup, deadline - System.nanoTime() );
+                if ( value != null )
+                {
+                    return value;
+                }
+            }
+        }
+        finally
+        {
+            for ( final Future<String> lookup : lookups )
+            {
+                lookup.cancel( true );
+            }
+        }
+
+        LOGGER.warn( "No credential available within " + TimeUnit.NANOSECONDS.toMillis( budgetNanos )
+            + "ms for prompt: " + message );
+
+        return null;
+    }
+
+    private static String await( final Future<String> lookup, final long timeoutNanos )
+    {
+        try
+        {
+            return lookup.get( Math.max( 0, timeoutNanos ), TimeUnit.NANOSECONDS );
+        }
+        catch ( final TimeoutException e )
+        {
+            // too slow; a later lookup may already have its answer.
+        }
+        catch ( final ExecutionException e )
+        {
+            LOGGER.warn( "Credential lookup failed: " + e.getCause() );
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread()
+                  .interrupt();
+        }
+
+        return null;
+    }
+
+    private static String expand( final String key, final Matcher matcher )
+    {
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < key.length(); i++ )
+        {
+            final char c = key.charAt( i );
+            if ( c == '$' && i + 1 < key.length() && Character.isDigit( key.charAt( i + 1 ) ) )
+            {
+                final int group = key.charAt( ++i ) - '0';
+                if ( group <= matcher.groupCount() && matcher.group( group ) != null )
+                {
+                    sb.append( matcher.group( group ) );
+                }
+            }
+            else
+            {
+                sb.append( c );
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static final class Rule
+    {
+        final PromptType type;
+
+        final Pattern pattern;
+
+        final String key;
+
+        Rule( final PromptType type, final Pattern pattern, final String key )
+        {
+            this.type = type;
+            this.pattern = pattern;
+            this.key = key;
+        }
+    }
+
+}
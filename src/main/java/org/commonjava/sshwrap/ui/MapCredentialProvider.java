@@ -0,0 +1,33 @@
+package org.commonjava.sshwrap.ui;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds credentials in memory. Useful for handing over secrets fetched from a vault at startup, and for tests.
+ */
+public class MapCredentialProvider
+    implements CredentialProvider
+{
+
+    private final Map<String, String> credentials = new ConcurrentHashMap<String, String>();
+
+    public MapCredentialProvider setCredential( final String key, final String value )
+    {
+        credentials.put( key, value );
+        return this;
+    }
+
+    public MapCredentialProvider removeCredential( final String key )
+    {
+        credentials.remove( key );
+        return this;
+    }
+
+    @Override
+    public String getCredential( final String key )
+    {
+        return credentials.get( key );
+    }
+
+}
@@ -0,0 +1,61 @@
+package org.commonjava.sshwrap.ui;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Reads credentials from a properties file, re-reading it whenever it changes.
+ */
+public class PropertiesCredentialProvider
+    implements CredentialProvider
+{
+
+    private static final Logger LOGGER = Logger.getLogger( PropertiesCredentialProvider.class );
+
+    private final File file;
+
+    private Properties properties = new Properties();
+
+    private long lastModified = -1;
+
+    public PropertiesCredentialProvider( final File file )
+    {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized String getCredential( final String key )
+    {
+        final long modified = file.lastModified();
+        if ( modified != lastModified )
+        {
+            final Properties loaded = new Properties();
+            InputStream in = null;
+            try
+            {
+                in = new FileInputStream( file );
+                loaded.load( in );
+            }
+            catch ( final IOException e )
+            {
+                LOGGER.warn( "Failed to read credentials from: " + file + ": " + e.getMessage() );
+            }
+            finally
+            {
+                IOUtils.closeQuietly( in );
+            }
+
+            properties = loaded;
+            lastModified = modified;
+        }
+
+        return properties.getProperty( key );
+    }
+
+}
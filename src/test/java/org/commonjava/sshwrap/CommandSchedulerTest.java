@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.CommandScheduler.Priority;
+import org.commonjava.sshwrap.config.Host;
+import org.junit.Test;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+
+public class CommandSchedulerTest
+{
+
+    private final List<String> granted = Collections.synchronizedList( new ArrayList<String>() );
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    @Test
+    public void higherPriorityGoesFirst()
+        throws InterruptedException
+    {
+        final CommandScheduler scheduler = new CommandScheduler( null, 1 );
+        scheduler.acquire( Priority.NORMAL, "t" );
+
+        enqueue( scheduler, Priority.BULK, "t", "bulk" );
+        enqueue( scheduler, Priority.NORMAL, "t", "normal" );
+        enqueue( scheduler, Priority.INTERACTIVE, "t", "interactive" );
+        drain( scheduler );
+
+        assertEquals( Arrays.asList( "interactive", "normal", "bulk" ), granted );
+    }
+
+    @Test
+    public void tenantsShareInProportionToTheirWeights()
+        throws InterruptedException
+    {
+        final CommandScheduler scheduler = new CommandScheduler( null, 1 );
+        scheduler.setTenantWeight( "a", 2 );
+        scheduler.acquire( Priority.NORMAL, "x" );
+
+        for ( int i = 0; i < 6; i++ )
+        {
+            enqueue( scheduler, Priority.NORMAL, "a", "a" );
+        }
+        for ( int i = 0; i < 3; i++ )
+        {
+            enqueue( scheduler, Priority.NORMAL, "b", "b" );
+        }
+        drain( scheduler );
+
+        assertEquals( Arrays.asList( "a", "a", "b", "a", "a", "b", "a", "a", "b" ), granted );
+    }
+
+    @Test
+    public void aBusyTenantDoesNotStarveALateOne()
+        throws InterruptedException
+    {
+        final CommandScheduler scheduler = new CommandScheduler( null, 1 );
+        scheduler.acquire( Priority.NORMAL, "x" );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            enqueue( scheduler, Priority.NORMAL, "busy", "busy" );
+        }
+        enqueue( scheduler, Priority.NORMAL, "late", "late" );
+        drain( scheduler );
+
+        assertEquals( Arrays.asList( "busy", "late", "busy", "busy", "busy", "busy" ), granted );
+    }
+
+    @Test
+    public void requestsWaitOnlyWhenEveryChannelIsBusy()
+        throws InterruptedException
+    {
+        final CommandScheduler scheduler = new CommandScheduler( null, 2 );
+        scheduler.acquire( Priority.BULK, "t" );
+        scheduler.acquire( Priority.BULK, "t" );
+
+        assertEquals( 2, scheduler.getChannelsInUse() );
+
+        enqueue( scheduler, Priority.NORMAL, "t", "third" );
+        assertEquals( 1, scheduler.getQueueDepth( Priority.NORMAL ) );
+
+        drain( scheduler );
+        scheduler.release();
+
+        assertEquals( Arrays.asList( "third" ), granted );
+        assertEquals( 0, scheduler.getChannelsInUse() );
+    }
+
+    @Test
+    public void aRefusedChannelLowersTheLimitAndFreesItsSlot()
+        throws Exception
+    {
+        final ChannelConnection connection = new ChannelConnection();
+        final CommandScheduler scheduler = new CommandScheduler( connection, 4 );
+        scheduler.acquire( Priority.BULK, "t" );
+        scheduler.acquire( Priority.BULK, "t" );
+
+        final Channel channel = scheduler.openChannel( Priority.NORMAL, "t", ChannelType.exec );
+        assertEquals( 3, scheduler.getChannelsInUse() );
+
+        connection.refuse = true;
+        try
+        {
+            scheduler.connectChannel( channel, 5, TimeUnit.SECONDS );
+            fail( "refused channel connected" );
+        }
+        catch ( final SSHWrapException e )
+        {
+            assertSame( ErrorCategory.CHANNEL, e.getCategory() );
+        }
+
+        // the server allowed the two already open.
+        assertEquals( 2, scheduler.getMaxChannels() );
+        assertEquals( 2, scheduler.getChannelsInUse() );
+
+        // closing it again, as callers do in a finally block, doesn't give up a slot twice.
+        scheduler.closeChannel( channel );
+        assertEquals( 2, scheduler.getChannelsInUse() );
+        assertEquals( TimeUnit.SECONDS.toNanos( 5 ), connection.timeoutNanos );
+    }
+
+    @Test
+    public void aConnectedChannelHoldsItsSlotUntilClosed()
+        throws Exception
+    {
+        final CommandScheduler scheduler = new CommandScheduler( new ChannelConnection(), 4 );
+
+        final Channel channel = scheduler.openChannel( Priority.NORMAL, "t", ChannelType.exec );
+        scheduler.connectChannel( channel, 0, TimeUnit.SECONDS );
+        assertEquals( 1, scheduler.getChannelsInUse() );
+
+        scheduler.closeChannel( channel );
+        assertEquals( 0, scheduler.getChannelsInUse() );
+        assertEquals( 4, scheduler.getMaxChannels() );
+    }
+
+    /**
+     * Start a thread that waits for a channel, then notes that it got one and gives it back. Returns once the request
+     * is queued, so requests queue in the order they are made.
+     */
+    private void enqueue( final CommandScheduler scheduler, final Priority priority, final String tenant,
+                          final String label )
+        throws InterruptedException
+    {
+        final int depth = scheduler.getQueueDepth( priority );
+        final Thread t = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    scheduler.acquire( priority, tenant );
+                }
+                catch ( final InterruptedException e )
+                {
+                    return;
+                }
+
+                granted.add( label );
+                scheduler.release();
+            }
+        } );
+        t.start();
+        threads.add( t );
+
+        while ( scheduler.getQueueDepth( priority ) == depth )
+        {
+            Thread.sleep( 1 );
+        }
+    }
+
+    /**
+     * Give back the test's own channel, and wait for every queued request to have had its turn.
+     */
+    private void drain( final CommandScheduler scheduler )
+        throws InterruptedException
+    {
+        scheduler.release();
+        for ( final Thread t : threads )
+        {
+            t.join( 5000 );
+        }
+    }
+
+    /**
+     * Hands out unconnected channels, and accepts or refuses (as administratively prohibited) connecting them.
+     */
+    private static final class ChannelConnection
+        extends SSHConnection
+    {
+        private volatile boolean refuse;
+
+        private volatile long timeoutNanos;
+
+        ChannelConnection()
+        {
+            super( new Host(), null, null, null );
+        }
+
+        @Override
+        public Channel openChannel( final ChannelType type )
+            throws SSHWrapException
+        {
+            try
+            {
+                final Constructor<ChannelExec> ctor = ChannelExec.class.getDeclaredConstructor();
+                ctor.setAccessible( true );
+                return ctor.newInstance();
+            }
+            catch ( final Exception e )
+            {
+                throw new SSHWrapException( "Failed to create channel: %s", e, e.getMessage() );
+            }
+        }
+
+        @Override
+        public void connectChannel( final Channel channel, final long timeout, final TimeUnit unit )
+            throws SSHWrapException
+        {
+            timeoutNanos = unit.toNanos( timeout );
+            if ( refuse )
+            {
+                throw new ChannelRefusedException( 1, null );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.HostHealth.State;
+import org.junit.Test;
+
+public class HostHealthTest
+{
+
+    private static final long OPEN_MILLIS = 100;
+
+    private final HostHealth health = new HostHealth( "web:22", 4, 2, 0.5, OPEN_MILLIS, TimeUnit.MILLISECONDS );
+
+    @Test
+    public void tripsOnceTheFailureRateReachesTheThreshold()
+    {
+        health.failed( health.acquire() );
+        assertSame( "too few samples to judge", State.CLOSED, health.getState() );
+
+        health.succeeded( health.acquire(), 1000 );
+        health.succeeded( health.acquire(), 1000 );
+        assertSame( State.CLOSED, health.getState() );
+
+        health.failed( health.acquire() );
+        assertEquals( 0.5, health.getFailureRate(), 0 );
+        assertSame( State.OPEN, health.getState() );
+        assertEquals( -1, health.acquire() );
+        assertEquals( 0, health.getInFlight() );
+    }
+
+    @Test
+    public void letsOneProbeThroughOnceHalfOpen()
+        throws InterruptedException
+    {
+        trip();
+        Thread.sleep( OPEN_MILLIS + 20 );
+        assertSame( State.HALF_OPEN, health.getState() );
+
+        final long probe = health.acquire();
+        assertTrue( probe >= 0 );
+        assertEquals( -1, health.acquire() );
+
+        health.succeeded( probe, 1000 );
+        assertSame( State.CLOSED, health.getState() );
+        assertEquals( 0, health.getFailureRate(), 0 );
+        assertTrue( health.acquire() >= 0 );
+    }
+
+    @Test
+    public void reopensWhenTheProbeFails()
+        throws InterruptedException
+    {
+        trip();
+        Thread.sleep( OPEN_MILLIS + 20 );
+
+        health.failed( health.acquire() );
+        assertSame( State.OPEN, health.getState() );
+        assertEquals( -1, health.acquire() );
+    }
+
+    @Test
+    public void lateOutcomesCannotSettleTheProbe()
+        throws InterruptedException
+    {
+        final long slowFailure = health.acquire();
+        final long slowSuccess = health.acquire();
+        final long slowAbandon = health.acquire();
+        trip();
+        Thread.sleep( OPEN_MILLIS + 20 );
+
+        final long probe = health.acquire();
+        assertTrue( probe >= 0 );
+
+        // requests let through before the breaker tripped finish while the probe is out.
+        health.failed( slowFailure );
+        assertSame( "re-opened by a request from before the trip", State.HALF_OPEN, health.getState() );
+
+        health.succeeded( slowSuccess, 1000 );
+        assertSame( "closed by a request from before the trip", State.HALF_OPEN, health.getState() );
+
+        health.abandoned( slowAbandon );
+        assertEquals( "a second probe got through", -1, health.acquire() );
+
+        assertEquals( 1, health.getInFlight() );
+        health.succeeded( probe, 1000 );
+        assertSame( State.CLOSED, health.getState() );
+        assertEquals( 0, health.getInFlight() );
+    }
+
+    @Test
+    public void abandonedProbesLetAnotherThrough()
+        throws InterruptedException
+    {
+        trip();
+        Thread.sleep( OPEN_MILLIS + 20 );
+
+        health.abandoned( health.acquire() );
+        assertSame( State.HALF_OPEN, health.getState() );
+        assertTrue( health.acquire() >= 0 );
+    }
+
+    @Test
+    public void ranksByLatencyAndLoad()
+    {
+        assertEquals( 5.0, health.score( 5 ), 0 );
+
+        final long first = health.acquire();
+        health.acquire();
+        assertEquals( 15.0, health.score( 5 ), 0 );
+
+        health.succeeded( first, 100 );
+        assertEquals( 200.0, health.score( 5 ), 0 );
+    }
+
+    private void trip()
+    {
+        health.failed( health.acquire() );
+        health.failed( health.acquire() );
+        assertSame( State.OPEN, health.getState() );
+    }
+
+}
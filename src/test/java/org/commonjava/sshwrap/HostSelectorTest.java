@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.config.Host;
+import org.commonjava.sshwrap.config.SSHConfiguration;
+import org.junit.Test;
+
+public class HostSelectorTest
+{
+
+    private final Map<String, FakeConnection> connections = new HashMap<String, FakeConnection>();
+
+    private final HostSelector.ConnectionFactory factory = new HostSelector.ConnectionFactory()
+    {
+        public SSHConnection connect( final String host )
+            throws SSHWrapException
+        {
+            final FakeConnection connection = connections.get( host );
+            if ( connection == null )
+            {
+                throw new SSHWrapException( "Connection refused: %s", host ).withCategory( ErrorCategory.CONNECTION );
+            }
+
+            return connection;
+        }
+    };
+
+    private final HostSelector selector =
+        new HostSelector( new Configuration(), factory, 4, 1, 0.5, 1, TimeUnit.MINUTES, "a", "b" );
+
+    @Test
+    public void failsOverWithoutPassingOnPartialOutput()
+        throws Exception
+    {
+        connections.put( "a", new FakeConnection( "partial", false ) );
+        connections.put( "b", new FakeConnection( "whole", true ) );
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals( 0, selector.execute( "uptime", out, true ) );
+        assertEquals( "whole", out.toString( "UTF-8" ) );
+
+        // re-runs are the selector's to make, on a fresh attempt.
+        assertFalse( connections.get( "a" ).idempotent );
+        assertSame( HostHealth.State.OPEN, selector.getHealth( "a" )
+                                                   .getState() );
+    }
+
+    @Test
+    public void streamsAndStopsOnTheFirstFailureUnlessIdempotent()
+        throws Exception
+    {
+        connections.put( "a", new FakeConnection( "partial", false ) );
+        connections.put( "b", new FakeConnection( "whole", true ) );
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try
+        {
+            selector.execute( "reboot", out, false );
+            fail( "failed over a command that may have run" );
+        }
+        catch ( final SSHWrapException e )
+        {
+            assertEquals( "partial", out.toString( "UTF-8" ) );
+            assertEquals( 0, connections.get( "b" ).runs );
+        }
+    }
+
+    @Test
+    public void failsOverConnectFailuresAndSkipsOpenBreakers()
+        throws Exception
+    {
+        connections.put( "b", new FakeConnection( "whole", true ) );
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals( 0, selector.execute( "reboot", out, false ) );
+        assertEquals( "whole", out.toString( "UTF-8" ) );
+        assertSame( HostHealth.State.OPEN, selector.getHealth( "a" )
+                                                   .getState() );
+
+        assertEquals( "b", selector.select() );
+        connections.put( "a", new FakeConnection( "never", true ) );
+        selector.execute( "reboot", new ByteArrayOutputStream(), false );
+        assertEquals( 0, connections.get( "a" ).runs );
+        assertEquals( 2, connections.get( "b" ).runs );
+    }
+
+    @Test
+    public void doesNotBlameTheHostForTheCallersStream()
+        throws Exception
+    {
+        connections.put( "a", new FakeConnection( "whole", true ) );
+
+        final OutputStream broken = new OutputStream()
+        {
+            @Override
+            public void write( final int b )
+                throws IOException
+            {
+                throw new IOException( "Disk full" );
+            }
+        };
+
+        for ( final boolean idempotent : new boolean[] { false, true } )
+        {
+            try
+            {
+                selector.execute( "cat big", broken, idempotent );
+                fail( "output was lost silently" );
+            }
+            catch ( final IOException e )
+            {
+                assertEquals( "Disk full", e.getMessage() );
+            }
+
+            final HostHealth a = selector.getHealth( "a" );
+            assertSame( HostHealth.State.CLOSED, a.getState() );
+            assertEquals( 0, a.getFailureRate(), 0 );
+            assertEquals( 0, a.getInFlight() );
+        }
+    }
+
+    private static final class FakeConnection
+        extends SSHConnection
+    {
+        private final String output;
+
+        private final boolean succeeds;
+
+        private volatile int runs;
+
+        private volatile boolean idempotent;
+
+        FakeConnection( final String output, final boolean succeeds )
+        {
+            super( new Host(), new Configuration(), null, null );
+            this.output = output;
+            this.succeeds = succeeds;
+        }
+
+        @Override
+        public int execute( final String command, final OutputStream cmdOutput, final boolean idempotent )
+            throws IOException, SSHWrapException
+        {
+            runs++;
+            this.idempotent = idempotent;
+            cmdOutput.write( output.getBytes( "UTF-8" ) );
+            if ( !succeeds )
+            {
+                throw new SSHWrapException( "SSH session was lost after the command started." )
+                    .withCategory( ErrorCategory.SESSION_LOST );
+            }
+
+            return 0;
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return succeeds;
+        }
+
+        @Override
+        public SSHConnection disconnect()
+        {
+            return this;
+        }
+    }
+
+    private static final class Configuration
+        implements SSHConfiguration
+    {
+        public Host lookup( final String hostName )
+        {
+            final Host h = new Host();
+            h.setHostName( hostName );
+            h.setPort( 22 );
+            return h;
+        }
+
+        public Set<File> getIdentities()
+        {
+            return Collections.emptySet();
+        }
+
+        public InputStream getKnownHosts()
+        {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.commonjava.sshwrap.config.Host;
+import org.commonjava.sshwrap.config.LocalForward;
+import org.commonjava.sshwrap.config.SSHConfiguration;
+import org.junit.Test;
+
+public class JumpHostPoolTest
+{
+
+    private final Configuration config = new Configuration();
+
+    @Test
+    public void resolvesTheLastHopOfAChain()
+        throws SSHWrapException
+    {
+        final Host bastion = new Host();
+        bastion.setHostName( "10.0.0.1" );
+        bastion.setUser( "jump" );
+        bastion.addLocalForward( new LocalForward( 8080, "intranet", 80 ) );
+        config.hosts.put( "bastion", bastion );
+
+        final Host h = JumpHostPool.jumpHost( "outer,ops@bastion:2222", config );
+        assertEquals( "10.0.0.1", h.getHostName() );
+        assertEquals( "ops", h.getUser() );
+        assertEquals( 2222, h.getPort() );
+        assertEquals( "outer", h.getProxyJump() );
+        assertTrue( h.getLocalForwards()
+                     .isEmpty() );
+
+        // the configured host itself is left alone.
+        assertEquals( "jump", bastion.getUser() );
+        assertEquals( 1, bastion.getLocalForwards()
+                                .size() );
+    }
+
+    @Test
+    public void acceptsBracketedIpv6Addresses()
+        throws SSHWrapException
+    {
+        final Host h = JumpHostPool.jumpHost( "[fd00::1]:2200", config );
+        assertEquals( "fd00::1", h.getHostName() );
+        assertEquals( 2200, h.getPort() );
+        assertNull( h.getProxyJump() );
+
+        // without brackets, colons are part of the address.
+        assertEquals( "fd00::1", JumpHostPool.jumpHost( "fd00::1", config )
+                                             .getHostName() );
+    }
+
+    @Test
+    public void rejectsMalformedPortsAsConfigurationErrors()
+    {
+        for ( final String chain : new String[] { "bastion:ssh", "bastion:", "bastion:0", "bastion:70000",
+            "[fd00::1]:x", "ok,bastion:-1" } )
+        {
+            try
+            {
+                JumpHostPool.jumpHost( chain, config );
+                fail( "accepted: " + chain );
+            }
+            catch ( final SSHWrapException e )
+            {
+                assertSame( chain, ErrorCategory.CONFIGURATION, e.getCategory() );
+            }
+        }
+    }
+
+    @Test
+    public void failsFastOnAJumpLoop()
+    {
+        final Host a = new Host();
+        a.setProxyJump( "b" );
+        config.hosts.put( "a", a );
+
+        final Host b = new Host();
+        b.setProxyJump( "a" );
+        config.hosts.put( "b", b );
+
+        final JumpHostPool pool = new JumpHostPool();
+        for ( int i = 0; i < 2; i++ )
+        {
+            // the failed bastion is discarded, so the second attempt fails the same way rather than waiting on it.
+            try
+            {
+                pool.acquire( "a", config, null );
+                fail( "acquired a looping chain" );
+            }
+            catch ( final SSHWrapException e )
+            {
+                assertSame( ErrorCategory.CONFIGURATION, e.getCategory() );
+                assertTrue( e.getMessage(), e.getMessage()
+                                             .contains( "loop" ) );
+            }
+        }
+    }
+
+    private static final class Configuration
+        implements SSHConfiguration
+    {
+        private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+        public Host lookup( final String hostName )
+        {
+            final Host h = hosts.get( hostName );
+            if ( h != null )
+            {
+                return h;
+            }
+
+            final Host created = new Host();
+            created.setHostName( hostName );
+            return created;
+        }
+
+        public Set<File> getIdentities()
+        {
+            return Collections.emptySet();
+        }
+
+        public InputStream getKnownHosts()
+        {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.sshwrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.io.BandwidthLimiter;
+import org.junit.Test;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+
+public class RemoteCommandTest
+{
+
+    @Test
+    public void waitForReturnsWhenTheChannelCloses()
+        throws Exception
+    {
+        final ChannelExec channel = channel();
+        final RemoteCommand cmd = new RemoteCommand( "true", channel, null, new ByteArrayOutputStream(), null );
+
+        final Thread server = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep( 100 );
+                    exit( channel, 3 );
+                }
+                catch ( final Exception e )
+                {
+                    // waitFor() below times out.
+                }
+            }
+        } );
+        server.start();
+
+        assertTrue( cmd.waitFor( 5, TimeUnit.SECONDS ) );
+        assertTrue( cmd.isDone() );
+        assertEquals( 3, cmd.getExitStatus() );
+        assertFalse( cmd.isCancelled() );
+    }
+
+    @Test
+    public void waitForTimesOutWhileTheCommandRuns()
+        throws Exception
+    {
+        final ChannelExec channel = channel();
+        final RemoteCommand cmd = new RemoteCommand( "sleep 60", channel, null, new ByteArrayOutputStream(), null );
+
+        final long start = System.nanoTime();
+        assertFalse( cmd.waitFor( 100, TimeUnit.MILLISECONDS ) );
+
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertTrue( "took " + elapsed + "ms", elapsed >= 90 && elapsed < 2000 );
+        assertFalse( cmd.isDone() );
+
+        cmd.release();
+    }
+
+    @Test
+    public void cancelReleasesWaiters()
+        throws Exception
+    {
+        final RemoteCommand cmd = new RemoteCommand( "sleep 60", channel(), null, new ByteArrayOutputStream(), null );
+
+        cmd.cancel();
+        assertTrue( cmd.waitFor( 1, TimeUnit.SECONDS ) );
+        assertTrue( cmd.isCancelled() );
+        assertEquals( -1, cmd.getExitStatus() );
+    }
+
+    @Test
+    public void flushesButLeavesTheCallersStreamsOpen()
+        throws Exception
+    {
+        final TrackingOutputStream out = new TrackingOutputStream();
+        final TrackingOutputStream err = new TrackingOutputStream();
+        final ChannelExec channel = channel();
+        final RemoteCommand cmd = new RemoteCommand( "true", channel, null, out, err );
+
+        exit( channel, 0 );
+        assertEquals( 0, cmd.waitFor() );
+        assertTrue( out.flushed && err.flushed );
+        assertFalse( out.closed || err.closed );
+    }
+
+    @Test
+    public void throttledOutputIsDeliveredWithoutHoldingUpTheSession()
+        throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ChannelExec channel = channel();
+        final RemoteCommand cmd =
+            new RemoteCommand( "cat big", channel, null, out, null, new BandwidthLimiter( 320 * 1024, null ) );
+
+        // four 32K bursts at 320K/s: the first passes at once, the rest take 300ms.
+        final byte[] data = new byte[128 * 1024];
+        final long start = System.nanoTime();
+        final Method write = Channel.class.getDeclaredMethod( "write", byte[].class, int.class, int.class );
+        write.setAccessible( true );
+        write.invoke( channel, data, 0, data.length );
+        exit( channel, 0 );
+        assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) < 100 );
+
+        // waiting covers the output still being passed on.
+        assertEquals( 0, cmd.waitFor() );
+        assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) >= 270 );
+        assertEquals( data.length, out.size() );
+    }
+
+    /**
+     * @return an exec channel that JSch considers open, on a session that never connects.
+     */
+    private static ChannelExec channel()
+        throws Exception
+    {
+        final Constructor<ChannelExec> ctor = ChannelExec.class.getDeclaredConstructor();
+        ctor.setAccessible( true );
+        final ChannelExec channel = ctor.newInstance();
+
+        final Method setSession = Channel.class.getDeclaredMethod( "setSession", Session.class );
+        setSession.setAccessible( true );
+        setSession.invoke( channel, new JSch().getSession( "user", "localhost" ) );
+
+        final Field connected = Channel.class.getDeclaredField( "connected" );
+        connected.setAccessible( true );
+        connected.setBoolean( channel, true );
+
+        return channel;
+    }
+
+    /**
+     * Do what the session does when the server reports an exit status, then closes the channel.
+     */
+    private static void exit( final ChannelExec channel, final int status )
+        throws Exception
+    {
+        final Method setExitStatus = Channel.class.getDeclaredMethod( "setExitStatus", int.class );
+        setExitStatus.setAccessible( true );
+        setExitStatus.invoke( channel, status );
+
+        channel.disconnect();
+    }
+
+    private static final class TrackingOutputStream
+        extends OutputStream
+    {
+        private volatile boolean flushed;
+
+        private volatile boolean closed;
+
+        @Override
+        public void write( final int b )
+        {
+        }
+
+        @Override
+        public void flush()
+        {
+            flushed = true;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+}
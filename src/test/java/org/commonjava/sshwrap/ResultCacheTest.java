@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.sshwrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.commonjava.sshwrap.config.Host;
+import org.commonjava.sshwrap.config.SSHConfiguration;
+import org.junit.Test;
+
+public class ResultCacheTest
+{
+
+    @Test
+    public void reusesAResultUntilItExpires()
+        throws Exception
+    {
+        final ResultCache cache = new ResultCache( 10, 1024, 200, TimeUnit.MILLISECONDS );
+        final FakeConnection connection = new FakeConnection( "web1", "ops" );
+
+        assertEquals( "uname -a #1", run( cache, connection, "uname -a" ) );
+        assertEquals( "uname -a #1", run( cache, connection, "uname -a" ) );
+        assertEquals( 1, connection.runs.get() );
+        assertEquals( 1, cache.getHits() );
+
+        Thread.sleep( 300 );
+        assertEquals( "uname -a #2", run( cache, connection, "uname -a" ) );
+        assertEquals( 2, cache.getMisses() );
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedBeyondMaxEntries()
+        throws Exception
+    {
+        final ResultCache cache = new ResultCache( 2, 1024, 1, TimeUnit.MINUTES );
+        final FakeConnection connection = new FakeConnection( "web1", "ops" );
+
+        run( cache, connection, "a" );
+        run( cache, connection, "b" );
+        run( cache, connection, "a" );
+        run( cache, connection, "c" );
+        assertEquals( 2, cache.size() );
+
+        // b was the least recently used; a is still there.
+        assertEquals( "a #1", run( cache, connection, "a" ) );
+        assertEquals( "b #4", run( cache, connection, "b" ) );
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedBeyondMaxBytes()
+        throws Exception
+    {
+        // each result is 4 bytes ("a #1"), so three don't fit in ten.
+        final ResultCache cache = new ResultCache( 10, 10, 1, TimeUnit.MINUTES );
+        final FakeConnection connection = new FakeConnection( "web1", "ops" );
+
+        run( cache, connection, "a" );
+        run( cache, connection, "b" );
+        run( cache, connection, "c" );
+        assertEquals( 2, cache.size() );
+        assertEquals( "b #2", run( cache, connection, "b" ) );
+        assertEquals( "a #4", run( cache, connection, "a" ) );
+
+        // a single result larger than the whole cache is never kept.
+        run( cache, connection, "a much longer command" );
+        assertEquals( 2, cache.size() );
+    }
+
+    @Test
+    public void keepsOnlySuccessfulRuns()
+        throws Exception
+    {
+        final ResultCache cache = new ResultCache();
+        final FakeConnection connection = new FakeConnection( "web1", "ops" );
+        connection.status = 1;
+
+        run( cache, connection, "false" );
+        run( cache, connection, "false" );
+        assertEquals( 2, connection.runs.get() );
+        assertEquals( 0, cache.size() );
+    }
+
+    @Test
+    public void mergesConcurrentRunsOfTheSameCommand()
+        throws Exception
+    {
+        final ResultCache cache = new ResultCache();
+        final FakeConnection connection = new FakeConnection( "web1", "ops" );
+        connection.release = new CountDownLatch( 1 );
+
+        final String[] outputs = new String[3];
+        final Thread[] threads = new Thread[outputs.length];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final int index = i;
+            threads[i] = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        outputs[index] = ResultCacheTest.run( cache, connection, "cat /etc/os-release" );
+                    }
+                    catch ( final Exception e )
+                    {
+                        // outputs[index] stays null.
+                    }
+                }
+            } );
+            threads[i].start();
+        }
+
+        waitFor( cache, 2 );
+        connection.release.countDown();
+        for ( final Thread t : threads )
+        {
+            t.join( 5000 );
+        }
+
+        assertEquals( 1, connection.runs.get() );
+        for ( final String output : outputs )
+        {
+            assertEquals( "cat /etc/os-release #1", output );
+        }
+    }
+
+    @Test
+    public void waitersShareTheLeadersFailure()
+        throws Exception
+    {
+        final ResultCache cache = new ResultCache();
+        final FakeConnection connection = new FakeConnection( "web1", "ops" );
+        connection.release = new CountDownLatch( 1 );
+        connection.failure = new SSHWrapException( "Channel failed" ).withCategory( ErrorCategory.CHANNEL );
+
+        final Exception[] failures = new Exception[2];
+        final Thread follower = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    waitFor( cache, 1 );
+                    ResultCacheTest.run( cache, connection, "uptime" );
+                }
+                catch ( final Exception e )
+                {
+                    failures[1] = e;
+                }
+            }
+        } );
+        follower.start();
+
+        final Thread leader = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    ResultCacheTest.run( cache, connection, "uptime" );
+                }
+                catch ( final Exception e )
+                {
+                    failures[0] = e;
+                }
+            }
+        } );
+        leader.start();
+
+        waitFor( cache, 1 );
+        while ( cache.getMerged() == 0 )
+        {
+            Thread.sleep( 5 );
+        }
+        connection.release.countDown();
+        leader.join( 5000 );
+        follower.join( 5000 );
+
+        assertSame( connection.failure, failures[0] );
+        assertSame( connection.failure, failures[1] );
+        assertEquals( 0, cache.size() );
+    }
+
+    @Test
+    public void releasesWaitersWhateverTheLeaderThrows()
+        throws Exception
+    {
+        final ResultCache cache = new ResultCache();
+        final FakeConnection connection = new FakeConnection( "web1", "ops" );
+        connection.release = new CountDownLatch( 1 );
+        connection.error = new AssertionError( "not an exception" );
+
+        final Exception[] failure = new Exception[1];
+        final Thread follower = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    waitFor( cache, 1 );
+                    ResultCacheTest.run( cache, connection, "uptime" );
+                }
+                catch ( final Exception e )
+                {
+                    failure[0] = e;
+                }
+            }
+        } );
+        follower.start();
+
+        final Thread leader = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    ResultCacheTest.run( cache, connection, "uptime" );
+                }
+                catch ( final Throwable e )
+                {
+                    // the leader's own caller sees the error.
+                }
+            }
+        } );
+        leader.start();
+
+        while ( cache.getMerged() == 0 )
+        {
+            Thread.sleep( 5 );
+        }
+        connection.release.countDown();
+        follower.join( 5000 );
+
+        assertTrue( String.valueOf( failure[0] ), failure[0] instanceof SSHWrapException );
+    }
+
+    @Test
+    public void keysResultsByUserAndAlias()
+        throws Exception
+    {
+        final ResultCache cache = new ResultCache();
+        final FakeConnection ops = new FakeConnection( "web1", "ops" );
+        final FakeConnection root = new FakeConnection( "web1", "root" );
+        final FakeConnection other = new FakeConnection( "web1", "ops" ).setAlias( "web1-behind-lb" );
+
+        assertEquals( "id #1", run( cache, ops, "id" ) );
+        assertEquals( "id #1", run( cache, root, "id" ) );
+        assertEquals( "id #1", run( cache, other, "id" ) );
+        assertEquals( 3, cache.size() );
+
+        cache.invalidate( root, "id" );
+        assertEquals( 2, cache.size() );
+    }
+
+    @Test
+    public void dropsAHostsResultsWhenItReconnects()
+        throws Exception
+    {
+        final ResultCache cache = new ResultCache();
+        final FakeConnection ops = new FakeConnection( "web1", "ops" );
+        final FakeConnection root = new FakeConnection( "web1", "root" );
+        final FakeConnection elsewhere = new FakeConnection( "web2", "ops" );
+
+        run( cache, ops, "id" );
+        run( cache, root, "id" );
+        run( cache, elsewhere, "id" );
+
+        // what a connection does on each reconnect: every user's results for that host go.
+        cache.invalidate( ops.getHostKey() );
+        assertEquals( 1, cache.size() );
+        assertEquals( "id #2", run( cache, ops, "id" ) );
+        assertEquals( "id #1", run( cache, elsewhere, "id" ) );
+    }
+
+    @Test
+    public void doesNotKeepAResultFromBeforeAReconnect()
+        throws Exception
+    {
+        final ResultCache cache = new ResultCache();
+        final FakeConnection connection = new FakeConnection( "web1", "ops" );
+        connection.release = new CountDownLatch( 1 );
+
+        final Thread leader = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    ResultCacheTest.run( cache, connection, "uname -r" );
+                }
+                catch ( final Exception e )
+                {
+                    // the cache stays empty either way.
+                }
+            }
+        } );
+        leader.start();
+
+        waitFor( cache, 1 );
+        cache.invalidate( connection.getHostKey() );
+        connection.release.countDown();
+        leader.join( 5000 );
+
+        assertEquals( 0, cache.size() );
+    }
+
+    private static String run( final ResultCache cache, final FakeConnection connection, final String command )
+        throws IOException, SSHWrapException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.execute( connection, command, out );
+        return out.toString( "UTF-8" );
+    }
+
+    /**
+     * Wait until the given number of requests have missed the cache, and so started (or joined) a run.
+     */
+    private static void waitFor( final ResultCache cache, final int misses )
+        throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 );
+        while ( cache.getMisses() + cache.getMerged() < misses && System.nanoTime() < deadline )
+        {
+            Thread.sleep( 5 );
+        }
+    }
+
+    /**
+     * Answers each command with its text and a count of the runs so far.
+     */
+    private static final class FakeConnection
+        extends SSHConnection
+    {
+        private final AtomicInteger runs = new AtomicInteger();
+
+        private volatile int status;
+
+        private volatile CountDownLatch release;
+
+        private volatile SSHWrapException failure;
+
+        private volatile Error error;
+
+        FakeConnection( final String hostName, final String user )
+        {
+            super( host( hostName, user ), new Configuration(), null, null );
+        }
+
+        @Override
+        FakeConnection setAlias( final String alias )
+        {
+            super.setAlias( alias );
+            return this;
+        }
+
+        @Override
+        public int execute( final String command, final OutputStream cmdOutput, final boolean idempotent )
+            throws IOException, SSHWrapException
+        {
+            final int run = runs.incrementAndGet();
+            if ( release != null )
+            {
+                try
+                {
+                    release.await( 5, TimeUnit.SECONDS );
+                }
+                catch ( final InterruptedException e )
+                {
+                    throw new SSHWrapException( "Interrupted." );
+                }
+            }
+
+            if ( failure != null )
+            {
+                throw failure;
+            }
+
+            if ( error != null )
+            {
+                throw error;
+            }
+
+            cmdOutput.write( ( command + " #" + run ).getBytes( "UTF-8" ) );
+            return status;
+        }
+
+        private static Host host( final String hostName, final String user )
+        {
+            final Host h = new Host();
+            h.setHostName( hostName );
+            h.setUser( user );
+            h.setPort( 22 );
+            return h;
+        }
+    }
+
+    private static final class Configuration
+        implements SSHConfiguration
+    {
+        public Host lookup( final String hostName )
+        {
+            final Host h = new Host();
+            h.setHostName( hostName );
+            return h;
+        }
+
+        public Set<File> getIdentities()
+        {
+            return Collections.emptySet();
+        }
+
+        public InputStream getKnownHosts()
+        {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RetryPolicyTest
+{
+
+    @Test
+    public void retriesTransientFailuresUntilOneSucceeds()
+        throws SSHWrapException
+    {
+        final Failing attempt = new Failing( ErrorCategory.CONNECTION, 2 );
+
+        assertEquals( "done", fast().call( "host", 0, attempt ) );
+        assertEquals( 3, attempt.calls );
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts()
+    {
+        final Failing attempt = new Failing( ErrorCategory.TIMEOUT, Integer.MAX_VALUE );
+
+        callAndFail( fast().setMaxAttempts( 4 ), "host", attempt );
+        assertEquals( 4, attempt.calls );
+    }
+
+    @Test
+    public void neverRetriesPermanentFailures()
+    {
+        final Failing attempt = new Failing( ErrorCategory.AUTHENTICATION, Integer.MAX_VALUE );
+
+        final SSHWrapException e = callAndFail( fast(), "host", attempt );
+        assertEquals( 1, attempt.calls );
+        assertSame( ErrorCategory.AUTHENTICATION, e.getCategory() );
+    }
+
+    @Test
+    public void attemptCanVetoARetry()
+    {
+        final Failing attempt = new Failing( ErrorCategory.CHANNEL, Integer.MAX_VALUE )
+        {
+            @Override
+            public boolean isRetryable( final SSHWrapException error )
+            {
+                return false;
+            }
+        };
+
+        callAndFail( fast(), "host", attempt );
+        assertEquals( 1, attempt.calls );
+    }
+
+    @Test
+    public void budgetStopsRetriesToAFailingHostButNotFirstAttempts()
+        throws SSHWrapException
+    {
+        // 4 tokens: retries stop once two failures have brought them down to half.
+        final RetryPolicy policy = fast().setMaxAttempts( 10 )
+                                         .setRetryBudget( 4, 0 );
+
+        final Failing first = new Failing( ErrorCategory.CONNECTION, Integer.MAX_VALUE );
+        callAndFail( policy, "down", first );
+        assertEquals( 2, first.calls );
+
+        final Failing second = new Failing( ErrorCategory.CONNECTION, Integer.MAX_VALUE );
+        callAndFail( policy, "down", second );
+        assertEquals( 1, second.calls );
+
+        // other hosts have budgets of their own.
+        final Failing other = new Failing( ErrorCategory.CONNECTION, 1 );
+        assertEquals( "done", policy.call( "up", 0, other ) );
+        assertEquals( 2, other.calls );
+    }
+
+    @Test
+    public void stopsRetryingAtTheDeadline()
+    {
+        final RetryPolicy policy = new RetryPolicy().setMaxAttempts( 100 )
+                                                    .setBackoff( 20, 20, TimeUnit.MILLISECONDS )
+                                                    .setRetryBudget( 1000, 0 );
+        final Failing attempt = new Failing( ErrorCategory.TIMEOUT, Integer.MAX_VALUE );
+
+        final long start = System.nanoTime();
+        callAndFail( policy, "host", attempt, start + TimeUnit.MILLISECONDS.toNanos( 200 ) );
+        final long elapsed = System.nanoTime() - start;
+
+        assertTrue( "attempts: " + attempt.calls, attempt.calls < 100 );
+        // it gives up rather than sleep past the deadline, but no earlier than one backoff before it. The upper bound
+        // allows one more backoff for a late wakeup.
+        assertTrue( "elapsed: " + elapsed, elapsed < TimeUnit.MILLISECONDS.toNanos( 220 ) );
+        assertTrue( "elapsed: " + elapsed, elapsed >= TimeUnit.MILLISECONDS.toNanos( 180 ) );
+    }
+
+    private static RetryPolicy fast()
+    {
+        return new RetryPolicy().setBackoff( 1, 1, TimeUnit.MILLISECONDS );
+    }
+
+    private static SSHWrapException callAndFail( final RetryPolicy policy, final String host, final Failing attempt )
+    {
+        return callAndFail( policy, host, attempt, 0 );
+    }
+
+    private static SSHWrapException callAndFail( final RetryPolicy policy, final String host, final Failing attempt,
+                                                 final long deadline )
+    {
+        try
+        {
+            policy.call( host, deadline, attempt );
+        }
+        catch ( final SSHWrapException e )
+        {
+            return e;
+        }
+
+        fail( "Expected a failure" );
+        return null;
+    }
+
+    private static class Failing
+        extends RetryPolicy.Attempt<String>
+    {
+        private final ErrorCategory category;
+
+        private final int failures;
+
+        int calls;
+
+        Failing( final ErrorCategory category, final int failures )
+        {
+            this.category = category;
+            this.failures = failures;
+        }
+
+        @Override
+        public String run()
+            throws SSHWrapException
+        {
+            if ( calls++ < failures )
+            {
+                throw new SSHWrapException( "attempt %d failed", calls ).withCategory( category );
+            }
+
+            return "done";
+        }
+    }
+
+}
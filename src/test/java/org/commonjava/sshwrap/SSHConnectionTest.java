@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.commonjava.sshwrap.auth.IdentityCache;
+import org.commonjava.sshwrap.auth.SSHAgent;
+import org.commonjava.sshwrap.config.Host;
+import org.commonjava.sshwrap.config.SSHConfiguration;
+import org.junit.Test;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+
+public class SSHConnectionTest
+{
+
+    @Test
+    public void resendsOnlyCommandsThatNeverStartedUnlessIdempotent()
+    {
+        final SSHConnection connection = connection();
+        final SSHConnection.SessionLostException before =
+            new SSHConnection.SessionLostException( false, new IOException( "dropped" ) );
+        final SSHConnection.SessionLostException after =
+            new SSHConnection.SessionLostException( true, new IOException( "dropped" ) );
+
+        assertSame( ErrorCategory.SESSION_LOST, after.getCategory() );
+        assertTrue( connection.isRerunnable( before, false ) );
+        assertTrue( connection.isRerunnable( before, true ) );
+        assertFalse( connection.isRerunnable( after, false ) );
+        assertTrue( connection.isRerunnable( after, true ) );
+    }
+
+    @Test
+    public void resendsNothingWithoutAutoReconnect()
+    {
+        final SSHConnection connection = connection().setAutoReconnect( false );
+
+        assertFalse( connection.isRerunnable( new SSHConnection.SessionLostException( false, null ), false ) );
+        assertFalse( connection.isRerunnable( new SSHConnection.SessionLostException( true, null ), true ) );
+    }
+
+    @Test
+    public void builderOverridesServerAliveSettings()
+    {
+        final Host configured = new Host();
+        configured.setServerAliveInterval( 60 );
+        configured.setServerAliveCountMax( 10 );
+
+        final Host h = new SSHConnection.Builder( "web", null ).withConfig( new Configuration( configured ) )
+                                                               .withServerAlive( 5, 2 )
+                                                               .host();
+        assertEquals( 5, h.getServerAliveInterval() );
+        assertEquals( 2, h.getServerAliveCountMax() );
+    }
+
+    @Test
+    public void offersOnlyAReadableIdentityFile()
+        throws IOException
+    {
+        final File key = File.createTempFile( "sshwrap", ".key" );
+        try
+        {
+            final Host h = new Host();
+            final Configuration config = new Configuration( h );
+            config.identities.add( new File( "/keys/id_rsa" ) );
+            config.identities.add( new File( "/keys/id_ed25519" ) );
+
+            final SSHConnection connection = new SSHConnection( h, config, null, null );
+            assertEquals( config.identities, connection.identities() );
+
+            h.setIdentityFile( key );
+            assertEquals( Collections.singleton( key ), connection.identities() );
+
+            // a missing key would otherwise leave nothing to offer.
+            h.setIdentityFile( new File( key.getPath() + ".missing" ) );
+            assertEquals( config.identities, connection.identities() );
+        }
+        finally
+        {
+            key.delete();
+        }
+    }
+
+    @Test
+    public void mapsPreferredAuthentications()
+    {
+        final Host h = new Host();
+        final SSHConnection connection = new SSHConnection( h, new Configuration( h ), null, null );
+
+        // JSch's default leads with gssapi-with-mic.
+        assertEquals( "publickey,keyboard-interactive,password", connection.preferredAuthentications() );
+
+        h.setBatchMode( Boolean.TRUE );
+        assertEquals( "publickey", connection.preferredAuthentications() );
+
+        h.setPreferredAuthentications( "password,publickey" );
+        assertEquals( "password,publickey", connection.preferredAuthentications() );
+
+        h.setBatchMode( Boolean.FALSE );
+        h.setPreferredAuthentications( "" );
+        assertEquals( "publickey,keyboard-interactive,password", connection.preferredAuthentications() );
+    }
+
+    @Test
+    public void offersTheIdentityFileKeyThroughTheAgentThatHoldsIt()
+        throws Exception
+    {
+        final File dir = tempDir();
+        try
+        {
+            final File key = writeKey( dir, "web" );
+            final byte[] blob = publicKeyBlob( key );
+            final byte[] other = publicKeyBlob( writeKey( dir, "other" ) );
+
+            final Host h = new Host();
+            h.setIdentityFile( key );
+            final SSHConnection connection = new SSHConnection( h, new Configuration( h ), null, null );
+            connection.setIdentityCache( new IdentityCache() );
+            connection.setAgent( new SSHAgent( new FakeAgent( other, blob ) ) );
+
+            final List<Identity> offered = connection.sharedIdentities();
+            assertEquals( 1, offered.size() );
+            assertArrayEquals( blob, offered.get( 0 )
+                                            .getPublicKeyBlob() );
+
+            // signed by the agent, so an encrypted file would need no passphrase.
+            assertFalse( offered.get( 0 )
+                                .isEncrypted() );
+            assertEquals( "web", offered.get( 0 )
+                                        .getName() );
+        }
+        finally
+        {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
+    @Test
+    public void offersOnlyTheIdentityFileKeyWhenTheAgentLacksIt()
+        throws Exception
+    {
+        final File dir = tempDir();
+        try
+        {
+            final File key = writeKey( dir, "web" );
+            final byte[] other = publicKeyBlob( writeKey( dir, "other" ) );
+
+            final Host h = new Host();
+            h.setIdentityFile( key );
+            final IdentityCache cache = new IdentityCache();
+            final SSHConnection connection = new SSHConnection( h, new Configuration( h ), null, null );
+            connection.setIdentityCache( cache );
+            connection.setAgent( new SSHAgent( new FakeAgent( other ) ) );
+
+            assertEquals( Collections.singletonList( cache.get( key ) ), connection.sharedIdentities() );
+        }
+        finally
+        {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
+    @Test
+    public void offersAgentKeysFirstWithoutAnIdentityFile()
+        throws Exception
+    {
+        final File dir = tempDir();
+        try
+        {
+            final File key = writeKey( dir, "id_rsa" );
+            final byte[] held = publicKeyBlob( writeKey( dir, "held" ) );
+
+            final Host h = new Host();
+            final Configuration config = new Configuration( h );
+            config.identities.add( key );
+            final IdentityCache cache = new IdentityCache();
+            final SSHConnection connection = new SSHConnection( h, config, null, null );
+            connection.setIdentityCache( cache );
+            connection.setAgent( new SSHAgent( new FakeAgent( held ) ) );
+
+            final List<Identity> offered = connection.sharedIdentities();
+            assertEquals( 2, offered.size() );
+            assertArrayEquals( held, offered.get( 0 )
+                                            .getPublicKeyBlob() );
+            assertSame( cache.get( key ), offered.get( 1 ) );
+
+            h.setIdentitiesOnly( Boolean.TRUE );
+            assertEquals( Collections.singletonList( cache.get( key ) ), connection.sharedIdentities() );
+        }
+        finally
+        {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
+    private static SSHConnection connection()
+    {
+        return new SSHConnection( new Host(), new Configuration( new Host() ), null, null );
+    }
+
+    private static File tempDir()
+        throws IOException
+    {
+        final File dir = File.createTempFile( "sshwrap", ".test" );
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static File writeKey( final File dir, final String name )
+        throws JSchException, IOException
+    {
+        final File key = new File( dir, name );
+        final KeyPair pair = KeyPair.genKeyPair( new JSch(), KeyPair.RSA, 1024 );
+        pair.writePrivateKey( key.getPath() );
+        pair.writePublicKey( key.getPath() + ".pub", name );
+        pair.dispose();
+        return key;
+    }
+
+    private static byte[] publicKeyBlob( final File key )
+        throws JSchException
+    {
+        final KeyPair pair = KeyPair.load( new JSch(), key.getPath() );
+        try
+        {
+            return pair.getPublicKeyBlob();
+        }
+        finally
+        {
+            pair.dispose();
+        }
+    }
+
+    /**
+     * Answers every request with the same list of keys, named after their position in it.
+     */
+    private static final class FakeAgent
+        implements SSHAgent.Connector
+    {
+        private final byte[] reply;
+
+        FakeAgent( final byte[]... blobs )
+            throws IOException
+        {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream( body );
+            out.writeByte( 12 );
+            out.writeInt( blobs.length );
+            for ( int i = 0; i < blobs.length; i++ )
+            {
+                out.writeInt( blobs[i].length );
+                out.write( blobs[i] );
+
+                final byte[] comment = ( i == blobs.length - 1 ? "web" : "key" + i ).getBytes( "UTF-8" );
+                out.writeInt( comment.length );
+                out.write( comment );
+            }
+
+            final ByteArrayOutputStream framed = new ByteArrayOutputStream();
+            new DataOutputStream( framed ).writeInt( body.size() );
+            body.writeTo( framed );
+            reply = framed.toByteArray();
+        }
+
+        public SSHAgent.Connection connect()
+        {
+            return new SSHAgent.Connection()
+            {
+                private int position;
+
+                public InputStream getInputStream()
+                {
+                    return new InputStream()
+                    {
+                        @Override
+                        public int read()
+                        {
+                            return reply[position++ % reply.length] & 0xff;
+                        }
+                    };
+                }
+
+                public OutputStream getOutputStream()
+                {
+                    return new ByteArrayOutputStream();
+                }
+
+                public void close()
+                {
+                }
+            };
+        }
+    }
+
+    private static final class Configuration
+        implements SSHConfiguration
+    {
+        private final Host host;
+
+        private final Set<File> identities = new LinkedHashSet<File>();
+
+        Configuration( final Host host )
+        {
+            this.host = host;
+        }
+
+        public Host lookup( final String hostName )
+        {
+            return host;
+        }
+
+        public Set<File> getIdentities()
+        {
+            return identities;
+        }
+
+        public InputStream getKnownHosts()
+        {
+            return null;
+        }
+    }
+
+}
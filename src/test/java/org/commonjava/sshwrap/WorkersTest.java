@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WorkersTest
+{
+
+    @After
+    public void platformThreads()
+    {
+        Workers.setVirtual( false );
+    }
+
+    @Test
+    public void platformThreadsAreNamedDaemons()
+    {
+        Workers.setVirtual( false );
+        final Thread t = Workers.newThread( "sshwrap test", new Runnable()
+        {
+            public void run()
+            {
+            }
+        } );
+
+        assertEquals( "sshwrap test", t.getName() );
+        assertTrue( t.isDaemon() );
+        assertFalse( t.isAlive() );
+    }
+
+    @Test
+    public void virtualThreadsAreOnlyUsedWhereAvailable()
+        throws InterruptedException
+    {
+        assertEquals( Workers.isVirtualAvailable(), Workers.setVirtual( true ) );
+        assertEquals( Workers.isVirtualAvailable(), Workers.isVirtual() );
+
+        // either way, the thread runs.
+        final CountDownLatch ran = new CountDownLatch( 1 );
+        final Thread t = Workers.newThread( "sshwrap test", new Runnable()
+        {
+            public void run()
+            {
+                ran.countDown();
+            }
+        } );
+        t.start();
+
+        assertTrue( ran.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void executorRunsBlockingTasksConcurrently()
+        throws InterruptedException
+    {
+        Workers.setVirtual( true );
+        final ExecutorService executor = Workers.newExecutor( "sshwrap test" );
+        try
+        {
+            // every task waits for all the others, so this only finishes if they all run at once.
+            final int tasks = 200;
+            final CountDownLatch started = new CountDownLatch( tasks );
+            final CountDownLatch finished = new CountDownLatch( tasks );
+            for ( int i = 0; i < tasks; i++ )
+            {
+                executor.execute( new Runnable()
+                {
+                    public void run()
+                    {
+                        started.countDown();
+                        try
+                        {
+                            if ( started.await( 10, TimeUnit.SECONDS ) )
+                            {
+                                finished.countDown();
+                            }
+                        }
+                        catch ( final InterruptedException e )
+                        {
+                            Thread.currentThread()
+                                  .interrupt();
+                        }
+                    }
+                } );
+            }
+
+            assertTrue( finished.await( 10, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+}
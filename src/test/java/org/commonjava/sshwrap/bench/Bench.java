@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Timing harness for the project's benchmarks, which are the *Benchmark classes in this package. They are plain
+ * main() programs rather than tests, so that the test run stays fast and its results don't depend on the machine. To
+ * run one:
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) org.commonjava.sshwrap.bench.RetryBenchmark
+ * </pre>
+ * <p>
+ * Benchmarks of package-private code live in that code's package instead, next to its tests.
+ * </p>
+ * <p>
+ * Each measurement is warmed up, then repeated, and the median is reported. Inputs come from fixed seeds, so two runs
+ * on the same machine measure the same work.
+ * </p>
+ */
+public final class Bench
+{
+
+    public static final int WARMUPS = 5;
+
+    public static final int RUNS = 11;
+
+    /** Results are stored here, so the JIT can't drop the work that produced them. */
+    public static volatile Object sink;
+
+    public interface Task
+    {
+        void run()
+            throws Exception;
+    }
+
+    private Bench()
+    {
+    }
+
+    /**
+     * @return the median time one run of the task took, in nanoseconds.
+     */
+    public static long time( final Task task )
+        throws Exception
+    {
+        for ( int i = 0; i < WARMUPS; i++ )
+        {
+            task.run();
+        }
+
+        final long[] times = new long[RUNS];
+        for ( int i = 0; i < RUNS; i++ )
+        {
+            final long start = System.nanoTime();
+            task.run();
+            times[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort( times );
+        return times[RUNS / 2];
+    }
+
+    public static void header( final String title )
+    {
+        System.out.println();
+        System.out.println( title );
+        System.out.println( "java " + System.getProperty( "java.version" ) + ", " + System.getProperty( "os.arch" )
+            + ", " + Runtime.getRuntime()
+                            .availableProcessors() + " cpus" );
+    }
+
+    public static void report( final String name, final String format, final Object... values )
+    {
+        System.out.println( String.format( "  %-40s " + format, prepend( name, values ) ) );
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, or -1 if the JVM doesn't count them. Only HotSpot's
+     *         management extensions do, so they are reached by reflection.
+     */
+    public static long allocatedBytes()
+    {
+        try
+        {
+            final Method allocated = Class.forName( "com.sun.management.ThreadMXBean" )
+                                          .getMethod( "getThreadAllocatedBytes", long.class );
+            return (Long) allocated.invoke( ManagementFactory.getThreadMXBean(), Thread.currentThread()
+                                                                                       .getId() );
+        }
+        catch ( final Exception e )
+        {
+            return -1;
+        }
+    }
+
+    public static double megabytesPerSecond( final long bytes, final long nanos )
+    {
+        return bytes / ( 1024.0 * 1024.0 ) / ( nanos / 1000000000.0 );
+    }
+
+    private static Object[] prepend( final Object first, final Object[] rest )
+    {
+        final Object[] all = new Object[rest.length + 1];
+        all[0] = first;
+        System.arraycopy( rest, 0, all, 1, rest.length );
+        return all;
+    }
+
+}
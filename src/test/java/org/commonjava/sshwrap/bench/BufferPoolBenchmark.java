@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.commonjava.sshwrap.io.BlockingPipe;
+import org.commonjava.sshwrap.io.BufferPool;
+
+/**
+ * What the copy paths allocate: {@link BufferPool#copy(InputStream, OutputStream)} against a copy loop that allocates
+ * its own buffer per call, and single-byte traffic through a {@link BlockingPipe}. Allocation is counted per thread,
+ * which HotSpot supports; elsewhere it is reported as -1.
+ */
+public final class BufferPoolBenchmark
+{
+
+    private static final int COPIES = 10000;
+
+    private static final int COPY_SIZE = 64 * 1024;
+
+    private static final int PIPE_BYTES = 1000000;
+
+    private BufferPoolBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        Bench.header( "Copy buffers, " + COPIES + " copies of " + COPY_SIZE / 1024 + "K" );
+
+        final byte[] data = new byte[COPY_SIZE];
+        final BufferPool pool = BufferPool.getSharedInstance();
+        final OutputStream discard = new OutputStream()
+        {
+            @Override
+            public void write( final int b )
+            {
+            }
+
+            @Override
+            public void write( final byte[] b, final int off, final int len )
+            {
+            }
+        };
+
+        final long[] allocated = new long[1];
+        final long pooled = Bench.time( new Bench.Task()
+        {
+            public void run()
+                throws IOException
+            {
+                final long before = Bench.allocatedBytes();
+                for ( int i = 0; i < COPIES; i++ )
+                {
+                    pool.copy( new ByteArrayInputStream( data ), discard );
+                }
+                allocated[0] = before < 0 ? -1 : Bench.allocatedBytes() - before;
+            }
+        } );
+        report( "pooled buffer", pooled, allocated[0], COPIES, "copy" );
+
+        final long unpooled = Bench.time( new Bench.Task()
+        {
+            public void run()
+                throws IOException
+            {
+                final long before = Bench.allocatedBytes();
+                for ( int i = 0; i < COPIES; i++ )
+                {
+                    final InputStream in = new ByteArrayInputStream( data );
+                    final byte[] buffer = new byte[BufferPool.DEFAULT_BUFFER_SIZE];
+                    int read;
+                    while ( ( read = in.read( buffer ) ) > -1 )
+                    {
+                        discard.write( buffer, 0, read );
+                    }
+                }
+                allocated[0] = before < 0 ? -1 : Bench.allocatedBytes() - before;
+            }
+        } );
+        report( "buffer per copy", unpooled, allocated[0], COPIES, "copy" );
+
+        final BlockingPipe pipe = new BlockingPipe();
+        final long singleBytes = Bench.time( new Bench.Task()
+        {
+            public void run()
+                throws IOException
+            {
+                final OutputStream out = pipe.getOutputStream();
+                final InputStream in = pipe.getInputStream();
+                int sum = 0;
+                final long before = Bench.allocatedBytes();
+                for ( int i = 0; i < PIPE_BYTES; i++ )
+                {
+                    out.write( i );
+                    sum += in.read();
+                }
+                allocated[0] = before < 0 ? -1 : Bench.allocatedBytes() - before;
+                Bench.sink = sum;
+            }
+        } );
+        report( "pipe, one byte at a time", singleBytes, allocated[0], PIPE_BYTES, "byte" );
+        System.out.println( "  shared pool: " + pool );
+    }
+
+    private static void report( final String name, final long nanos, final long allocated, final int ops,
+                                final String op )
+    {
+        Bench.report( name, "%8.0f ns/%s, %8.1f bytes allocated/%s", (double) nanos / ops, op,
+                      allocated < 0 ? -1.0 : (double) allocated / ops, op );
+    }
+
+}
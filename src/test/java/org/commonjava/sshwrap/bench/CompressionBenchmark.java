@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.commonjava.sshwrap.tune.CompressionAdvisor;
+import org.commonjava.sshwrap.tune.LinkStatistics;
+import org.commonjava.sshwrap.tune.MeasuringOutputStream;
+
+/**
+ * Where adaptive compression pays off: the local deflate rate, the payload rate {@link CompressionAdvisor} expects for
+ * text and random data over links of various speeds, and the cost of measuring exec output on the way through.
+ */
+public final class CompressionBenchmark
+{
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    private static final long SECOND = 1000000000L;
+
+    private static final int[] LINK_RATES = { 1, 10, 100, 1000 };
+
+    private CompressionBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        Bench.header( "Adaptive compression" );
+
+        final CompressionAdvisor advisor = new CompressionAdvisor( new LinkStatistics() );
+        final double[] rates = advisor.benchmark();
+        Bench.report( "deflate, text", "%8.1f MB/s", rates[0] / MEGABYTE );
+        Bench.report( "deflate, random", "%8.1f MB/s", rates[1] / MEGABYTE );
+
+        final byte[] text = text( MEGABYTE );
+        final byte[] noise = new byte[MEGABYTE];
+        new Random( 42 ).nextBytes( noise );
+        final double textRatio = advisor.ratio( text, 0, text.length );
+        final double noiseRatio = advisor.ratio( noise, 0, noise.length );
+        Bench.report( "ratio, text", "%8.3f", textRatio );
+        Bench.report( "ratio, random", "%8.3f", noiseRatio );
+
+        for ( final int rate : LINK_RATES )
+        {
+            decide( advisor, "text over " + rate + " MB/s", rate, textRatio, rates );
+            decide( advisor, "random over " + rate + " MB/s", rate, noiseRatio, rates );
+        }
+
+        final byte[] chunk = new byte[32 * 1024];
+        System.arraycopy( text, 0, chunk, 0, chunk.length );
+        final long total = 256L * MEGABYTE;
+
+        final long plain = Bench.time( new Bench.Task()
+        {
+            public void run()
+                throws IOException
+            {
+                copy( new ChannelSink(), chunk, total );
+            }
+        } );
+
+        final long measured = Bench.time( new Bench.Task()
+        {
+            public void run()
+                throws IOException
+            {
+                final MeasuringOutputStream out = new MeasuringOutputStream( new ChannelSink(), true );
+                copy( out, chunk, total );
+                out.record( new LinkStatistics().get( "bench" ), advisor );
+            }
+        } );
+
+        Bench.report( "256MB exec output, unmeasured", "%8.0f MB/s", Bench.megabytesPerSecond( total, plain ) );
+        Bench.report( "256MB exec output, measured", "%8.0f MB/s", Bench.megabytesPerSecond( total, measured ) );
+    }
+
+    private static void decide( final CompressionAdvisor advisor, final String name, final int linkRate,
+                                final double ratio, final double[] rates )
+    {
+        final LinkStatistics.Link link = advisor.getStatistics()
+                                                .get( name );
+        link.recordCompressionRatio( ratio );
+        link.recordTransfer( (long) linkRate * MEGABYTE, SECOND );
+        link.recordTransfer( (long) linkRate * MEGABYTE, SECOND );
+
+        final double compressor = rates[0] + ( rates[1] - rates[0] ) * Math.min( 1, ratio );
+        final double effective = Math.min( compressor / MEGABYTE, linkRate / ratio );
+        Bench.report( name, "%8.1f MB/s of payload if compressed -> %s", effective,
+                      advisor.recommend( name ) ? "compress" : "don't compress" );
+    }
+
+    private static void copy( final OutputStream out, final byte[] chunk, final long total )
+        throws IOException
+    {
+        for ( long written = 0; written < total; written += chunk.length )
+        {
+            out.write( chunk );
+        }
+    }
+
+    /**
+     * Copies each write into a buffer, as a channel's pipe would, so that both runs do the same real work.
+     */
+    private static final class ChannelSink
+        extends OutputStream
+    {
+        private final byte[] buffer = new byte[64 * 1024];
+
+        @Override
+        public void write( final int b )
+        {
+            buffer[0] = (byte) b;
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len )
+        {
+            System.arraycopy( b, off, buffer, 0, len );
+        }
+    }
+
+    private static byte[] text( final int size )
+    {
+        final byte[] line = "2012-01-01 00:00:00 INFO [worker-7] request completed status=200 bytes=5123\n".getBytes();
+        final byte[] text = new byte[size];
+        for ( int i = 0; i < size; i++ )
+        {
+            text[i] = line[i % line.length];
+        }
+
+        return text;
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.bench;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.commonjava.sshwrap.subsystem.StandardFraming;
+
+/**
+ * Read throughput of each {@link StandardFraming}. NETCONF 1.0 is also read from messages packed with near-misses of
+ * its end-of-message marker, which its scan must handle without slowing down.
+ */
+public final class FramingBenchmark
+{
+
+    private static final int MESSAGES = 64;
+
+    private static final int MESSAGE_SIZE = 256 * 1024;
+
+    private FramingBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        Bench.header( "Subsystem framing, " + MESSAGES + " messages of " + MESSAGE_SIZE / 1024 + "K" );
+
+        final byte[] xml = fill( "<data><interface><name>eth0</name><mtu>1500</mtu></interface></data>\n" );
+        final byte[] nearMisses = fill( "]]>]]]]>]" );
+        final byte[] random = new byte[MESSAGE_SIZE];
+        new Random( 42 ).nextBytes( random );
+
+        read( StandardFraming.NETCONF_1_0, "xml", xml );
+        read( StandardFraming.NETCONF_1_0, "near-misses of the marker", nearMisses );
+        read( StandardFraming.NETCONF_1_1, "xml", xml );
+        read( StandardFraming.LENGTH_PREFIXED, "random", random );
+    }
+
+    private static void read( final StandardFraming framing, final String content, final byte[] message )
+        throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for ( int i = 0; i < MESSAGES; i++ )
+        {
+            framing.write( out, message );
+        }
+        final byte[] stream = out.toByteArray();
+
+        final long nanos = Bench.time( new Bench.Task()
+        {
+            public void run()
+                throws IOException
+            {
+                // buffered, as SubsystemChannel reads it.
+                final InputStream in = new BufferedInputStream( new ByteArrayInputStream( stream ) );
+                for ( int i = 0; i < MESSAGES; i++ )
+                {
+                    Bench.sink = framing.read( in );
+                }
+            }
+        } );
+
+        Bench.report( framing + ", " + content, "%8.1f MB/s",
+                      Bench.megabytesPerSecond( (long) MESSAGES * MESSAGE_SIZE, nanos ) );
+    }
+
+    private static byte[] fill( final String pattern )
+    {
+        final byte[] p = pattern.getBytes();
+        final byte[] message = new byte[MESSAGE_SIZE];
+        for ( int i = 0; i < message.length; i++ )
+        {
+            message[i] = p[i % p.length];
+        }
+
+        return message;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.commonjava.sshwrap.config.Host;
+import org.commonjava.sshwrap.config.InventoryConfiguration;
+
+/**
+ * What an {@link InventoryConfiguration} costs for a large fleet: heap retained per host, measured after a full
+ * collection and set beside {@link InventoryConfiguration#getBytesPerHost()} and beside a map of one {@link Host} per
+ * name; the time to load it from CSV; and the time to look a host up.
+ */
+public final class InventoryBenchmark
+{
+
+    private static final int HOSTS = 200000;
+
+    private static final int LOOKUPS = 100000;
+
+    private InventoryBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        Bench.header( "Inventory of " + HOSTS + " hosts" );
+
+        final File csv = File.createTempFile( "inventory", ".csv" );
+        csv.deleteOnExit();
+        write( csv );
+
+        final long loading = Bench.time( new Bench.Task()
+        {
+            public void run()
+                throws IOException
+            {
+                Bench.sink = new InventoryConfiguration.Builder( null ).load( csv )
+                                                                       .create();
+            }
+        } );
+        Bench.report( "load from CSV", "%8d ms, %d KB file", loading / 1000000, csv.length() / 1024 );
+        Bench.sink = null;
+
+        final long empty = usedHeap();
+        final InventoryConfiguration inventory = new InventoryConfiguration.Builder( null ).load( csv )
+                                                                                           .create();
+        final double retained = (double) ( usedHeap() - empty ) / HOSTS;
+        Bench.report( "inventory, retained", "%8.0f bytes/host", retained );
+        Bench.report( "inventory, estimated", "%8.0f bytes/host", inventory.getBytesPerHost() );
+
+        final Map<String, Host> map = new LinkedHashMap<String, Host>();
+        final long before = usedHeap();
+        for ( int i = 0; i < HOSTS; i++ )
+        {
+            final String name = name( i );
+            map.put( name, inventory.lookup( name ) );
+        }
+        Bench.report( "map of Host objects, retained", "%8.0f bytes/host", (double) ( usedHeap() - before ) / HOSTS );
+        map.clear();
+
+        final String[] names = new String[LOOKUPS];
+        for ( int i = 0; i < LOOKUPS; i++ )
+        {
+            names[i] = name( ( i * 7919 ) % HOSTS );
+        }
+
+        final long lookups = Bench.time( new Bench.Task()
+        {
+            public void run()
+            {
+                for ( final String name : names )
+                {
+                    Bench.sink = inventory.lookup( name );
+                }
+            }
+        } );
+        Bench.report( "lookup", "%8.0f ns/host", (double) lookups / LOOKUPS );
+    }
+
+    /**
+     * Hosts spread over 40 users, 20 keys, 8 jump hosts and an address each, like a fleet exported from an inventory
+     * system.
+     */
+    private static void write( final File csv )
+        throws IOException
+    {
+        Writer out = null;
+        try
+        {
+            out = new OutputStreamWriter( new FileOutputStream( csv ), "UTF-8" );
+            out.write( "name,hostname,user,port,identityfile,proxyjump\n" );
+            for ( int i = 0; i < HOSTS; i++ )
+            {
+                out.write( name( i ) + ",10." + ( i >> 16 & 0xff ) + "." + ( i >> 8 & 0xff ) + "." + ( i & 0xff )
+                    + ",user" + i % 40 + ",22,/keys/fleet" + i % 20 + ",jump" + i % 8 + ".example.com\n" );
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly( out );
+        }
+    }
+
+    private static String name( final int i )
+    {
+        return "node" + i + ".dc" + i % 4 + ".example.com";
+    }
+
+    private static long usedHeap()
+        throws InterruptedException
+    {
+        final Runtime runtime = Runtime.getRuntime();
+        for ( int i = 0; i < 4; i++ )
+        {
+            System.gc();
+            Thread.sleep( 50 );
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.ErrorCategory;
+import org.commonjava.sshwrap.RetryPolicy;
+import org.commonjava.sshwrap.SSHWrapException;
+
+/**
+ * What the per-host retry budget saves when a host goes down, and what {@link RetryPolicy} costs when nothing fails.
+ * <p>
+ * Every caller that reaches a down host retries; without a budget, that multiplies the load on a host that is already
+ * struggling. Here a host fails every attempt for a while, then recovers, and the attempts made against it are
+ * counted with the default budget and with an unlimited one. Backoff is set to zero so only the counts matter.
+ * </p>
+ */
+public final class RetryBenchmark
+{
+
+    private static final int OUTAGE_CALLS = 10000;
+
+    private static final int CALLS = 1000000;
+
+    private RetryBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        Bench.header( "Retry budget" );
+
+        outage( "default budget", new RetryPolicy() );
+        outage( "unlimited budget", new RetryPolicy().setRetryBudget( Double.MAX_VALUE, 0 ) );
+
+        final RetryPolicy policy = new RetryPolicy();
+        final RetryPolicy.Attempt<Object> succeeding = new RetryPolicy.Attempt<Object>()
+        {
+            @Override
+            public Object run()
+            {
+                return this;
+            }
+        };
+
+        final long nanos = Bench.time( new Bench.Task()
+        {
+            public void run()
+                throws SSHWrapException
+            {
+                for ( int i = 0; i < CALLS; i++ )
+                {
+                    Bench.sink = policy.call( "host", 0, succeeding );
+                }
+            }
+        } );
+
+        Bench.report( "call() overhead, no failures", "%8.1f ns/call", (double) nanos / CALLS );
+    }
+
+    private static void outage( final String name, final RetryPolicy policy )
+    {
+        policy.setBackoff( 0, 0, TimeUnit.MILLISECONDS );
+        final Host host = new Host();
+
+        host.down = true;
+        final int failed = run( policy, host, OUTAGE_CALLS );
+        final long duringOutage = host.attempts;
+
+        host.down = false;
+        host.attempts = 0;
+        run( policy, host, OUTAGE_CALLS );
+
+        Bench.report( name + ", host down", "%8d attempts for %d calls (%.2f per call), %d failed", duringOutage,
+                      OUTAGE_CALLS, (double) duringOutage / OUTAGE_CALLS, failed );
+        Bench.report( name + ", host back up", "%8d attempts for %d calls", host.attempts, OUTAGE_CALLS );
+    }
+
+    private static int run( final RetryPolicy policy, final Host host, final int calls )
+    {
+        int failed = 0;
+        for ( int i = 0; i < calls; i++ )
+        {
+            try
+            {
+                policy.call( "host", 0, host );
+            }
+            catch ( final SSHWrapException e )
+            {
+                failed++;
+            }
+        }
+
+        return failed;
+    }
+
+    private static final class Host
+        extends RetryPolicy.Attempt<Object>
+    {
+        private boolean down;
+
+        private long attempts;
+
+        @Override
+        public Object run()
+            throws SSHWrapException
+        {
+            attempts++;
+            if ( down )
+            {
+                throw new SSHWrapException( "Connection refused" ).withCategory( ErrorCategory.CONNECTION );
+            }
+
+            return this;
+        }
+    }
+
+}
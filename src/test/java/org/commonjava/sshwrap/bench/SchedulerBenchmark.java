@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.commonjava.sshwrap.CommandScheduler;
+import org.commonjava.sshwrap.CommandScheduler.Priority;
+
+/**
+ * How {@link CommandScheduler} divides a saturated connection: between tenants of different weights, and between
+ * interactive commands and bulk work. Each command holds its channel for a millisecond, standing in for a short
+ * remote command, so the numbers depend on the scheduler's ordering rather than on a server.
+ */
+public final class SchedulerBenchmark
+{
+
+    private static final int CHANNELS = 4;
+
+    private static final long RUN_MILLIS = 3000;
+
+    private static final int CALLS = 1000000;
+
+    private SchedulerBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        Bench.header( "Command scheduling, " + CHANNELS + " channels, 1ms commands" );
+
+        final CommandScheduler uncontended = new CommandScheduler( null, CHANNELS );
+        final long nanos = Bench.time( new Bench.Task()
+        {
+            public void run()
+                throws InterruptedException
+            {
+                for ( int i = 0; i < CALLS; i++ )
+                {
+                    uncontended.acquire( Priority.NORMAL, "t" );
+                    uncontended.release();
+                }
+            }
+        } );
+        Bench.report( "acquire + release, uncontended", "%8.1f ns", (double) nanos / CALLS );
+
+        final CommandScheduler shared = new CommandScheduler( null, CHANNELS );
+        shared.setTenantWeight( "heavy", 3 );
+        final AtomicLong heavy = new AtomicLong();
+        final AtomicLong light = new AtomicLong();
+        run( new Client( shared, Priority.NORMAL, "heavy", heavy, 8 ),
+             new Client( shared, Priority.NORMAL, "light", light, 8 ) );
+        Bench.report( "commands run, tenant weighted 3", "%8d (%.0f%%)", heavy.get(),
+                      100.0 * heavy.get() / ( heavy.get() + light.get() ) );
+        Bench.report( "commands run, tenant weighted 1", "%8d (%.0f%%)", light.get(),
+                      100.0 * light.get() / ( heavy.get() + light.get() ) );
+
+        final CommandScheduler mixed = new CommandScheduler( null, CHANNELS );
+        run( new Client( mixed, Priority.BULK, "batch", new AtomicLong(), 16 ),
+             new Client( mixed, Priority.INTERACTIVE, "user", new AtomicLong(), 1 ) );
+        Bench.report( "average wait, bulk", "%8d us", mixed.getAverageWait( Priority.BULK, TimeUnit.MICROSECONDS ) );
+        Bench.report( "average wait, interactive", "%8d us",
+                      mixed.getAverageWait( Priority.INTERACTIVE, TimeUnit.MICROSECONDS ) );
+    }
+
+    private static void run( final Client... clients )
+        throws InterruptedException
+    {
+        int threads = 0;
+        for ( final Client c : clients )
+        {
+            threads += c.threads;
+        }
+
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( RUN_MILLIS );
+        final CountDownLatch done = new CountDownLatch( threads );
+        for ( final Client c : clients )
+        {
+            for ( int i = 0; i < c.threads; i++ )
+            {
+                new Thread( new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            while ( System.nanoTime() < end )
+                            {
+                                c.scheduler.acquire( c.priority, c.tenant );
+                                try
+                                {
+                                    Thread.sleep( 1 );
+                                    c.count.incrementAndGet();
+                                }
+                                finally
+                                {
+                                    c.scheduler.release();
+                                }
+                            }
+                        }
+                        catch ( final InterruptedException e )
+                        {
+                            // end of the run.
+                        }
+                        finally
+                        {
+                            done.countDown();
+                        }
+                    }
+                } ).start();
+            }
+        }
+
+        done.await();
+    }
+
+    private static final class Client
+    {
+        final CommandScheduler scheduler;
+
+        final Priority priority;
+
+        final String tenant;
+
+        final AtomicLong count;
+
+        final int threads;
+
+        Client( final CommandScheduler scheduler, final Priority priority, final String tenant,
+                final AtomicLong count, final int threads )
+        {
+            this.scheduler = scheduler;
+            this.priority = priority;
+            this.tenant = tenant;
+            this.count = count;
+            this.threads = threads;
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.sshwrap.config.DefaultSSHConfiguration;
+import org.commonjava.sshwrap.config.SSHConfiguration;
+
+/**
+ * Startup cost of a large ssh configuration: parsing the config and known_hosts files, against loading them from a
+ * snapshot with {@link DefaultSSHConfiguration#withSnapshot(File, File)}. The first load of each is what a
+ * short-lived process pays; the median of later loads is the same work once the JIT has compiled it.
+ */
+public final class SnapshotBenchmark
+{
+
+    private static final int HOST_BLOCKS = 50000;
+
+    private static final int KNOWN_HOSTS = 50000;
+
+    private SnapshotBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        final File dir = File.createTempFile( "sshwrap", ".bench" );
+        dir.delete();
+        dir.mkdirs();
+        try
+        {
+            write( dir );
+            Bench.header( "ssh configuration, " + HOST_BLOCKS + " Host blocks (" + new File( dir, "config" ).length()
+                / 1024 + "K), " + KNOWN_HOSTS + " known hosts (" + new File( dir, "known_hosts" ).length() / 1024
+                + "K)" );
+
+            final File snapshot = new File( dir, "config.snapshot" );
+            final Bench.Task parse = new Bench.Task()
+            {
+                public void run()
+                    throws IOException
+                {
+                    load( new DefaultSSHConfiguration( dir ) );
+                }
+            };
+            final Bench.Task loadSnapshot = new Bench.Task()
+            {
+                public void run()
+                    throws IOException
+                {
+                    load( DefaultSSHConfiguration.withSnapshot( dir, snapshot ) );
+                }
+            };
+
+            Bench.report( "parse, first", "%8d ms", once( parse ) / 1000000 );
+            Bench.report( "save snapshot", "%8d ms, %dK", once( loadSnapshot ) / 1000000, snapshot.length() / 1024 );
+            Bench.report( "snapshot, first", "%8d ms", once( loadSnapshot ) / 1000000 );
+            Bench.report( "parse, median", "%8d ms", Bench.time( parse ) / 1000000 );
+            Bench.report( "snapshot, median", "%8d ms", Bench.time( loadSnapshot ) / 1000000 );
+        }
+        finally
+        {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
+    private static long once( final Bench.Task task )
+        throws Exception
+    {
+        final long start = System.nanoTime();
+        task.run();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Everything a connection would read: a host, and the known_hosts content.
+     */
+    private static void load( final SSHConfiguration config )
+        throws IOException
+    {
+        Bench.sink = config.lookup( "web1" );
+
+        final InputStream in = config.getKnownHosts();
+        try
+        {
+            final byte[] buf = new byte[32 * 1024];
+            while ( in.read( buf ) > -1 )
+            {
+                // draining it.
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly( in );
+        }
+    }
+
+    private static void write( final File dir )
+        throws IOException
+    {
+        Writer out = null;
+        try
+        {
+            out = new OutputStreamWriter( new FileOutputStream( new File( dir, "config" ) ), "UTF-8" );
+            for ( int i = 0; i < HOST_BLOCKS; i++ )
+            {
+                out.write( "Host web" + i + " web" + i + ".example.com\n  HostName 10.1." + ( i >> 8 & 0xff ) + "."
+                    + ( i & 0xff ) + "\n  User deploy" + i % 10 + "\n  Port 22\n  IdentityFile ~/.ssh/fleet" + i % 5
+                    + "\n  ProxyJump bastion" + i % 3 + "\n\n" );
+            }
+            out.write( "Host *\n  ServerAliveInterval 30\n  ConnectTimeout 10\n" );
+            out.close();
+
+            // a 2048-bit RSA key is about 372 characters of base64.
+            final StringBuilder key = new StringBuilder( "AAAAB3NzaC1yc2EAAAADAQABAAABAQ" );
+            while ( key.length() < 372 )
+            {
+                key.append( "Cz9x" );
+            }
+
+            out = new OutputStreamWriter( new FileOutputStream( new File( dir, "known_hosts" ) ), "UTF-8" );
+            for ( int i = 0; i < KNOWN_HOSTS; i++ )
+            {
+                out.write( "web" + i + ".example.com,10.1." + ( i >> 8 & 0xff ) + "." + ( i & 0xff ) + " ssh-rsa "
+                    + key + "\n" );
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly( out );
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.bench;
+
+import org.commonjava.sshwrap.tune.LinkStatistics;
+import org.commonjava.sshwrap.tune.WindowTuner;
+
+/**
+ * How quickly adaptive windows open up on long, fat links, and what they gain over JSch's default window.
+ * <p>
+ * Latency is injected into a model link rather than a real one: a channel carries at most one window per round trip,
+ * so each transfer runs at min(path rate, window / RTT). The transfers are fed to {@link WindowTuner} through
+ * {@link LinkStatistics}, just as measured exec output is, and the tuner's next window is used for the next transfer.
+ * </p>
+ */
+public final class WindowBenchmark
+{
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    private static final long MILLISECOND = 1000000L;
+
+    /** Roughly a gigabit path. */
+    private static final double PATH_RATE = 110.0 * MEGABYTE;
+
+    private static final long[] RTT_MILLIS = { 1, 20, 50, 100, 200 };
+
+    private static final int TRANSFERS = 20;
+
+    /** A window is good enough once it carries this fraction of the path rate. */
+    private static final double SATURATED = 0.95;
+
+    private WindowBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+    {
+        Bench.header( "Adaptive channel windows, " + (int) ( PATH_RATE / MEGABYTE ) + " MB/s path" );
+
+        for ( final long rttMillis : RTT_MILLIS )
+        {
+            final long rtt = rttMillis * MILLISECOND;
+            final WindowTuner tuner = new WindowTuner( new LinkStatistics() );
+            final LinkStatistics.Link link = tuner.getStatistics()
+                                                  .get( "bench" );
+            link.recordRoundTrip( rtt );
+
+            final double fixed = rate( WindowTuner.DEFAULT_WINDOW_SIZE, rtt );
+            int window = WindowTuner.DEFAULT_WINDOW_SIZE;
+            double rate = fixed;
+            int saturatedAfter = rate >= PATH_RATE * SATURATED ? 0 : -1;
+            for ( int i = 1; i <= TRANSFERS; i++ )
+            {
+                link.setWindowSize( window );
+                link.recordTransfer( (long) rate, 1000 * MILLISECOND );
+
+                window = tuner.recommendWindowSize( "bench" );
+                rate = rate( window, rtt );
+                if ( saturatedAfter < 0 && rate >= PATH_RATE * SATURATED )
+                {
+                    saturatedAfter = i;
+                }
+            }
+
+            Bench.report( rttMillis + "ms RTT", "default window %6.1f MB/s; adaptive %6.1f MB/s (%2dMB window), "
+                + "95%% of the path after %d transfers", fixed / MEGABYTE, rate / MEGABYTE, window / MEGABYTE,
+                          saturatedAfter );
+        }
+    }
+
+    private static double rate( final int window, final long rtt )
+    {
+        return Math.min( PATH_RATE, window / ( rtt / 1000000000.0 ) );
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.Workers;
+
+/**
+ * Fanning out blocking calls on {@link Workers#newExecutor(String)}, with platform threads and (on Java 21 and later)
+ * virtual threads. Each task waits 100ms, standing in for a remote command, so the elapsed time shows whether the
+ * calls really ran at once, and the peak thread count shows what that cost in platform threads.
+ */
+public final class WorkersBenchmark
+{
+
+    private static final int[] TASKS = { 100, 1000, 10000 };
+
+    private static final long WAIT_MILLIS = 100;
+
+    private WorkersBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        Bench.header( "Blocking fan-out, " + WAIT_MILLIS + "ms per call" );
+
+        for ( final int tasks : TASKS )
+        {
+            Workers.setVirtual( false );
+            run( "platform", tasks );
+
+            if ( Workers.setVirtual( true ) )
+            {
+                run( "virtual", tasks );
+            }
+        }
+
+        if ( !Workers.isVirtualAvailable() )
+        {
+            System.out.println( "  (virtual threads are not available on this JVM)" );
+        }
+    }
+
+    private static void run( final String mode, final int tasks )
+        throws InterruptedException
+    {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        final ExecutorService executor = Workers.newExecutor( "sshwrap bench" );
+        final CountDownLatch done = new CountDownLatch( tasks );
+        final long start = System.nanoTime();
+        for ( int i = 0; i < tasks; i++ )
+        {
+            executor.execute( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep( WAIT_MILLIS );
+                    }
+                    catch ( final InterruptedException e )
+                    {
+                        Thread.currentThread()
+                              .interrupt();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            } );
+        }
+
+        done.await();
+        final long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination( 1, TimeUnit.MINUTES );
+
+        Bench.report( tasks + " calls, " + mode + " threads", "%6d ms, peak %5d platform threads",
+                      TimeUnit.NANOSECONDS.toMillis( elapsed ), threads.getPeakThreadCount() );
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConfigSnapshotTest
+{
+
+    private File dir;
+
+    private File config;
+
+    private File snapshot;
+
+    @Before
+    public void createDir()
+        throws IOException
+    {
+        dir = File.createTempFile( "sshwrap", ".test" );
+        dir.delete();
+        dir.mkdirs();
+
+        config = new File( dir, "config" );
+        FileUtils.writeStringToFile( config, "Host web\n  HostName 10.0.0.1\n" );
+        snapshot = new File( dir, "config.snapshot" );
+    }
+
+    @After
+    public void deleteDir()
+        throws IOException
+    {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    @Test
+    public void roundTripsEveryField()
+        throws IOException
+    {
+        final Host h = new Host();
+        h.setPatternsApplied( true );
+        h.setHostName( "10.0.0.1" );
+        h.setPort( 2222 );
+        h.setIdentityFile( new File( "/keys/web" ) );
+        h.setUser( "ops" );
+        h.setPreferredAuthentications( "publickey" );
+        h.setBatchMode( Boolean.TRUE );
+        h.setStrictHostKeyChecking( "no" );
+        h.setProxyJump( "bastion" );
+        h.setControlMaster( "auto" );
+        h.setControlPath( "~/.ssh/cm-%r@%h:%p" );
+        h.setServerAliveInterval( 30 );
+        h.setServerAliveCountMax( 4 );
+        h.setConnectTimeout( 10 );
+        h.setCiphers( "aes128-ctr" );
+        h.setMacs( "hmac-sha1" );
+        h.setKexAlgorithms( "diffie-hellman-group14-sha1" );
+        h.setHostKeyAlgorithms( "ssh-rsa" );
+        h.setCompression( Boolean.FALSE );
+        h.setCompressionLevel( 6 );
+        h.setChannelWindowSize( 1 << 20 );
+        h.setChannelPacketSize( 32768 );
+        h.setIdentityAgent( "/tmp/agent.sock" );
+        h.addLocalForward( new LocalForward( "127.0.0.1", 8080, "intranet", 80 ) );
+        h.addRemoteForward( new RemoteForward( null, 9000, "localhost", 9001 ) );
+
+        final Map<String, Host> hosts = new LinkedHashMap<String, Host>();
+        hosts.put( "web", h );
+        hosts.put( "db\u00e9", new Host() );
+        final byte[] knownHosts = "web ssh-rsa AAAA\n".getBytes( "UTF-8" );
+        new ConfigSnapshot( hosts, knownHosts ).write( snapshot, config );
+
+        final ConfigSnapshot read = ConfigSnapshot.read( snapshot, config );
+        assertNotNull( read );
+        assertEquals( Arrays.asList( "web", "db\u00e9" ), Arrays.asList( read.getHosts()
+                                                                             .keySet()
+                                                                             .toArray() ) );
+        assertTrue( Arrays.equals( knownHosts, read.getKnownHosts() ) );
+
+        final Host r = read.getHosts()
+                           .get( "web" );
+        assertTrue( r.isPatternsApplied() );
+        assertEquals( "10.0.0.1", r.getHostName() );
+        assertEquals( 2222, r.getPort() );
+        assertEquals( new File( "/keys/web" ), r.getIdentityFile() );
+        assertEquals( "ops", r.getUser() );
+        assertEquals( "publickey", r.getPreferredAuthentications() );
+        assertEquals( Boolean.TRUE, r.getBatchMode() );
+        assertEquals( "no", r.getStrictHostKeyChecking() );
+        assertEquals( "bastion", r.getProxyJump() );
+        assertNull( r.getProxyCommand() );
+        assertEquals( "auto", r.getControlMaster() );
+        assertEquals( "~/.ssh/cm-%r@%h:%p", r.getControlPath() );
+        assertEquals( 30, r.getServerAliveInterval() );
+        assertEquals( 4, r.getServerAliveCountMax() );
+        assertEquals( 10, r.getConnectTimeout() );
+        assertEquals( "aes128-ctr", r.getCiphers() );
+        assertEquals( "hmac-sha1", r.getMacs() );
+        assertEquals( "diffie-hellman-group14-sha1", r.getKexAlgorithms() );
+        assertEquals( "ssh-rsa", r.getHostKeyAlgorithms() );
+        assertEquals( Boolean.FALSE, r.getCompression() );
+        assertEquals( 6, r.getCompressionLevel() );
+        assertEquals( 1 << 20, r.getChannelWindowSize() );
+        assertEquals( 32768, r.getChannelPacketSize() );
+        assertNull( r.getIdentitiesOnly() );
+        assertEquals( "/tmp/agent.sock", r.getIdentityAgent() );
+
+        final LocalForward local = r.getLocalForwards()
+                                    .iterator()
+                                    .next();
+        assertEquals( "127.0.0.1", local.getLocalAddress() );
+        assertEquals( 8080, local.getLocalPort() );
+        assertEquals( "intranet", local.getRemoteAddress() );
+        assertEquals( 80, local.getRemotePort() );
+
+        final RemoteForward remote = r.getRemoteForwards()
+                                      .iterator()
+                                      .next();
+        assertNull( remote.getLocalAddress() );
+        assertEquals( 9000, remote.getLocalPort() );
+        assertEquals( "localhost", remote.getRemoteAddress() );
+        assertEquals( 9001, remote.getRemotePort() );
+    }
+
+    @Test
+    public void isStaleOnceASourceChanges()
+        throws IOException
+    {
+        final File knownHosts = new File( dir, "known_hosts" );
+        write( config, knownHosts );
+        assertNotNull( ConfigSnapshot.read( snapshot, config, knownHosts ) );
+
+        // a source that didn't exist, and now does.
+        FileUtils.writeStringToFile( knownHosts, "web ssh-rsa AAAA\n" );
+        assertNull( ConfigSnapshot.read( snapshot, config, knownHosts ) );
+
+        write( config, knownHosts );
+        assertTrue( config.setLastModified( config.lastModified() - 60000 ) );
+        assertNull( ConfigSnapshot.read( snapshot, config, knownHosts ) );
+
+        write( config, knownHosts );
+        FileUtils.writeStringToFile( config, "Host web\n  HostName 10.0.0.2\n" );
+        assertNull( ConfigSnapshot.read( snapshot, config, knownHosts ) );
+
+        // different sources altogether.
+        write( config, knownHosts );
+        assertNull( ConfigSnapshot.read( snapshot, config ) );
+        assertNull( ConfigSnapshot.read( snapshot, knownHosts, config ) );
+    }
+
+    @Test
+    public void ignoresTruncatedAndCorruptSnapshots()
+        throws IOException
+    {
+        write( config );
+        final byte[] good = FileUtils.readFileToByteArray( snapshot );
+
+        for ( int length = 0; length < good.length; length++ )
+        {
+            FileUtils.writeByteArrayToFile( snapshot, Arrays.copyOf( good, length ) );
+            assertNull( "truncated to " + length, ConfigSnapshot.read( snapshot, config ) );
+        }
+
+        FileUtils.writeByteArrayToFile( snapshot, Arrays.copyOf( good, good.length + 1 ) );
+        assertNull( "trailing byte", ConfigSnapshot.read( snapshot, config ) );
+
+        // damaged sizes and flags must not throw, or allocate what the file can't hold.
+        final Random random = new Random( 50 );
+        for ( int i = 0; i < 2000; i++ )
+        {
+            final byte[] bad = good.clone();
+            bad[random.nextInt( bad.length )] = (byte) random.nextInt();
+            FileUtils.writeByteArrayToFile( snapshot, bad );
+            ConfigSnapshot.read( snapshot, config );
+        }
+    }
+
+    @Test
+    public void configurationLoadsFromItsSnapshotUntilTheConfigChanges()
+        throws IOException
+    {
+        FileUtils.writeStringToFile( new File( dir, "known_hosts" ), "web ssh-rsa AAAA\n" );
+
+        final DefaultSSHConfiguration parsed = DefaultSSHConfiguration.withSnapshot( dir, snapshot );
+        assertTrue( snapshot.isFile() );
+        assertEquals( "10.0.0.1", parsed.lookup( "web" )
+                                        .getHostName() );
+
+        final DefaultSSHConfiguration loaded = DefaultSSHConfiguration.withSnapshot( dir, snapshot );
+        assertEquals( "10.0.0.1", loaded.lookup( "web" )
+                                        .getHostName() );
+        assertEquals( "web ssh-rsa AAAA\n", read( loaded.getKnownHosts() ) );
+
+        FileUtils.writeStringToFile( config, "Host web\n  HostName 10.0.0.22\n" );
+        assertEquals( "10.0.0.22", DefaultSSHConfiguration.withSnapshot( dir, snapshot )
+                                                          .lookup( "web" )
+                                                          .getHostName() );
+        assertNotNull( ConfigSnapshot.read( snapshot, config, new File( dir, "known_hosts" ) ) );
+    }
+
+    private void write( final File... sources )
+        throws IOException
+    {
+        final Map<String, Host> hosts = new LinkedHashMap<String, Host>();
+        final Host web = new Host();
+        web.setHostName( "10.0.0.1" );
+        web.addLocalForward( new LocalForward( 8080, "intranet", 80 ) );
+        hosts.put( "web", web );
+        new ConfigSnapshot( hosts, new byte[] { 'k' } ).write( snapshot, sources );
+    }
+
+    private static String read( final InputStream in )
+        throws IOException
+    {
+        try
+        {
+            return IOUtils.toString( in, "UTF-8" );
+        }
+        finally
+        {
+            IOUtils.closeQuietly( in );
+        }
+    }
+
+}
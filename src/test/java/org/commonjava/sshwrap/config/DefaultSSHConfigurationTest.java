@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DefaultSSHConfigurationTest
+{
+
+    private File dir;
+
+    @Before
+    public void createDir()
+        throws IOException
+    {
+        dir = File.createTempFile( "sshwrap", ".test" );
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void deleteDir()
+        throws IOException
+    {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    @Test
+    public void readsServerAliveSettings()
+        throws IOException
+    {
+        final DefaultSSHConfiguration config =
+            load( "Host web\n  ServerAliveInterval 15\n  ServerAliveCountMax 4\n" );
+
+        final Host h = config.lookup( "web" );
+        assertEquals( 15, h.getServerAliveInterval() );
+        assertEquals( 4, h.getServerAliveCountMax() );
+    }
+
+    @Test
+    public void firstServerAliveValueWins()
+        throws IOException
+    {
+        final DefaultSSHConfiguration config =
+            load( "Host web db\n  ServerAliveInterval 15\n  ServerAliveCountMax 2\n\n"
+                + "Host web\n  ServerAliveInterval 60\n  ServerAliveCountMax 9\n" );
+
+        for ( final String name : new String[] { "web", "db" } )
+        {
+            final Host h = config.lookup( name );
+            assertEquals( name, 15, h.getServerAliveInterval() );
+            assertEquals( name, 2, h.getServerAliveCountMax() );
+        }
+    }
+
+    @Test
+    public void ignoresBadServerAliveValues()
+        throws IOException
+    {
+        final DefaultSSHConfiguration config =
+            load( "Host web\n  ServerAliveInterval often\n  ServerAliveCountMax \"x\"\n  ServerAliveInterval 30\n" );
+
+        final Host h = config.lookup( "web" );
+        assertEquals( 30, h.getServerAliveInterval() );
+        assertEquals( 0, h.getServerAliveCountMax() );
+    }
+
+    @Test
+    public void readsAuthenticationSettings()
+        throws IOException
+    {
+        final DefaultSSHConfiguration config =
+            load( "Host web\n  IdentityFile /keys/web\n  IdentityFile /keys/other\n"
+                + "  PreferredAuthentications publickey, password\n  BatchMode yes\n" );
+
+        final Host h = config.lookup( "web" );
+        assertEquals( new File( "/keys/web" ), h.getIdentityFile() );
+        assertEquals( "publickey,password", h.getPreferredAuthentications() );
+        assertTrue( h.isBatchMode() );
+    }
+
+    @Test
+    public void readsAlgorithmLists()
+        throws IOException
+    {
+        final DefaultSSHConfiguration config =
+            load( "Host web\n  Ciphers +aes256-ctr, aes192-ctr\n  MACs \"hmac-sha1\"\n"
+                + "  KexAlgorithms -diffie-hellman-group1-sha1\n  HostKeyAlgorithms ^ssh-dss\n  Ciphers aes128-cbc\n" );
+
+        final Host h = config.lookup( "web" );
+        assertEquals( "+aes256-ctr,aes192-ctr", h.getCiphers() );
+        assertEquals( "hmac-sha1", h.getMacs() );
+        assertEquals( "-diffie-hellman-group1-sha1", h.getKexAlgorithms() );
+        assertEquals( "^ssh-dss", h.getHostKeyAlgorithms() );
+    }
+
+    private DefaultSSHConfiguration load( final String content )
+        throws IOException
+    {
+        FileUtils.writeStringToFile( new File( dir, "config" ), content );
+        return new DefaultSSHConfiguration( dir );
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class InventoryConfigurationTest
+{
+
+    private final BaseConfiguration base = new BaseConfiguration();
+
+    @Test
+    public void rowsOverrideTheirProfile()
+    {
+        final Host web = new Host();
+        web.setUser( "deploy" );
+        web.setPort( 2222 );
+        web.setConnectTimeout( 7 );
+
+        final InventoryConfiguration inventory =
+            new InventoryConfiguration.Builder( base ).withProfile( "web", web )
+                                                      .withHost( "web1", "10.0.0.1", null, 0, null, null, "web" )
+                                                      .withHost( "web2", null, "ops", 2200, "/keys/web", "bastion",
+                                                                 "web" )
+                                                      .create();
+
+        final Host web1 = inventory.lookup( "web1" );
+        assertEquals( "10.0.0.1", web1.getHostName() );
+        assertEquals( "deploy", web1.getUser() );
+        assertEquals( 2222, web1.getPort() );
+        assertEquals( 7, web1.getConnectTimeout() );
+        assertTrue( web1.isPatternsApplied() );
+
+        final Host web2 = inventory.lookup( "web2" );
+        assertEquals( "web2", web2.getHostName() );
+        assertEquals( "ops", web2.getUser() );
+        assertEquals( 2200, web2.getPort() );
+        assertEquals( new File( "/keys/web" ), web2.getIdentityFile() );
+        assertEquals( "bastion", web2.getProxyJump() );
+        assertEquals( 7, web2.getConnectTimeout() );
+    }
+
+    @Test
+    public void rowsWithoutAProfileUseTheDefaults()
+    {
+        final InventoryConfiguration inventory = one( "db1", null );
+
+        final Host db1 = inventory.lookup( "db1" );
+        assertEquals( DefaultSSHConfiguration.userName(), db1.getUser() );
+        assertEquals( DefaultSSHConfiguration.SSH_PORT, db1.getPort() );
+        assertNull( db1.getProxyJump() );
+    }
+
+    @Test
+    public void unknownNamesGoToTheBase()
+        throws IOException
+    {
+        final InventoryConfiguration inventory = one( "db1", null );
+
+        assertFalse( inventory.contains( "db2" ) );
+        assertSame( base.host, inventory.lookup( "db2" ) );
+        assertNull( inventory.getKnownHosts() );
+    }
+
+    @Test
+    public void lookupBuildsAFreshHostEachTime()
+    {
+        final InventoryConfiguration inventory = one( "db1", "dba" );
+
+        final Host first = inventory.lookup( "db1" );
+        first.setUser( "changed" );
+
+        final Host second = inventory.lookup( "db1" );
+        assertNotSame( first, second );
+        assertEquals( "dba", second.getUser() );
+    }
+
+    @Test
+    public void laterRowsReplaceEarlierOnes()
+    {
+        final InventoryConfiguration inventory =
+            new InventoryConfiguration.Builder( base ).withHost( "db1", "10.0.0.1", null, 0, null, null, null )
+                                                      .withHost( "db1", "10.0.0.2", null, 0, null, null, null )
+                                                      .create();
+
+        assertEquals( "10.0.0.2", inventory.lookup( "db1" )
+                                           .getHostName() );
+    }
+
+    @Test
+    public void loadsCsvWithColumnsInAnyOrder()
+        throws IOException
+    {
+        final String csv =
+            "# fleet\n" + "User,Name,Port,HostName\n" + "\n" + "ops,web1,2201,10.0.0.1\n"
+                + "\"o\"\"ps\",\"web,2\",,\n";
+
+        final InventoryConfiguration inventory =
+            new InventoryConfiguration.Builder( base ).load( new StringReader( csv ) )
+                                                      .create();
+
+        assertEquals( 2, inventory.size() );
+        final Host web1 = inventory.lookup( "web1" );
+        assertEquals( "ops", web1.getUser() );
+        assertEquals( 2201, web1.getPort() );
+        assertEquals( "10.0.0.1", web1.getHostName() );
+
+        final Host web2 = inventory.lookup( "web,2" );
+        assertEquals( "o\"ps", web2.getUser() );
+        assertEquals( DefaultSSHConfiguration.SSH_PORT, web2.getPort() );
+        assertEquals( "web,2", web2.getHostName() );
+    }
+
+    @Test
+    public void rejectsBadRowsWithTheirLineNumber()
+    {
+        assertLoadFails( "name,port\nweb1,99999\n", "Line 2" );
+        assertLoadFails( "name,port\nweb1,ssh\n", "Line 2" );
+        assertLoadFails( "name,colour\n", "unknown column" );
+        assertLoadFails( "user\nops\n", "no name column" );
+        assertLoadFails( "name,profile\nweb1,missing\n", "Unknown profile" );
+        assertLoadFails( "name\n\"web1\n", "unterminated quote" );
+    }
+
+    @Test
+    public void findsEveryRowOfALargeInventory()
+    {
+        final InventoryConfiguration.Builder builder = new InventoryConfiguration.Builder( base );
+        final int hosts = 50000;
+        for ( int i = 0; i < hosts; i++ )
+        {
+            builder.withHost( "host" + i + ".example.com", null, "u" + ( i % 10 ), 0, null, null, null );
+        }
+
+        final InventoryConfiguration inventory = builder.create();
+        assertEquals( hosts, inventory.size() );
+        for ( int i = 0; i < hosts; i++ )
+        {
+            assertTrue( inventory.contains( "host" + i + ".example.com" ) );
+            assertFalse( inventory.contains( "host" + i + ".example.org" ) );
+        }
+
+        assertEquals( "u3", inventory.lookup( "host12343.example.com" )
+                                     .getUser() );
+
+        // name bytes, eight int columns and a char column, and an index of two or more slots per row.
+        final double perHost = inventory.getBytesPerHost();
+        assertTrue( "estimated " + perHost + " bytes per host", perHost > 20 && perHost < 100 );
+    }
+
+    private InventoryConfiguration one( final String name, final String user )
+    {
+        return new InventoryConfiguration.Builder( base ).withHost( name, null, user, 0, null, null, null )
+                                                         .create();
+    }
+
+    private void assertLoadFails( final String csv, final String message )
+    {
+        try
+        {
+            new InventoryConfiguration.Builder( base ).load( new StringReader( csv ) );
+            fail( "loaded: " + csv );
+        }
+        catch ( final IOException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage()
+                                         .contains( message ) );
+        }
+    }
+
+    private static final class BaseConfiguration
+        implements SSHConfiguration
+    {
+        private final Host host = new Host();
+
+        @Override
+        public Host lookup( final String hostName )
+        {
+            return host;
+        }
+
+        @Override
+        public Set<File> getIdentities()
+        {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public InputStream getKnownHosts()
+        {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.expect;
+
+import java.util.Random;
+
+import org.commonjava.sshwrap.bench.Bench;
+
+/**
+ * Scanning shell output for prompts with {@link PatternSet}'s automaton, against checking every prompt at every
+ * position, for sets of 1 to 1,000 literal prompts. None of the prompts occurs in the output, so every character is
+ * scanned.
+ */
+public final class PatternSetBenchmark
+{
+
+    private static final int[] PROMPTS = { 1, 10, 100, 1000 };
+
+    private static final int TEXT_CHARS = 256 * 1024;
+
+    private PatternSetBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        Bench.header( "Prompt matching over " + TEXT_CHARS / 1024 + "K characters of output" );
+
+        final Random random = new Random( 42 );
+        final String text = output( random );
+
+        for ( final int count : PROMPTS )
+        {
+            final String[] prompts = new String[count];
+            for ( int i = 0; i < count; i++ )
+            {
+                prompts[i] = "[host-" + random.nextInt( 1000000 ) + " ~]$ ";
+            }
+
+            final PatternSet set = PatternSet.of( prompts );
+            final long automaton = Bench.time( new Bench.Task()
+            {
+                public void run()
+                {
+                    int state = 0;
+                    int found = 0;
+                    for ( int i = 0; i < text.length(); i++ )
+                    {
+                        state = set.step( state, text.charAt( i ) );
+                        found += set.literalAt( state );
+                    }
+                    Bench.sink = found;
+                }
+            } );
+
+            final long each = Bench.time( new Bench.Task()
+            {
+                public void run()
+                {
+                    int found = 0;
+                    for ( int i = 0; i < text.length(); i++ )
+                    {
+                        for ( final String p : prompts )
+                        {
+                            if ( text.startsWith( p, i + 1 - p.length() ) )
+                            {
+                                found++;
+                            }
+                        }
+                    }
+                    Bench.sink = found;
+                }
+            } );
+
+            Bench.report( count + " prompts", "automaton %8.1f Mchar/s; each prompt in turn %8.2f Mchar/s",
+                          Bench.megabytesPerSecond( TEXT_CHARS, automaton ),
+                          Bench.megabytesPerSecond( TEXT_CHARS, each ) );
+        }
+    }
+
+    private static String output( final Random random )
+    {
+        final String[] lines =
+            { "total 48\n", "drwxr-xr-x  2 build build 4096 Jan  1 00:00 lib\n",
+                "-rw-r--r--  1 build build  812 Jan  1 00:00 pom.xml\n", "[INFO] BUILD SUCCESS\n",
+                "[host-1 ~]# \n" };
+
+        final StringBuilder sb = new StringBuilder( TEXT_CHARS );
+        while ( sb.length() < TEXT_CHARS )
+        {
+            sb.append( lines[random.nextInt( lines.length )] );
+        }
+        sb.setLength( TEXT_CHARS );
+
+        return sb.toString();
+    }
+
+}
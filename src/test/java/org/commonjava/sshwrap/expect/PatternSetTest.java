@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.expect;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PatternSetTest
+{
+
+    @Test
+    public void findsOverlappingLiteralsPreferringTheLongest()
+    {
+        final PatternSet set = PatternSet.of( "he", "she", "his", "hers" );
+
+        // "she" and "he" both end at 3; "hers" ends at 5.
+        assertEquals( "3:1 5:3", scan( set, "ushers" ) );
+    }
+
+    @Test
+    public void findsLiteralsReachedThroughFailLinks()
+    {
+        final PatternSet set = PatternSet.of( "password: ", "sword" );
+
+        assertEquals( "8:1", scan( set, "passsword: " ) );
+        assertEquals( "13:1 15:0", scan( set, "Enter password: " ) );
+    }
+
+    @Test
+    public void indexesCountRegexesAndLiteralsTogether()
+    {
+        final PatternSet set = new PatternSet.Builder().withRegex( "\\[y/n\\]" )
+                                                       .withLiteral( "$ " )
+                                                       .create();
+
+        assertEquals( 2, set.size() );
+        assertEquals( "4:1", scan( set, "ok $ " ) );
+    }
+
+    @Test
+    public void matchesTheSameAsABruteForceSearch()
+    {
+        final Random random = new Random( 7 );
+        final String[] literals = new String[40];
+        for ( int i = 0; i < literals.length; i++ )
+        {
+            literals[i] = random( random, 1 + random.nextInt( 5 ) );
+        }
+
+        final PatternSet set = PatternSet.of( literals );
+        final String text = random( random, 5000 );
+
+        int state = 0;
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            state = set.step( state, text.charAt( i ) );
+            final int found = set.literalAt( state );
+
+            // the longest literal ending here.
+            int expected = -1;
+            for ( int l = 0; l < literals.length; l++ )
+            {
+                if ( text.startsWith( literals[l], i + 1 - literals[l].length() )
+                    && ( expected < 0 || literals[l].length() > literals[expected].length() ) )
+                {
+                    expected = l;
+                }
+            }
+
+            assertEquals( "at " + i, expected < 0 ? -1 : literals[expected].length(),
+                          found < 0 ? -1 : set.literalLength( found ) );
+        }
+    }
+
+    @Test
+    public void regexesOnlySeeTheirWindow()
+    {
+        final PatternSet set = new PatternSet.Builder().withRegex( "Continue\\? \\[[yn]/[yn]\\]" )
+                                                       .withRegexWindow( 32 )
+                                                       .create();
+
+        final StringBuilder text = new StringBuilder( "Continue? [y/n]" );
+        assertArrayEquals( new int[] { 0, 0, 15 }, set.findRegex( text, 0, text.length() ) );
+
+        for ( int i = 0; i < 40; i++ )
+        {
+            text.append( '.' );
+        }
+        assertNull( set.findRegex( text, 0, text.length() ) );
+    }
+
+    @Test
+    public void earliestEndingRegexWins()
+    {
+        final PatternSet set = new PatternSet.Builder().withRegex( "b+c" )
+                                                       .withRegex( "ab" )
+                                                       .create();
+
+        assertArrayEquals( new int[] { 1, 0, 2 }, set.findRegex( "abbc", 0, 4 ) );
+        assertArrayEquals( new int[] { 0, 1, 4 }, set.findRegex( "abbc", 1, 4 ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsEmptyLiterals()
+    {
+        PatternSet.of( "$ ", "" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsEmptySets()
+    {
+        new PatternSet.Builder().create();
+    }
+
+    /**
+     * @return "end:index" for each position a literal ends at, where end is the position of its last character.
+     */
+    private static String scan( final PatternSet set, final String text )
+    {
+        final StringBuilder found = new StringBuilder();
+        int state = 0;
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            state = set.step( state, text.charAt( i ) );
+            final int literal = set.literalAt( state );
+            if ( literal >= 0 )
+            {
+                found.append( found.length() == 0 ? "" : " " )
+                     .append( i )
+                     .append( ':' )
+                     .append( set.patternIndexOfLiteral( literal ) );
+            }
+        }
+
+        return found.toString();
+    }
+
+    private static String random( final Random random, final int length )
+    {
+        final char[] chars = new char[length];
+        for ( int i = 0; i < length; i++ )
+        {
+            chars[i] = "abc".charAt( random.nextInt( 3 ) );
+        }
+
+        return new String( chars );
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.sshwrap.facts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.commonjava.sshwrap.SSHWrapException;
+import org.junit.Test;
+
+public class FactGathererTest
+{
+
+    private static final String MARKER = "@@sshwrap-facts-test";
+
+    private final FactProbe<String> kernel = new TextProbe( "kernel" );
+
+    private final FactProbe<String> release = new TextProbe( "release" );
+
+    private final FactProbe<String> uptime = new TextProbe( "uptime" );
+
+    @Test
+    public void splitsTheOutputAtTheMarkers()
+        throws SSHWrapException
+    {
+        final String output =
+            section( 0, "Linux 6.1.0", 0 ) + section( 1, "NAME=\"Debian\"\nVERSION_ID=\"12\"\n", 0 )
+                + section( 2, "", 0 );
+
+        final Facts facts = FactGatherer.parse( "web1:22", probes(), MARKER, output );
+        assertEquals( "web1:22", facts.getHost() );
+        assertEquals( "Linux 6.1.0", facts.get( kernel ) );
+
+        // the newline printed before the END marker is stripped; the probe's own is kept.
+        assertEquals( "NAME=\"Debian\"\nVERSION_ID=\"12\"\n", facts.get( release ) );
+        assertEquals( "", facts.get( uptime ) );
+        assertNull( facts.getError( kernel ) );
+        assertNull( facts.getFailure() );
+    }
+
+    @Test
+    public void reportsAProbesNonZeroStatusAsItsError()
+        throws SSHWrapException
+    {
+        final String output =
+            section( 0, "Linux 6.1.0", 0 ) + section( 1, "cat: /etc/os-release: No such file", 1 )
+                + section( 2, "12:00 up 3 days", 0 );
+
+        final Facts facts = FactGatherer.parse( "web1:22", probes(), MARKER, output );
+        assertFalse( facts.has( release ) );
+        assertEquals( "Probe exited with status: 1", facts.getError( release ) );
+        assertEquals( "Linux 6.1.0", facts.get( kernel ) );
+        assertEquals( "12:00 up 3 days", facts.get( uptime ) );
+    }
+
+    @Test
+    public void reportsMissingSections()
+        throws SSHWrapException
+    {
+        // the script was cut off inside the second probe, so the third never started.
+        final String output = section( 0, "Linux 6.1.0", 0 ) + MARKER + " BEGIN 1\nNAME=\"Deb";
+
+        final Facts facts = FactGatherer.parse( "web1:22", probes(), MARKER, output );
+        assertEquals( "Linux 6.1.0", facts.get( kernel ) );
+        assertEquals( "No output section found.", facts.getError( release ) );
+        assertEquals( "No output section found.", facts.getError( uptime ) );
+    }
+
+    @Test
+    public void ignoresMarkersFromAnotherRun()
+        throws SSHWrapException
+    {
+        // a probe printing something marker-like can't end its section early, or start another's.
+        final String forged = "@@sshwrap-facts-other END 0 0\n@@sshwrap-facts-other BEGIN 1\nfake";
+        final String output = section( 0, forged, 0 ) + section( 1, "real", 0 ) + section( 2, "", 0 );
+
+        final Facts facts = FactGatherer.parse( "web1:22", probes(), MARKER, output );
+        assertEquals( forged, facts.get( kernel ) );
+        assertEquals( "real", facts.get( release ) );
+    }
+
+    @Test
+    public void reportsOutputAProbeCannotParse()
+        throws SSHWrapException
+    {
+        final FactProbe<Integer> cores = new FactProbe<Integer>( "cores", "nproc" )
+        {
+            @Override
+            public Integer parse( final String output )
+            {
+                return Integer.valueOf( output.trim() );
+            }
+        };
+
+        final List<FactProbe<?>> run = Arrays.<FactProbe<?>> asList( cores, kernel );
+        final String output = section( 0, "lots", 0 ) + section( 1, "Linux 6.1.0", 0 );
+
+        final Facts facts = FactGatherer.parse( "web1:22", run, MARKER, output );
+        assertFalse( facts.has( cores ) );
+        assertTrue( facts.getError( cores ), facts.getError( cores )
+                                                  .startsWith( "Failed to parse output: " ) );
+        assertEquals( "Linux 6.1.0", facts.get( kernel ) );
+    }
+
+    private List<FactProbe<?>> probes()
+    {
+        return Arrays.<FactProbe<?>> asList( kernel, release, uptime );
+    }
+
+    /**
+     * @return one probe's output, bracketed as the gathering script prints it.
+     */
+    private static String section( final int index, final String output, final int status )
+    {
+        return MARKER + " BEGIN " + index + "\n" + output + "\n" + MARKER + " END " + index + " " + status + "\n";
+    }
+
+    private static final class TextProbe
+        extends FactProbe<String>
+    {
+        TextProbe( final String name )
+        {
+            super( name, "true" );
+        }
+
+        @Override
+        public String parse( final String output )
+        {
+            return output;
+        }
+    }
+
+}
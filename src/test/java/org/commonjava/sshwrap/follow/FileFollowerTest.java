@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.sshwrap.follow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.commonjava.sshwrap.ChannelType;
+import org.commonjava.sshwrap.ErrorCategory;
+import org.commonjava.sshwrap.SSHConnection;
+import org.commonjava.sshwrap.SSHWrapException;
+import org.commonjava.sshwrap.config.Host;
+import org.junit.After;
+import org.junit.Test;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+
+public class FileFollowerTest
+{
+
+    private static final Pattern MARKER = Pattern.compile( "@@sshwrap-follow-[0-9a-f-]+" );
+
+    private final FakeConnection connection = new FakeConnection();
+
+    private final RecordingListener listener = new RecordingListener();
+
+    private final FileFollower follower = new FileFollower( connection, listener );
+
+    @After
+    public void stop()
+    {
+        follower.stop();
+    }
+
+    @Test
+    public void deliversEachBatchItsHeaderAnnounces()
+        throws Exception
+    {
+        start();
+        final String m = marker( 0 );
+
+        // the second batch holds a newline and a marker-like line, which are data, not headers.
+        send( 0, batch( m, 0, "101", 0, "hello" ) + batch( m, 1, "202", 40, "ab\n" + m + " R 1 x\n" ) );
+
+        assertEquals( "[/var/log/a@0:hello, /var/log/b@40:ab\n" + m + " R 1 x\n]", listener.appended.toString() );
+        assertTrue( listener.rotated.isEmpty() );
+        assertEquals( new Checkpoint( 5, "101" ), follower.getCheckpoint( "/var/log/a" ) );
+        assertEquals( new Checkpoint( 40 + 3 + m.length() + 7, "202" ), follower.getCheckpoint( "/var/log/b" ) );
+    }
+
+    @Test
+    public void reassemblesBatchesSplitAcrossWrites()
+        throws Exception
+    {
+        start();
+        final String m = marker( 0 );
+
+        send( 0, m.substring( 0, 10 ) );
+        send( 0, m.substring( 10 ) + " D 1 202 7 6\nabc" );
+        assertTrue( listener.appended.isEmpty() );
+
+        send( 0, "def" + m + " D 0 101 0 3\nxy" );
+        send( 0, "z" );
+        assertEquals( "[/var/log/b@7:abcdef, /var/log/a@0:xyz]", listener.appended.toString() );
+
+        // a byte at a time, as a stream may be written.
+        for ( final char c : batch( m, 0, "101", 3, "12" ).toCharArray() )
+        {
+            send( 0, String.valueOf( c ) );
+        }
+
+        assertEquals( "/var/log/a@3:12", listener.appended.get( 2 ) );
+        assertEquals( new Checkpoint( 5, "101" ), follower.getCheckpoint( "/var/log/a" ) );
+    }
+
+    @Test
+    public void restartsARotatedFileFromItsStart()
+        throws Exception
+    {
+        start();
+        final String m = marker( 0 );
+
+        send( 0, batch( m, 0, "101", 0, "old\n" ) + m + " R 0 303\n" );
+        assertEquals( "[/var/log/a]", listener.rotated.toString() );
+        assertEquals( new Checkpoint( 0, "303" ), follower.getCheckpoint( "/var/log/a" ) );
+
+        // an empty batch and stray lines change nothing.
+        send( 0, batch( m, 0, "303", 0, "" ) + "not a header\n" + batch( m, 0, "303", 0, "new\n" ) );
+        assertEquals( "[/var/log/a@0:old\n, /var/log/a@0:new\n]", listener.appended.toString() );
+        assertEquals( new Checkpoint( 4, "303" ), follower.getCheckpoint( "/var/log/a" ) );
+    }
+
+    @Test
+    public void resumesFromTheCheckpointsAfterATransientFailure()
+        throws Exception
+    {
+        start();
+        send( 0, batch( marker( 0 ), 0, "101", 0, "hello" ) );
+
+        connection.failures.add( new SSHWrapException( "Connection reset" ).withCategory( ErrorCategory.CONNECTION ) );
+        connection.channels.get( 0 )
+                           .disconnect();
+
+        // the loop ending, then the failed attempt; the next attempt succeeds.
+        waitFor( 2, 1 );
+        assertEquals( 2, listener.interrupted.size() );
+        assertSame( ErrorCategory.CONNECTION, ( (SSHWrapException) listener.interrupted.get( 1 ) ).getCategory() );
+        assertTrue( command( 1 ).contains( "; o0=5; i0=" ) );
+
+        // batches from the resumed loop count; the old loop's would not.
+        send( 1, batch( marker( 1 ), 0, "101", 5, "!!" ) );
+        assertEquals( new Checkpoint( 7, "101" ), follower.getCheckpoint( "/var/log/a" ) );
+    }
+
+    @Test
+    public void stopsWhenResumingFailsForGood()
+        throws Exception
+    {
+        start();
+
+        final SSHWrapException failure =
+            new SSHWrapException( "Host key for: web1 has changed." ).withCategory( ErrorCategory.HOST_KEY );
+        connection.failures.add( failure );
+        connection.channels.get( 0 )
+                           .disconnect();
+
+        waitFor( 2, 0 );
+        assertSame( failure, listener.interrupted.get( 1 ) );
+
+        // stopped: nothing more is tried, and following another file doesn't start it again.
+        Thread.sleep( 1000 );
+        follower.follow( "/var/log/c" );
+        assertEquals( 2, connection.attempts );
+        assertEquals( 2, listener.interrupted.size() );
+    }
+
+    @Test
+    public void stopsWhenResumingFailsUnexpectedly()
+        throws Exception
+    {
+        start();
+
+        final IllegalStateException bug = new IllegalStateException( "bug" );
+        connection.failures.add( bug );
+        connection.channels.get( 0 )
+                           .disconnect();
+
+        waitFor( 2, 0 );
+        final Exception reported = listener.interrupted.get( 1 );
+        assertTrue( String.valueOf( reported ), reported instanceof SSHWrapException );
+        assertSame( bug, reported.getCause() );
+
+        Thread.sleep( 1000 );
+        assertEquals( 2, connection.attempts );
+    }
+
+    private void start()
+        throws SSHWrapException
+    {
+        follower.follow( "/var/log/a", Checkpoint.START )
+                .follow( "/var/log/b", Checkpoint.END )
+                .start();
+        assertEquals( 1, connection.channels.size() );
+    }
+
+    /**
+     * @return a data header and the batch it announces, as the loop prints them.
+     */
+    private static String batch( final String marker, final int index, final String inode, final long offset,
+                                 final String data )
+    {
+        return marker + " D " + index + " " + inode + " " + offset + " " + data.length() + "\n" + data;
+    }
+
+    /**
+     * Write loop output into the given channel, as the session does when it arrives.
+     */
+    private void send( final int channel, final String output )
+        throws Exception
+    {
+        final byte[] b = output.getBytes( "UTF-8" );
+        final Method write = Channel.class.getDeclaredMethod( "write", byte[].class, int.class, int.class );
+        write.setAccessible( true );
+        write.invoke( connection.channels.get( channel ), b, 0, b.length );
+    }
+
+    private String command( final int channel )
+        throws Exception
+    {
+        final Field command = ChannelExec.class.getDeclaredField( "command" );
+        command.setAccessible( true );
+        return new String( (byte[]) command.get( connection.channels.get( channel ) ), "UTF-8" );
+    }
+
+    private String marker( final int channel )
+        throws Exception
+    {
+        final Matcher m = MARKER.matcher( command( channel ) );
+        assertTrue( m.find() );
+        return m.group();
+    }
+
+    /**
+     * Wait for the given number of interruptions and of resumed channels.
+     */
+    private void waitFor( final int interruptions, final int resumed )
+        throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 10 );
+        while ( ( listener.interrupted.size() < interruptions || connection.channels.size() < resumed + 1 )
+            && System.nanoTime() < deadline )
+        {
+            Thread.sleep( 20 );
+        }
+    }
+
+    private static final class RecordingListener
+        implements FollowListener
+    {
+        private final List<String> appended = new CopyOnWriteArrayList<String>();
+
+        private final List<String> rotated = new CopyOnWriteArrayList<String>();
+
+        private final List<Exception> interrupted = new CopyOnWriteArrayList<Exception>();
+
+        public void appended( final String path, final long offset, final byte[] data )
+        {
+            try
+            {
+                appended.add( path + "@" + offset + ":" + new String( data, "UTF-8" ) );
+            }
+            catch ( final UnsupportedEncodingException e )
+            {
+                throw new IllegalStateException( e );
+            }
+        }
+
+        public void rotated( final String path )
+        {
+            rotated.add( path );
+        }
+
+        public void interrupted( final Exception reason )
+        {
+            interrupted.add( reason );
+        }
+    }
+
+    /**
+     * Opens channels that JSch considers connected, on a session that never is; the next queued failure, if any, is
+     * thrown instead.
+     */
+    private static final class FakeConnection
+        extends SSHConnection
+    {
+        private final List<ChannelExec> channels = new CopyOnWriteArrayList<ChannelExec>();
+
+        private final Queue<Exception> failures = new ConcurrentLinkedQueue<Exception>();
+
+        private volatile int attempts;
+
+        FakeConnection()
+        {
+            super( host(), null, null, null );
+        }
+
+        @Override
+        public Channel openChannel( final ChannelType type )
+        {
+            return new ChannelExec();
+        }
+
+        @Override
+        public void connectChannel( final Channel channel, final long timeout, final TimeUnit unit )
+            throws SSHWrapException
+        {
+            attempts++;
+            final Exception failure = failures.poll();
+            if ( failure instanceof SSHWrapException )
+            {
+                throw (SSHWrapException) failure;
+            }
+            else if ( failure != null )
+            {
+                throw (RuntimeException) failure;
+            }
+
+            try
+            {
+                final Method setSession = Channel.class.getDeclaredMethod( "setSession", Session.class );
+                setSession.setAccessible( true );
+                setSession.invoke( channel, new JSch().getSession( "user", "localhost" ) );
+
+                final Field connected = Channel.class.getDeclaredField( "connected" );
+                connected.setAccessible( true );
+                connected.setBoolean( channel, true );
+            }
+            catch ( final Exception e )
+            {
+                throw new SSHWrapException( "Failed to fake a connected channel: %s", e, e.getMessage() );
+            }
+
+            channels.add( (ChannelExec) channel );
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return true;
+        }
+
+        private static Host host()
+        {
+            final Host h = new Host();
+            h.setHostName( "web1" );
+            h.setPort( 22 );
+            return h;
+        }
+    }
+
+}
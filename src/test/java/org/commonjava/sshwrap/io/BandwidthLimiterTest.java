@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.sshwrap.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BandwidthLimiterTest
+{
+
+    /** Rate whose burst is the 32K minimum, so that a full bucket refills in a tenth of a second. */
+    private static final int RATE = 320 * 1024;
+
+    private static final int BURST = 32 * 1024;
+
+    @Test
+    public void unlimitedLimiterNeverWaits()
+        throws InterruptedIOException
+    {
+        final BandwidthLimiter limiter = new BandwidthLimiter( 0, null );
+        assertFalse( limiter.isLimited() );
+        assertEquals( 64 * 1024, limiter.getChunkSize() );
+
+        final long start = System.nanoTime();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            limiter.acquire( 1024 * 1024 );
+        }
+        assertTrue( millisSince( start ) < 500 );
+    }
+
+    @Test
+    public void passesABurstAtOnceThenHoldsToTheRate()
+        throws InterruptedIOException
+    {
+        final BandwidthLimiter limiter = new BandwidthLimiter( RATE, null );
+        assertEquals( BURST, limiter.getChunkSize() );
+
+        long start = System.nanoTime();
+        limiter.acquire( BURST );
+        assertTrue( millisSince( start ) < 50 );
+
+        // three more bursts' worth: 300ms at the rate.
+        start = System.nanoTime();
+        for ( int i = 0; i < 3; i++ )
+        {
+            limiter.acquire( BURST );
+        }
+
+        final long elapsed = millisSince( start );
+        assertTrue( "took " + elapsed + "ms", elapsed >= 270 && elapsed < 1500 );
+    }
+
+    @Test
+    public void refillsTheBurstWhileIdle()
+        throws Exception
+    {
+        final BandwidthLimiter limiter = new BandwidthLimiter( RATE, null );
+        limiter.acquire( BURST );
+
+        Thread.sleep( 150 );
+
+        final long start = System.nanoTime();
+        limiter.acquire( BURST );
+        assertTrue( millisSince( start ) < 50 );
+    }
+
+    @Test
+    public void neverSavesMoreThanOneBurst()
+        throws Exception
+    {
+        final BandwidthLimiter limiter = new BandwidthLimiter( RATE, null );
+        Thread.sleep( 300 );
+
+        // idle for three bursts' worth, but only one is banked.
+        final long start = System.nanoTime();
+        limiter.acquire( BURST );
+        limiter.acquire( BURST );
+
+        final long elapsed = millisSince( start );
+        assertTrue( "took " + elapsed + "ms", elapsed >= 80 );
+    }
+
+    @Test
+    public void chargesEveryLimiterInTheChain()
+        throws InterruptedIOException
+    {
+        final BandwidthLimiter parent = new BandwidthLimiter( RATE, null );
+        final BandwidthLimiter first = new BandwidthLimiter( 0, parent );
+        final BandwidthLimiter second = new BandwidthLimiter( 0, parent );
+        assertTrue( first.isLimited() );
+        assertEquals( BURST, first.getChunkSize() );
+
+        first.acquire( BURST );
+
+        // the siblings share the parent's bucket, which the first has emptied.
+        final long start = System.nanoTime();
+        second.acquire( BURST );
+
+        final long elapsed = millisSince( start );
+        assertTrue( "took " + elapsed + "ms", elapsed >= 80 );
+    }
+
+    @Test
+    public void liftingTheLimitReleasesWaiters()
+        throws Exception
+    {
+        final BandwidthLimiter limiter = new BandwidthLimiter( BURST, null );
+        limiter.acquire( BURST );
+
+        final long[] waited = { -1 };
+        final Thread waiter = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                final long start = System.nanoTime();
+                try
+                {
+                    // a second at this rate.
+                    limiter.acquire( BURST );
+                    waited[0] = millisSince( start );
+                }
+                catch ( final InterruptedIOException e )
+                {
+                    // waited stays -1.
+                }
+            }
+        } );
+        waiter.start();
+
+        Thread.sleep( 100 );
+        limiter.setRate( 0 );
+        waiter.join( 5000 );
+
+        assertTrue( "waited " + waited[0] + "ms", waited[0] >= 0 && waited[0] < 700 );
+        assertFalse( limiter.isLimited() );
+    }
+
+    @Test
+    public void interruptingAWaiterFailsTheAcquire()
+        throws Exception
+    {
+        final BandwidthLimiter limiter = new BandwidthLimiter( BURST, null );
+        limiter.acquire( BURST );
+
+        final boolean[] interrupted = { false };
+        final Thread waiter = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    limiter.acquire( BURST );
+                }
+                catch ( final InterruptedIOException e )
+                {
+                    interrupted[0] = Thread.currentThread()
+                                           .isInterrupted();
+                }
+            }
+        } );
+        waiter.start();
+
+        Thread.sleep( 100 );
+        waiter.interrupt();
+        waiter.join( 5000 );
+
+        assertTrue( interrupted[0] );
+    }
+
+    private static long millisSince( final long start )
+    {
+        return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BlockingPipeTest
+{
+
+    @Test
+    public void readTimesOutLikeASocket()
+        throws IOException
+    {
+        final BlockingPipe pipe = new BlockingPipe();
+        pipe.setReadTimeout( 100 );
+
+        final long start = System.nanoTime();
+        try
+        {
+            pipe.getInputStream()
+                .read();
+            fail( "read returned without data" );
+        }
+        catch ( final InterruptedIOException e )
+        {
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+            assertTrue( "took " + elapsed + "ms", elapsed >= 90 && elapsed < 2000 );
+        }
+
+        // a timed out read leaves the pipe usable.
+        pipe.getOutputStream()
+            .write( 42 );
+        assertEquals( 42, pipe.getInputStream()
+                              .read() );
+    }
+
+    @Test
+    public void readWaitsForDataWithinTheTimeout()
+        throws Exception
+    {
+        final BlockingPipe pipe = new BlockingPipe();
+        pipe.setReadTimeout( 5000 );
+
+        final Thread writer = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep( 50 );
+                    pipe.getOutputStream()
+                        .write( 7 );
+                    pipe.getOutputStream()
+                        .close();
+                }
+                catch ( final Exception e )
+                {
+                    // the read below comes up empty.
+                }
+            }
+        } );
+        writer.start();
+
+        final InputStream in = pipe.getInputStream();
+        assertEquals( 7, in.read() );
+        assertEquals( -1, in.read() );
+        writer.join();
+    }
+
+}
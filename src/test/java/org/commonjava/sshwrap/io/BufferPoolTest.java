@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BufferPoolTest
+{
+
+    @Test
+    public void releasedBuffersAreReused()
+    {
+        final BufferPool pool = new BufferPool( 1024, 4 );
+        final byte[] first = pool.acquire();
+        pool.release( first );
+
+        assertSame( first, pool.acquire() );
+        assertEquals( 1, pool.getAllocated() );
+    }
+
+    @Test
+    public void keepsAtMostMaxPooledIdleBuffers()
+    {
+        final BufferPool pool = new BufferPool( 1024, 2 );
+        final byte[][] buffers = { pool.acquire(), pool.acquire(), pool.acquire() };
+        for ( final byte[] b : buffers )
+        {
+            pool.release( b );
+        }
+
+        assertEquals( 3, pool.getAllocated() );
+        assertEquals( 2, pool.getIdle() );
+    }
+
+    @Test
+    public void ignoresForeignBuffers()
+    {
+        final BufferPool pool = new BufferPool( 1024, 2 );
+        pool.release( new byte[512] );
+        pool.release( null );
+
+        assertEquals( 0, pool.getIdle() );
+    }
+
+    @Test
+    public void steadyCopiesStopAllocating()
+        throws IOException
+    {
+        final BufferPool pool = new BufferPool( 1024, 2 );
+        final byte[] data = new byte[10000];
+        new Random( 5 ).nextBytes( data );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals( data.length, pool.copy( new ByteArrayInputStream( data ), out ) );
+            assertArrayEquals( data, out.toByteArray() );
+        }
+
+        assertEquals( 1, pool.getAllocated() );
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.sshwrap.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class ThrottledStreamsTest
+{
+
+    /** Rate whose burst is the 32K minimum, so that each further 32K takes a tenth of a second. */
+    private static final int RATE = 320 * 1024;
+
+    private static final int BURST = 32 * 1024;
+
+    @Test
+    public void outputStreamWritesAtTheRate()
+        throws IOException
+    {
+        final byte[] data = data( BURST * 4 );
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        final long start = System.nanoTime();
+        final OutputStream throttled = new ThrottledOutputStream( out, new BandwidthLimiter( RATE, null ) );
+        throttled.write( data );
+
+        // the first burst passes at once; the other three wait for their tokens.
+        final long elapsed = millisSince( start );
+        assertTrue( "took " + elapsed + "ms", elapsed >= 270 && elapsed < 1500 );
+        assertArrayEquals( data, out.toByteArray() );
+    }
+
+    @Test
+    public void inputStreamReadsAtTheRate()
+        throws IOException
+    {
+        final byte[] data = data( BURST * 4 );
+
+        final long start = System.nanoTime();
+        final byte[] read =
+            IOUtils.toByteArray( new ThrottledInputStream( new ByteArrayInputStream( data ),
+                                                           new BandwidthLimiter( RATE, null ) ) );
+
+        final long elapsed = millisSince( start );
+        assertTrue( "took " + elapsed + "ms", elapsed >= 270 && elapsed < 1500 );
+        assertArrayEquals( data, read );
+    }
+
+    @Test
+    public void inputStreamReadsNoMoreThanOneBurstAtATime()
+        throws IOException
+    {
+        final ThrottledInputStream in =
+            new ThrottledInputStream( new ByteArrayInputStream( data( BURST * 4 ) ),
+                                      new BandwidthLimiter( RATE, null ) );
+
+        assertEquals( BURST, in.read( new byte[BURST * 4] ) );
+    }
+
+    @Test
+    public void sinkTakesDataWithoutWaitingForTheRate()
+        throws Exception
+    {
+        final byte[] data = data( BURST * 4 );
+        final TrackingOutputStream out = new TrackingOutputStream();
+
+        final long start = System.nanoTime();
+        final ThrottledSink sink = new ThrottledSink( out, new BandwidthLimiter( RATE, null ) );
+        sink.write( data );
+        sink.close();
+
+        // the writer (the session, in use) is free at once; the destination gets the data at the rate.
+        assertTrue( millisSince( start ) < 100 );
+        assertTrue( out.closed.await( 5, TimeUnit.SECONDS ) );
+
+        final long elapsed = millisSince( start );
+        assertTrue( "took " + elapsed + "ms", elapsed >= 270 && elapsed < 1500 );
+        assertArrayEquals( data, out.data.toByteArray() );
+    }
+
+    @Test
+    public void sinkHoldsTheWriterOnceItsBufferIsFull()
+        throws Exception
+    {
+        final ThrottledSink sink =
+            new ThrottledSink( new TrackingOutputStream(), new BandwidthLimiter( RATE, null ), BURST );
+
+        // the worker takes a burst at once and another while it waits for the tokens, and the buffer holds a third;
+        // the last two wait on the rate.
+        final long start = System.nanoTime();
+        sink.write( data( BURST * 5 ) );
+        sink.close();
+
+        final long elapsed = millisSince( start );
+        assertTrue( "took " + elapsed + "ms", elapsed >= 150 );
+    }
+
+    @Test
+    public void sinkReportsTheDestinationsFailure()
+        throws Exception
+    {
+        final IOException broken = new IOException( "disk full" );
+        final CountDownLatch failed = new CountDownLatch( 1 );
+        final ThrottledSink sink = new ThrottledSink( new OutputStream()
+        {
+            @Override
+            public void write( final int b )
+                throws IOException
+            {
+                failed.countDown();
+                throw broken;
+            }
+
+            @Override
+            public void write( final byte[] b, final int off, final int len )
+                throws IOException
+            {
+                failed.countDown();
+                throw broken;
+            }
+        }, new BandwidthLimiter( RATE, null ) );
+
+        sink.write( data( 16 ) );
+        assertTrue( failed.await( 5, TimeUnit.SECONDS ) );
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 );
+        while ( System.nanoTime() < deadline )
+        {
+            try
+            {
+                sink.write( data( 16 ) );
+                Thread.sleep( 10 );
+            }
+            catch ( final IOException e )
+            {
+                assertSame( broken, e );
+                return;
+            }
+        }
+
+        fail( "writes kept succeeding after the destination failed" );
+    }
+
+    private static byte[] data( final int length )
+    {
+        final byte[] data = new byte[length];
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = (byte) i;
+        }
+
+        return data;
+    }
+
+    private static long millisSince( final long start )
+    {
+        return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+    }
+
+    private static final class TrackingOutputStream
+        extends OutputStream
+    {
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        private final CountDownLatch closed = new CountDownLatch( 1 );
+
+        @Override
+        public synchronized void write( final int b )
+        {
+            data.write( b );
+        }
+
+        @Override
+        public synchronized void write( final byte[] b, final int off, final int len )
+        {
+            data.write( b, off, len );
+        }
+
+        @Override
+        public void close()
+        {
+            closed.countDown();
+        }
+    }
+
+}
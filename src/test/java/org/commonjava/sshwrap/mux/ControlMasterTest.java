@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.mux;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.sshwrap.ChannelType;
+import org.commonjava.sshwrap.ErrorCategory;
+import org.commonjava.sshwrap.SSHWrapException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ControlMasterTest
+{
+
+    private File dir;
+
+    private File controlFile;
+
+    private ControlMaster master;
+
+    private final LocalBackend backend = new LocalBackend();
+
+    @Before
+    public void createDir()
+        throws IOException
+    {
+        dir = File.createTempFile( "sshwrap", ".test" );
+        dir.delete();
+        dir.mkdirs();
+        controlFile = new File( dir, "master" );
+    }
+
+    @After
+    public void stop()
+        throws IOException
+    {
+        if ( master != null )
+        {
+            master.stop();
+        }
+
+        FileUtils.deleteDirectory( dir );
+    }
+
+    @Test
+    public void executesThroughAMaster()
+        throws Exception
+    {
+        master = ControlMaster.start( backend, controlFile, true );
+        if ( ControlProtocol.isUnixAvailable() )
+        {
+            assertTrue( master.getAddress(), master.getAddress()
+                                                   .startsWith( ControlProtocol.UNIX_ADDRESS ) );
+        }
+
+        assertExecutes( ControlClient.connect( controlFile ) );
+    }
+
+    @Test
+    public void executesOverLoopbackTcp()
+        throws Exception
+    {
+        master = ControlMaster.start( backend, controlFile, false );
+        Integer.parseInt( master.getAddress() );
+
+        assertExecutes( ControlClient.connect( controlFile ) );
+    }
+
+    @Test
+    public void carriesInputBothWays()
+        throws Exception
+    {
+        master = ControlMaster.start( backend, controlFile, true );
+        final ControlClient client = ControlClient.connect( controlFile );
+
+        final ControlClient.ControlStream stream = client.openChannel( ChannelType.exec, "cat", 0 );
+        try
+        {
+            // larger than one frame, so it is split on the way; written while the echo is read, as with any cat.
+            final byte[] big = new byte[ControlProtocol.MAX_FRAME_LENGTH * 2 + 7];
+            for ( int i = 0; i < big.length; i++ )
+            {
+                big[i] = (byte) i;
+            }
+
+            final OutputStream in = stream.getOutputStream();
+            final Thread writer = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        in.write( "first\n".getBytes( "UTF-8" ) );
+                        in.write( big );
+                        in.close();
+                    }
+                    catch ( final IOException e )
+                    {
+                        // the echo comes up short.
+                    }
+                }
+            } );
+            writer.start();
+
+            final byte[] out = IOUtils.toByteArray( stream.getInputStream() );
+            assertEquals( 6 + big.length, out.length );
+            assertEquals( "first\n", new String( out, 0, 6, "UTF-8" ) );
+            assertEquals( big[big.length - 1], out[out.length - 1] );
+            assertEquals( 0, stream.waitForExitStatus() );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void killsACommandAtItsDeadline()
+        throws Exception
+    {
+        master = ControlMaster.start( backend, controlFile, true );
+        final ControlClient client = ControlClient.connect( controlFile );
+
+        final long start = System.nanoTime();
+        try
+        {
+            client.execute( "sleep", new ByteArrayOutputStream(), 200, TimeUnit.MILLISECONDS );
+            fail( "outlived its deadline" );
+        }
+        catch ( final SSHWrapException e )
+        {
+            assertSame( ErrorCategory.TIMEOUT, e.getCategory() );
+        }
+
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertTrue( "took " + elapsed + "ms", elapsed >= 190 && elapsed < 2000 );
+        assertTrue( backend.killed.await( 1, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void reportsRefusalsWithTheirCategory()
+        throws Exception
+    {
+        master = ControlMaster.start( backend, controlFile, true );
+        try
+        {
+            ControlClient.connect( controlFile )
+                         .execute( "refuse", new ByteArrayOutputStream() );
+            fail( "refused channel ran" );
+        }
+        catch ( final SSHWrapException e )
+        {
+            assertSame( ErrorCategory.CHANNEL, e.getCategory() );
+            assertTrue( e.getMessage(), e.getMessage()
+                                         .contains( "MaxSessions" ) );
+        }
+    }
+
+    @Test
+    public void refusesAMasterThatCannotProveTheCookie()
+        throws Exception
+    {
+        master = ControlMaster.start( backend, controlFile, true );
+        FileUtils.writeStringToFile( controlFile, master.getAddress() + "\n0123456789abcdef\n" );
+
+        final ControlClient client = ControlClient.connect( controlFile );
+        assertNotNull( client );
+        try
+        {
+            client.execute( "echo hello", new ByteArrayOutputStream() );
+            fail( "used a master that couldn't prove the cookie" );
+        }
+        catch ( final SSHWrapException e )
+        {
+            assertSame( ErrorCategory.CONNECTION, e.getCategory() );
+        }
+
+        assertEquals( 0, backend.opened );
+    }
+
+    @Test
+    public void sendsNothingToAnImpostor()
+        throws Exception
+    {
+        final ServerSocket impostor = new ServerSocket( 0, 1, InetAddress.getByName( "127.0.0.1" ) );
+        try
+        {
+            FileUtils.writeStringToFile( controlFile, impostor.getLocalPort() + "\nsecret-cookie\n" );
+
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final Thread listener = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        // the liveness check connects and closes; the request is the second connection.
+                        impostor.accept()
+                                .close();
+
+                        final Socket socket = impostor.accept();
+                        final DataInputStream in = new DataInputStream( socket.getInputStream() );
+                        final byte[] nonce = new byte[ControlProtocol.NONCE_LENGTH];
+                        in.readFully( nonce );
+                        received.write( nonce );
+
+                        socket.getOutputStream()
+                              .write( new byte[ControlProtocol.NONCE_LENGTH + ControlProtocol.PROOF_LENGTH] );
+                        IOUtils.copy( in, received );
+                        socket.close();
+                    }
+                    catch ( final IOException e )
+                    {
+                        // the test fails on what was received.
+                    }
+                }
+            } );
+            listener.start();
+
+            final ControlClient client = ControlClient.connect( controlFile );
+            assertNotNull( client );
+            try
+            {
+                client.execute( "cat /etc/secret", new ByteArrayOutputStream() );
+                fail( "trusted an impostor" );
+            }
+            catch ( final SSHWrapException e )
+            {
+                assertSame( ErrorCategory.CONNECTION, e.getCategory() );
+            }
+
+            listener.join( 5000 );
+            assertEquals( "only the client's nonce", ControlProtocol.NONCE_LENGTH, received.size() );
+        }
+        finally
+        {
+            impostor.close();
+        }
+    }
+
+    @Test
+    public void noMasterBehindAStaleControlFile()
+        throws Exception
+    {
+        master = ControlMaster.start( backend, controlFile, true );
+        final ControlClient client = ControlClient.connect( controlFile );
+        assertTrue( client.isAlive() );
+
+        master.stop();
+        master = null;
+        assertFalse( controlFile.exists() );
+
+        try
+        {
+            client.execute( "echo hello", new ByteArrayOutputStream() );
+            fail( "ran without a master" );
+        }
+        catch ( final SSHWrapException e )
+        {
+            assertSame( ErrorCategory.CONNECTION, e.getCategory() );
+        }
+
+        // the failure is remembered, rather than checked again on each call.
+        assertFalse( client.isAlive() );
+        assertNull( ControlClient.connect( controlFile ) );
+    }
+
+    @Test
+    public void rejectsFrameLengthsNoPeerWouldSend()
+        throws IOException
+    {
+        for ( final int length : new int[] { -1, Integer.MIN_VALUE, ControlProtocol.MAX_FRAME_LENGTH + 1,
+            Integer.MAX_VALUE } )
+        {
+            for ( final byte type : new byte[] { ControlProtocol.FRAME_DATA, ControlProtocol.FRAME_EXIT } )
+            {
+                final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream( frame );
+                out.writeByte( type );
+                out.writeInt( length );
+
+                final DataInputStream data = new DataInputStream( new ByteArrayInputStream( frame.toByteArray() ) );
+                final ControlProtocol.FrameInputStream in = new ControlProtocol.FrameInputStream( data );
+                try
+                {
+                    in.read();
+                    fail( "accepted length: " + length );
+                }
+                catch ( final IOException e )
+                {
+                    assertTrue( e.getMessage(), e.getMessage()
+                                                 .contains( "frame length" ) );
+                }
+            }
+        }
+    }
+
+    private void assertExecutes( final ControlClient client )
+        throws Exception
+    {
+        assertNotNull( client );
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals( 0, client.execute( "echo hello", out ) );
+        assertEquals( "hello\n", out.toString( "UTF-8" ) );
+
+        out.reset();
+        assertEquals( 3, client.execute( "fail", out, 5, TimeUnit.SECONDS ) );
+        assertEquals( "oops\n", out.toString( "UTF-8" ) );
+    }
+
+    /**
+     * Runs a few canned commands locally, in place of a session: echo, cat, fail, sleep and refuse.
+     */
+    private static final class LocalBackend
+        implements ControlMaster.Backend
+    {
+        private final CountDownLatch killed = new CountDownLatch( 1 );
+
+        private volatile int opened;
+
+        public ControlMaster.BackendChannel open( final byte op, final String arg, final int port,
+                                                  final InputStream stdin, final OutputStream out,
+                                                  final OutputStream err, final int timeout )
+            throws SSHWrapException
+        {
+            if ( "refuse".equals( arg ) )
+            {
+                throw new SSHWrapException( "Server refused to open channel (MaxSessions)." )
+                    .withCategory( ErrorCategory.CHANNEL );
+            }
+
+            opened++;
+            final CountDownLatch closed = new CountDownLatch( 1 );
+            final int[] status = { -1 };
+            final Thread command = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        if ( arg.startsWith( "echo " ) )
+                        {
+                            out.write( ( arg.substring( 5 ) + "\n" ).getBytes( "UTF-8" ) );
+                            status[0] = 0;
+                        }
+                        else if ( "cat".equals( arg ) )
+                        {
+                            IOUtils.copy( stdin, out );
+                            status[0] = 0;
+                        }
+                        else if ( "fail".equals( arg ) )
+                        {
+                            err.write( "oops\n".getBytes( "UTF-8" ) );
+                            status[0] = 3;
+                        }
+                        else
+                        {
+                            closed.await();
+                        }
+                    }
+                    catch ( final Exception e )
+                    {
+                        status[0] = -1;
+                    }
+                    finally
+                    {
+                        IOUtils.closeQuietly( out );
+                        IOUtils.closeQuietly( err );
+                    }
+                }
+            } );
+            command.start();
+
+            return new ControlMaster.BackendChannel()
+            {
+                public int getExitStatus()
+                {
+                    return status[0];
+                }
+
+                public void close()
+                {
+                    if ( closed.getCount() > 0 )
+                    {
+                        closed.countDown();
+                        if ( "sleep".equals( arg ) )
+                        {
+                            killed.countDown();
+                        }
+                    }
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HappyEyeballsSocketFactoryTest
+{
+
+    private ServerSocket server;
+
+    private InetAddress listening;
+
+    private InetAddress refusing;
+
+    @Before
+    public void listen()
+        throws IOException
+    {
+        listening = InetAddress.getByName( "127.0.0.1" );
+        server = new ServerSocket( 0, 8, listening );
+
+        // the whole of 127/8 is loopback, but nothing listens on this address.
+        refusing = InetAddress.getByName( "127.0.0.2" );
+    }
+
+    @After
+    public void close()
+        throws IOException
+    {
+        server.close();
+    }
+
+    @Test
+    public void fallsBackAsSoonAsAnAttemptFails()
+        throws IOException
+    {
+        final Names names = new Names( refusing, listening );
+        final HappyEyeballsSocketFactory factory =
+            new HappyEyeballsSocketFactory( new HostResolver( 60000, 0, names ), 5000, 5000 );
+
+        final long start = System.nanoTime();
+        final Socket socket = factory.createSocket( "web", server.getLocalPort() );
+        try
+        {
+            assertEquals( listening, socket.getInetAddress() );
+
+            // the refusal started the next attempt at once, rather than after the attempt delay.
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+            assertTrue( "took " + elapsed + "ms", elapsed < 2500 );
+            assertTrue( socket.getTcpNoDelay() );
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void triesAddressesInResolverOrder()
+        throws IOException
+    {
+        final InetAddress other = InetAddress.getByName( "127.0.0.4" );
+        final ServerSocket second = new ServerSocket( server.getLocalPort(), 8, other );
+        try
+        {
+            for ( final InetAddress first : new InetAddress[] { listening, other } )
+            {
+                final Names names = new Names( first, first == other ? listening : other );
+                final HappyEyeballsSocketFactory factory =
+                    new HappyEyeballsSocketFactory( new HostResolver( 60000, 0, names ), 5000, 5000 );
+
+                final Socket socket = factory.createSocket( "web", server.getLocalPort() );
+                try
+                {
+                    assertEquals( first, socket.getInetAddress() );
+                }
+                finally
+                {
+                    socket.close();
+                }
+            }
+        }
+        finally
+        {
+            second.close();
+        }
+    }
+
+    @Test
+    public void reportsTheLastFailureAndForgetsTheAnswer()
+        throws IOException
+    {
+        final Names names = new Names( refusing, InetAddress.getByName( "127.0.0.3" ) );
+        final HappyEyeballsSocketFactory factory =
+            new HappyEyeballsSocketFactory( new HostResolver( 60000, 0, names ), 5000, 5000 );
+
+        for ( int i = 1; i <= 2; i++ )
+        {
+            try
+            {
+                factory.createSocket( "web", server.getLocalPort() ).close();
+                fail( "connected to an address nothing listens on" );
+            }
+            catch ( final ConnectException e )
+            {
+                // every address failed, so the next connect looks the host up again.
+                assertEquals( i, names.lookups.get() );
+            }
+        }
+    }
+
+    private static final class Names
+        implements HostResolver.NameService
+    {
+        private final InetAddress[] addresses;
+
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        Names( final InetAddress... addresses )
+        {
+            this.addresses = addresses;
+        }
+
+        public InetAddress[] getAllByName( final String hostName )
+            throws UnknownHostException
+        {
+            lookups.incrementAndGet();
+            return addresses.clone();
+        }
+    }
+
+}
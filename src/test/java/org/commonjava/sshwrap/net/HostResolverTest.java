@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HostResolverTest
+{
+
+    private final Names names = new Names();
+
+    @Test
+    public void cachesAnswersForTheirTtl()
+        throws Exception
+    {
+        final HostResolver resolver = new HostResolver( 100, 0, names );
+
+        resolver.resolve( "web" );
+        resolver.resolve( "WEB" );
+        assertEquals( 1, names.lookups.get() );
+
+        Thread.sleep( 150 );
+        resolver.resolve( "web" );
+        assertEquals( 2, names.lookups.get() );
+
+        resolver.invalidate( "Web" );
+        resolver.resolve( "web" );
+        assertEquals( 3, names.lookups.get() );
+    }
+
+    @Test
+    public void cachesFailuresForTheNegativeTtl()
+        throws Exception
+    {
+        final HostResolver resolver = new HostResolver( 60000, 100, names );
+        names.unknown = true;
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            try
+            {
+                resolver.resolve( "gone" );
+                fail( "resolved an unknown host" );
+            }
+            catch ( final UnknownHostException e )
+            {
+                assertEquals( 1, names.lookups.get() );
+            }
+        }
+
+        Thread.sleep( 150 );
+        names.unknown = false;
+        resolver.resolve( "gone" );
+        assertEquals( 2, names.lookups.get() );
+    }
+
+    @Test
+    public void interleavesFamiliesIpv6First()
+        throws Exception
+    {
+        final InetAddress a4 = InetAddress.getByName( "192.0.2.1" );
+        final InetAddress b4 = InetAddress.getByName( "192.0.2.2" );
+        final InetAddress c4 = InetAddress.getByName( "192.0.2.3" );
+        final InetAddress a6 = InetAddress.getByName( "2001:db8::1" );
+        final InetAddress b6 = InetAddress.getByName( "2001:db8::2" );
+
+        assertArrayEquals( new InetAddress[] { a6, a4, b6, b4, c4 },
+                           HostResolver.interleave( new InetAddress[] { a4, b4, c4, a6, b6 } ) );
+        assertArrayEquals( new InetAddress[] { a6, a4, b6, b4 },
+                           HostResolver.interleave( new InetAddress[] { a6, b6, a4, b4 } ) );
+        assertArrayEquals( new InetAddress[] { a4, b4 }, HostResolver.interleave( new InetAddress[] { a4, b4 } ) );
+    }
+
+    @Test
+    public void hidesTheCachedArray()
+        throws Exception
+    {
+        final HostResolver resolver = new HostResolver( 60000, 0, names );
+        resolver.resolve( "web" )[0] = null;
+
+        assertEquals( InetAddress.getByName( "127.0.0.1" ), resolver.resolve( "web" )[0] );
+    }
+
+    private static final class Names
+        implements HostResolver.NameService
+    {
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        private volatile boolean unknown;
+
+        public InetAddress[] getAllByName( final String hostName )
+            throws UnknownHostException
+        {
+            lookups.incrementAndGet();
+            if ( unknown )
+            {
+                throw new UnknownHostException( hostName );
+            }
+
+            return new InetAddress[] { InetAddress.getByName( "127.0.0.1" ) };
+        }
+    }
+
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.sshwrap.reactive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Checks the rules of the Reactive Streams specification that apply to a publisher of channel data (numbered as in
+ * the specification), and how that publisher treats the session writing into it.
+ */
+public class ChannelPublisherTest
+{
+
+    private final AtomicInteger cancels = new AtomicInteger();
+
+    private final ChannelPublisher publisher = new ChannelPublisher( 1024, new Runnable()
+    {
+        public void run()
+        {
+            cancels.incrementAndGet();
+        }
+    } );
+
+    private final OutputStream sink = publisher.getSink();
+
+    @Test
+    public void signalsNoMoreThanRequested()
+        throws Exception
+    {
+        // rule 1.1
+        final Recorder s = subscribe();
+        sink.write( bytes( "a" ) );
+        sink.write( bytes( "b" ) );
+        sink.write( bytes( "c" ) );
+        settle();
+        assertTrue( s.items.isEmpty() );
+
+        s.subscription.request( 2 );
+        s.await( 2 );
+        settle();
+        assertEquals( "[a, b]", s.items.toString() );
+
+        s.subscription.request( 1 );
+        s.await( 3 );
+        assertEquals( "[a, b, c]", s.items.toString() );
+    }
+
+    @Test
+    public void completesOnlyOnceBufferedDataIsDelivered()
+        throws Exception
+    {
+        // rules 1.2 and 1.5
+        final Recorder s = subscribe();
+        sink.write( bytes( "a" ) );
+        sink.close();
+        settle();
+        assertFalse( s.completed.getCount() == 0 );
+
+        s.subscription.request( 1 );
+        assertTrue( s.completed.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( "[a]", s.items.toString() );
+        assertNull( s.error );
+    }
+
+    @Test
+    public void signalsSeriallyAndOffTheWritersThread()
+        throws Exception
+    {
+        // rule 1.3; and the session's thread (the writer here) is never used to call the subscriber.
+        final AtomicBoolean inSignal = new AtomicBoolean();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final Thread writer = Thread.currentThread();
+        final AtomicBoolean onWriter = new AtomicBoolean();
+        final Recorder s = new Recorder()
+        {
+            @Override
+            public void onNext( final ByteBuffer item )
+            {
+                if ( !inSignal.compareAndSet( false, true ) )
+                {
+                    overlapped.set( true );
+                }
+
+                onWriter.compareAndSet( false, Thread.currentThread() == writer );
+                super.onNext( item );
+                inSignal.set( false );
+            }
+        };
+        publisher.subscribe( s );
+        s.subscription.request( Long.MAX_VALUE );
+
+        // requests racing the writes; demand past Long.MAX_VALUE stays unbounded (rule 3.17).
+        final Thread requester = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                for ( int i = 0; i < 1000; i++ )
+                {
+                    s.subscription.request( Long.MAX_VALUE );
+                }
+            }
+        } );
+        requester.start();
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            sink.write( bytes( "x" ) );
+        }
+        requester.join( 5000 );
+
+        s.await( 1000 );
+        assertFalse( overlapped.get() );
+        assertFalse( onWriter.get() );
+    }
+
+    @Test
+    public void writerWaitsOnlyOnceCapacityIsUnrequested()
+        throws Exception
+    {
+        final Recorder s = subscribe();
+        sink.write( new byte[1024] );
+
+        final CountDownLatch written = new CountDownLatch( 1 );
+        final Thread writer = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    sink.write( new byte[1] );
+                    written.countDown();
+                }
+                catch ( final IOException e )
+                {
+                    // written stays at 1.
+                }
+            }
+        } );
+        writer.start();
+
+        // this is where the session (and every channel on it) waits, until the subscriber asks for more.
+        assertFalse( written.await( 200, TimeUnit.MILLISECONDS ) );
+        s.subscription.request( 1 );
+        assertTrue( written.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void cancelStopsSignalsAndReleasesTheWriter()
+        throws Exception
+    {
+        // rules 3.5, 3.6, 3.7 and 3.12
+        final Recorder s = subscribe();
+        sink.write( new byte[1024] );
+
+        final CountDownLatch written = new CountDownLatch( 1 );
+        final Thread writer = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    sink.write( new byte[1] );
+                    written.countDown();
+                }
+                catch ( final IOException e )
+                {
+                    // written stays at 1.
+                }
+            }
+        } );
+        writer.start();
+
+        s.subscription.cancel();
+        s.subscription.cancel();
+        assertTrue( written.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( 1, cancels.get() );
+
+        s.subscription.request( 10 );
+        sink.write( bytes( "late" ) );
+        sink.close();
+        settle();
+        assertTrue( s.items.isEmpty() );
+        assertEquals( 1, s.completed.getCount() );
+        assertNull( s.error );
+    }
+
+    @Test
+    public void rejectsNonPositiveRequests()
+        throws Exception
+    {
+        // rule 3.9
+        for ( final long n : new long[] { 0, -1, Long.MIN_VALUE } )
+        {
+            final AtomicInteger released = new AtomicInteger();
+            final ChannelPublisher p = new ChannelPublisher( 1024, new Runnable()
+            {
+                public void run()
+                {
+                    released.incrementAndGet();
+                }
+            } );
+
+            final Recorder s = new Recorder();
+            p.subscribe( s );
+            p.getSink()
+             .write( bytes( "a" ) );
+            s.subscription.request( n );
+
+            assertTrue( s.completed.await( 5, TimeUnit.SECONDS ) );
+            assertTrue( String.valueOf( s.error ), s.error instanceof IllegalArgumentException );
+            assertTrue( s.items.isEmpty() );
+            assertEquals( 1, released.get() );
+
+            // nothing after the terminal signal (rule 1.7).
+            s.subscription.request( 1 );
+            settle();
+            assertTrue( s.items.isEmpty() );
+        }
+    }
+
+    @Test
+    public void acceptsOneSubscriberOnly()
+        throws Exception
+    {
+        // rules 1.9 and 1.11: a second subscriber still gets onSubscribe, then is refused with onError.
+        final Recorder first = subscribe();
+        final Recorder second = new Recorder();
+        publisher.subscribe( second );
+
+        assertTrue( second.completed.await( 5, TimeUnit.SECONDS ) );
+        assertTrue( second.subscription != null );
+        assertTrue( String.valueOf( second.error ), second.error instanceof IllegalStateException );
+
+        first.subscription.request( 1 );
+        sink.write( bytes( "a" ) );
+        first.await( 1 );
+        assertEquals( "[a]", first.items.toString() );
+        assertTrue( second.items.isEmpty() );
+    }
+
+    @Test
+    public void refusesANullSubscriber()
+    {
+        // rule 1.9
+        try
+        {
+            publisher.subscribe( null );
+            fail( "accepted a null subscriber" );
+        }
+        catch ( final NullPointerException e )
+        {
+            // expected.
+        }
+    }
+
+    @Test
+    public void signalsAFailureAfterOnSubscribe()
+        throws Exception
+    {
+        // rules 1.4 and 1.9: a stream that failed before anyone subscribed still starts with onSubscribe.
+        final IOException lost = new IOException( "Session lost" );
+        publisher.fail( lost );
+
+        final Recorder s = subscribe();
+        assertTrue( s.completed.await( 5, TimeUnit.SECONDS ) );
+        assertSame( lost, s.error );
+        assertTrue( s.subscribedFirst );
+    }
+
+    @Test
+    public void cancelsASubscriberThatThrows()
+        throws Exception
+    {
+        // rule 2.13
+        final Recorder s = new Recorder()
+        {
+            @Override
+            public void onNext( final ByteBuffer item )
+            {
+                super.onNext( item );
+                throw new IllegalStateException( "broken subscriber" );
+            }
+        };
+        publisher.subscribe( s );
+        s.subscription.request( 10 );
+        sink.write( bytes( "a" ) );
+        sink.write( bytes( "b" ) );
+
+        s.await( 1 );
+        settle();
+        assertEquals( "[a]", s.items.toString() );
+        assertEquals( 1, cancels.get() );
+    }
+
+    private Recorder subscribe()
+    {
+        final Recorder s = new Recorder();
+        publisher.subscribe( s );
+        return s;
+    }
+
+    private static byte[] bytes( final String s )
+        throws IOException
+    {
+        return s.getBytes( "UTF-8" );
+    }
+
+    /**
+     * Give the publisher's workers time to deliver anything they (wrongly) would.
+     */
+    private static void settle()
+        throws InterruptedException
+    {
+        Thread.sleep( 100 );
+    }
+
+    private static class Recorder
+        implements Subscriber<ByteBuffer>
+    {
+        final List<String> items = new CopyOnWriteArrayList<String>();
+
+        final CountDownLatch completed = new CountDownLatch( 1 );
+
+        volatile Subscription subscription;
+
+        volatile Throwable error;
+
+        volatile boolean subscribedFirst;
+
+        public void onSubscribe( final Subscription s )
+        {
+            subscribedFirst = items.isEmpty() && completed.getCount() == 1;
+            subscription = s;
+        }
+
+        public void onNext( final ByteBuffer item )
+        {
+            final byte[] b = new byte[item.remaining()];
+            item.get( b );
+            try
+            {
+                items.add( new String( b, "UTF-8" ) );
+            }
+            catch ( final IOException e )
+            {
+                throw new IllegalStateException( e );
+            }
+        }
+
+        public void onError( final Throwable t )
+        {
+            error = t;
+            completed.countDown();
+        }
+
+        public void onComplete()
+        {
+            completed.countDown();
+        }
+
+        void await( final int count )
+            throws InterruptedException
+        {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 );
+            while ( items.size() < count && System.nanoTime() < deadline )
+            {
+                Thread.sleep( 5 );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.subsystem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class StandardFramingTest
+{
+
+    @Test
+    public void everyFramingRoundTrips()
+        throws IOException
+    {
+        final Random random = new Random( 3 );
+        final byte[][] messages = { new byte[0], "<hello/>".getBytes( "UTF-8" ), new byte[100000] };
+        random.nextBytes( messages[2] );
+        // NETCONF 1.0 can't carry its own end-of-message marker.
+        messages[2][500] = ']';
+        messages[2][501] = ']';
+        messages[2][502] = '>';
+        messages[2][503] = '!';
+
+        for ( final StandardFraming framing : StandardFraming.values() )
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for ( final byte[] message : messages )
+            {
+                framing.write( out, message );
+            }
+
+            final InputStream in = new ByteArrayInputStream( out.toByteArray() );
+            for ( final byte[] message : messages )
+            {
+                assertArrayEquals( framing.name(), message, framing.read( in ) );
+            }
+
+            assertNull( framing.name(), framing.read( in ) );
+        }
+    }
+
+    @Test
+    public void netconf10KeepsPartialMarkersInTheMessage()
+        throws IOException
+    {
+        final String[] messages = { "]", "]]", "]]>]", "]]>]]", "a]]>]]b", "]]]>]]", "]]>]]]>]]" };
+        for ( final String message : messages )
+        {
+            assertEquals( message, netconf10( message + "]]>]]>" ) );
+        }
+
+        // the marker ends the message as soon as it is complete, however it was approached.
+        assertEquals( "]]]", netconf10( "]]]]]>]]>" ) );
+        assertEquals( "]]>]", netconf10( "]]>]]]>]]>" ) );
+    }
+
+    @Test
+    public void netconf10MatchesABruteForceSearch()
+        throws IOException
+    {
+        final Random random = new Random( 11 );
+        final byte[] alphabet = { ']', ']', '>', 'a' };
+        for ( int round = 0; round < 2000; round++ )
+        {
+            final StringBuilder stream = new StringBuilder();
+            for ( int i = 0, n = random.nextInt( 30 ); i < n; i++ )
+            {
+                stream.append( (char) alphabet[random.nextInt( alphabet.length )] );
+            }
+            stream.append( "]]>]]>" );
+
+            final String expected = stream.substring( 0, stream.indexOf( "]]>]]>" ) );
+            assertEquals( stream.toString(), expected, netconf10( stream.toString() ) );
+        }
+    }
+
+    @Test
+    public void endOfStreamInsideAMessageIsAnError()
+        throws IOException
+    {
+        expectEof( StandardFraming.NETCONF_1_0, "<rpc/>" );
+        expectEof( StandardFraming.NETCONF_1_0, "<rpc/>]]>]]" );
+        expectEof( StandardFraming.NETCONF_1_1, "\n#6\n<rpc/>" );
+        expectEof( StandardFraming.NETCONF_1_1, "\n#6\n<rp" );
+        expectEof( StandardFraming.LENGTH_PREFIXED, "\0\0" );
+        expectEof( StandardFraming.LENGTH_PREFIXED, "\0\0\0\6<rp" );
+    }
+
+    @Test
+    public void netconf11JoinsChunks()
+        throws IOException
+    {
+        final InputStream in = stream( "\n#3\nabc\n#2\nde\n##\n\n##\n" );
+
+        assertEquals( "abcde", new String( StandardFraming.NETCONF_1_1.read( in ), "US-ASCII" ) );
+        assertEquals( "", new String( StandardFraming.NETCONF_1_1.read( in ), "US-ASCII" ) );
+        assertNull( StandardFraming.NETCONF_1_1.read( in ) );
+    }
+
+    @Test
+    public void netconf11RejectsBadChunkHeaders()
+    {
+        for ( final String bad : new String[] { "\n#0\n\n##\n", "\n#x\n", "#3\nabc\n##\n", "\n#3\nabc##\n" } )
+        {
+            try
+            {
+                StandardFraming.NETCONF_1_1.read( stream( bad ) );
+                fail( "Accepted: " + bad );
+            }
+            catch ( final IOException e )
+            {
+                // expected.
+            }
+        }
+    }
+
+    @Test( expected = IOException.class )
+    public void oversizedMessagesAreRefused()
+        throws IOException
+    {
+        StandardFraming.LENGTH_PREFIXED.read( stream( "\u007f\0\0\0" ) );
+    }
+
+    private static String netconf10( final String stream )
+        throws IOException
+    {
+        return new String( StandardFraming.NETCONF_1_0.read( stream( stream ) ), "ISO-8859-1" );
+    }
+
+    private static void expectEof( final StandardFraming framing, final String stream )
+        throws IOException
+    {
+        try
+        {
+            framing.read( stream( stream ) );
+            fail( framing + " accepted: " + stream );
+        }
+        catch ( final EOFException e )
+        {
+            // expected.
+        }
+    }
+
+    private static InputStream stream( final String s )
+        throws IOException
+    {
+        return new ByteArrayInputStream( s.getBytes( "ISO-8859-1" ) );
+    }
+
+}
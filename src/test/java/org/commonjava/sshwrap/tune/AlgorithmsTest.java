@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.tune;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+public class AlgorithmsTest
+{
+
+    private static final String DEFAULTS = "aes128-ctr,aes128-cbc,3des-cbc";
+
+    @Test
+    public void resolvesOpenSshListOperators()
+    {
+        assertEquals( "aes256-ctr,aes128-ctr", Algorithms.resolve( "aes256-ctr,aes128-ctr", DEFAULTS, null ) );
+        assertEquals( "aes128-ctr,aes128-cbc,3des-cbc,aes256-ctr",
+                      Algorithms.resolve( "+aes256-ctr,aes128-ctr", DEFAULTS, null ) );
+        assertEquals( "aes128-ctr", Algorithms.resolve( "-aes128-cbc,3des-cbc", DEFAULTS, null ) );
+        assertEquals( "3des-cbc,aes128-ctr,aes128-cbc", Algorithms.resolve( "^3des-cbc", DEFAULTS, null ) );
+    }
+
+    @Test
+    public void dropsAlgorithmsJschCannotSpeak()
+    {
+        assertEquals( "aes256-ctr", Algorithms.resolve( "chacha20-poly1305@openssh.com, aes256-ctr", DEFAULTS, null ) );
+        assertEquals( "ssh-dss", Algorithms.resolve( "ssh-ed25519,ssh-dss", "ssh-rsa,ssh-dss", "ssh-rsa,ssh-dss" ) );
+    }
+
+    @Test
+    public void appliesCiphersInBothDirections()
+        throws JSchException
+    {
+        final Session session = session();
+        Algorithms.applyCiphers( session, "aes256-ctr,aes128-ctr" );
+
+        assertEquals( "aes256-ctr,aes128-ctr", session.getConfig( "cipher.c2s" ) );
+        assertEquals( "aes256-ctr,aes128-ctr", session.getConfig( "cipher.s2c" ) );
+    }
+
+    @Test
+    public void appliesMacsKexAndHostKeyAlgorithms()
+        throws JSchException
+    {
+        final Session session = session();
+        Algorithms.applyMacs( session, "-hmac-md5,hmac-md5-96" );
+        Algorithms.applyKex( session, "diffie-hellman-group14-sha1" );
+        Algorithms.applyHostKeyAlgorithms( session, "^ssh-dss" );
+
+        assertEquals( "hmac-sha1,hmac-sha1-96", session.getConfig( "mac.c2s" ) );
+        assertEquals( "hmac-sha1,hmac-sha1-96", session.getConfig( "mac.s2c" ) );
+        assertEquals( "diffie-hellman-group14-sha1", session.getConfig( "kex" ) );
+        assertEquals( "ssh-dss,ssh-rsa", session.getConfig( "server_host_key" ) );
+    }
+
+    @Test
+    public void keepsTheDefaultsWhenNothingUsableIsLeft()
+        throws JSchException
+    {
+        final Session session = session();
+        final String ciphers = session.getConfig( "cipher.c2s" );
+        final String hostKeys = session.getConfig( "server_host_key" );
+
+        Algorithms.applyCiphers( session, null );
+        Algorithms.applyCiphers( session, "" );
+        Algorithms.applyCiphers( session, "chacha20-poly1305@openssh.com" );
+        Algorithms.applyHostKeyAlgorithms( session, "ssh-ed25519" );
+
+        assertEquals( ciphers, session.getConfig( "cipher.c2s" ) );
+        assertEquals( ciphers, session.getConfig( "cipher.s2c" ) );
+        assertEquals( hostKeys, session.getConfig( "server_host_key" ) );
+    }
+
+    private static Session session()
+        throws JSchException
+    {
+        return new JSch().getSession( "user", "localhost" );
+    }
+
+}
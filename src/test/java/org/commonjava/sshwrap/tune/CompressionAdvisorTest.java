@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.tune;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompressionAdvisorTest
+{
+
+    private static final long SECOND = 1000000000L;
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    @Test
+    public void undecidedUntilTwoTransfersAreMeasured()
+    {
+        final CompressionAdvisor advisor = new CompressionAdvisor( new LinkStatistics() );
+        final LinkStatistics.Link link = advisor.getStatistics()
+                                                .get( "host:22" );
+        link.recordCompressionRatio( 0.1 );
+        link.recordTransfer( MEGABYTE, SECOND );
+
+        assertNull( advisor.recommend( "host:22" ) );
+
+        link.recordTransfer( MEGABYTE, SECOND );
+
+        assertEquals( Boolean.TRUE, advisor.recommend( "host:22" ) );
+    }
+
+    @Test
+    public void compressesCompressibleDataOnASlowLink()
+    {
+        final CompressionAdvisor advisor = new CompressionAdvisor( new LinkStatistics() );
+        measure( advisor, "slow", MEGABYTE, 0.1 );
+
+        assertEquals( Boolean.TRUE, advisor.recommend( "slow" ) );
+    }
+
+    @Test
+    public void neverCompressesIncompressibleData()
+    {
+        final CompressionAdvisor advisor = new CompressionAdvisor( new LinkStatistics() );
+        measure( advisor, "slow", MEGABYTE, 1.0 );
+        measure( advisor, "fast", 1000 * MEGABYTE, 1.0 );
+
+        assertEquals( Boolean.FALSE, advisor.recommend( "slow" ) );
+        assertEquals( Boolean.FALSE, advisor.recommend( "fast" ) );
+    }
+
+    @Test
+    public void ratioReflectsCompressibility()
+    {
+        final CompressionAdvisor advisor = new CompressionAdvisor( new LinkStatistics() );
+
+        final byte[] text = new byte[64 * 1024];
+        final byte[] line = "INFO request completed status=200\n".getBytes();
+        for ( int i = 0; i < text.length; i++ )
+        {
+            text[i] = line[i % line.length];
+        }
+
+        final byte[] noise = new byte[64 * 1024];
+        new Random( 42 ).nextBytes( noise );
+
+        assertTrue( advisor.ratio( text, 0, text.length ) < 0.1 );
+        assertTrue( advisor.ratio( noise, 0, noise.length ) > 0.99 );
+        assertEquals( 1, advisor.ratio( noise, 0, 0 ), 0 );
+    }
+
+    private static void measure( final CompressionAdvisor advisor, final String key, final long bytesPerSecond,
+                                 final double ratio )
+    {
+        final LinkStatistics.Link link = advisor.getStatistics()
+                                                .get( key );
+        link.recordCompressionRatio( ratio );
+        link.recordTransfer( bytesPerSecond, SECOND );
+        link.recordTransfer( bytesPerSecond, SECOND );
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.tune;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.commonjava.sshwrap.io.BufferPool;
+import org.junit.Test;
+
+public class MeasuringOutputStreamTest
+{
+
+    private static final int CHUNK = 32 * 1024;
+
+    @Test
+    public void smallTransfersAreNotRecorded()
+        throws IOException
+    {
+        final LinkStatistics.Link link = new LinkStatistics().get( "host:22" );
+        final MeasuringOutputStream out = new MeasuringOutputStream( new NullOutputStream(), false );
+        out.write( new byte[CHUNK] );
+        out.record( link, null );
+
+        assertEquals( CHUNK, out.getCount() );
+        assertEquals( 0, link.getTransferSamples() );
+    }
+
+    @Test
+    public void thinkTimeBeforeTheFirstWriteIsNotCounted()
+        throws Exception
+    {
+        final LinkStatistics.Link link = new LinkStatistics().get( "host:22" );
+        final MeasuringOutputStream out = new MeasuringOutputStream( new NullOutputStream(), false );
+
+        // a command that takes 200ms to start producing output.
+        Thread.sleep( 200 );
+        final byte[] chunk = new byte[CHUNK];
+        for ( int i = 0; i < 32; i++ )
+        {
+            out.write( chunk );
+        }
+        out.record( link, null );
+
+        assertEquals( 1, link.getTransferSamples() );
+        // 1MB in 200ms would be 5MB/s; writing to a null stream is far faster than that.
+        assertTrue( "throughput: " + link.getThroughput(), link.getThroughput() > 50 * 1024 * 1024 );
+    }
+
+    @Test
+    public void sampleIsRecordedAndReturnedToThePool()
+        throws IOException
+    {
+        final BufferPool pool = BufferPool.getSharedInstance();
+        final long allocated = pool.getAllocated();
+        final int idle = pool.getIdle();
+
+        final LinkStatistics.Link link = new LinkStatistics().get( "host:22" );
+        final MeasuringOutputStream out = new MeasuringOutputStream( new NullOutputStream(), true );
+        final byte[] chunk = "INFO request completed status=200\n".getBytes();
+        while ( out.getCount() < MeasuringOutputStream.MIN_MEASURED_BYTES )
+        {
+            out.write( chunk );
+        }
+        out.record( link, new CompressionAdvisor( new LinkStatistics() ) );
+
+        assertTrue( "ratio: " + link.getCompressionRatio(), link.getCompressionRatio() < 0.1 );
+        // the sample came from the pool, or was allocated by it, and went back either way.
+        assertEquals( pool.getAllocated() - allocated, pool.getIdle() - idle );
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.tune;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+
+import org.junit.Test;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+
+public class WindowTunerTest
+{
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    private static final long MILLISECOND = 1000000L;
+
+    @Test
+    public void noRecommendationUntilMeasured()
+    {
+        final WindowTuner tuner = new WindowTuner( new LinkStatistics() );
+
+        assertEquals( 0, tuner.recommendWindowSize( "host:22" ) );
+
+        tuner.getStatistics()
+             .get( "host:22" )
+             .recordRoundTrip( 100 * MILLISECOND );
+
+        assertEquals( 0, tuner.recommendWindowSize( "host:22" ) );
+    }
+
+    @Test
+    public void doublesWhileTheWindowIsTheLimit()
+    {
+        final WindowTuner tuner = new WindowTuner( new LinkStatistics() );
+        // a 1MB window per 100ms round trip carries at most 10MB/s; measuring that means the window was the limit.
+        link( tuner, 100, 10 * MEGABYTE, MEGABYTE );
+
+        assertEquals( 2 * MEGABYTE, tuner.recommendWindowSize( "host:22" ) );
+    }
+
+    @Test
+    public void settlesAtTwiceTheBandwidthDelayProduct()
+    {
+        final WindowTuner tuner = new WindowTuner( new LinkStatistics() );
+        // 16MB window, but only 30MB/s at 100ms: 3MB in flight.
+        link( tuner, 100, 30 * MEGABYTE, 16 * MEGABYTE );
+
+        assertEquals( 6 * MEGABYTE, tuner.recommendWindowSize( "host:22" ), MEGABYTE / 100 );
+    }
+
+    @Test
+    public void staysWithinBounds()
+    {
+        final WindowTuner capped = new WindowTuner( new LinkStatistics(), 4 * MEGABYTE );
+        link( capped, 100, 40 * MEGABYTE, 4 * MEGABYTE );
+
+        assertEquals( 4 * MEGABYTE, capped.recommendWindowSize( "host:22" ) );
+
+        // a LAN never needs less than JSch's default.
+        final WindowTuner lan = new WindowTuner( new LinkStatistics() );
+        link( lan, 1, 10 * MEGABYTE, 8 * MEGABYTE );
+
+        assertEquals( WindowTuner.DEFAULT_WINDOW_SIZE, lan.recommendWindowSize( "host:22" ) );
+    }
+
+    @Test
+    public void appliesSizesToAChannel()
+        throws Exception
+    {
+        final Channel channel = new ChannelExec();
+
+        assertTrue( WindowTuner.apply( channel, 8 * MEGABYTE, 1024 * 1024 ) );
+        assertEquals( 8 * MEGABYTE, field( channel, "lwsize_max" ) );
+        assertEquals( 8 * MEGABYTE, field( channel, "lwsize" ) );
+        assertEquals( WindowTuner.MAX_PACKET_SIZE, field( channel, "lmpsize" ) );
+    }
+
+    private static void link( final WindowTuner tuner, final long rttMillis, final long bytesPerSecond,
+                              final int window )
+    {
+        final LinkStatistics.Link link = tuner.getStatistics()
+                                              .get( "host:22" );
+        link.recordRoundTrip( rttMillis * MILLISECOND );
+        link.recordTransfer( bytesPerSecond, 1000 * MILLISECOND );
+        link.setWindowSize( window );
+    }
+
+    private static int field( final Channel channel, final String name )
+        throws Exception
+    {
+        final Field f = Channel.class.getDeclaredField( name );
+        f.setAccessible( true );
+        return f.getInt( channel );
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+
+
+package org.commonjava.sshwrap.ui;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.commonjava.sshwrap.ui.HeadlessPrompter.PromptType;
+import org.junit.Test;
+
+public class HeadlessPrompterTest
+{
+
+    private final MapCredentialProvider credentials = new MapCredentialProvider();
+
+    @Test
+    public void matchesRulesBeforeTheDefaults()
+    {
+        credentials.setCredential( "password", "generic" );
+        credentials.setCredential( "password.ops@web", "specific" );
+        credentials.setCredential( "vault/db", "from-rule" );
+
+        final HeadlessPrompter prompter = new HeadlessPrompter( 5, TimeUnit.SECONDS, credentials );
+        prompter.addRule( PromptType.PASSWORD, "Password for \\w+@(db)", "vault/$1" );
+
+        assertTrue( prompter.promptPassword( "Password for ops@db" ) );
+        assertEquals( "from-rule", prompter.getPassword() );
+
+        assertTrue( prompter.promptPassword( "Password for ops@web" ) );
+        assertEquals( "specific", prompter.getPassword() );
+
+        assertTrue( prompter.promptPassword( "Password for ops@other" ) );
+        assertEquals( "generic", prompter.getPassword() );
+    }
+
+    @Test
+    public void answersKeyboardInteractivePasswordPrompts()
+    {
+        credentials.setCredential( "password.ops@web", "secret" );
+        credentials.setCredential( "passphrase./keys/web", "unlock" );
+        final HeadlessPrompter prompter = new HeadlessPrompter( 5, TimeUnit.SECONDS, credentials );
+
+        assertArrayEquals( new String[] { "secret" },
+                           prompter.promptKeyboardInteractive( "ops@web", "", "", new String[] { "Password: " },
+                                                               new boolean[] { false } ) );
+
+        // a prompt nothing answers cancels the whole exchange.
+        assertNull( prompter.promptKeyboardInteractive( "ops@web", "", "", new String[] { "Password: ",
+            "Verification code: " }, new boolean[] { false, true } ) );
+
+        assertTrue( prompter.promptPassphrase( "Passphrase for /keys/web" ) );
+        assertEquals( "unlock", prompter.getPassphrase() );
+    }
+
+    @Test
+    public void answersYesNoOnlyFromRules()
+    {
+        final HeadlessPrompter prompter = new HeadlessPrompter( 5, TimeUnit.SECONDS, credentials );
+        prompter.addYesNoRule( "The authenticity of host 'lab-.*", true );
+
+        assertTrue( prompter.promptYesNo( "The authenticity of host 'lab-1' can't be established." ) );
+        assertFalse( prompter.promptYesNo( "The authenticity of host 'prod-1' can't be established." ) );
+    }
+
+    @Test
+    public void failsFastWhenNoProviderHasAnAnswer()
+    {
+        final HeadlessPrompter prompter = new HeadlessPrompter( 10, TimeUnit.SECONDS, credentials );
+
+        final long start = System.nanoTime();
+        assertFalse( prompter.promptPassword( "Password for ops@web" ) );
+        assertNull( prompter.getPassword() );
+
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertTrue( "took " + elapsed + "ms", elapsed < 2000 );
+    }
+
+    @Test
+    public void slowProvidersCannotOutlastTheBudget()
+    {
+        final SlowProvider slow = new SlowProvider();
+        credentials.setCredential( "password", "fast" );
+        final HeadlessPrompter prompter = new HeadlessPrompter( 200, TimeUnit.MILLISECONDS, slow, credentials );
+
+        final long start = System.nanoTime();
+        assertTrue( prompter.promptPassword( "Password for ops@web" ) );
+        assertEquals( "fast", prompter.getPassword() );
+
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertTrue( "took " + elapsed + "ms", elapsed >= 190 && elapsed < 2000 );
+    }
+
+    @Test
+    public void interruptsLookupsOnceThePromptIsSettled()
+        throws InterruptedException
+    {
+        final SlowProvider slow = new SlowProvider();
+        final HeadlessPrompter prompter = new HeadlessPrompter( 100, TimeUnit.MILLISECONDS, slow );
+
+        assertFalse( prompter.promptPassword( "Password for ops@web" ) );
+        assertTrue( slow.interrupted.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void keepsEachThreadsAnswerToItself()
+        throws Exception
+    {
+        credentials.setCredential( "password.a@web", "alpha" );
+        credentials.setCredential( "password.b@web", "bravo" );
+        final HeadlessPrompter prompter = new HeadlessPrompter( 5, TimeUnit.SECONDS, credentials );
+
+        // both prompts are answered before either answer is read, as in a parallel fan-out.
+        final CyclicBarrier answered = new CyclicBarrier( 2 );
+        final String[] read = new String[2];
+        final Thread[] threads = new Thread[2];
+        for ( int i = 0; i < 2; i++ )
+        {
+            final int idx = i;
+            threads[i] = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        prompter.promptPassword( "Password for " + ( idx == 0 ? "a" : "b" ) + "@web" );
+                        answered.await( 5, TimeUnit.SECONDS );
+                        read[idx] = prompter.getPassword();
+                    }
+                    catch ( final Exception e )
+                    {
+                        // the assertions below fail.
+                    }
+                }
+            } );
+            threads[i].start();
+        }
+
+        for ( final Thread t : threads )
+        {
+            t.join( 10000 );
+        }
+
+        assertEquals( "alpha", read[0] );
+        assertEquals( "bravo", read[1] );
+
+        // handed out once.
+        assertNull( prompter.getPassword() );
+    }
+
+    /**
+     * Never answers, until interrupted.
+     */
+    private static final class SlowProvider
+        implements CredentialProvider
+    {
+        private final CountDownLatch interrupted = new CountDownLatch( 1 );
+
+        public String getCredential( final String key )
+        {
+            try
+            {
+                Thread.sleep( TimeUnit.MINUTES.toMillis( 1 ) );
+            }
+            catch ( final InterruptedException e )
+            {
+                interrupted.countDown();
+            }
+
+            return null;
+        }
+    }
+
+}